@@ -36,8 +36,11 @@ import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.dependencies.AxolotlStorageModule;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.dependencies.SignalCommunicationModule;
+import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.dependencies.DependencyInjector;
+import org.thoughtcrime.securesms.jobmanager.persistence.JavaJobSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.PersistentStorage;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.FcmRefreshJob;
 import org.thoughtcrime.securesms.jobs.MultiDeviceContactUpdateJob;
@@ -57,6 +60,7 @@ import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.service.LocalBackupListener;
 import org.thoughtcrime.securesms.service.RotateSenderCertificateListener;
 import org.thoughtcrime.securesms.service.RotateSignedPreKeyListener;
+import org.thoughtcrime.securesms.service.SearchIndexMaintenanceListener;
 import org.thoughtcrime.securesms.service.UpdateApkRefreshListener;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.webrtc.PeerConnectionFactory;
@@ -66,6 +70,7 @@ import org.webrtc.voiceengine.WebRtcAudioUtils;
 import org.whispersystems.libsignal.logging.SignalProtocolLoggerProvider;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -85,6 +90,8 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
 
   private static final String TAG = ApplicationContext.class.getSimpleName();
 
+  private static final String LEGACY_JOB_QUEUE = "TextSecureJobs";
+
   private ExpiringMessageManager  expiringMessageManager;
   private TypingStatusRepository  typingStatusRepository;
   private TypingStatusSender      typingStatusSender;
@@ -108,6 +115,7 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     initializeCrashHandling();
     initializeDependencyInjection();
     initializeJobManager();
+    initializeLegacyJobMigration();
     initializeMessageRetrieval();
     initializeExpiringMessageManager();
     initializeTypingStatusRepository();
@@ -193,6 +201,27 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     this.jobManager = new JobManager(this, WorkManager.getInstance());
   }
 
+  private void initializeLegacyJobMigration() {
+    if (!PersistentStorage.exists(this, LEGACY_JOB_QUEUE)) return;
+
+    AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+      PersistentStorage storage = new PersistentStorage(this, LEGACY_JOB_QUEUE, new JavaJobSerializer());
+      List<Job>         jobs    = storage.getAllUnencrypted();
+
+      Log.i(TAG, "Migrating " + jobs.size() + " jobs from the legacy job queue.");
+
+      for (Job job : jobs) {
+        try {
+          jobManager.add(job);
+        } catch (IllegalStateException e) {
+          Log.w(TAG, "Dropping legacy job " + job.getClass().getSimpleName() + ".", e);
+        }
+      }
+
+      storage.delete();
+    });
+  }
+
   public void initializeMessageRetrieval() {
     this.incomingMessageObserver = new IncomingMessageObserver(this);
   }
@@ -235,6 +264,7 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     DirectoryRefreshListener.schedule(this);
     LocalBackupListener.schedule(this);
     RotateSenderCertificateListener.schedule(this);
+    SearchIndexMaintenanceListener.schedule(this);
 
     if (BuildConfig.PLAY_STORE_DISABLED) {
       UpdateApkRefreshListener.schedule(this);
@@ -220,7 +220,7 @@ public class ConversationListActivity extends PassphraseRequiredActionBarActivit
     openConversation(threadId, recipient, distributionType, lastSeen, -1);
   }
 
-  public void openConversation(long threadId, Recipient recipient, int distributionType, long lastSeen, int startingPosition) {
+  public void openConversation(long threadId, Recipient recipient, int distributionType, long lastSeen, long startingTimestamp) {
     searchToolbar.clearFocus();
 
     Intent intent = new Intent(this, ConversationActivity.class);
@@ -229,7 +229,7 @@ public class ConversationListActivity extends PassphraseRequiredActionBarActivit
     intent.putExtra(ConversationActivity.DISTRIBUTION_TYPE_EXTRA, distributionType);
     intent.putExtra(ConversationActivity.TIMING_EXTRA, System.currentTimeMillis());
     intent.putExtra(ConversationActivity.LAST_SEEN_EXTRA, lastSeen);
-    intent.putExtra(ConversationActivity.STARTING_POSITION_EXTRA, startingPosition);
+    intent.putExtra(ConversationActivity.STARTING_TIMESTAMP_EXTRA, startingTimestamp);
 
     startActivity(intent);
     overridePendingTransition(R.anim.slide_from_right, R.anim.fade_scale_out);
@@ -186,7 +186,7 @@ public class AttachmentServer implements Runnable {
     }
 
     protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
+      InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri(), cbSkip);
       long        fileSize    = attachment.getSize();
 
       String headers = "";
@@ -216,9 +216,6 @@ public class AttachmentServer implements Runnable {
         output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
         output.write(headers.getBytes());
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
-
         // Loop as long as there's stuff to send and client has not closed
         int cbRead;
         while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
@@ -234,6 +231,8 @@ public class AttachmentServer implements Runnable {
       }
 
       // Cleanup
+      Util.close(inputStream);
+
       try {
         if (output != null) {
           output.close();
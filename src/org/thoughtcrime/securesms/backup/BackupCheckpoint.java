@@ -0,0 +1,365 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records a hash of every row the last backup contained, so that the next one only has to write
+ * rows that were added, changed or removed since.
+ *
+ * While a full backup is being written the same records are appended to a journal, along with
+ * periodic progress markers noting how much of the backup file is complete. An interrupted export
+ * can be resumed from the last marker, and a finished journal becomes the next checkpoint.
+ */
+class BackupCheckpoint {
+
+  private static final String TAG = BackupCheckpoint.class.getSimpleName();
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final byte RECORD_TABLE    = 1;
+  private static final byte RECORD_ROW      = 2;
+  private static final byte RECORD_PROGRESS = 3;
+  private static final byte RECORD_END      = 4;
+
+  private final int                    databaseVersion;
+  private final long                   schemaHash;
+  private final String                 backupName;
+  private final String                 tempPath;
+  private final int                    deltaCount;
+  private final Map<String, RowHashes> tables;
+
+  private Progress progress;
+  private long     progressOffset;
+  private boolean  complete;
+
+  BackupCheckpoint(int databaseVersion, long schemaHash, @NonNull String backupName, @NonNull String tempPath, int deltaCount) {
+    this.databaseVersion = databaseVersion;
+    this.schemaHash      = schemaHash;
+    this.backupName      = backupName;
+    this.tempPath        = tempPath;
+    this.deltaCount      = deltaCount;
+    this.tables          = new LinkedHashMap<>();
+  }
+
+  int getDatabaseVersion() {
+    return databaseVersion;
+  }
+
+  long getSchemaHash() {
+    return schemaHash;
+  }
+
+  /**
+   * @return The file name of the full backup that this checkpoint (and any deltas) builds on.
+   */
+  @NonNull String getBackupName() {
+    return backupName;
+  }
+
+  @NonNull File getTempFile() {
+    return new File(tempPath);
+  }
+
+  int getDeltaCount() {
+    return deltaCount;
+  }
+
+  boolean isComplete() {
+    return complete;
+  }
+
+  @Nullable Progress getProgress() {
+    return progress;
+  }
+
+  @NonNull RowHashes getTable(@NonNull String table) {
+    RowHashes rows = tables.get(table);
+
+    if (rows == null) {
+      rows = new RowHashes();
+      tables.put(table, rows);
+    }
+
+    return rows;
+  }
+
+  /**
+   * @return An empty checkpoint for the next delta on the same full backup, to be filled in as
+   *         the delta is written.
+   */
+  @NonNull BackupCheckpoint forNextDelta() {
+    return new BackupCheckpoint(databaseVersion, schemaHash, backupName, tempPath, deltaCount + 1);
+  }
+
+  /**
+   * Writes the checkpoint as a complete file, replacing whatever was there.
+   */
+  void write(@NonNull File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+
+    try (Journal journal = new Journal(this, temp, false)) {
+      for (Map.Entry<String, RowHashes> table : tables.entrySet()) {
+        RowHashes rows = table.getValue();
+
+        journal.writeTable(table.getKey());
+
+        for (int i = 0; i < rows.size; i++) {
+          journal.writeRow(rows.rowIds[i], rows.hashes[i]);
+        }
+      }
+
+      journal.writeEnd();
+    }
+
+    if (!temp.renameTo(file)) {
+      throw new IOException("Failed to replace checkpoint");
+    }
+  }
+
+  /**
+   * @return The checkpoint or journal in the file, or null if there isn't a readable one.
+   */
+  static @Nullable BackupCheckpoint read(@NonNull File file) {
+    if (!file.exists()) return null;
+
+    try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      DataInputStream in = new DataInputStream(counting);
+
+      if (in.readInt() != FORMAT_VERSION) {
+        Log.w(TAG, "Unknown checkpoint format.");
+        return null;
+      }
+
+      BackupCheckpoint checkpoint = new BackupCheckpoint(in.readInt(), in.readLong(), in.readUTF(), in.readUTF(), in.readInt());
+      RowHashes        current    = null;
+
+      try {
+        while (true) {
+          byte type = in.readByte();
+
+          switch (type) {
+            case RECORD_TABLE:
+              current = checkpoint.getTable(in.readUTF());
+              break;
+            case RECORD_ROW:
+              if (current == null) throw new IOException("Row without table");
+              current.add(in.readLong(), in.readLong());
+              break;
+            case RECORD_PROGRESS:
+              checkpoint.progress       = new Progress(in.readLong(), in.readInt(), in.readUTF(), in.readLong());
+              checkpoint.progressOffset = counting.getCount();
+              break;
+            case RECORD_END:
+              checkpoint.complete = true;
+              return checkpoint;
+            default:
+              throw new IOException("Unknown record: " + type);
+          }
+        }
+      } catch (EOFException e) {
+        return checkpoint;
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      Log.w(TAG, "Failed to read checkpoint.", e);
+      return null;
+    }
+  }
+
+  /**
+   * Cuts an incomplete journal back to its last progress marker and reads what remains, which then
+   * matches the part of the backup file that's known to be complete.
+   */
+  static @Nullable BackupCheckpoint readForResume(@NonNull File file) {
+    BackupCheckpoint journal = read(file);
+
+    if (journal == null || journal.complete || journal.progress == null) {
+      return null;
+    }
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      randomAccessFile.setLength(journal.progressOffset);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+
+    return read(file);
+  }
+
+  static class Progress {
+
+    private final long   outputLength;
+    private final int    count;
+    private final String table;
+    private final long   lastRowId;
+
+    Progress(long outputLength, int count, @NonNull String table, long lastRowId) {
+      this.outputLength = outputLength;
+      this.count        = count;
+      this.table        = table;
+      this.lastRowId    = lastRowId;
+    }
+
+    long getOutputLength() {
+      return outputLength;
+    }
+
+    int getCount() {
+      return count;
+    }
+
+    @NonNull String getTable() {
+      return table;
+    }
+
+    long getLastRowId() {
+      return lastRowId;
+    }
+  }
+
+  /**
+   * Row hashes for a table, in ascending rowid order.
+   */
+  static class RowHashes {
+
+    private long[] rowIds = new long[16];
+    private long[] hashes = new long[16];
+    private int    size;
+
+    void add(long rowId, long hash) {
+      if (size > 0 && rowId <= rowIds[size - 1]) {
+        throw new IllegalArgumentException("Rows must be added in ascending order");
+      }
+
+      if (size == rowIds.length) {
+        rowIds = Arrays.copyOf(rowIds, size * 2);
+        hashes = Arrays.copyOf(hashes, size * 2);
+      }
+
+      rowIds[size] = rowId;
+      hashes[size] = hash;
+      size++;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long getRowId(int index) {
+      return rowIds[index];
+    }
+
+    long getHash(int index) {
+      return hashes[index];
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+
+    private long count;
+
+    private CountingInputStream(@NonNull InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int read = super.read();
+      if (read != -1) count++;
+      return read;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) count += read;
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    long getCount() {
+      return count;
+    }
+  }
+
+  /**
+   * Appends checkpoint records to a file.
+   */
+  static class Journal implements Closeable {
+
+    private final DataOutputStream out;
+
+    Journal(@NonNull BackupCheckpoint header, @NonNull File file, boolean append) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+
+      if (!append) {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(header.databaseVersion);
+        out.writeLong(header.schemaHash);
+        out.writeUTF(header.backupName);
+        out.writeUTF(header.tempPath);
+        out.writeInt(header.deltaCount);
+      }
+    }
+
+    void writeTable(@NonNull String table) throws IOException {
+      out.writeByte(RECORD_TABLE);
+      out.writeUTF(table);
+    }
+
+    void writeRow(long rowId, long hash) throws IOException {
+      out.writeByte(RECORD_ROW);
+      out.writeLong(rowId);
+      out.writeLong(hash);
+    }
+
+    /**
+     * Should only be written once everything up to outputLength is in the backup file.
+     */
+    void writeProgress(long outputLength, int count, @NonNull String table, long lastRowId) throws IOException {
+      out.writeByte(RECORD_PROGRESS);
+      out.writeLong(outputLength);
+      out.writeInt(count);
+      out.writeUTF(table);
+      out.writeLong(lastRowId);
+      out.flush();
+    }
+
+    void writeEnd() throws IOException {
+      out.writeByte(RECORD_END);
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
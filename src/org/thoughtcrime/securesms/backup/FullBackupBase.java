@@ -7,14 +7,38 @@ import android.support.annotation.Nullable;
 import org.greenrobot.eventbus.EventBus;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.io.File;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
 
 public abstract class FullBackupBase {
 
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupBase.class.getSimpleName();
 
+  /**
+   * Deltas are named after the full backup they apply to, followed by this and their index.
+   */
+  public static final String DELTA_SUFFIX = ".delta-";
+
+  /**
+   * @return The deltas written on top of a full backup, in the order they have to be applied.
+   */
+  public static @NonNull List<File> getDeltaFiles(@NonNull File backup) {
+    List<File> deltas = new LinkedList<>();
+
+    for (int i = 1; ; i++) {
+      File delta = new File(backup.getParentFile(), backup.getName() + DELTA_SUFFIX + i);
+
+      if (!delta.exists()) break;
+      deltas.add(delta);
+    }
+
+    return deltas;
+  }
+
   static class BackupStream {
     static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt) {
       try {
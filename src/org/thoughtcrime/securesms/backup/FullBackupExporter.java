@@ -7,8 +7,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.annimon.stream.function.Consumer;
-import com.annimon.stream.function.Predicate;
 import com.google.protobuf.ByteString;
 
 import net.sqlcipher.database.SQLiteDatabase;
@@ -32,9 +30,12 @@ import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -43,15 +44,21 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -60,49 +67,217 @@ public class FullBackupExporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupExporter.class.getSimpleName();
 
-  public static void export(@NonNull Context context,
-                            @NonNull AttachmentSecret attachmentSecret,
-                            @NonNull SQLiteDatabase input,
-                            @NonNull File output,
-                            @NonNull String passphrase)
+  private static final String CHECKPOINT_DIRECTORY = "backup_checkpoint";
+  private static final String CHECKPOINT_FILE      = "checkpoint";
+  private static final String JOURNAL_FILE         = "journal";
+
+  private static final int  MAX_DELTAS             = 30;
+  private static final int  PROGRESS_INTERVAL_ROWS = 1000;
+  private static final long PROGRESS_INTERVAL_SIZE = 16 * 1024 * 1024;
+  private static final int  ROW_BATCH_SIZE         = 500;
+
+  private static final int MAX_PENDING_FRAMES = 256;
+
+  private static final ExecutorService ENCRYPT_EXECUTOR = SignalExecutors.newCachedLowPriorityExecutor("backup-encrypt", Math.max(1, Runtime.getRuntime().availableProcessors()));
+  private static final ExecutorService WRITE_EXECUTOR   = SignalExecutors.newCachedSingleThreadExecutor("backup-write");
+
+  private static final String NON_EXPIRING_MMS_IDS = "(SELECT " + MmsDatabase.ID + " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.EXPIRES_IN + " = 0)";
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME        = 0x100000001b3L;
+
+  /**
+   * Backs up to backupDirectory, writing only the rows and attachments that changed since the
+   * last backup when there's a recent enough full backup to build on. Otherwise a new full backup
+   * named backupName is written, and if that gets interrupted the next call carries on from where
+   * it stopped.
+   *
+   * @return The file that was written, either a full backup or a delta on top of one.
+   */
+  public static @NonNull File exportIncremental(@NonNull Context context,
+                                                @NonNull AttachmentSecret attachmentSecret,
+                                                @NonNull SQLiteDatabase input,
+                                                @NonNull File backupDirectory,
+                                                @NonNull File tempDirectory,
+                                                @NonNull String backupName,
+                                                @NonNull String passphrase)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(output, passphrase);
+    File checkpointDirectory = context.getDir(CHECKPOINT_DIRECTORY, Context.MODE_PRIVATE);
+    File checkpointFile      = new File(checkpointDirectory, CHECKPOINT_FILE);
+    File journalFile         = new File(checkpointDirectory, JOURNAL_FILE);
+    long schemaHash          = getSchemaHash(input);
+
+    promoteFinishedJournal(backupDirectory, journalFile, checkpointFile);
+
+    BackupCheckpoint resume = BackupCheckpoint.readForResume(journalFile);
+
+    if (resume != null                                      &&
+        resume.getDatabaseVersion() == input.getVersion()    &&
+        resume.getSchemaHash() == schemaHash                 &&
+        getTables(input).contains(resume.getProgress().getTable()))
+    {
+      BackupCheckpoint.Progress progress     = resume.getProgress();
+      BackupFrameOutputStream   outputStream = null;
+
+      try {
+        outputStream = BackupFrameOutputStream.resume(resume.getTempFile(), progress.getOutputLength(), passphrase);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to resume backup, starting over.", e);
+      }
+
+      if (outputStream != null) {
+        Log.i(TAG, "Resuming backup at " + progress.getTable() + " after row " + progress.getLastRowId());
+        return exportBase(context, attachmentSecret, input, outputStream, resume, backupDirectory, checkpointFile, journalFile, progress);
+      }
+    }
+
+    discardJournal(journalFile);
+
+    BackupCheckpoint checkpoint = BackupCheckpoint.read(checkpointFile);
+
+    if (checkpoint != null                                   &&
+        checkpoint.isComplete()                              &&
+        checkpoint.getDatabaseVersion() == input.getVersion() &&
+        checkpoint.getSchemaHash() == schemaHash              &&
+        checkpoint.getDeltaCount() < MAX_DELTAS)
+    {
+      File base = new File(backupDirectory, checkpoint.getBackupName());
+
+      if (base.exists()) {
+        File                    tempFile     = File.createTempFile("backup", "tmp", tempDirectory);
+        BackupFrameOutputStream outputStream = null;
+
+        try {
+          outputStream = BackupFrameOutputStream.createDelta(tempFile, base, passphrase);
+        } catch (IOException e) {
+          Log.w(TAG, "Unable to read latest full backup.", e);
+        }
+
+        if (outputStream != null) {
+          return exportDelta(context, attachmentSecret, input, outputStream, checkpoint, tempFile, base, checkpointFile);
+        }
+
+        Log.w(TAG, "Can't build on the latest full backup, writing a new one.");
+        tempFile.delete();
+      }
+    }
+
+    File                    tempFile     = File.createTempFile("backup", "tmp", tempDirectory);
+    BackupCheckpoint        header       = new BackupCheckpoint(input.getVersion(), schemaHash, backupName, tempFile.getAbsolutePath(), 0);
+    BackupFrameOutputStream outputStream = BackupFrameOutputStream.create(tempFile, passphrase);
+
     outputStream.writeDatabaseVersion(input.getVersion());
+    exportSchema(input, outputStream);
 
-    List<String> tables = exportSchema(input, outputStream);
-    int          count  = 0;
+    return exportBase(context, attachmentSecret, input, outputStream, header, backupDirectory, checkpointFile, journalFile, null);
+  }
 
-    for (String table : tables) {
-      if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0, null, count);
-      } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count);
-      } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), cursor -> exportAttachment(attachmentSecret, cursor, outputStream), count);
-      } else if (!table.equals(SignedPreKeyDatabase.TABLE_NAME)       &&
-                 !table.equals(OneTimePreKeyDatabase.TABLE_NAME)      &&
-                 !table.equals(SessionDatabase.TABLE_NAME)            &&
-                 !table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) &&
-                 !table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME))
-      {
-        count = exportTable(table, input, outputStream, null, null, count);
+  private static @NonNull File exportBase(@NonNull Context context,
+                                          @NonNull AttachmentSecret attachmentSecret,
+                                          @NonNull SQLiteDatabase input,
+                                          @NonNull BackupFrameOutputStream outputStream,
+                                          @NonNull BackupCheckpoint header,
+                                          @NonNull File backupDirectory,
+                                          @NonNull File checkpointFile,
+                                          @NonNull File journalFile,
+                                          @Nullable BackupCheckpoint.Progress resumeFrom)
+      throws IOException
+  {
+    List<String> tables = getTables(input);
+    int          start  = resumeFrom != null ? tables.indexOf(resumeFrom.getTable()) : 0;
+
+    try (BackupCheckpoint.Journal journal = new BackupCheckpoint.Journal(header, journalFile, resumeFrom != null)) {
+      Export export = new Export(context, attachmentSecret, input, outputStream, journal, resumeFrom != null ? resumeFrom.getCount() : 0);
+
+      for (int i = start; i < tables.size(); i++) {
+        if (resumeFrom != null && i == start) export.exportTable(tables.get(i), resumeFrom.getLastRowId(), true);
+        else                                  export.exportTable(tables.get(i), Long.MIN_VALUE, false);
       }
+
+      export.finish();
+      journal.writeEnd();
+    } finally {
+      outputStream.close();
     }
 
-    for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(preference);
+    File backupFile = new File(backupDirectory, header.getBackupName());
+
+    if (!header.getTempFile().renameTo(backupFile)) {
+      header.getTempFile().delete();
+      journalFile.delete();
+      throw new IOException("Renaming temporary backup file failed!");
     }
 
-    for (File avatar : AvatarHelper.getAvatarFiles(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(avatar.getName(), new FileInputStream(avatar), avatar.length());
+    if (!journalFile.renameTo(checkpointFile)) {
+      Log.w(TAG, "Failed to save checkpoint, the next backup will be a full one.");
     }
 
-    outputStream.writeEnd();
-    outputStream.close();
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+    return backupFile;
+  }
+
+  private static @NonNull File exportDelta(@NonNull Context context,
+                                           @NonNull AttachmentSecret attachmentSecret,
+                                           @NonNull SQLiteDatabase input,
+                                           @NonNull BackupFrameOutputStream outputStream,
+                                           @NonNull BackupCheckpoint checkpoint,
+                                           @NonNull File tempFile,
+                                           @NonNull File base,
+                                           @NonNull File checkpointFile)
+      throws IOException
+  {
+    BackupCheckpoint next   = checkpoint.forNextDelta();
+    Export           export = new Export(context, attachmentSecret, input, outputStream, null, 0);
+
+    try {
+      outputStream.writeDatabaseVersion(input.getVersion());
+
+      for (String table : getTables(input)) {
+        export.exportTableDelta(table, checkpoint.getTable(table), next.getTable(table));
+      }
+
+      export.finish();
+    } catch (IOException e) {
+      outputStream.close();
+      tempFile.delete();
+      throw e;
+    }
+
+    File deltaFile = new File(base.getParentFile(), base.getName() + DELTA_SUFFIX + next.getDeltaCount());
+
+    if (!tempFile.renameTo(deltaFile)) {
+      tempFile.delete();
+      throw new IOException("Renaming temporary backup file failed!");
+    }
+
+    next.write(checkpointFile);
+
+    return deltaFile;
+  }
+
+  /**
+   * A journal only becomes the checkpoint once its backup has been moved into place. If the app
+   * died in between, finish the job here so the next delta builds on the newest full backup.
+   */
+  private static void promoteFinishedJournal(@NonNull File backupDirectory, @NonNull File journalFile, @NonNull File checkpointFile) {
+    BackupCheckpoint journal = BackupCheckpoint.read(journalFile);
+
+    if (journal != null && journal.isComplete() && new File(backupDirectory, journal.getBackupName()).exists()) {
+      if (!journalFile.renameTo(checkpointFile)) {
+        Log.w(TAG, "Failed to save checkpoint.");
+      }
+    }
+  }
+
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private static void discardJournal(@NonNull File journalFile) {
+    BackupCheckpoint journal = BackupCheckpoint.read(journalFile);
+
+    if (journal != null) {
+      journal.getTempFile().delete();
+    }
+
+    journalFile.delete();
   }
 
   private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupFrameOutputStream outputStream)
@@ -116,18 +291,32 @@ public class FullBackupExporter extends FullBackupBase {
         String name = cursor.getString(1);
         String type = cursor.getString(2);
 
-        if (sql != null) {
+        if (sql != null && !isFtsSecretTable(name)) {
+          if ("table".equals(type)) {
+            tables.add(name);
+          }
 
-          boolean isSmsFtsSecretTable = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
-          boolean isMmsFtsSecretTable = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+          outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement(cursor.getString(0)).build());
+        }
+      }
+    }
 
-          if (!isSmsFtsSecretTable && !isMmsFtsSecretTable) {
-            if ("table".equals(type)) {
-              tables.add(name);
-            }
+    return tables;
+  }
 
-            outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement(cursor.getString(0)).build());
-          }
+  /**
+   * @return The same tables as {@link #exportSchema(SQLiteDatabase, BackupFrameOutputStream)}, in
+   *         the same order, without writing anything.
+   */
+  private static List<String> getTables(@NonNull SQLiteDatabase input) {
+    List<String> tables = new LinkedList<>();
+
+    try (Cursor cursor = input.rawQuery("SELECT sql, name, type FROM sqlite_master", null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        String name = cursor.getString(1);
+
+        if (cursor.getString(0) != null && !isFtsSecretTable(name) && "table".equals(cursor.getString(2))) {
+          tables.add(name);
         }
       }
     }
@@ -135,58 +324,102 @@ public class FullBackupExporter extends FullBackupBase {
     return tables;
   }
 
-  private static int exportTable(@NonNull   String table,
-                                 @NonNull   SQLiteDatabase input,
-                                 @NonNull   BackupFrameOutputStream outputStream,
-                                 @Nullable  Predicate<Cursor> predicate,
-                                 @Nullable  Consumer<Cursor> postProcess,
-                                            int count)
-      throws IOException
-  {
-    String template = "INSERT INTO " + table + " VALUES ";
+  private static long getSchemaHash(@NonNull SQLiteDatabase input) {
+    long hash = FNV_OFFSET_BASIS;
 
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
+    try (Cursor cursor = input.rawQuery("SELECT name, sql FROM sqlite_master ORDER BY name", null)) {
       while (cursor != null && cursor.moveToNext()) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        hash = hash(hash, cursor.getString(0));
+        hash = hash(hash, cursor.getString(1));
+      }
+    }
 
-        if (predicate == null || predicate.test(cursor)) {
-          StringBuilder                     statement        = new StringBuilder(template);
-          BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
-
-          statement.append('(');
-
-          for (int i=0;i<cursor.getColumnCount();i++) {
-            statement.append('?');
-
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
-            } else {
-              throw new AssertionError("unknown type?"  + cursor.getType(i));
-            }
+    return hash;
+  }
 
-            if (i < cursor.getColumnCount()-1) {
-              statement.append(',');
-            }
-          }
+  private static boolean isFtsSecretTable(@Nullable String name) {
+    boolean isSmsFtsSecretTable = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
+    boolean isMmsFtsSecretTable = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
 
-          statement.append(')');
+    return isSmsFtsSecretTable || isMmsFtsSecretTable;
+  }
 
-          outputStream.write(statementBuilder.setStatement(statement.toString()).build());
+  /**
+   * A 64-bit FNV-1a hash of a row's values, skipping the rowid in the first column. It only has to
+   * tell whether a row changed between two backups, not resist anyone trying to collide it.
+   */
+  private static long hashRow(@NonNull Cursor cursor) {
+    long hash = FNV_OFFSET_BASIS;
 
-          if (postProcess != null) postProcess.accept(cursor);
-        }
+    for (int i = 1; i < cursor.getColumnCount(); i++) {
+      int type = cursor.getType(i);
+
+      hash = hash(hash, type);
+
+      switch (type) {
+        case Cursor.FIELD_TYPE_STRING:  hash = hash(hash, cursor.getString(i));                         break;
+        case Cursor.FIELD_TYPE_FLOAT:   hash = hash(hash, Double.doubleToLongBits(cursor.getDouble(i))); break;
+        case Cursor.FIELD_TYPE_INTEGER: hash = hash(hash, cursor.getLong(i));                           break;
+        case Cursor.FIELD_TYPE_BLOB:    hash = hash(hash, cursor.getBlob(i));                           break;
       }
     }
 
-    return count;
+    return hash;
+  }
+
+  private static long hash(long hash, long value) {
+    for (int i = 0; i < 8; i++) {
+      hash = (hash ^ ((value >>> (i * 8)) & 0xff)) * FNV_PRIME;
+    }
+
+    return hash;
+  }
+
+  private static long hash(long hash, @Nullable String value) {
+    if (value == null) return hash(hash, -1);
+
+    hash = hash(hash, value.length());
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+      hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+
+    return hash;
+  }
+
+  private static long hash(long hash, @NonNull byte[] value) {
+    hash = hash(hash, value.length);
+
+    for (byte b : value) {
+      hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+    }
+
+    return hash;
+  }
+
+  private static @NonNull String getInsertStatement(@NonNull String table, @NonNull Cursor cursor) {
+    StringBuilder columns = new StringBuilder("rowid");
+    StringBuilder values  = new StringBuilder("?");
+
+    for (int i = 1; i < cursor.getColumnCount(); i++) {
+      columns.append(",\"").append(cursor.getColumnName(i)).append('"');
+      values.append(",?");
+    }
+
+    return "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")";
+  }
+
+  private static @NonNull String getRowIdList(@NonNull List<Long> rowIds) {
+    StringBuilder list = new StringBuilder();
+
+    for (long rowId : rowIds) {
+      if (list.length() > 0) list.append(',');
+      list.append(rowId);
+    }
+
+    return list.toString();
   }
 
   private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream) {
@@ -232,109 +465,673 @@ public class FullBackupExporter extends FullBackupBase {
     return result;
   }
 
-  private static boolean isForNonExpiringMessage(@NonNull SQLiteDatabase db, long mmsId) {
-    String[] columns = new String[] { MmsDatabase.EXPIRES_IN };
-    String   where   = MmsDatabase.ID + " = ?";
-    String[] args    = new String[] { String.valueOf(mmsId) };
 
-    try (Cursor mmsCursor = db.query(MmsDatabase.TABLE_NAME, columns, where, args, null, null, null)) {
-      if (mmsCursor != null && mmsCursor.moveToFirst()) {
-        return mmsCursor.getLong(0) == 0;
+  /**
+   * Writes table rows for a single backup, optionally recording them in a checkpoint journal.
+   */
+  private static class Export {
+
+    private final Context                  context;
+    private final AttachmentSecret         attachmentSecret;
+    private final SQLiteDatabase           input;
+    private final BackupFrameOutputStream  outputStream;
+    private final BackupCheckpoint.Journal journal;
+
+    private int  count;
+    private int  rowsSinceProgress;
+    private long lengthAtProgress;
+
+    private Export(@NonNull Context context,
+                   @NonNull AttachmentSecret attachmentSecret,
+                   @NonNull SQLiteDatabase input,
+                   @NonNull BackupFrameOutputStream outputStream,
+                   @Nullable BackupCheckpoint.Journal journal,
+                   int count)
+    {
+      this.context          = context;
+      this.attachmentSecret = attachmentSecret;
+      this.input            = input;
+      this.outputStream     = outputStream;
+      this.journal          = journal;
+      this.count            = count;
+      this.lengthAtProgress = outputStream.getLength();
+    }
+
+    /**
+     * Writes every row of the table with a rowid greater than afterRowId.
+     *
+     * @param resuming True if the journal already has this table's earlier rows.
+     */
+    void exportTable(@NonNull String table, long afterRowId, boolean resuming) throws IOException {
+      if (isExcluded(table)) return;
+
+      if (journal != null && !resuming) {
+        journal.writeTable(table);
+        writeProgress(table, afterRowId);
+      }
+
+      String filter = getFilter(table);
+      String where  = afterRowId != Long.MIN_VALUE ? "rowid > " + afterRowId : null;
+
+      if      (filter != null && where != null) where = filter + " AND " + where;
+      else if (filter != null)                  where = filter;
+
+      String query = "SELECT rowid, * FROM " + table + (where != null ? " WHERE " + where : "") + " ORDER BY rowid";
+
+      try (Cursor cursor = input.rawQuery(query, null)) {
+        String statement = null;
+
+        while (cursor != null && cursor.moveToNext()) {
+          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+
+          if (statement == null) statement = getInsertStatement(table, cursor);
+
+          writeRow(table, statement, cursor);
+
+          if (journal != null) {
+            journal.writeRow(cursor.getLong(0), hashRow(cursor));
+
+            if (++rowsSinceProgress >= PROGRESS_INTERVAL_ROWS || outputStream.getLength() - lengthAtProgress >= PROGRESS_INTERVAL_SIZE) {
+              writeProgress(table, cursor.getLong(0));
+            }
+          }
+        }
       }
     }
 
-    return false;
-  }
+    /**
+     * Writes the rows that were added or changed since the previous checkpoint, and deletes the
+     * ones that went away. The rows that are in the table now are recorded in current.
+     *
+     * Deletes go first, including for rows that are about to be written again, so that neither a
+     * unique constraint nor an on-delete trigger trips over the old version while importing.
+     */
+    void exportTableDelta(@NonNull String table, @NonNull BackupCheckpoint.RowHashes previous, @NonNull BackupCheckpoint.RowHashes current)
+        throws IOException
+    {
+      if (isExcluded(table)) return;
+
+      String     filter  = getFilter(table);
+      List<Long> deleted = new LinkedList<>();
+      List<Long> written = new LinkedList<>();
+      int        index   = 0;
+
+      try (Cursor cursor = input.rawQuery("SELECT rowid, * FROM " + table + (filter != null ? " WHERE " + filter : "") + " ORDER BY rowid", null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+
+          long rowId = cursor.getLong(0);
+          long hash  = hashRow(cursor);
+
+          while (index < previous.size() && previous.getRowId(index) < rowId) {
+            deleted.add(previous.getRowId(index++));
+          }
+
+          if (index < previous.size() && previous.getRowId(index) == rowId) {
+            if (previous.getHash(index) != hash) {
+              deleted.add(rowId);
+              written.add(rowId);
+            }
+
+            index++;
+          } else {
+            written.add(rowId);
+          }
+
+          current.add(rowId, hash);
+        }
+      }
+
+      while (index < previous.size()) {
+        deleted.add(previous.getRowId(index++));
+      }
+
+      for (int i = 0; i < deleted.size(); i += ROW_BATCH_SIZE) {
+        String rowIds = getRowIdList(deleted.subList(i, Math.min(i + ROW_BATCH_SIZE, deleted.size())));
+        outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement("DELETE FROM " + table + " WHERE rowid IN (" + rowIds + ")").build());
+      }
+
+      for (int i = 0; i < written.size(); i += ROW_BATCH_SIZE) {
+        String rowIds = getRowIdList(written.subList(i, Math.min(i + ROW_BATCH_SIZE, written.size())));
+
+        try (Cursor cursor = input.rawQuery("SELECT rowid, * FROM " + table + " WHERE rowid IN (" + rowIds + ") ORDER BY rowid", null)) {
+          String statement = null;
+
+          while (cursor != null && cursor.moveToNext()) {
+            if (statement == null) statement = getInsertStatement(table, cursor);
+            writeRow(table, statement, cursor);
+          }
+        }
+      }
+
+      if (deleted.size() > 0 || written.size() > 0) {
+        Log.i(TAG, table + ": " + written.size() + " written, " + deleted.size() + " deleted");
+      }
+    }
+
+    void finish() throws IOException {
+      for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        outputStream.write(preference);
+      }
+
+      for (File avatar : AvatarHelper.getAvatarFiles(context)) {
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        outputStream.write(avatar.getName(), new FileInputStream(avatar), avatar.length());
+      }
+
+      outputStream.writeEnd();
+      outputStream.close();
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+    }
+
+    private void writeRow(@NonNull String table, @NonNull String statement, @NonNull Cursor cursor) throws IOException {
+      BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
+
+      for (int i=0;i<cursor.getColumnCount();i++) {
+        if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
+          statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
+        } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
+          statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
+        } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+          statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
+        } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+          statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
+        } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
+          statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
+        } else {
+          throw new AssertionError("unknown type?"  + cursor.getType(i));
+        }
+      }
+
+      outputStream.write(statementBuilder.setStatement(statement).build());
+
+      if (table.equals(AttachmentDatabase.TABLE_NAME)) {
+        exportAttachment(attachmentSecret, cursor, outputStream);
+      }
+    }
+
+    private void writeProgress(@NonNull String table, long lastRowId) throws IOException {
+      if (journal == null) return;
+
+      outputStream.sync();
+      journal.writeProgress(outputStream.getLength(), count, table, lastRowId);
+
+      rowsSinceProgress = 0;
+      lengthAtProgress  = outputStream.getLength();
+    }
 
+    private boolean isExcluded(@NonNull String table) {
+      return table.equals(SignedPreKeyDatabase.TABLE_NAME)       ||
+             table.equals(OneTimePreKeyDatabase.TABLE_NAME)      ||
+             table.equals(SessionDatabase.TABLE_NAME)            ||
+             table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) ||
+             table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+    }
 
+    /**
+     * Disappearing messages are left out, along with their attachments and receipts. Those are
+     * matched against the messages in the query itself, rather than looked up one row at a time.
+     */
+    private @Nullable String getFilter(@NonNull String table) {
+      if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
+        return MmsSmsColumns.EXPIRES_IN + " <= 0";
+      } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
+        return GroupReceiptDatabase.MMS_ID + " IN " + NON_EXPIRING_MMS_IDS;
+      } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
+        return AttachmentDatabase.MMS_ID + " IN " + NON_EXPIRING_MMS_IDS;
+      } else {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Encrypts frames on {@link #ENCRYPT_EXECUTOR} and writes them out in order on
+   * {@link #WRITE_EXECUTOR}, so the caller can go on reading rows while earlier ones are being
+   * encrypted and written. Attachments are streamed by the writer, in order, as they can be too
+   * large to hold in memory.
+   *
+   * A write that fails is reported by the next call that writes, syncs or closes.
+   */
   private static class BackupFrameOutputStream extends BackupStream {
 
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
+    private final FileOutputStream outputStream;
+    private final SecretKeySpec    cipherKey;
+    private final byte[]           macKey;
+    private final byte[]           iv;
+    private final Semaphore        permits;
+
+    private final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
+      @Override
+      protected Cipher initialValue() {
+        try {
+          return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+      @Override
+      protected Mac initialValue() {
+        try {
+          Mac mac = Mac.getInstance("HmacSHA256");
+          mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+          return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+
+    private int     counter;
+    private boolean closed;
+    private boolean failureReported;
+
+    private volatile long        length;
+    private volatile IOException failure;
+
+    static @NonNull BackupFrameOutputStream create(@NonNull File output, @NonNull String passphrase) throws IOException {
+      byte[]                  salt         = Util.getSecretBytes(32);
+      byte[]                  iv           = Util.getSecretBytes(16);
+      BackupFrameOutputStream outputStream = new BackupFrameOutputStream(new FileOutputStream(output), deriveKeys(passphrase, salt), iv, Conversions.byteArrayToInt(iv), 0);
+
+      outputStream.writeHeader(salt);
+      return outputStream;
+    }
+
+    /**
+     * Deltas share the salt of their full backup so that restoring only has to stretch the
+     * passphrase once.
+     *
+     * @return The stream, or null if the full backup can't be read with this passphrase.
+     */
+    static @Nullable BackupFrameOutputStream createDelta(@NonNull File output, @NonNull File base, @NonNull String passphrase) throws IOException {
+      byte[][] keys;
+
+      try (InputStream in = new FileInputStream(base)) {
+        BackupProtos.Header header = readHeader(in);
+
+        keys = deriveKeys(passphrase, header.getSalt().toByteArray());
+
+        if (!isFirstFrameAuthentic(in, keys[1])) {
+          return null;
+        }
+
+        byte[]                  iv           = Util.getSecretBytes(16);
+        BackupFrameOutputStream outputStream = new BackupFrameOutputStream(new FileOutputStream(output), keys, iv, Conversions.byteArrayToInt(iv), 0);
+
+        outputStream.writeHeader(header.getSalt().toByteArray());
+        return outputStream;
+      }
+    }
+
+    /**
+     * Reopens a partially written backup, dropping anything past length.
+     *
+     * The frames that were dropped may have used any of the counters after the ones that were
+     * kept, so carrying on from the last counter kept would reuse them. Instead, what's kept is
+     * copied to a new file under a fresh IV, and the backup carries on from there.
+     */
+    static @NonNull BackupFrameOutputStream resume(@NonNull File output, long length, @NonNull String passphrase) throws IOException {
+      File     copy = new File(output.getPath() + ".resume");
+      byte[]   iv   = Util.getSecretBytes(16);
+      byte[][] keys;
+      int      counter;
+
+      try (InputStream      in  = new BufferedInputStream(new FileInputStream(output));
+           FileOutputStream out = new FileOutputStream(copy))
+      {
+        BackupProtos.Header header      = readHeader(in);
+        byte[]              salt        = header.getSalt().toByteArray();
+        byte[]              headerFrame = newHeader(iv, salt);
+        OutputStream        bufferedOut = new BufferedOutputStream(out);
+
+        bufferedOut.write(Conversions.intToByteArray(headerFrame.length));
+        bufferedOut.write(headerFrame);
+
+        // The new header only differs in its IV, so it's the same length as the one it replaces.
+        keys    = deriveKeys(passphrase, salt);
+        counter = reencrypt(in, bufferedOut, length - 4 - headerFrame.length, keys, header.getIv().toByteArray(), iv);
+
+        bufferedOut.flush();
+        out.getFD().sync();
+      } catch (IOException e) {
+        copy.delete();
+        throw e;
+      }
+
+      if (!copy.renameTo(output)) {
+        copy.delete();
+        throw new IOException("Failed to replace the partial backup");
+      }
+
+      return new BackupFrameOutputStream(new FileOutputStream(output, true), keys, iv, counter, length);
+    }
+
+    /**
+     * Decrypts the frames and attachment streams in the next length bytes, checking their MACs,
+     * and writes them encrypted again with counters from newIv. The output is the same length.
+     *
+     * @return The counter for the next frame under newIv.
+     */
+    private static int reencrypt(@NonNull InputStream in, @NonNull OutputStream out, long length,
+                                 @NonNull byte[][] keys, @NonNull byte[] oldIv, @NonNull byte[] newIv)
+        throws IOException
+    {
+      try {
+        SecretKeySpec cipherKey  = new SecretKeySpec(keys[0], "AES");
+        Cipher        decrypt    = Cipher.getInstance("AES/CTR/NoPadding");
+        Cipher        encrypt    = Cipher.getInstance("AES/CTR/NoPadding");
+        Mac           oldMac     = Mac.getInstance("HmacSHA256");
+        Mac           newMac     = Mac.getInstance("HmacSHA256");
+        int           oldCounter = Conversions.byteArrayToInt(oldIv);
+        int           newCounter = Conversions.byteArrayToInt(newIv);
+        long          remaining  = length;
+
+        oldMac.init(new SecretKeySpec(keys[1], "HmacSHA256"));
+        newMac.init(new SecretKeySpec(keys[1], "HmacSHA256"));
+
+        while (remaining > 0) {
+          byte[] frameLength = new byte[4];
+          Util.readFully(in, frameLength);
+
+          byte[] frame = new byte[Conversions.byteArrayToInt(frameLength)];
+          Util.readFully(in, frame);
+
+          remaining -= 4 + frame.length;
+
+          if (frame.length < 10) throw new IOException("Frame too short");
+
+          oldMac.update(frame, 0, frame.length - 10);
+          checkMac(oldMac, frame, frame.length - 10);
+
+          decrypt.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(counterIv(oldIv, oldCounter++)));
+          encrypt.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(counterIv(newIv, newCounter++)));
+
+          byte[] plaintext  = decrypt.doFinal(frame, 0, frame.length - 10);
+          byte[] ciphertext = encrypt.doFinal(plaintext);
+
+          out.write(frameLength);
+          out.write(ciphertext);
+          out.write(ByteUtil.trim(newMac.doFinal(ciphertext), 10));
+
+          BackupProtos.BackupFrame parsed = BackupProtos.BackupFrame.parseFrom(plaintext);
+
+          long streamLength;
+
+          if      (parsed.hasAttachment()) streamLength = parsed.getAttachment().getLength();
+          else if (parsed.hasAvatar())     streamLength = parsed.getAvatar().getLength();
+          else                             continue;
+
+          byte[] oldStreamIv = counterIv(oldIv, oldCounter++);
+          byte[] newStreamIv = counterIv(newIv, newCounter++);
+
+          decrypt.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(oldStreamIv));
+          encrypt.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(newStreamIv));
+          oldMac.update(oldStreamIv);
+          newMac.update(newStreamIv);
+
+          byte[] buffer = new byte[8192];
+          long   left   = streamLength;
+
+          while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read == -1) throw new IOException("Backup ended early");
+
+            oldMac.update(buffer, 0, read);
+
+            byte[] streamPlaintext  = decrypt.update(buffer, 0, read);
+            byte[] streamCiphertext = streamPlaintext != null ? encrypt.update(streamPlaintext) : null;
+
+            if (streamCiphertext != null) {
+              out.write(streamCiphertext);
+              newMac.update(streamCiphertext);
+            }
+
+            left -= read;
+          }
+
+          byte[] remainder = encrypt.doFinal(decrypt.doFinal());
+          out.write(remainder);
+          newMac.update(remainder);
+
+          byte[] theirMac = new byte[10];
+          Util.readFully(in, theirMac);
+          checkMac(oldMac, theirMac, 0);
+
+          out.write(newMac.doFinal(), 0, 10);
+
+          remaining -= streamLength + 10;
+        }
+
+        if (remaining != 0) {
+          throw new IOException("Checkpoint isn't at the end of a frame");
+        }
+
+        return newCounter;
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static void checkMac(@NonNull Mac mac, @NonNull byte[] data, int offset) throws IOException {
+      byte[] ourMac   = ByteUtil.trim(mac.doFinal(), 10);
+      byte[] theirMac = new byte[10];
+      System.arraycopy(data, offset, theirMac, 0, theirMac.length);
+
+      if (!MessageDigest.isEqual(ourMac, theirMac)) {
+        throw new IOException("Bad MAC");
+      }
+    }
+
+    private static @NonNull byte[] counterIv(@NonNull byte[] iv, int counter) {
+      byte[] counterIv = iv.clone();
+      Conversions.intToByteArray(counterIv, 0, counter);
+      return counterIv;
+    }
+
+    private BackupFrameOutputStream(@NonNull FileOutputStream outputStream, @NonNull byte[][] keys, @NonNull byte[] iv, int counter, long length) {
+      this.cipherKey    = new SecretKeySpec(keys[0], "AES");
+      this.macKey       = keys[1];
+      this.outputStream = outputStream;
+      this.iv           = iv;
+      this.counter      = counter;
+      this.length       = length;
+      this.permits      = new Semaphore(MAX_PENDING_FRAMES);
+    }
 
-    private final byte[]       cipherKey;
-    private final byte[]       macKey;
+    private static @NonNull byte[][] deriveKeys(@NonNull String passphrase, @NonNull byte[] salt) {
+      byte[] key     = getBackupKey(passphrase, salt);
+      byte[] derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
 
-    private byte[] iv;
-    private int    counter;
+      return ByteUtil.split(derived, 32, 32);
+    }
+
+    private static @NonNull BackupProtos.Header readHeader(@NonNull InputStream in) throws IOException {
+      byte[] headerLength = new byte[4];
+      Util.readFully(in, headerLength);
+
+      byte[] headerFrame = new byte[Conversions.byteArrayToInt(headerLength)];
+      Util.readFully(in, headerFrame);
 
-    private BackupFrameOutputStream(@NonNull File output, @NonNull String passphrase) throws IOException {
+      BackupProtos.BackupFrame frame = BackupProtos.BackupFrame.parseFrom(headerFrame);
+
+      if (!frame.hasHeader() || frame.getHeader().getIv().size() != 16) {
+        throw new IOException("Backup stream does not start with a valid header!");
+      }
+
+      return frame.getHeader();
+    }
+
+    private static boolean isFirstFrameAuthentic(@NonNull InputStream in, @NonNull byte[] macKey) throws IOException {
       try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
+        byte[] length = new byte[4];
+        Util.readFully(in, length);
 
-        this.cipherKey = split[0];
-        this.macKey    = split[1];
+        byte[] frame = new byte[Conversions.byteArrayToInt(length)];
+        Util.readFully(in, frame);
 
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = new FileOutputStream(output);
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
+        if (frame.length < 10) return false;
 
+        Mac mac = Mac.getInstance("HmacSHA256");
         mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        mac.update(frame, 0, frame.length - 10);
 
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
+        byte[] ourMac   = ByteUtil.trim(mac.doFinal(), 10);
+        byte[] theirMac = new byte[10];
+        System.arraycopy(frame, frame.length - 10, theirMac, 0, theirMac.length);
 
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+        return MessageDigest.isEqual(ourMac, theirMac);
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
         throw new AssertionError(e);
       }
     }
 
+    private void writeHeader(@NonNull byte[] salt) throws IOException {
+      byte[] header = newHeader(iv, salt);
+
+      outputStream.write(Conversions.intToByteArray(header.length));
+      outputStream.write(header);
+
+      length += 4 + header.length;
+    }
+
+    private static @NonNull byte[] newHeader(@NonNull byte[] iv, @NonNull byte[] salt) {
+      return BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
+                                                                                .setIv(ByteString.copyFrom(iv))
+                                                                                .setSalt(ByteString.copyFrom(salt)))
+                                     .build().toByteArray();
+    }
+
+    /**
+     * @return The length of everything written so far. Frames that are still being encrypted or
+     *         written aren't included until after {@link #sync()}.
+     */
+    long getLength() {
+      return length;
+    }
+
+    /**
+     * Waits for every frame so far to be written, and flushes them to disk.
+     */
+    void sync() throws IOException {
+      flush();
+      outputStream.getFD().sync();
+    }
+
     public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+      write(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
     }
 
     public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+      write(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
     }
 
     public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                .setName(avatarName)
-                                                                                .setLength(Util.toIntExact(size))
-                                                                                .build())
-                                                  .build());
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                  .setName(avatarName)
+                                                                  .setLength(Util.toIntExact(size))
+                                                                  .build())
+                                    .build());
 
       writeStream(in);
     }
 
     public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                        .setRowId(attachmentId.getRowId())
-                                                                                        .setAttachmentId(attachmentId.getUniqueId())
-                                                                                        .setLength(Util.toIntExact(size))
-                                                                                        .build())
-                                                  .build());
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                          .setRowId(attachmentId.getRowId())
+                                                                          .setAttachmentId(attachmentId.getUniqueId())
+                                                                          .setLength(Util.toIntExact(size))
+                                                                          .build())
+                                    .build());
 
       writeStream(in);
     }
 
     void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
+                                    .build());
     }
 
     void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+      write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
     }
 
     private void writeStream(@NonNull InputStream inputStream) throws IOException {
+      byte[] streamIv = nextIv();
+
+      enqueue(() -> {
+        try {
+          if (failure == null) {
+            encryptStream(streamIv, inputStream);
+          }
+        } finally {
+          inputStream.close();
+        }
+      });
+    }
+
+    private void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+      byte[]         frameIv   = nextIv();
+      Future<byte[]> encrypted = ENCRYPT_EXECUTOR.submit(() -> encryptFrame(frameIv, frame.toByteArray()));
+
+      enqueue(() -> {
+        try {
+          byte[] bytes = encrypted.get();
+
+          if (failure == null) {
+            outputStream.write(bytes);
+            length += bytes.length;
+          }
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        } catch (ExecutionException e) {
+          throw new IOException(e.getCause());
+        }
+      });
+    }
+
+    private @NonNull byte[] nextIv() {
+      byte[] frameIv = iv.clone();
+      Conversions.intToByteArray(frameIv, 0, counter++);
+      return frameIv;
+    }
+
+    private @NonNull byte[] encryptFrame(@NonNull byte[] frameIv, @NonNull byte[] plaintext) {
       try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
+        Cipher cipher = this.cipher.get();
+        cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(frameIv));
+
+        byte[] frame            = new byte[4 + plaintext.length + 10];
+        int    ciphertextLength = cipher.doFinal(plaintext, 0, plaintext.length, frame, 4);
+
+        Mac mac = this.mac.get();
+        mac.update(frame, 4, ciphertextLength);
+
+        byte[] frameMac = mac.doFinal();
+
+        Conversions.intToByteArray(frame, 0, ciphertextLength + 10);
+        System.arraycopy(frameMac, 0, frame, 4 + ciphertextLength, 10);
+
+        return frame;
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private void encryptStream(@NonNull byte[] streamIv, @NonNull InputStream inputStream) throws IOException {
+      try {
+        Cipher cipher = this.cipher.get();
+        Mac    mac    = this.mac.get();
+
+        cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(streamIv));
+        mac.update(streamIv);
 
         byte[] buffer = new byte[8192];
         int read;
@@ -345,6 +1142,7 @@ public class FullBackupExporter extends FullBackupBase {
           if (ciphertext != null) {
             outputStream.write(ciphertext);
             mac.update(ciphertext);
+            length += ciphertext.length;
           }
         }
 
@@ -354,31 +1152,79 @@ public class FullBackupExporter extends FullBackupBase {
 
         byte[] attachmentDigest = mac.doFinal();
         outputStream.write(attachmentDigest, 0, 10);
+
+        length += remainder.length + 10;
       } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
         throw new AssertionError(e);
       }
     }
 
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
+    /**
+     * Queues a write behind the ones already queued, waiting first if too many are outstanding.
+     */
+    private void enqueue(@NonNull WriteTask task) throws IOException {
+      throwIfFailed();
+
       try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+        permits.acquire();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
 
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
-        byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
+      WRITE_EXECUTOR.execute(() -> {
+        try {
+          task.run();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          if (failure == null) failure = e;
+        } finally {
+          permits.release();
+        }
+      });
+    }
 
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
+    private void flush() throws IOException {
+      awaitWrites();
+      throwIfFailed();
+    }
+
+    private void awaitWrites() throws IOException {
+      try {
+        permits.acquire(MAX_PENDING_FRAMES);
+        permits.release(MAX_PENDING_FRAMES);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
       }
     }
 
+    private void throwIfFailed() throws IOException {
+      IOException failure = this.failure;
 
+      if (failure != null) {
+        failureReported = true;
+        throw new IOException(failure);
+      }
+    }
+
+    /**
+     * Waits for the outstanding writes before closing, and reports a failed one unless it was
+     * already reported.
+     */
     public void close() throws IOException {
-      outputStream.close();
+      if (closed) return;
+      closed = true;
+
+      try {
+        awaitWrites();
+      } finally {
+        outputStream.close();
+      }
+
+      if (!failureReported) throwIfFailed();
+    }
+
+    private interface WriteTask {
+      void run() throws IOException;
     }
   }
 }
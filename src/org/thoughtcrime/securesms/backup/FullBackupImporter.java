@@ -7,12 +7,14 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.logging.Log;
 import android.util.Pair;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
@@ -23,6 +25,7 @@ import org.thoughtcrime.securesms.backup.BackupProtos.SharedPreference;
 import org.thoughtcrime.securesms.backup.BackupProtos.SqlStatement;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
@@ -48,8 +51,15 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -64,69 +74,92 @@ public class FullBackupImporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupImporter.class.getSimpleName();
 
+  /**
+   * Restores a full backup, followed by any deltas that were written on top of it.
+   */
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull File file, @NonNull String passphrase)
       throws IOException
   {
-    BackupRecordInputStream inputStream = new BackupRecordInputStream(file, passphrase);
-    int                     count       = 0;
+    List<File>              deltas       = getDeltaFiles(file);
+    BackupRecordInputStream inputStream  = new BackupRecordInputStream(file, passphrase, null);
+    Restore                 restore      = new Restore(context, db);
+    List<File>              unreferenced = Collections.emptyList();
+    int                     count        = 0;
 
     try {
       db.beginTransaction();
 
       dropAllTables(db);
 
-      BackupFrame frame;
+      count = importFrames(context, attachmentSecret, restore, inputStream, count);
 
-      while (!(frame = inputStream.readFrame()).getEnd()) {
-        if (count++ % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+      for (File delta : deltas) {
+        Log.i(TAG, "Applying " + delta.getName());
 
-        if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
-        else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
-        else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
+        BackupRecordInputStream deltaInputStream = new BackupRecordInputStream(delta, passphrase, inputStream);
+
+        try {
+          count = importFrames(context, attachmentSecret, restore, deltaInputStream, count);
+        } finally {
+          deltaInputStream.close();
+        }
       }
 
+      restore.finish();
+
       trimEntriesForExpiredMessages(context, db);
 
+      if (!deltas.isEmpty()) {
+        unreferenced = getUnreferencedParts(context, db);
+      }
+
+      ThreadDatabase.recountMessages(db);
+
       db.setTransactionSuccessful();
     } finally {
+      restore.close();
       db.endTransaction();
+      inputStream.close();
     }
 
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
-  }
-
-  private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
-    if (version.getVersion() > db.getVersion()) {
-      throw new DatabaseDowngradeException(db.getVersion(), version.getVersion());
+    for (File part : unreferenced) {
+      if (!part.delete()) {
+        Log.w(TAG, "Failed to delete " + part.getName());
+      }
     }
 
-    db.setVersion(version.getVersion());
+    TextSecureSessionStore.clearCache();
+
+    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
-    boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
-    boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
+  private static int importFrames(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                  @NonNull Restore restore, @NonNull BackupRecordInputStream inputStream, int count)
+      throws IOException
+  {
+    SQLiteDatabase db = restore.db;
+    BackupFrame    frame;
+
+    while (!(frame = inputStream.readFrame()).getEnd()) {
+      if (count++ % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
 
-    if (isForSmsFtsSecretTable || isForMmsFtsSecretTable) {
-      Log.i(TAG, "Ignoring import for statement: " + statement.getStatement());
-      return;
+      if      (frame.hasVersion())    processVersion(db, frame.getVersion());
+      else if (frame.hasStatement())  restore.processStatement(frame.getStatement());
+      else if (frame.hasPreference()) restore.processPreference(frame.getPreference());
+      else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
+      else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
     }
 
-    List<Object> parameters = new LinkedList<>();
+    return count;
+  }
 
-    for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
-      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
-      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
-      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
-      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
-      else if (parameter.hasNullparameter())    parameters.add(null);
+  private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
+    if (version.getVersion() > db.getVersion()) {
+      throw new DatabaseDowngradeException(db.getVersion(), version.getVersion());
     }
 
-    if (parameters.size() > 0) db.execSQL(statement.getStatement(), parameters.toArray());
-    else                       db.execSQL(statement.getStatement());
+    db.setVersion(version.getVersion());
   }
 
   private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
@@ -153,12 +186,6 @@ public class FullBackupImporter extends FullBackupBase {
     inputStream.readAttachmentTo(new FileOutputStream(AvatarHelper.getAvatarFile(context, Address.fromExternal(context, avatar.getName()))), avatar.getLength());
   }
 
-  @SuppressLint("ApplySharedPref")
-  private static void processPreference(@NonNull Context context, SharedPreference preference) {
-    SharedPreferences preferences = context.getSharedPreferences(preference.getFile(), 0);
-    preferences.edit().putString(preference.getKey(), preference.getValue()).commit();
-  }
-
   private static void dropAllTables(@NonNull SQLiteDatabase db) {
     try (Cursor cursor = db.rawQuery("SELECT name, type FROM sqlite_master", null)) {
       while (cursor != null && cursor.moveToNext()) {
@@ -172,6 +199,35 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * Rows that a delta replaced or deleted leave behind the files restored for their earlier
+   * version. They're only deleted once the restore is committed, as until then the database
+   * being replaced can still be referring to them.
+   */
+  private static @NonNull List<File> getUnreferencedParts(@NonNull Context context, @NonNull SQLiteDatabase db) {
+    File        partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
+    File[]      parts          = partsDirectory.listFiles();
+    Set<String> referenced     = new HashSet<>();
+    List<File>  unreferenced   = new LinkedList<>();
+
+    if (parts == null) return unreferenced;
+
+    try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, new String[] { AttachmentDatabase.DATA, AttachmentDatabase.THUMBNAIL }, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        if (!cursor.isNull(0)) referenced.add(cursor.getString(0));
+        if (!cursor.isNull(1)) referenced.add(cursor.getString(1));
+      }
+    }
+
+    for (File part : parts) {
+      if (part.isFile() && !referenced.contains(part.getAbsolutePath())) {
+        unreferenced.add(part);
+      }
+    }
+
+    return unreferenced;
+  }
+
   private static void trimEntriesForExpiredMessages(@NonNull Context context, @NonNull SQLiteDatabase db) {
     String trimmedCondition = " NOT IN (SELECT " + MmsDatabase.ID + " FROM " + MmsDatabase.TABLE_NAME + ")";
 
@@ -194,6 +250,136 @@ public class FullBackupImporter extends FullBackupBase {
   }
 
 
+  /**
+   * Loads statements as fast as a single transaction allows. Each distinct statement is compiled
+   * once and reused for every row, and indexes and triggers from the backup's schema are only
+   * created once all the rows are in, with the search index rebuilt in one pass instead of by its
+   * triggers row by row. Preferences are saved together at the end.
+   */
+  private static class Restore {
+
+    private final Context                               context;
+    private final SQLiteDatabase                        db;
+    private final Map<String, SQLiteStatement>          statements;
+    private final List<String>                          deferred;
+    private final Map<String, SharedPreferences.Editor> preferences;
+
+    private Restore(@NonNull Context context, @NonNull SQLiteDatabase db) {
+      this.context     = context;
+      this.db          = db;
+      this.statements  = new HashMap<>();
+      this.deferred    = new LinkedList<>();
+      this.preferences = new HashMap<>();
+    }
+
+    void processStatement(@NonNull SqlStatement statement) {
+      String          sql      = statement.getStatement();
+      SQLiteStatement compiled = statements.get(sql);
+
+      if (compiled == null) {
+        boolean isForSmsFtsSecretTable = sql.contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
+        boolean isForMmsFtsSecretTable = sql.contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
+
+        if (isForSmsFtsSecretTable || isForMmsFtsSecretTable) {
+          Log.i(TAG, "Ignoring import for statement: " + sql);
+          return;
+        }
+
+        if (statement.getParametersCount() == 0) {
+          if (isDeferrable(sql)) deferred.add(sql);
+          else                   db.execSQL(sql);
+          return;
+        }
+
+        compiled = db.compileStatement(sql);
+        statements.put(sql, compiled);
+      }
+
+      compiled.clearBindings();
+
+      for (int i = 0; i < statement.getParametersCount(); i++) {
+        SqlStatement.SqlParameter parameter = statement.getParameters(i);
+
+        if      (parameter.hasStringParamter())   compiled.bindString(i + 1, parameter.getStringParamter());
+        else if (parameter.hasDoubleParameter())  compiled.bindDouble(i + 1, parameter.getDoubleParameter());
+        else if (parameter.hasIntegerParameter()) compiled.bindLong(i + 1, parameter.getIntegerParameter());
+        else if (parameter.hasBlobParameter())    compiled.bindBlob(i + 1, parameter.getBlobParameter().toByteArray());
+        else                                      compiled.bindNull(i + 1);
+      }
+
+      compiled.execute();
+    }
+
+    void processPreference(@NonNull SharedPreference preference) {
+      SharedPreferences.Editor editor = preferences.get(preference.getFile());
+
+      if (editor == null) {
+        editor = context.getSharedPreferences(preference.getFile(), 0).edit();
+        preferences.put(preference.getFile(), editor);
+      }
+
+      editor.putString(preference.getKey(), preference.getValue());
+    }
+
+    /**
+     * Creates the deferred indexes and triggers, rebuilds the search index, and saves the
+     * preferences.
+     */
+    @SuppressLint("ApplySharedPref")
+    void finish() {
+      closeStatements();
+
+      if (!deferred.isEmpty()) {
+        long startTime = System.currentTimeMillis();
+
+        for (String sql : deferred) {
+          db.execSQL(sql);
+        }
+
+        for (String table : new String[] {SearchDatabase.SMS_FTS_TABLE_NAME, SearchDatabase.MMS_FTS_TABLE_NAME}) {
+          if (tableExists(table)) {
+            db.execSQL("INSERT INTO " + table + " (" + table + ") VALUES ('rebuild')");
+          }
+        }
+
+        Log.i(TAG, "Created " + deferred.size() + " indexes and triggers in " + (System.currentTimeMillis() - startTime) + " ms");
+        deferred.clear();
+      }
+
+      for (SharedPreferences.Editor editor : preferences.values()) {
+        editor.commit();
+      }
+
+      preferences.clear();
+    }
+
+    void close() {
+      closeStatements();
+    }
+
+    private void closeStatements() {
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+
+      statements.clear();
+    }
+
+    private boolean tableExists(@NonNull String table) {
+      try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?", new String[] {table})) {
+        return cursor != null && cursor.moveToFirst();
+      }
+    }
+
+    private static boolean isDeferrable(@NonNull String sql) {
+      String prefix = sql.trim().toUpperCase(Locale.US);
+
+      return prefix.startsWith("CREATE INDEX")        ||
+             prefix.startsWith("CREATE UNIQUE INDEX") ||
+             prefix.startsWith("CREATE TRIGGER");
+    }
+  }
+
   private static class BackupRecordInputStream extends BackupStream {
 
     private final InputStream in;
@@ -203,41 +389,34 @@ public class FullBackupImporter extends FullBackupBase {
     private final byte[] cipherKey;
     private final byte[] macKey;
 
+    private byte[] salt;
     private byte[] iv;
     private int    counter;
 
-    private BackupRecordInputStream(@NonNull File file, @NonNull String passphrase) throws IOException {
+    /**
+     * @param previous A stream whose keys can be reused if this file has the same salt.
+     */
+    private BackupRecordInputStream(@NonNull File file, @NonNull String passphrase, @Nullable BackupRecordInputStream previous) throws IOException {
       try {
         this.in     = new FileInputStream(file);
 
-        byte[] headerLengthBytes = new byte[4];
-        Util.readFully(in, headerLengthBytes);
-
-        int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
-        byte[] headerFrame = new byte[headerLength];
-        Util.readFully(in, headerFrame);
-
-        BackupFrame frame = BackupFrame.parseFrom(headerFrame);
+        BackupProtos.Header header = readHeader(in);
 
-        if (!frame.hasHeader()) {
-          throw new IOException("Backup stream does not start with header!");
-        }
-
-        BackupProtos.Header header = frame.getHeader();
+        this.iv   = header.getIv().toByteArray();
+        this.salt = header.hasSalt() ? header.getSalt().toByteArray() : null;
 
-        this.iv = header.getIv().toByteArray();
+        if (previous != null && previous.salt != null && Arrays.equals(previous.salt, salt)) {
+          this.cipherKey = previous.cipherKey;
+          this.macKey    = previous.macKey;
+        } else {
+          byte[]   key     = getBackupKey(passphrase, salt);
+          byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
+          byte[][] split   = ByteUtil.split(derived, 32, 32);
 
-        if (iv.length != 16) {
-          throw new IOException("Invalid IV length!");
+          this.cipherKey = split[0];
+          this.macKey    = split[1];
         }
 
-        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
-
-        this.cipherKey = split[0];
-        this.macKey    = split[1];
-
         this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
         this.mac    = Mac.getInstance("HmacSHA256");
         this.mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
@@ -248,6 +427,10 @@ public class FullBackupImporter extends FullBackupBase {
       }
     }
 
+    void close() {
+      Util.close(in);
+    }
+
     BackupFrame readFrame() throws IOException {
       return readFrame(in);
     }
@@ -302,6 +485,27 @@ public class FullBackupImporter extends FullBackupBase {
       }
     }
 
+    private static @NonNull BackupProtos.Header readHeader(@NonNull InputStream in) throws IOException {
+      byte[] headerLengthBytes = new byte[4];
+      Util.readFully(in, headerLengthBytes);
+
+      int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
+      byte[] headerFrame = new byte[headerLength];
+      Util.readFully(in, headerFrame);
+
+      BackupFrame frame = BackupFrame.parseFrom(headerFrame);
+
+      if (!frame.hasHeader()) {
+        throw new IOException("Backup stream does not start with header!");
+      }
+
+      if (frame.getHeader().getIv().size() != 16) {
+        throw new IOException("Invalid IV length!");
+      }
+
+      return frame.getHeader();
+    }
+
     private BackupFrame readFrame(InputStream in) throws IOException {
       try {
         byte[] length = new byte[4];
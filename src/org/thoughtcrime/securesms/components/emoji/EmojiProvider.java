@@ -36,7 +36,8 @@ class EmojiProvider {
   private static volatile EmojiProvider instance = null;
   private static final    Paint         paint    = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
 
-  private final EmojiTree emojiTree = new EmojiTree();
+  private final EmojiTree   emojiTree = new EmojiTree();
+  private final EmojiParser emojiParser;
 
   private static final int EMOJI_RAW_HEIGHT = 64;
   private static final int EMOJI_RAW_WIDTH  = 64;
@@ -75,11 +76,13 @@ class EmojiProvider {
     for (Pair<String,String> obsolete : EmojiPages.OBSOLETE) {
       emojiTree.add(obsolete.first(), emojiTree.getEmoji(obsolete.second(), 0, obsolete.second().length()));
     }
+
+    this.emojiParser = new EmojiParser(emojiTree);
   }
 
-  @Nullable EmojiParser.CandidateList getCandidates(@Nullable CharSequence text) {
+  public @Nullable EmojiParser.CandidateList getCandidates(@Nullable CharSequence text) {
     if (text == null) return null;
-    return new EmojiParser(emojiTree).findCandidates(text);
+    return emojiParser.findCandidates(text);
   }
 
   @Nullable Spannable emojify(@Nullable CharSequence text, @NonNull TextView tv) {
@@ -5,6 +5,7 @@ import android.content.res.TypedArray;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.text.PrecomputedTextCompat;
 import android.support.v4.widget.TextViewCompat;
 import android.support.v7.widget.AppCompatTextView;
 import android.text.SpannableStringBuilder;
@@ -34,6 +35,11 @@ public class EmojiTextView extends AppCompatTextView {
   private int          maxLength;
   private CharSequence overflowText;
   private CharSequence previousOverflowText;
+  private boolean      settingMeasuredText;
+
+  private CharSequence              precomputedText;
+  private EmojiParser.CandidateList precomputedCandidates;
+  private PrecomputedTextCompat     precomputedMeasuredText;
 
   public EmojiTextView(Context context) {
     this(context, null);
@@ -57,8 +63,14 @@ public class EmojiTextView extends AppCompatTextView {
   }
 
   @Override public void setText(@Nullable CharSequence text, BufferType type) {
-    EmojiProvider             provider   = EmojiProvider.getInstance(getContext());
-    EmojiParser.CandidateList candidates = provider.getCandidates(text);
+    if (settingMeasuredText) {
+      super.setText(text, type);
+      return;
+    }
+
+    boolean                   precomputed = text != null && text == precomputedText;
+    EmojiProvider             provider    = EmojiProvider.getInstance(getContext());
+    EmojiParser.CandidateList candidates  = precomputed ? precomputedCandidates : provider.getCandidates(text);
 
     if (scaleEmojis && candidates != null && candidates.allEmojis) {
       int   emojis = candidates.size();
@@ -84,6 +96,11 @@ public class EmojiTextView extends AppCompatTextView {
     useSystemEmoji       = useSystemEmoji();
 
     if (useSystemEmoji || candidates == null || candidates.size() == 0) {
+      if (precomputed && canUseMeasuredText(text)) {
+        setMeasuredText(precomputedMeasuredText);
+        return;
+      }
+
       super.setText(new SpannableStringBuilder(Optional.fromNullable(text).or("")).append(Optional.fromNullable(overflowText).or("")), BufferType.NORMAL);
 
       if (getEllipsize() == TextUtils.TruncateAt.END && maxLength > 0) {
@@ -105,11 +122,43 @@ public class EmojiTextView extends AppCompatTextView {
     }
   }
 
+  /**
+   * Sets text whose emoji were already found off the main thread, and which may already have been
+   * measured with this view's text metrics there too.
+   */
+  public void setPrecomputedText(@NonNull CharSequence text,
+                                 @Nullable EmojiParser.CandidateList candidates,
+                                 @Nullable PrecomputedTextCompat measuredText)
+  {
+    this.precomputedText         = text;
+    this.precomputedCandidates   = candidates;
+    this.precomputedMeasuredText = measuredText;
+
+    setText(text, BufferType.SPANNABLE);
+  }
+
   public void setOverflowText(@Nullable CharSequence overflowText) {
     this.overflowText = overflowText;
     setText(previousText, BufferType.SPANNABLE);
   }
 
+  private boolean canUseMeasuredText(@NonNull CharSequence text) {
+    return precomputedMeasuredText != null                    &&
+           overflowText == null                               &&
+           (maxLength <= 0 || text.length() <= maxLength + 1) &&
+           TextViewCompat.getTextMetricsParams(this).equals(precomputedMeasuredText.getParams());
+  }
+
+  private void setMeasuredText(@NonNull PrecomputedTextCompat measuredText) {
+    settingMeasuredText = true;
+
+    try {
+      TextViewCompat.setPrecomputedText(this, measuredText);
+    } finally {
+      settingMeasuredText = false;
+    }
+  }
+
   private void ellipsizeAnyTextForMaxLength() {
     if (maxLength > 0 && getText().length() > maxLength + 1) {
       SpannableStringBuilder newContent = new SpannableStringBuilder();
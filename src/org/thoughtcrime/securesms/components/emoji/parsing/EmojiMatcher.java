@@ -0,0 +1,114 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * An {@link EmojiTree} flattened into a deterministic automaton over UTF-16 chars.
+ *
+ * States are numbered from the root, and the transitions out of each state are a sorted run in
+ * two parallel arrays. Each state also knows up front which emoji, if any, the text walked so far
+ * would be drawn as, so a match is found in a single walk from its first char instead of one walk
+ * per possible end. Chars that don't start any emoji, which is nearly all of them, are rejected
+ * with a single bit test.
+ *
+ * Immutable, and so safe to share between threads.
+ */
+class EmojiMatcher {
+
+  private static final int NO_STATE = -1;
+
+  private final long[]          firstChars;
+  private final int[]           edgeStart;
+  private final char[]          edgeChars;
+  private final int[]           edgeTargets;
+  private final EmojiDrawInfo[] accepts;
+
+  EmojiMatcher(@NonNull long[]          firstChars,
+               @NonNull int[]           edgeStart,
+               @NonNull char[]          edgeChars,
+               @NonNull int[]           edgeTargets,
+               @NonNull EmojiDrawInfo[] accepts)
+  {
+    this.firstChars  = firstChars;
+    this.edgeStart   = edgeStart;
+    this.edgeChars   = edgeChars;
+    this.edgeTargets = edgeTargets;
+    this.accepts     = accepts;
+  }
+
+  /**
+   * Finds the longest emoji at each position from left to right, along with any skin tone
+   * modifier that follows it, exactly as walking the {@link EmojiTree} one end at a time would.
+   */
+  @NonNull EmojiParser.CandidateList findCandidates(@NonNull CharSequence text) {
+    int                     length     = text.length();
+    boolean                 allEmojis  = length > 0;
+    EmojiParser.Candidate[] candidates = null;
+    int                     count      = 0;
+    int                     i          = 0;
+
+    while (i < length) {
+      if (!isFirstChar(text.charAt(i))) {
+        allEmojis = false;
+        i++;
+        continue;
+      }
+
+      int           state    = 0;
+      int           end      = -1;
+      EmojiDrawInfo drawInfo = null;
+
+      for (int j = i; j < length; j++) {
+        state = next(state, text.charAt(j));
+
+        if (state == NO_STATE) break;
+
+        if (accepts[state] != null) {
+          end      = j + 1;
+          drawInfo = accepts[state];
+        }
+      }
+
+      if (end == -1) {
+        allEmojis = false;
+        i++;
+        continue;
+      }
+
+      if (end + 2 <= length && isFitzpatrick(text, end)) {
+        end += 2;
+      }
+
+      if (candidates == null)              candidates = new EmojiParser.Candidate[4];
+      else if (count == candidates.length) candidates = Arrays.copyOf(candidates, count * 2);
+
+      candidates[count++] = new EmojiParser.Candidate(i, end, drawInfo);
+
+      i = end;
+    }
+
+    return count == 0 ? EmojiParser.CandidateList.EMPTY : new EmojiParser.CandidateList(candidates, count, allEmojis);
+  }
+
+  private boolean isFirstChar(char c) {
+    return (firstChars[c >>> 6] & (1L << c)) != 0;
+  }
+
+  private int next(int state, char c) {
+    int index = Arrays.binarySearch(edgeChars, edgeStart[state], edgeStart[state + 1], c);
+    return index >= 0 ? edgeTargets[index] : NO_STATE;
+  }
+
+  /**
+   * Equivalent to {@link Fitzpatrick#fitzpatrickFromUnicode(CharSequence, int)} being non-null, as
+   * all the modifiers are U+1F3FB through U+1F3FF.
+   */
+  private static boolean isFitzpatrick(@NonNull CharSequence text, int index) {
+    char high = text.charAt(index);
+    char low  = text.charAt(index + 1);
+
+    return high == '\uD83C' && low >= '\uDFFB' && low <= '\uDFFF';
+  }
+}
@@ -24,65 +24,52 @@ package org.thoughtcrime.securesms.components.emoji.parsing;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.thoughtcrime.securesms.util.StripedLruCache;
+
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Based in part on code from emoji-java
+ *
+ * Matching runs on an {@link EmojiMatcher} compiled from the tree, and the results for recently
+ * seen text are kept, as the same message bodies and drafts get parsed over and over again while
+ * they're bound, ellipsized and edited.
  */
 public class EmojiParser {
 
-  private final EmojiTree emojiTree;
-
-  public EmojiParser(EmojiTree emojiTree) {
-    this.emojiTree = emojiTree;
-  }
-
-  public @NonNull CandidateList findCandidates(@Nullable CharSequence text) {
-    List<Candidate> results = new LinkedList<>();
-
-    if (text == null) return new CandidateList(results, false);
-
-    boolean allEmojis = text.length() > 0;
-
-    for (int i = 0; i < text.length(); i++) {
-      int emojiEnd = getEmojiEndPos(text, i);
-
-      if (emojiEnd != -1) {
-        EmojiDrawInfo drawInfo = emojiTree.getEmoji(text, i, emojiEnd);
-
-        if (emojiEnd + 2 <= text.length()) {
-          if (Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
-            emojiEnd += 2;
-          }
-        }
+  private static final int MAX_CACHE_SIZE    = 256;
+  private static final int CONCURRENCY_LEVEL = 2;
 
-        results.add(new Candidate(i, emojiEnd, drawInfo));
+  /**
+   * Longer text is rarely parsed twice, and isn't worth copying into a key.
+   */
+  private static final int MAX_CACHED_LENGTH = 2000;
 
-        i = emojiEnd - 1;
-      } else {
-        allEmojis = false;
-      }
-    }
+  private final EmojiMatcher                           matcher;
+  private final StripedLruCache<String, CandidateList> cache;
 
-    return new CandidateList(results, allEmojis);
+  public EmojiParser(EmojiTree emojiTree) {
+    this.matcher = emojiTree.compile();
+    this.cache   = new StripedLruCache<>(MAX_CACHE_SIZE, CONCURRENCY_LEVEL);
   }
 
-  private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
+  /**
+   * Safe to call from any thread. The returned list is shared, and must not be modified.
+   */
+  public @NonNull CandidateList findCandidates(@Nullable CharSequence text) {
+    if (text == null)                      return CandidateList.EMPTY;
+    if (text.length() > MAX_CACHED_LENGTH) return matcher.findCandidates(text);
 
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
+    String        key        = text.toString();
+    CandidateList candidates = cache.get(key);
 
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
-      }
+    if (candidates == null) {
+      candidates = matcher.findCandidates(key);
+      cache.put(key, candidates);
     }
 
-    return best;
+    return candidates;
   }
 
   public static class Candidate {
@@ -111,21 +98,44 @@ public class EmojiParser {
   }
 
   public static class CandidateList implements Iterable<Candidate> {
-    public final List<EmojiParser.Candidate> list;
-    public final boolean                     allEmojis;
 
-    public CandidateList(List<EmojiParser.Candidate> candidates, boolean allEmojis) {
-      this.list = candidates;
-      this.allEmojis = allEmojis;
+    static final CandidateList EMPTY = new CandidateList(new Candidate[0], 0, false);
+
+    private final Candidate[] candidates;
+    private final int         size;
+    public  final boolean     allEmojis;
+
+    CandidateList(Candidate[] candidates, int size, boolean allEmojis) {
+      this.candidates = candidates;
+      this.size       = size;
+      this.allEmojis  = allEmojis;
     }
 
     public int size() {
-      return list.size();
+      return size;
+    }
+
+    public Candidate get(int index) {
+      if (index >= size) throw new IndexOutOfBoundsException(index + " >= " + size);
+      return candidates[index];
     }
 
     @Override
     public Iterator<Candidate> iterator() {
-      return list.iterator();
+      return new Iterator<Candidate>() {
+        private int index;
+
+        @Override
+        public boolean hasNext() {
+          return index < size;
+        }
+
+        @Override
+        public Candidate next() {
+          if (index >= size) throw new NoSuchElementException();
+          return candidates[index++];
+        }
+      };
     }
   }
 
@@ -20,9 +20,13 @@
 
 package org.thoughtcrime.securesms.components.emoji.parsing;
 
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -92,6 +96,72 @@ public class EmojiTree {
     else    return null;
   }
 
+  /**
+   * Flattens the tree as it stands into an {@link EmojiMatcher}. Emoji added afterwards aren't
+   * seen by the matcher.
+   */
+  @NonNull EmojiMatcher compile() {
+    List<EmojiTreeNode> nodes         = new ArrayList<>();
+    List<Character>     incomingChars = new ArrayList<>();
+    int                 edgeCount     = 0;
+
+    nodes.add(root);
+    incomingChars.add(null);
+
+    for (int i = 0; i < nodes.size(); i++) {
+      EmojiTreeNode node     = nodes.get(i);
+      Character[]   children = node.children.keySet().toArray(new Character[0]);
+
+      Arrays.sort(children);
+
+      for (Character child : children) {
+        nodes.add(node.getChild(child));
+        incomingChars.add(child);
+      }
+
+      edgeCount += children.length;
+    }
+
+    long[]          firstChars  = new long[(Character.MAX_VALUE + 1) / 64];
+    int[]           edgeStart   = new int[nodes.size() + 1];
+    char[]          edgeChars   = new char[edgeCount];
+    int[]           edgeTargets = new int[edgeCount];
+    EmojiDrawInfo[] accepts     = new EmojiDrawInfo[nodes.size()];
+    int             edge        = 0;
+    int             target      = 1;
+
+    for (int i = 0; i < nodes.size(); i++) {
+      EmojiTreeNode node     = nodes.get(i);
+      Character[]   children = node.children.keySet().toArray(new Character[0]);
+
+      Arrays.sort(children);
+
+      edgeStart[i] = edge;
+
+      for (Character child : children) {
+        edgeChars[edge]   = child;
+        edgeTargets[edge] = target++;
+        edge++;
+
+        if (i == 0) firstChars[child >>> 6] |= 1L << child;
+      }
+
+      if (i > 0) accepts[i] = getAcceptedEmoji(node, incomingChars.get(i));
+    }
+
+    edgeStart[nodes.size()] = edge;
+
+    return new EmojiMatcher(firstChars, edgeStart, edgeChars, edgeTargets, accepts);
+  }
+
+  /**
+   * Mirrors {@link #getEmoji(CharSequence, int, int)} for text ending on the given node.
+   */
+  private static @Nullable EmojiDrawInfo getAcceptedEmoji(@NonNull EmojiTreeNode node, char incomingChar) {
+    if      (node.getEmoji() != null)                                  return node.getEmoji();
+    else if (incomingChar != TERMINATOR && node.hasChild(TERMINATOR)) return node.getChild(TERMINATOR).getEmoji();
+    else                                                               return null;
+  }
 
   private static class EmojiTreeNode {
 
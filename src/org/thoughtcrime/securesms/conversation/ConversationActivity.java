@@ -248,15 +248,15 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
 {
   private static final String TAG = ConversationActivity.class.getSimpleName();
 
-  public static final String ADDRESS_EXTRA           = "address";
-  public static final String THREAD_ID_EXTRA         = "thread_id";
-  public static final String IS_ARCHIVED_EXTRA       = "is_archived";
-  public static final String TEXT_EXTRA              = "draft_text";
-  public static final String MEDIA_EXTRA             = "media_list";
-  public static final String DISTRIBUTION_TYPE_EXTRA = "distribution_type";
-  public static final String TIMING_EXTRA            = "timing";
-  public static final String LAST_SEEN_EXTRA         = "last_seen";
-  public static final String STARTING_POSITION_EXTRA = "starting_position";
+  public static final String ADDRESS_EXTRA            = "address";
+  public static final String THREAD_ID_EXTRA          = "thread_id";
+  public static final String IS_ARCHIVED_EXTRA        = "is_archived";
+  public static final String TEXT_EXTRA               = "draft_text";
+  public static final String MEDIA_EXTRA              = "media_list";
+  public static final String DISTRIBUTION_TYPE_EXTRA  = "distribution_type";
+  public static final String TIMING_EXTRA             = "timing";
+  public static final String LAST_SEEN_EXTRA          = "last_seen";
+  public static final String STARTING_TIMESTAMP_EXTRA = "starting_timestamp";
 
   private static final int PICK_GALLERY        = 1;
   private static final int PICK_DOCUMENT       = 2;
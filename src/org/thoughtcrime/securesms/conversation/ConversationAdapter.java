@@ -17,11 +17,13 @@
 package org.thoughtcrime.securesms.conversation;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.support.annotation.LayoutRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.v4.text.PrecomputedTextCompat;
 import android.support.v7.widget.RecyclerView;
 
 import org.thoughtcrime.securesms.BindableConversationItem;
@@ -36,10 +38,12 @@ import com.annimon.stream.Stream;
 
 import org.thoughtcrime.securesms.conversation.ConversationAdapter.HeaderViewHolder;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.FastCursorRecyclerViewAdapter;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.loaders.ConversationLoader;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.mms.GlideRequests;
@@ -47,23 +51,24 @@ import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.DateUtils;
-import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.LongLruCache;
 import org.thoughtcrime.securesms.util.StickyHeaderDecoration;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.ViewUtil;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A cursor adapter for a conversation thread.  Ultimately
@@ -78,10 +83,19 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   implements StickyHeaderDecoration.StickyHeaderAdapter<HeaderViewHolder>
 {
 
-  private static final int MAX_CACHE_SIZE = 40;
+  private static final int MAX_CACHE_SIZE = 150;
   private static final String TAG = ConversationAdapter.class.getSimpleName();
-  private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
-      Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
+
+  private static final ExecutorService PREFETCH_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("signal-record-prefetch");
+
+  /**
+   * Records keyed on their id and transport, only ever touched on the main thread.
+   */
+  private final LongLruCache<MessageRecord> messageRecordCache = new LongLruCache<>(MAX_CACHE_SIZE);
+  private final CharArrayBuffer             transportBuffer    = new CharArrayBuffer(8);
+
+  private long    messageRecordGeneration;
+  private boolean prefetchInFlight;
 
   private static final int MESSAGE_TYPE_OUTGOING           = 0;
   private static final int MESSAGE_TYPE_INCOMING           = 1;
@@ -103,6 +117,7 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   private final @NonNull  LayoutInflater    inflater;
   private final @NonNull  Calendar          calendar;
   private final @NonNull  MessageDigest     digest;
+  private final @NonNull  MessageBodyCache  bodyCache;
 
   private MessageRecord recordToPulseHighlight;
   private String        searchQuery;
@@ -155,6 +170,7 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
       this.inflater      = null;
       this.db            = null;
       this.calendar      = null;
+      this.bodyCache     = null;
       this.digest        = MessageDigest.getInstance("SHA1");
     } catch (NoSuchAlgorithmException nsae) {
       throw new AssertionError("SHA1 isn't supported!");
@@ -178,6 +194,7 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
       this.inflater      = LayoutInflater.from(context);
       this.db            = DatabaseFactory.getMmsSmsDatabase(context);
       this.calendar      = Calendar.getInstance();
+      this.bodyCache     = new MessageBodyCache(context, locale);
       this.digest        = MessageDigest.getInstance("SHA1");
 
       setHasStableIds(true);
@@ -188,7 +205,16 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
 
   @Override
   public void changeCursor(Cursor cursor) {
-    messageRecordCache.clear();
+    if (cursor instanceof ConversationLoader.PagedCursor && !((ConversationLoader.PagedCursor) cursor).isReloaded()) {
+      ConversationLoader.PagedCursor pagedCursor = (ConversationLoader.PagedCursor) cursor;
+
+      for (long id : pagedCursor.getChangedSmsIds()) messageRecordCache.remove(getRecordKey(id, false));
+      for (long id : pagedCursor.getChangedMmsIds()) messageRecordCache.remove(getRecordKey(id, true));
+    } else {
+      messageRecordCache.clear();
+    }
+
+    messageRecordGeneration++;
     super.cleanFastRecords();
     super.changeCursor(cursor);
   }
@@ -230,6 +256,9 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
       return true;
     });
     itemView.setEventListener(clickListener);
+    if (itemView instanceof ConversationItem) {
+      ((ConversationItem) itemView).setMessageBodyCache(bodyCache);
+    }
     Log.d(TAG, "Inflate time: " + (System.currentTimeMillis() - start));
     return new ViewHolder(itemView);
   }
@@ -308,21 +337,119 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
 
   @Override
   protected MessageRecord getRecordFromCursor(@NonNull Cursor cursor) {
-    long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
-    String type      = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+    long          key    = getRecordKey(cursor);
+    MessageRecord record = messageRecordCache.get(key);
 
-    final SoftReference<MessageRecord> reference = messageRecordCache.get(type + messageId);
-    if (reference != null) {
-      final MessageRecord record = reference.get();
-      if (record != null) return record;
-    }
+    if (record != null) return record;
 
     final MessageRecord messageRecord = db.readerFor(cursor).getCurrent();
-    messageRecordCache.put(type + messageId, new SoftReference<>(messageRecord));
+    messageRecordCache.put(key, messageRecord);
 
     return messageRecord;
   }
 
+  /**
+   * Reads the records for the given positions and builds their body text on a background thread,
+   * ahead of them being bound, so that flinging through the conversation doesn't have to do either
+   * on the main thread.
+   */
+  public void prefetchRecords(int fromPosition, int toPosition) {
+    if (!isActiveCursor() || prefetchInFlight) return;
+
+    final String                       query       = searchQuery;
+    final boolean                      linkifyAll  = batchSelected.isEmpty();
+    final PrecomputedTextCompat.Params params      = bodyCache.getTextMetricsParams();
+    final List<MessageRecord>          bodyRecords = new LinkedList<>();
+
+    long threadId = -1;
+    long fromDate = Long.MAX_VALUE;
+    long toDate   = Long.MIN_VALUE;
+    int  end      = Math.min(toPosition, getItemCount() - 1);
+
+    for (int i = Math.max(fromPosition, 0); i <= end; i++) {
+      if (isHeaderPosition(i) || isFooterPosition(i) || isFastAccessPosition(i)) continue;
+
+      Cursor        cursor = getCursorAtPositionOrThrow(i);
+      MessageRecord cached = messageRecordCache.get(getRecordKey(cursor));
+
+      if (cached != null) {
+        if (params != null && !cached.isUpdate() && !bodyCache.contains(cached, query, linkifyAll)) {
+          bodyRecords.add(cached);
+        }
+        continue;
+      }
+
+      long dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+
+      threadId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.THREAD_ID));
+      fromDate = Math.min(fromDate, dateReceived);
+      toDate   = Math.max(toDate, dateReceived);
+    }
+
+    if (threadId == -1 && bodyRecords.isEmpty()) return;
+
+    final long prefetchThreadId   = threadId;
+    final long prefetchFromDate   = fromDate;
+    final long prefetchToDate     = toDate;
+    final long prefetchGeneration = messageRecordGeneration;
+
+    prefetchInFlight = true;
+
+    PREFETCH_EXECUTOR.execute(() -> {
+      List<MessageRecord>         records = new LinkedList<>();
+      List<MessageBodyCache.Body> bodies  = new LinkedList<>();
+
+      if (prefetchThreadId != -1) {
+        try (Cursor cursor = db.getConversationRange(prefetchThreadId, prefetchFromDate, prefetchToDate)) {
+          MmsSmsDatabase.Reader reader = db.readerFor(cursor);
+          MessageRecord         record;
+
+          while ((record = reader.getNext()) != null) {
+            records.add(record);
+
+            if (params != null && !record.isUpdate()) {
+              bodyRecords.add(record);
+            }
+          }
+        }
+      }
+
+      for (MessageRecord record : bodyRecords) {
+        bodies.add(bodyCache.build(record, query, linkifyAll, params));
+      }
+
+      Util.runOnMain(() -> {
+        prefetchInFlight = false;
+
+        if (prefetchGeneration != messageRecordGeneration) return;
+
+        for (MessageRecord record : records) {
+          long key = getRecordKey(record.getId(), record.isMms());
+
+          if (!messageRecordCache.containsKey(key)) {
+            messageRecordCache.put(key, record);
+          }
+        }
+
+        for (MessageBodyCache.Body body : bodies) {
+          bodyCache.put(body);
+        }
+      });
+    });
+  }
+
+  private long getRecordKey(@NonNull Cursor cursor) {
+    cursor.copyStringToBuffer(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT), transportBuffer);
+
+    boolean mms = transportBuffer.sizeCopied > 0 && transportBuffer.data[0] == MmsSmsDatabase.MMS_TRANSPORT.charAt(0);
+
+    return getRecordKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)), mms);
+  }
+
+  private static long getRecordKey(long messageId, boolean mms) {
+    return (messageId << 1) | (mms ? 1 : 0);
+  }
+
   public void close() {
     getCursor().close();
   }
@@ -344,6 +471,81 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     return -1;
   }
 
+  /**
+   * Compares the received date straight from the cursor, and only reads the record of a row whose
+   * date matches to check its sender.
+   *
+   * @param author The sender of the message, or null to match on the received date alone.
+   * @return The position of the message, or -1 if it isn't in the loaded part of the conversation.
+   */
+  public int findMessagePosition(long receivedTimestamp, @Nullable Address author) {
+    if (!isActiveCursor()) return -1;
+
+    boolean isOwnNumber = author != null && Util.isOwnNumber(getContext(), author);
+    int     dateColumn  = getCursor().getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED);
+    int     count       = getItemCount() - (hasFooterView() ? 1 : 0);
+
+    for (int i=(hasHeaderView() ? 1 : 0);i<count;i++) {
+      MessageRecord messageRecord;
+
+      if (isFastAccessPosition(i)) {
+        messageRecord = getRecordForPositionOrThrow(i);
+        if (messageRecord.getDateReceived() != receivedTimestamp) continue;
+      } else {
+        Cursor cursor = getCursorAtPositionOrThrow(i);
+        if (cursor.getLong(dateColumn) != receivedTimestamp) continue;
+        if (author == null || isOwnNumber) return i;
+
+        messageRecord = getRecordFromCursor(cursor);
+      }
+
+      if (author == null || isOwnNumber || author.equals(messageRecord.getIndividualRecipient().getAddress())) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Compares the id and transport straight from the cursor, without reading any records.
+   *
+   * @return The position of the given message, or -1 if it isn't in the loaded part of the
+   *         conversation anymore.
+   */
+  public int findMessagePosition(@NonNull MessageRecord record) {
+    if (!isActiveCursor()) return -1;
+
+    char transport       = (record.isMms() ? MmsSmsDatabase.MMS_TRANSPORT : MmsSmsDatabase.SMS_TRANSPORT).charAt(0);
+    int  idColumn        = getCursor().getColumnIndexOrThrow(MmsSmsColumns.ID);
+    int  transportColumn = getCursor().getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT);
+    int  count           = getItemCount() - (hasFooterView() ? 1 : 0);
+
+    for (int i=(hasHeaderView() ? 1 : 0);i<count;i++) {
+      if (isFastAccessPosition(i)) {
+        MessageRecord messageRecord = getRecordForPositionOrThrow(i);
+
+        if (messageRecord.getId() == record.getId() && messageRecord.isMms() == record.isMms()) {
+          return i;
+        }
+
+        continue;
+      }
+
+      Cursor cursor = getCursorAtPositionOrThrow(i);
+
+      if (cursor.getLong(idColumn) != record.getId()) continue;
+
+      cursor.copyStringToBuffer(transportColumn, transportBuffer);
+
+      if (transportBuffer.sizeCopied > 0 && transportBuffer.data[0] == transport) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
   public void toggleSelection(MessageRecord messageRecord) {
     if (!batchSelected.remove(messageRecord)) {
       batchSelected.add(messageRecord);
@@ -396,6 +598,16 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     return Util.hashCode(calendar.get(Calendar.YEAR), calendar.get(Calendar.DAY_OF_YEAR));
   }
 
+  public @Nullable MessageRecord getRecordForPosition(int position) {
+    if (!isActiveCursor())          return null;
+    if (isHeaderPosition(position)) return null;
+    if (isFooterPosition(position)) return null;
+    if (position >= getItemCount()) return null;
+    if (position < 0)               return null;
+
+    return getRecordForPositionOrThrow(position);
+  }
+
   public long getReceivedTimestamp(int position) {
     if (!isActiveCursor())          return 0;
     if (isHeaderPosition(position)) return 0;
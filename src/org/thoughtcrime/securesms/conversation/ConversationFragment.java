@@ -65,7 +65,6 @@ import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.TextView;
 import android.widget.Toast;
-import android.widget.ViewSwitcher;
 
 import com.annimon.stream.Stream;
 
@@ -81,6 +80,7 @@ import org.thoughtcrime.securesms.database.loaders.ConversationLoader;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.Quote;
 import org.thoughtcrime.securesms.jobs.DirectoryRefreshJob;
 import org.thoughtcrime.securesms.longmessage.LongMessageActivity;
 import org.thoughtcrime.securesms.mediasend.Media;
@@ -116,12 +116,12 @@ import java.util.Set;
 public class ConversationFragment extends Fragment
   implements LoaderManager.LoaderCallbacks<Cursor>
 {
-  private static final String TAG       = ConversationFragment.class.getSimpleName();
-  private static final String KEY_LIMIT = "limit";
+  private static final String TAG = ConversationFragment.class.getSimpleName();
 
-  private static final int PARTIAL_CONVERSATION_LIMIT = 500;
   private static final int SCROLL_ANIMATION_THRESHOLD = 50;
   private static final int CODE_ADD_EDIT_CONTACT      = 77;
+  private static final int PAGE_PREFETCH_DISTANCE     = 20;
+  private static final int RECORD_PREFETCH_DISTANCE   = 15;
 
   private final ActionModeCallback actionModeCallback     = new ActionModeCallback();
   private final ItemClickListener  selectionClickListener = new ConversationFragmentItemClickListener();
@@ -131,17 +131,17 @@ public class ConversationFragment extends Fragment
   private Recipient                   recipient;
   private long                        threadId;
   private long                        lastSeen;
-  private int                         startingPosition;
-  private int                         previousOffset;
-  private int                         activeOffset;
+  private long                        startingTimestamp;
+  private long                        pendingJumpTimestamp;
+  private Address                     pendingJumpAuthor;
+  private Runnable                    pendingJumpNotFound;
+  private boolean                     pendingScrollToBottom;
   private boolean                     firstLoad;
   private long                        loaderStartTime;
   private ActionMode                  actionMode;
   private Locale                      locale;
   private RecyclerView                list;
   private RecyclerView.ItemDecoration lastSeenDecoration;
-  private ViewSwitcher                topLoadMoreView;
-  private ViewSwitcher                bottomLoadMoreView;
   private ConversationTypingView      typingView;
   private UnknownSenderView           unknownSenderView;
   private View                        composeDivider;
@@ -169,11 +169,6 @@ public class ConversationFragment extends Fragment
     list.setLayoutManager(layoutManager);
     list.setItemAnimator(null);
 
-    topLoadMoreView    = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
-    bottomLoadMoreView = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
-    initializeLoadMoreView(topLoadMoreView);
-    initializeLoadMoreView(bottomLoadMoreView);
-
     typingView = (ConversationTypingView) inflater.inflate(R.layout.conversation_typing_view, container, false);
 
     return view;
@@ -250,7 +245,7 @@ public class ConversationFragment extends Fragment
     this.recipient         = Recipient.from(getActivity(), getActivity().getIntent().getParcelableExtra(ConversationActivity.ADDRESS_EXTRA), true);
     this.threadId          = this.getActivity().getIntent().getLongExtra(ConversationActivity.THREAD_ID_EXTRA, -1);
     this.lastSeen          = this.getActivity().getIntent().getLongExtra(ConversationActivity.LAST_SEEN_EXTRA, -1);
-    this.startingPosition  = this.getActivity().getIntent().getIntExtra(ConversationActivity.STARTING_POSITION_EXTRA, -1);
+    this.startingTimestamp = this.getActivity().getIntent().getLongExtra(ConversationActivity.STARTING_TIMESTAMP_EXTRA, -1);
     this.firstLoad         = true;
     this.unknownSenderView = new UnknownSenderView(getActivity(), recipient, threadId);
 
@@ -269,16 +264,6 @@ public class ConversationFragment extends Fragment
     }
   }
 
-  private void initializeLoadMoreView(ViewSwitcher loadMoreView) {
-    loadMoreView.setOnClickListener(v -> {
-      Bundle args = new Bundle();
-      args.putInt(KEY_LIMIT, 0);
-      getLoaderManager().restartLoader(0, args, ConversationFragment.this);
-      loadMoreView.showNext();
-      loadMoreView.setOnClickListener(null);
-    });
-  }
-
   private void initializeTypingObserver() {
     if (!TextSecurePreferences.isTypingIndicatorsEnabled(requireContext())) {
       return;
@@ -419,6 +404,14 @@ public class ConversationFragment extends Fragment
   }
 
   public void scrollToBottom() {
+    ConversationLoader loader = getConversationLoader();
+
+    if (loader != null && loader.hasNewer()) {
+      pendingScrollToBottom = true;
+      loader.jumpToNewest();
+      return;
+    }
+
     if (getListLayoutManager().findFirstVisibleItemPosition() < SCROLL_ANIMATION_THRESHOLD) {
       list.smoothScrollToPosition(0);
     } else {
@@ -617,14 +610,7 @@ public class ConversationFragment extends Fragment
     Log.i(TAG, "onCreateLoader");
     loaderStartTime = System.currentTimeMillis();
 
-    int limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
-    int offset = 0;
-    if (limit != 0 && startingPosition >= limit) {
-      offset = Math.max(startingPosition - (limit / 2) + 1, 0);
-      startingPosition -= offset - 1;
-    }
-
-    return new ConversationLoader(getActivity(), threadId, offset, limit, lastSeen);
+    return new ConversationLoader(getActivity(), threadId, lastSeen, startingTimestamp);
   }
 
   @Override
@@ -639,10 +625,15 @@ public class ConversationFragment extends Fragment
       return;
     }
 
-    if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
-      adapter.setFooterView(topLoadMoreView);
-    } else {
-      adapter.setFooterView(null);
+    MessageRecord anchorRecord = null;
+    int           anchorOffset = 0;
+
+    if (!firstLoad && !isAtBottom()) {
+      int  anchorPosition = getListLayoutManager().findFirstVisibleItemPosition();
+      View anchorView     = getListLayoutManager().findViewByPosition(anchorPosition);
+
+      anchorRecord = adapter.getRecordForPosition(anchorPosition);
+      anchorOffset = anchorView == null ? 0 : list.getHeight() - list.getPaddingBottom() - anchorView.getBottom();
     }
 
     if (lastSeen == -1) {
@@ -655,16 +646,6 @@ public class ConversationFragment extends Fragment
       clearHeaderIfNotTyping(adapter);
     }
 
-    if (loader.hasOffset()) {
-      adapter.setHeaderView(bottomLoadMoreView);
-    }
-
-    if (firstLoad || loader.hasOffset()) {
-      previousOffset = loader.getOffset();
-    }
-
-    activeOffset = loader.getOffset();
-
     adapter.changeCursor(cursor);
 
     int lastSeenPosition = adapter.findLastSeenPosition(lastSeen);
@@ -674,21 +655,25 @@ public class ConversationFragment extends Fragment
     }
 
     if (firstLoad) {
+      int startingPosition = startingTimestamp > 0 ? adapter.findMessagePosition(startingTimestamp, null) : -1;
+
       if (startingPosition >= 0) {
         scrollToStartingPosition(startingPosition);
       } else {
         scrollToLastSeenPosition(lastSeenPosition);
       }
       firstLoad = false;
-    } else if (previousOffset > 0) {
-      int scrollPosition = previousOffset + getListLayoutManager().findFirstVisibleItemPosition();
-      scrollPosition = Math.min(scrollPosition, count - 1);
-
-      View firstView = list.getLayoutManager().getChildAt(scrollPosition);
-      int pixelOffset = (firstView == null) ? 0 : (firstView.getBottom() - list.getPaddingBottom());
+    } else if (pendingScrollToBottom) {
+      pendingScrollToBottom = false;
+      list.scrollToPosition(0);
+    } else if (pendingJumpTimestamp > 0) {
+      onJumpLoaded(adapter);
+    } else if (anchorRecord != null) {
+      int anchorPosition = adapter.findMessagePosition(anchorRecord);
 
-      getListLayoutManager().scrollToPositionWithOffset(scrollPosition, pixelOffset);
-      previousOffset = 0;
+      if (anchorPosition >= 0) {
+        getListLayoutManager().scrollToPositionWithOffset(anchorPosition, anchorOffset);
+      }
     }
 
     if (lastSeenPosition <= 0) {
@@ -772,33 +757,91 @@ public class ConversationFragment extends Fragment
   }
 
   public void jumpToMessage(@NonNull Address author, long timestamp, @Nullable Runnable onMessageNotFound) {
-    SimpleTask.run(getLifecycle(), () -> {
-      return DatabaseFactory.getMmsSmsDatabase(getContext())
-                            .getMessagePositionInConversation(threadId, timestamp, author);
-    }, p -> moveToMessagePosition(p, onMessageNotFound));
+    moveToMessage(timestamp, author, onMessageNotFound);
   }
 
-  private void moveToMessagePosition(int position, @Nullable Runnable onMessageNotFound) {
-    Log.d(TAG, "Moving to message position: " + position + "  activeOffset: " + activeOffset + "  cursorCount: " + getListAdapter().getCursorCount());
+  private void moveToMessage(long receivedTimestamp, @NonNull Address author, @Nullable Runnable onMessageNotFound) {
+    ConversationAdapter adapter  = getListAdapter();
+    ConversationLoader  loader   = getConversationLoader();
+    int                 position = adapter != null ? adapter.findMessagePosition(receivedTimestamp, author) : -1;
+
+    Log.d(TAG, "Moving to message position: " + position);
 
-    if (position >= activeOffset && position >= 0 && position < getListAdapter().getCursorCount()) {
-      int offset = activeOffset > 0 ? activeOffset - 1 : 0;
-      list.scrollToPosition(position - offset);
-      getListAdapter().pulseHighlightItem(position - offset);
-    } else if (position < 0) {
+    if (position >= 0) {
+      list.scrollToPosition(position);
+      adapter.pulseHighlightItem(position);
+    } else if (receivedTimestamp <= 0 || loader == null) {
       Log.w(TAG, "Tried to navigate to message, but it wasn't found.");
       if (onMessageNotFound != null) {
         onMessageNotFound.run();
       }
     } else {
-      Log.i(TAG, "Message was outside of the loaded range. Need to restart the loader.");
+      Log.i(TAG, "Message was outside of the loaded range. Need to load around it.");
 
-      firstLoad        = true;
-      startingPosition = position;
-      getLoaderManager().restartLoader(0, Bundle.EMPTY, ConversationFragment.this);
+      pendingJumpTimestamp = receivedTimestamp;
+      pendingJumpAuthor    = author;
+      pendingJumpNotFound  = onMessageNotFound;
+      loader.jumpTo(receivedTimestamp);
     }
   }
 
+  private void onJumpLoaded(@NonNull ConversationAdapter adapter) {
+    int      position   = adapter.findMessagePosition(pendingJumpTimestamp, pendingJumpAuthor);
+    Runnable onNotFound = pendingJumpNotFound;
+
+    pendingJumpTimestamp = 0;
+    pendingJumpAuthor    = null;
+    pendingJumpNotFound  = null;
+
+    if (position >= 0) {
+      scrollToStartingPosition(position);
+    } else {
+      Log.w(TAG, "Tried to navigate to message, but it wasn't found.");
+      if (onNotFound != null) {
+        onNotFound.run();
+      }
+    }
+  }
+
+  private void loadMoreIfNeeded() {
+    ConversationLoader  loader  = getConversationLoader();
+    ConversationAdapter adapter = getListAdapter();
+
+    if (loader == null || adapter == null || pendingJumpTimestamp > 0 || pendingScrollToBottom) {
+      return;
+    }
+
+    if (getListLayoutManager().findLastVisibleItemPosition() >= adapter.getItemCount() - PAGE_PREFETCH_DISTANCE) {
+      loader.loadOlder();
+    } else if (getListLayoutManager().findFirstVisibleItemPosition() <= PAGE_PREFETCH_DISTANCE) {
+      loader.loadNewer();
+    }
+  }
+
+  /**
+   * The list is laid out in reverse, so scrolling up towards older messages means higher positions.
+   */
+  private void prefetchRecords(int dy) {
+    ConversationAdapter adapter = getListAdapter();
+
+    if (adapter == null || dy == 0) {
+      return;
+    }
+
+    if (dy < 0) {
+      int last = getListLayoutManager().findLastVisibleItemPosition();
+      adapter.prefetchRecords(last + 1, last + RECORD_PREFETCH_DISTANCE);
+    } else {
+      int first = getListLayoutManager().findFirstVisibleItemPosition();
+      adapter.prefetchRecords(first - RECORD_PREFETCH_DISTANCE, first - 1);
+    }
+  }
+
+  private @Nullable ConversationLoader getConversationLoader() {
+    Loader<Cursor> loader = getLoaderManager().getLoader(0);
+    return loader instanceof ConversationLoader ? (ConversationLoader) loader : null;
+  }
+
   public interface ConversationFragmentListener {
     void setThreadId(long threadId);
     void handleReplyMessage(MessageRecord messageRecord);
@@ -848,6 +891,9 @@ public class ConversationFragment extends Fragment
       wasAtBottom           = currentlyAtBottom;
       wasAtZoomScrollHeight = currentlyAtZoomScrollHeight;
       lastPositionId        = positionId;
+
+      loadMoreIfNeeded();
+      prefetchRecords(dy);
     }
 
     @Override
@@ -914,12 +960,12 @@ public class ConversationFragment extends Fragment
         return;
       }
 
+      Quote quote = messageRecord.getQuote();
+
       SimpleTask.run(getLifecycle(), () -> {
-        return DatabaseFactory.getMmsSmsDatabase(getContext())
-                              .getQuotedMessagePosition(threadId,
-                                                        messageRecord.getQuote().getId(),
-                                                        messageRecord.getQuote().getAuthor());
-      }, p -> moveToMessagePosition(p, () -> {
+        MessageRecord original = DatabaseFactory.getMmsSmsDatabase(getContext()).getMessageFor(quote.getId(), quote.getAuthor());
+        return original != null && original.getThreadId() == threadId ? original.getDateReceived() : -1L;
+      }, receivedTimestamp -> moveToMessage(receivedTimestamp, quote.getAuthor(), () -> {
         Toast.makeText(getContext(), R.string.ConversationFragment_quoted_message_no_longer_available, Toast.LENGTH_SHORT).show();
       }));
     }
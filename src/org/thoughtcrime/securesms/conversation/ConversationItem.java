@@ -28,19 +28,16 @@ import android.net.Uri;
 import android.support.annotation.DimenRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.text.PrecomputedTextCompat;
+import android.support.v4.widget.TextViewCompat;
 import android.support.v7.app.AlertDialog;
 import android.text.Spannable;
-import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextPaint;
 import android.text.TextUtils;
-import android.text.style.BackgroundColorSpan;
 import android.text.style.CharacterStyle;
 import android.text.style.ClickableSpan;
-import android.text.style.ForegroundColorSpan;
-import android.text.style.URLSpan;
-import android.text.util.Linkify;
 import android.util.AttributeSet;
 
 import org.thoughtcrime.securesms.ApplicationContext;
@@ -54,7 +51,6 @@ import org.thoughtcrime.securesms.components.LinkPreviewView;
 import org.thoughtcrime.securesms.components.emoji.EmojiTextView;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.linkpreview.LinkPreview;
-import org.thoughtcrime.securesms.linkpreview.LinkPreviewUtil;
 import org.thoughtcrime.securesms.logging.Log;
 import android.util.TypedValue;
 import android.view.View;
@@ -63,7 +59,6 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.annimon.stream.Stream;
 
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.components.AlertView;
@@ -99,9 +94,7 @@ import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientModifiedListener;
 import org.thoughtcrime.securesms.util.DateUtils;
 import org.thoughtcrime.securesms.util.DynamicTheme;
-import org.thoughtcrime.securesms.util.LongClickCopySpan;
 import org.thoughtcrime.securesms.util.LongClickMovementMethod;
-import org.thoughtcrime.securesms.util.SearchUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.ViewUtil;
@@ -156,6 +149,7 @@ public class ConversationItem extends LinearLayout
   private @NonNull  Stub<SharedContactView>         sharedContactStub;
   private @NonNull  Stub<LinkPreviewView>           linkPreviewStub;
   private @Nullable EventListener                   eventListener;
+  private @Nullable MessageBodyCache                messageBodyCache;
 
   private int defaultBubbleColor;
   private int measureCalls;
@@ -251,6 +245,21 @@ public class ConversationItem extends LinearLayout
     setFooter(messageRecord, nextMessageRecord, locale, groupThread);
   }
 
+  /**
+   * Shares the adapter's cache of message bodies, some of which it may have built ahead of time.
+   */
+  void setMessageBodyCache(@NonNull MessageBodyCache messageBodyCache) {
+    this.messageBodyCache = messageBodyCache;
+  }
+
+  private @NonNull MessageBodyCache getMessageBodyCache() {
+    if (messageBodyCache == null) {
+      messageBodyCache = new MessageBodyCache(context, locale);
+    }
+
+    return messageBodyCache;
+  }
+
   @Override
   public void setEventListener(@Nullable EventListener eventListener) {
     this.eventListener = eventListener;
@@ -433,9 +442,14 @@ public class ConversationItem extends LinearLayout
     if (isCaptionlessMms(messageRecord)) {
       bodyText.setVisibility(View.GONE);
     } else {
-      Spannable styledText = linkifyMessageBody(messageRecord.getDisplayBody(), batchSelected.isEmpty());
-      styledText = SearchUtil.getHighlightedSpan(locale, () -> new BackgroundColorSpan(Color.YELLOW), styledText, searchQuery);
-      styledText = SearchUtil.getHighlightedSpan(locale, () -> new ForegroundColorSpan(Color.BLACK), styledText, searchQuery);
+      MessageBodyCache             bodyCache = getMessageBodyCache();
+      PrecomputedTextCompat.Params params    = bodyCache.getTextMetricsParams();
+
+      if (params == null || params.getTextPaint().getTextSize() != bodyText.getTextSize()) {
+        bodyCache.setTextMetricsParams(TextViewCompat.getTextMetricsParams(bodyText));
+      }
+
+      MessageBodyCache.Body body = bodyCache.get(messageRecord, searchQuery, batchSelected.isEmpty());
 
       if (hasExtraText(messageRecord)) {
         bodyText.setOverflowText(getLongMessageSpan(messageRecord));
@@ -443,7 +457,7 @@ public class ConversationItem extends LinearLayout
         bodyText.setOverflowText(null);
       }
 
-      bodyText.setText(styledText);
+      bodyText.setPrecomputedText(body.getStyledText(), body.getEmojiCandidates(), body.getMeasuredText());
       bodyText.setVisibility(View.VISIBLE);
     }
   }
@@ -680,26 +694,6 @@ public class ConversationItem extends LinearLayout
     return attachment.getWidth() >= minWidth;
   }
 
-  private SpannableString linkifyMessageBody(SpannableString messageBody, boolean shouldLinkifyAllLinks) {
-    int     linkPattern = Linkify.WEB_URLS | Linkify.EMAIL_ADDRESSES | Linkify.PHONE_NUMBERS;
-    boolean hasLinks    = Linkify.addLinks(messageBody, shouldLinkifyAllLinks ? linkPattern : 0);
-
-    if (hasLinks) {
-      Stream.of(messageBody.getSpans(0, messageBody.length(), URLSpan.class))
-            .filterNot(url -> LinkPreviewUtil.isLegalUrl(url.getURL()))
-            .forEach(messageBody::removeSpan);
-
-      URLSpan[] urlSpans = messageBody.getSpans(0, messageBody.length(), URLSpan.class);
-
-      for (URLSpan urlSpan : urlSpans) {
-        int start = messageBody.getSpanStart(urlSpan);
-        int end = messageBody.getSpanEnd(urlSpan);
-        messageBody.setSpan(new LongClickCopySpan(urlSpan.getURL()), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-      }
-    }
-    return messageBody;
-  }
-
   private void setStatusIcons(MessageRecord messageRecord) {
     bodyText.setCompoundDrawablesWithIntrinsicBounds(0, 0, messageRecord.isKeyExchange() ? R.drawable.ic_menu_login : 0, 0);
 
@@ -0,0 +1,238 @@
+package org.thoughtcrime.securesms.conversation;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.text.PrecomputedTextCompat;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.URLSpan;
+import android.text.util.Linkify;
+
+import com.annimon.stream.Stream;
+
+import org.thoughtcrime.securesms.components.emoji.EmojiProvider;
+import org.thoughtcrime.securesms.components.emoji.parsing.EmojiParser;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.database.model.NotificationMmsMessageRecord;
+import org.thoughtcrime.securesms.linkpreview.LinkPreviewUtil;
+import org.thoughtcrime.securesms.util.LongClickCopySpan;
+import org.thoughtcrime.securesms.util.LongLruCache;
+import org.thoughtcrime.securesms.util.SearchUtil;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.util.Locale;
+
+/**
+ * Holds the styled text of recently shown message bodies, with links, search highlights and the
+ * positions of their emoji already worked out, and where possible their glyphs already measured.
+ *
+ * Bodies can be built on a background thread ahead of binding, so that long messages full of
+ * links and emoji don't have to be parsed on the main thread while scrolling. The cache itself is
+ * only touched on the main thread.
+ */
+class MessageBodyCache {
+
+  private static final int MAX_SIZE = 150;
+
+  private final Context            context;
+  private final Locale             locale;
+  private final LongLruCache<Body> cache;
+
+  private @Nullable PrecomputedTextCompat.Params textMetricsParams;
+
+  MessageBodyCache(@NonNull Context context, @NonNull Locale locale) {
+    this.context = context.getApplicationContext();
+    this.locale  = locale;
+    this.cache   = new LongLruCache<>(MAX_SIZE);
+  }
+
+  /**
+   * @return A body built for exactly this record, query and link state, or a freshly built one.
+   */
+  @MainThread
+  @NonNull Body get(@NonNull MessageRecord record, @Nullable String searchQuery, boolean linkifyAllLinks) {
+    Body body = cache.get(getKey(record));
+
+    if (body == null || !body.isFor(record, searchQuery, linkifyAllLinks, textMetricsParams)) {
+      body = build(record, searchQuery, linkifyAllLinks, textMetricsParams);
+      cache.put(body.key, body);
+    }
+
+    return body;
+  }
+
+  @MainThread
+  boolean contains(@NonNull MessageRecord record, @Nullable String searchQuery, boolean linkifyAllLinks) {
+    Body body = cache.get(getKey(record));
+    return body != null && body.isFor(record, searchQuery, linkifyAllLinks, textMetricsParams);
+  }
+
+  /**
+   * Adds a body built ahead of time, unless the text is now measured differently.
+   */
+  @MainThread
+  void put(@NonNull Body body) {
+    if (body.params == textMetricsParams) {
+      cache.put(body.key, body);
+    }
+  }
+
+  @MainThread
+  void clear() {
+    cache.clear();
+  }
+
+  /**
+   * @return The parameters the body text view measures its text with, or null if no body has been
+   *         shown yet.
+   */
+  @MainThread
+  @Nullable PrecomputedTextCompat.Params getTextMetricsParams() {
+    return textMetricsParams;
+  }
+
+  /**
+   * Bodies measured with other parameters, such as a different text size, can't be shown as they
+   * are, so changing them drops everything.
+   */
+  @MainThread
+  void setTextMetricsParams(@NonNull PrecomputedTextCompat.Params params) {
+    if (!params.equals(textMetricsParams)) {
+      textMetricsParams = params;
+      cache.clear();
+    }
+  }
+
+  /**
+   * Safe to call on any thread.
+   */
+  @NonNull Body build(@NonNull MessageRecord record,
+                      @Nullable String searchQuery,
+                      boolean linkifyAllLinks,
+                      @Nullable PrecomputedTextCompat.Params params)
+  {
+    Spannable styledText = linkifyMessageBody(record.getDisplayBody(), linkifyAllLinks);
+    styledText = SearchUtil.getHighlightedSpan(locale, () -> new BackgroundColorSpan(Color.YELLOW), styledText, searchQuery);
+    styledText = SearchUtil.getHighlightedSpan(locale, () -> new ForegroundColorSpan(Color.BLACK), styledText, searchQuery);
+
+    EmojiParser.CandidateList emojiCandidates = EmojiProvider.getInstance(context).getCandidates(styledText);
+    PrecomputedTextCompat     measuredText    = null;
+
+    boolean drawsOwnEmoji = emojiCandidates != null && emojiCandidates.size() > 0 && !TextSecurePreferences.isSystemEmojiPreferred(context);
+
+    if (params != null && !drawsOwnEmoji) {
+      measuredText = PrecomputedTextCompat.create(styledText, params);
+    }
+
+    return new Body(record, searchQuery, linkifyAllLinks, params, styledText, emojiCandidates, measuredText);
+  }
+
+  private static long getKey(@NonNull MessageRecord record) {
+    return (record.getId() << 1) | (record.isMms() ? 1 : 0);
+  }
+
+  private static @NonNull SpannableString linkifyMessageBody(@NonNull SpannableString messageBody, boolean shouldLinkifyAllLinks) {
+    int     linkPattern = Linkify.WEB_URLS | Linkify.EMAIL_ADDRESSES | Linkify.PHONE_NUMBERS;
+    boolean hasLinks    = Linkify.addLinks(messageBody, shouldLinkifyAllLinks ? linkPattern : 0);
+
+    if (hasLinks) {
+      Stream.of(messageBody.getSpans(0, messageBody.length(), URLSpan.class))
+            .filterNot(url -> LinkPreviewUtil.isLegalUrl(url.getURL()))
+            .forEach(messageBody::removeSpan);
+
+      URLSpan[] urlSpans = messageBody.getSpans(0, messageBody.length(), URLSpan.class);
+
+      for (URLSpan urlSpan : urlSpans) {
+        int start = messageBody.getSpanStart(urlSpan);
+        int end = messageBody.getSpanEnd(urlSpan);
+        messageBody.setSpan(new LongClickCopySpan(urlSpan.getURL()), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+      }
+    }
+    return messageBody;
+  }
+
+  /**
+   * The download status of an MMS notification decides what it displays, and isn't part of its
+   * type.
+   */
+  private static int getStatus(@NonNull MessageRecord record) {
+    if (record instanceof NotificationMmsMessageRecord) return ((NotificationMmsMessageRecord) record).getStatus();
+    else                                                return 0;
+  }
+
+  static class Body {
+
+    private final long                         key;
+    private final long                         type;
+    private final String                       body;
+    private final long                         dateSent;
+    private final int                          status;
+    private final String                       searchQuery;
+    private final boolean                      linkifyAllLinks;
+    private final PrecomputedTextCompat.Params params;
+
+    private final Spannable                 styledText;
+    private final EmojiParser.CandidateList emojiCandidates;
+    private final PrecomputedTextCompat     measuredText;
+
+    @VisibleForTesting
+    Body(@NonNull MessageRecord record,
+         @Nullable String searchQuery,
+         boolean linkifyAllLinks,
+         @Nullable PrecomputedTextCompat.Params params,
+         @NonNull Spannable styledText,
+         @Nullable EmojiParser.CandidateList emojiCandidates,
+         @Nullable PrecomputedTextCompat measuredText)
+    {
+      this.key             = getKey(record);
+      this.type            = record.getType();
+      this.body            = record.getBody();
+      this.dateSent        = record.getDateSent();
+      this.status          = getStatus(record);
+      this.searchQuery     = searchQuery;
+      this.linkifyAllLinks = linkifyAllLinks;
+      this.params          = params;
+      this.styledText      = styledText;
+      this.emojiCandidates = emojiCandidates;
+      this.measuredText    = measuredText;
+    }
+
+    @NonNull Spannable getStyledText() {
+      return styledText;
+    }
+
+    @Nullable EmojiParser.CandidateList getEmojiCandidates() {
+      return emojiCandidates;
+    }
+
+    /**
+     * @return The styled text with its glyphs measured, if it has no emoji of our own to draw.
+     */
+    @Nullable PrecomputedTextCompat getMeasuredText() {
+      return measuredText;
+    }
+
+    /**
+     * Compares what the displayed text is worked out from instead of working it out again on
+     * every bind. Besides the body that's the type, which turns a message into a duplicate or a
+     * decryption failure without touching its body, and the status of an MMS notification.
+     */
+    private boolean isFor(@NonNull MessageRecord record, @Nullable String searchQuery, boolean linkifyAllLinks, @Nullable PrecomputedTextCompat.Params params) {
+      return this.type == record.getType()              &&
+             this.dateSent == record.getDateSent()      &&
+             this.status == getStatus(record)           &&
+             this.linkifyAllLinks == linkifyAllLinks    &&
+             this.params == params                      &&
+             Util.equals(this.searchQuery, searchQuery) &&
+             this.body.equals(record.getBody());
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.util.Conversions;
+import org.thoughtcrime.securesms.util.Hex;
+import org.thoughtcrime.securesms.util.StripedLruCache;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access decryption of files written by {@link ModernEncryptingPartOutputStream}.
+ *
+ * Since the data is AES/CTR encrypted, any position can be decrypted by starting the counter at
+ * the block containing it. Ciphertext is read with positional reads on a single FileChannel, so
+ * seeking costs nothing beyond the bytes actually read, and sequential reads continue with the
+ * existing cipher state rather than reinitializing it.
+ */
+public class ModernDecryptingPartChannel implements Closeable {
+
+  private static final int RANDOM_LENGTH = 32;
+  private static final int BLOCK_SIZE    = 16;
+  private static final int BUFFER_SIZE   = 16 * 1024;
+
+  private static final StripedLruCache<String, SecretKeySpec> DERIVED_KEYS = new StripedLruCache<>(16, 1);
+
+  private final RandomAccessFile file;
+  private final FileChannel      channel;
+  private final long             dataOffset;
+  private final SecretKeySpec    key;
+  private final Cipher           cipher;
+  private final byte[]           iv         = new byte[BLOCK_SIZE];
+  private final byte[]           ciphertext = new byte[BUFFER_SIZE];
+
+  private long cipherPosition = -1;
+
+  public static ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    return new ModernDecryptingPartChannel(new RandomAccessFile(file, "r"), getDerivedKey(attachmentSecret, random), 0);
+  }
+
+  /**
+   * For files that were written with the random prepended inline.
+   */
+  public static ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file)
+      throws IOException
+  {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    byte[]           random           = new byte[RANDOM_LENGTH];
+
+    try {
+      randomAccessFile.readFully(random);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+
+    return new ModernDecryptingPartChannel(randomAccessFile, getDerivedKey(attachmentSecret, random), RANDOM_LENGTH);
+  }
+
+  private ModernDecryptingPartChannel(@NonNull RandomAccessFile file, @NonNull SecretKeySpec key, long dataOffset) {
+    try {
+      this.file       = file;
+      this.channel    = file.getChannel();
+      this.key        = key;
+      this.dataOffset = dataOffset;
+      this.cipher     = Cipher.getInstance("AES/CTR/NoPadding");
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Decrypts up to length bytes of plaintext starting at position.
+   *
+   * @return The number of bytes read, or -1 if position is at or beyond the end of the data.
+   */
+  public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+
+    int read = readCiphertext(position, Math.min(length, ciphertext.length));
+
+    if (read == -1) return -1;
+
+    try {
+      seekCipher(position);
+      cipher.update(ciphertext, 0, read, buffer, offset);
+      cipherPosition = position + read;
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    return read;
+  }
+
+  /**
+   * @return The length of the plaintext.
+   */
+  public long size() throws IOException {
+    return Math.max(0, channel.size() - dataOffset);
+  }
+
+  /**
+   * @return A sequential, buffered stream over the plaintext starting at position. Closing the
+   *         stream closes this channel.
+   */
+  public @NonNull InputStream newInputStream(long position) {
+    return new BufferedInputStream(new ChannelInputStream(position));
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private int readCiphertext(long position, int length) throws IOException {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(ciphertext, 0, length);
+
+    while (byteBuffer.hasRemaining()) {
+      int read = channel.read(byteBuffer, dataOffset + position + byteBuffer.position());
+      if (read == -1) break;
+    }
+
+    return byteBuffer.position() > 0 ? byteBuffer.position() : -1;
+  }
+
+  private void seekCipher(long position) throws ShortBufferException {
+    if (position == cipherPosition) return;
+
+    cipherPosition = -1;
+
+    try {
+      int remainder = (int) (position % BLOCK_SIZE);
+      Conversions.longTo4ByteArray(iv, 12, position / BLOCK_SIZE);
+
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+
+      if (remainder > 0) {
+        cipher.update(new byte[remainder], 0, remainder, new byte[remainder], 0);
+      }
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static @NonNull SecretKeySpec getDerivedKey(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random) {
+    String        cacheKey = Hex.toStringCondensed(random);
+    SecretKeySpec cached   = DERIVED_KEYS.get(cacheKey);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      SecretKeySpec key = new SecretKeySpec(mac.doFinal(random), "AES");
+      DERIVED_KEYS.put(cacheKey, key);
+
+      return key;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private class ChannelInputStream extends InputStream {
+
+    private long position;
+
+    private ChannelInputStream(long position) {
+      this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int    read   = read(buffer, 0, 1);
+
+      return read == -1 ? -1 : buffer[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      int read = ModernDecryptingPartChannel.this.read(position, buffer, offset, length);
+
+      if (read > 0) position += read;
+
+      return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      long skipped = Math.max(0, Math.min(count, size() - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+      ModernDecryptingPartChannel.this.close();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The session updates and one-time prekey removals made while decrypting one envelope, held back
+ * from the database until whatever was decrypted is stored, and then written in the same
+ * transaction. If the process dies before that, the stored envelope can still be decrypted again
+ * instead of failing as a duplicate.
+ *
+ * The stores collect their writes here while {@link #begin()} is in effect on the calling thread,
+ * and keep serving the updated sessions from memory until they're committed.
+ */
+public class PendingStoreWrites {
+
+  private static final ThreadLocal<PendingStoreWrites> CURRENT = new ThreadLocal<>();
+
+  private final LinkedList<TextSecureSessionStore.PendingSession> sessions       = new LinkedList<>();
+  private final List<Integer>                                     removedPreKeys = new LinkedList<>();
+
+  /**
+   * Starts collecting the writes made on the calling thread, until {@link #finish()}.
+   */
+  public static @NonNull PendingStoreWrites begin() {
+    if (CURRENT.get() != null) {
+      throw new IllegalStateException("Already collecting writes on this thread");
+    }
+
+    PendingStoreWrites writes = new PendingStoreWrites();
+    CURRENT.set(writes);
+
+    return writes;
+  }
+
+  static @Nullable PendingStoreWrites current() {
+    return CURRENT.get();
+  }
+
+  private PendingStoreWrites() {}
+
+  public void finish() {
+    CURRENT.remove();
+  }
+
+  /**
+   * Writes what was collected. Call this in the transaction that stores what was decrypted, and
+   * again if that transaction was rolled back and its work is being redone. Outside of one, the
+   * writes get a transaction of their own.
+   */
+  public void commit(@NonNull Context context) {
+    DatabaseFactory.getSessionDatabase(context).runInTransaction(() -> {
+      for (TextSecureSessionStore.PendingSession session : sessions) {
+        TextSecureSessionStore.commit(context, session);
+      }
+
+      for (int preKeyId : removedPreKeys) {
+        DatabaseFactory.getPreKeyDatabase(context).removePreKey(preKeyId);
+      }
+    });
+  }
+
+  /**
+   * Lets the session store stop holding the sessions once the transaction they were written in
+   * has been committed.
+   */
+  public void onCommitted() {
+    for (TextSecureSessionStore.PendingSession session : sessions) {
+      TextSecureSessionStore.onCommitted(session);
+    }
+  }
+
+  /**
+   * Drops what was collected without writing it, for when the envelope is kept to be decrypted
+   * again.
+   */
+  public void discard() {
+    Iterator<TextSecureSessionStore.PendingSession> iterator = sessions.descendingIterator();
+
+    while (iterator.hasNext()) {
+      TextSecureSessionStore.discard(iterator.next());
+    }
+  }
+
+  void addSession(@NonNull TextSecureSessionStore.PendingSession session) {
+    sessions.add(session);
+  }
+
+  void addRemovedPreKey(int preKeyId) {
+    removedPreKeys.add(preKeyId);
+  }
+}
@@ -77,9 +77,16 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
     return DatabaseFactory.getSignedPreKeyDatabase(context).getSignedPreKey(signedPreKeyId) != null;
   }
 
+  /**
+   * While decrypting an incoming envelope the removal is held back along with the session it
+   * created, so the envelope can still be decrypted again if it's lost before it's stored.
+   */
   @Override
   public void removePreKey(int preKeyId) {
-    DatabaseFactory.getPreKeyDatabase(context).removePreKey(preKeyId);
+    PendingStoreWrites pendingWrites = PendingStoreWrites.current();
+
+    if (pendingWrites != null) pendingWrites.addRemovedPreKey(preKeyId);
+    else                       DatabaseFactory.getPreKeyDatabase(context).removePreKey(preKeyId);
   }
 
   @Override
@@ -2,104 +2,326 @@ package org.thoughtcrime.securesms.crypto.storage;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.SessionDatabase;
 import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.StripedLruCache;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Session records are kept deserialized in a bounded cache, so consecutive messages with the same
+ * contact don't have to parse the stored record each time.
+ *
+ * Writes go straight to the database, except for the ones made while decrypting an incoming
+ * envelope, which are collected in {@link PendingStoreWrites} and written along with what was
+ * decrypted. Until then those sessions are held here, outside the bounded cache, and a direct
+ * write to the same session supersedes any that are still pending.
+ *
+ * Writes hold the lock along with the database write, so a check against the in-memory state
+ * can't be overtaken by another write before it lands. The receive pipeline calls in here from
+ * inside its transactions, so every write takes the database's transaction first and the lock
+ * second, and the lock is never held while waiting on the database.
+ */
 public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG = TextSecureSessionStore.class.getSimpleName();
 
   private static final Object FILE_LOCK = new Object();
 
+  private static final int CACHE_SIZE = 250;
+
+  private static final StripedLruCache<SignalProtocolAddress, SessionRecord> CACHE      = new StripedLruCache<>(CACHE_SIZE, 1);
+  private static final Map<SignalProtocolAddress, PendingSession>           PENDING    = new HashMap<>();
+  private static final Map<SignalProtocolAddress, Long>                     SUPERSEDED = new HashMap<>();
+
+  private static long writeSequence;
+
   @NonNull  private final Context context;
 
   public TextSecureSessionStore(@NonNull Context context) {
     this.context = context;
   }
 
-  @Override
-  public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
+  /**
+   * @return Size and hit rate of the session cache.
+   */
+  public static @NonNull String getCacheStats() {
+    return CACHE.toString();
+  }
+
+  /**
+   * Drops all cached and pending sessions, for when the sessions table has been replaced
+   * underneath the store.
+   */
+  public static void clearCache() {
     synchronized (FILE_LOCK) {
-      SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+      CACHE.clear();
+      PENDING.clear();
+      SUPERSEDED.clear();
+      writeSequence++;
+    }
+  }
 
-      if (sessionRecord == null) {
-        Log.w(TAG, "No existing session information found.");
-        return new SessionRecord();
-      }
+  @Override
+  public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
+    SessionRecord sessionRecord = getCached(address);
 
-      return sessionRecord;
+    if (sessionRecord == null) {
+      Log.w(TAG, "No existing session information found.");
+      return new SessionRecord();
     }
+
+    return copy(sessionRecord);
   }
 
   @Override
   public void storeSession(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      DatabaseFactory.getSessionDatabase(context).store(Address.fromSerialized(address.getName()), address.getDeviceId(), record);
+    SessionRecord      copy          = copy(record);
+    PendingStoreWrites pendingWrites = PendingStoreWrites.current();
+
+    if (pendingWrites != null) {
+      synchronized (FILE_LOCK) {
+        PendingSession pending = new PendingSession(address, copy, ++writeSequence, PENDING.get(address));
+
+        PENDING.put(address, pending);
+        CACHE.put(address, copy);
+        pendingWrites.addSession(pending);
+      }
+    } else {
+      SessionDatabase sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+
+      sessionDatabase.runInTransaction(() -> {
+        synchronized (FILE_LOCK) {
+          supersedePending(address);
+          CACHE.put(address, copy);
+          sessionDatabase.store(Address.fromSerialized(address.getName()), address.getDeviceId(), record);
+        }
+      });
     }
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+    SessionRecord sessionRecord = getCached(address);
 
-      return sessionRecord != null &&
-             sessionRecord.getSessionState().hasSenderChain() &&
-             sessionRecord.getSessionState().getSessionVersion() == CiphertextMessage.CURRENT_VERSION;
-    }
+    return sessionRecord != null &&
+           sessionRecord.getSessionState().hasSenderChain() &&
+           sessionRecord.getSessionState().getSessionVersion() == CiphertextMessage.CURRENT_VERSION;
   }
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      DatabaseFactory.getSessionDatabase(context).delete(Address.fromSerialized(address.getName()), address.getDeviceId());
-    }
+    SessionDatabase sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+
+    sessionDatabase.runInTransaction(() -> {
+      synchronized (FILE_LOCK) {
+        supersedePending(address);
+        CACHE.remove(address);
+        sessionDatabase.delete(Address.fromSerialized(address.getName()), address.getDeviceId());
+      }
+    });
   }
 
   @Override
   public void deleteAllSessions(String name) {
-    synchronized (FILE_LOCK) {
-      DatabaseFactory.getSessionDatabase(context).deleteAllFor(Address.fromSerialized(name));
-    }
+    SessionDatabase sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+
+    sessionDatabase.runInTransaction(() -> {
+      synchronized (FILE_LOCK) {
+        for (SignalProtocolAddress address : new ArrayList<>(PENDING.keySet())) {
+          if (address.getName().equals(name)) supersedePending(address);
+        }
+
+        CACHE.clear();
+        writeSequence++;
+        sessionDatabase.deleteAllFor(Address.fromSerialized(name));
+      }
+    });
   }
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
+    List<Integer> devices = DatabaseFactory.getSessionDatabase(context).getSubDevices(Address.fromSerialized(name));
+
     synchronized (FILE_LOCK) {
-      return DatabaseFactory.getSessionDatabase(context).getSubDevices(Address.fromSerialized(name));
+      for (SignalProtocolAddress address : PENDING.keySet()) {
+        if (address.getName().equals(name)                              &&
+            address.getDeviceId() != SignalServiceAddress.DEFAULT_DEVICE_ID &&
+            !devices.contains(address.getDeviceId()))
+        {
+          devices.add(address.getDeviceId());
+        }
+      }
     }
+
+    return devices;
   }
 
   public void archiveSiblingSessions(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAllFor(Address.fromSerialized(address.getName()));
+    List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAllFor(Address.fromSerialized(address.getName()));
 
-      for (SessionDatabase.SessionRow row : sessions) {
-        if (row.getDeviceId() != address.getDeviceId()) {
-          row.getRecord().archiveCurrentState();
-          storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
-        }
+    for (SessionDatabase.SessionRow row : sessions) {
+      if (row.getDeviceId() != address.getDeviceId()) {
+        archive(row);
       }
     }
   }
 
   public void archiveAllSessions() {
+    List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAll();
+
+    for (SessionDatabase.SessionRow row : sessions) {
+      archive(row);
+    }
+  }
+
+  private void archive(@NonNull SessionDatabase.SessionRow row) {
+    SignalProtocolAddress address = new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId());
+    SessionRecord         record;
+
+    synchronized (FILE_LOCK) {
+      PendingSession pending = PENDING.get(address);
+      record = pending != null ? copy(pending.record) : row.getRecord();
+    }
+
+    record.archiveCurrentState();
+    storeSession(address, record);
+  }
+
+  private @Nullable SessionRecord getCached(@NonNull SignalProtocolAddress address) {
+    long sequence;
+
+    synchronized (FILE_LOCK) {
+      PendingSession pending = PENDING.get(address);
+      if (pending != null) return pending.record;
+
+      SessionRecord sessionRecord = CACHE.get(address);
+      if (sessionRecord != null) return sessionRecord;
+
+      sequence = writeSequence;
+    }
+
+    SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+
     synchronized (FILE_LOCK) {
-      List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAll();
+      PendingSession pending = PENDING.get(address);
+      if (pending != null) return pending.record;
 
-      for (SessionDatabase.SessionRow row : sessions) {
-        row.getRecord().archiveCurrentState();
-        storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
+      SessionRecord cached = CACHE.get(address);
+      if (cached != null) return cached;
+
+      if (sessionRecord != null && sequence == writeSequence) {
+        CACHE.put(address, sessionRecord);
       }
     }
+
+    return sessionRecord;
+  }
+
+  /**
+   * Makes sure none of the pending writes to the session that have been made so far are written
+   * after a direct one.
+   */
+  private static void supersedePending(@NonNull SignalProtocolAddress address) {
+    writeSequence++;
+
+    if (PENDING.remove(address) != null) {
+      SUPERSEDED.put(address, writeSequence);
+    }
+  }
+
+  /**
+   * Writes a pending session, unless a direct write has superseded it. Call this from inside a
+   * transaction, which {@link PendingStoreWrites#commit(Context)} makes sure of.
+   */
+  static void commit(@NonNull Context context, @NonNull PendingSession pending) {
+    synchronized (FILE_LOCK) {
+      Long superseded = SUPERSEDED.get(pending.address);
+      if (superseded != null && superseded > pending.sequence) return;
+
+      DatabaseFactory.getSessionDatabase(context).store(Address.fromSerialized(pending.address.getName()), pending.address.getDeviceId(), pending.record);
+    }
+  }
+
+  static void onCommitted(@NonNull PendingSession pending) {
+    synchronized (FILE_LOCK) {
+      pending.committed = true;
+      pending.previous  = null;
+
+      if (PENDING.get(pending.address) == pending) {
+        PENDING.remove(pending.address);
+        SUPERSEDED.remove(pending.address);
+      }
+    }
+  }
+
+  /**
+   * Drops a pending session that won't be written, going back to the one it replaced if that
+   * hasn't been written yet either, or to what's in the database.
+   */
+  static void discard(@NonNull PendingSession pending) {
+    synchronized (FILE_LOCK) {
+      if (PENDING.get(pending.address) != pending) return;
+
+      PendingSession previous = pending.previous;
+
+      if (previous != null && !previous.committed) {
+        PENDING.put(pending.address, previous);
+        CACHE.put(pending.address, previous.record);
+      } else {
+        PENDING.remove(pending.address);
+        CACHE.remove(pending.address);
+      }
+
+      writeSequence++;
+    }
+  }
+
+  /**
+   * Callers modify the records they load and store, so the cache keeps its own. Session states
+   * wrap immutable protobufs, which makes this a shallow copy.
+   */
+  private static @NonNull SessionRecord copy(@NonNull SessionRecord record) {
+    SessionRecord copy = new SessionRecord(new SessionState(record.getSessionState().getStructure()));
+
+    for (SessionState previous : record.getPreviousSessionStates()) {
+      copy.getPreviousSessionStates().add(new SessionState(previous.getStructure()));
+    }
+
+    return copy;
+  }
+
+  static class PendingSession {
+
+    private final SignalProtocolAddress address;
+    private final SessionRecord         record;
+    private final long                  sequence;
+
+    private @Nullable PendingSession previous;
+    private           boolean        committed;
+
+    private PendingSession(@NonNull SignalProtocolAddress address,
+                           @NonNull SessionRecord record,
+                           long sequence,
+                           @Nullable PendingSession previous)
+    {
+      this.address  = address;
+      this.record   = record;
+      this.sequence = sequence;
+      this.previous = previous;
+    }
   }
 }
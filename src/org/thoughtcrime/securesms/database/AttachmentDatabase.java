@@ -48,6 +48,7 @@ import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.mms.MediaStream;
 import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.mms.PartAuthority;
+import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.BitmapDecodingException;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.JsonUtils;
@@ -62,6 +63,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -99,6 +103,8 @@ public class AttachmentDatabase extends Database {
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
           static final String CAPTION                = "caption";
+          static final String DATA_HASH              = "data_hash";
+  private static final String THUMBNAIL_HASH         = "thumbnail_hash";
 
   public  static final String DIRECTORY              = "parts";
 
@@ -109,6 +115,8 @@ public class AttachmentDatabase extends Database {
 
   private static final String PART_ID_WHERE = ROW_ID + " = ? AND " + UNIQUE_ID + " = ?";
 
+  private static final String[] DISK_PROJECTION = new String[] {DATA, THUMBNAIL, CONTENT_TYPE, DATA_HASH, THUMBNAIL_HASH};
+
   private static final String[] PROJECTION = new String[] {ROW_ID,
                                                            MMS_ID, CONTENT_TYPE, NAME, CONTENT_DISPOSITION,
                                                            CONTENT_LOCATION, DATA, THUMBNAIL, TRANSFER_STATE,
@@ -128,11 +136,13 @@ public class AttachmentDatabase extends Database {
     UNIQUE_ID + " INTEGER NOT NULL, " + DIGEST + " BLOB, " + FAST_PREFLIGHT_ID + " TEXT, " +
     VOICE_NOTE + " INTEGER DEFAULT 0, " + DATA_RANDOM + " BLOB, " + THUMBNAIL_RANDOM + " BLOB, " +
     QUOTE + " INTEGER DEFAULT 0, " + WIDTH + " INTEGER DEFAULT 0, " + HEIGHT + " INTEGER DEFAULT 0, " +
-    CAPTION + " TEXT DEFAULT NULL);";
+    CAPTION + " TEXT DEFAULT NULL, " + DATA_HASH + " TEXT DEFAULT NULL, " + THUMBNAIL_HASH + " TEXT DEFAULT NULL);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
+    "CREATE INDEX IF NOT EXISTS part_thumbnail_hash_index ON " + TABLE_NAME + " (" + THUMBNAIL_HASH + ");",
   };
 
   private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
@@ -247,32 +257,40 @@ public class AttachmentDatabase extends Database {
     return attachments;
   }
 
-  @SuppressWarnings("ResultOfMethodCallIgnored")
   void deleteAttachmentsForMessage(long mmsId) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
+    List<String[]> files    = new LinkedList<>();
+
+    database.beginTransaction();
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, MMS_ID + " = ?",
-                              new String[] {mmsId+""}, null, null, null);
+      try (Cursor cursor = database.query(TABLE_NAME, DISK_PROJECTION, MMS_ID + " = ?", new String[] {mmsId+""}, null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          files.add(new String[] {cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3), cursor.getString(4)});
+        }
+      }
 
-      while (cursor != null && cursor.moveToNext()) {
-        deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+      database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
+
+      for (String[] file : files) {
+        deleteAttachmentOnDisk(database, file[0], file[1], file[2], file[3], file[4]);
       }
+
+      database.setTransactionSuccessful();
     } finally {
-      if (cursor != null)
-        cursor.close();
+      database.endTransaction();
     }
 
-    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
     notifyAttachmentListeners();
   }
 
   public void deleteAttachment(@NonNull AttachmentId id) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
+    database.beginTransaction();
+
     try (Cursor cursor = database.query(TABLE_NAME,
-                                        new String[]{DATA, THUMBNAIL, CONTENT_TYPE},
+                                        DISK_PROJECTION,
                                         PART_ID_WHERE,
                                         id.toStrings(),
                                         null,
@@ -281,16 +299,23 @@ public class AttachmentDatabase extends Database {
     {
       if (cursor == null || !cursor.moveToNext()) {
         Log.w(TAG, "Tried to delete an attachment, but it didn't exist.");
+        database.setTransactionSuccessful();
         return;
       }
-      String data        = cursor.getString(0);
-      String thumbnail   = cursor.getString(1);
-      String contentType = cursor.getString(2);
+      String data          = cursor.getString(0);
+      String thumbnail     = cursor.getString(1);
+      String contentType   = cursor.getString(2);
+      String dataHash      = cursor.getString(3);
+      String thumbnailHash = cursor.getString(4);
 
       database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
-      deleteAttachmentOnDisk(data, thumbnail, contentType);
-      notifyAttachmentListeners();
+      deleteAttachmentOnDisk(database, data, thumbnail, contentType, dataHash, thumbnailHash);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
+
+    notifyAttachmentListeners();
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -308,14 +333,22 @@ public class AttachmentDatabase extends Database {
     notifyAttachmentListeners();
   }
 
-  @SuppressWarnings("ResultOfMethodCallIgnored")
-  private void deleteAttachmentOnDisk(@Nullable String data, @Nullable String thumbnail, @Nullable String contentType) {
+  /**
+   * Must be called after the rows referencing these files were deleted, in the same transaction.
+   */
+  private void deleteAttachmentOnDisk(@NonNull SQLiteDatabase database,
+                                      @Nullable String data,
+                                      @Nullable String thumbnail,
+                                      @Nullable String contentType,
+                                      @Nullable String dataHash,
+                                      @Nullable String thumbnailHash)
+  {
     if (!TextUtils.isEmpty(data)) {
-      new File(data).delete();
+      deleteFileIfUnreferenced(database, new File(data), dataHash, DATA);
     }
 
     if (!TextUtils.isEmpty(thumbnail)) {
-      new File(thumbnail).delete();
+      deleteFileIfUnreferenced(database, new File(thumbnail), thumbnailHash, THUMBNAIL);
     }
 
     if (MediaUtil.isImageType(contentType) || thumbnail != null) {
@@ -330,27 +363,44 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase     database    = databaseHelper.getWritableDatabase();
     ContentValues      values      = new ContentValues();
     DataInfo           dataInfo    = setAttachmentData(inputStream);
+    boolean            asThumbnail = placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image");
+    boolean            updated;
+
+    database.beginTransaction();
+
+    try {
+      if (asThumbnail) {
+        dataInfo = deduplicate(database, dataInfo, THUMBNAIL);
+        values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
+        values.put(THUMBNAIL_RANDOM, dataInfo.random);
+        values.put(THUMBNAIL_HASH, dataInfo.hash);
+      } else {
+        dataInfo = deduplicate(database, dataInfo, DATA);
+        values.put(DATA, dataInfo.file.getAbsolutePath());
+        values.put(SIZE, dataInfo.length);
+        values.put(DATA_RANDOM, dataInfo.random);
+        values.put(DATA_HASH, dataInfo.hash);
+      }
 
-    if (placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image")) {
-      values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
-      values.put(THUMBNAIL_RANDOM, dataInfo.random);
-    } else {
-      values.put(DATA, dataInfo.file.getAbsolutePath());
-      values.put(SIZE, dataInfo.length);
-      values.put(DATA_RANDOM, dataInfo.random);
+      values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
+      values.put(CONTENT_LOCATION, (String)null);
+      values.put(CONTENT_DISPOSITION, (String)null);
+      values.put(DIGEST, (byte[])null);
+      values.put(NAME, (String) null);
+      values.put(FAST_PREFLIGHT_ID, (String)null);
+
+      updated = database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) > 0;
+
+      if (!updated) {
+        deleteFileIfUnreferenced(database, dataInfo.file, dataInfo.hash, asThumbnail ? THUMBNAIL : DATA);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
-    values.put(CONTENT_LOCATION, (String)null);
-    values.put(CONTENT_DISPOSITION, (String)null);
-    values.put(DIGEST, (byte[])null);
-    values.put(NAME, (String) null);
-    values.put(FAST_PREFLIGHT_ID, (String)null);
-
-    if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
-      //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
-    } else {
+    if (updated) {
       notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
       notifyConversationListListeners();
     }
@@ -407,16 +457,34 @@ public class AttachmentDatabase extends Database {
       throw new MmsException("No attachment data found!");
     }
 
-    dataInfo = setAttachmentData(dataInfo.file, mediaStream.getStream());
+    DataInfo previous = dataInfo;
 
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(SIZE, dataInfo.length);
-    contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
-    contentValues.put(WIDTH, mediaStream.getWidth());
-    contentValues.put(HEIGHT, mediaStream.getHeight());
-    contentValues.put(DATA_RANDOM, dataInfo.random);
+    dataInfo = setAttachmentData(mediaStream.getStream());
 
-    database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+    database.beginTransaction();
+
+    try {
+      dataInfo = deduplicate(database, dataInfo, DATA);
+
+      ContentValues contentValues = new ContentValues();
+      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+      contentValues.put(SIZE, dataInfo.length);
+      contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
+      contentValues.put(WIDTH, mediaStream.getWidth());
+      contentValues.put(HEIGHT, mediaStream.getHeight());
+      contentValues.put(DATA_RANDOM, dataInfo.random);
+      contentValues.put(DATA_HASH, dataInfo.hash);
+
+      database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+
+      if (!previous.file.equals(dataInfo.file)) {
+        deleteFileIfUnreferenced(database, previous.file, previous.hash, DATA);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
 
     return new DatabaseAttachment(databaseAttachment.getAttachmentId(),
                                   databaseAttachment.getMmsId(),
@@ -512,16 +580,8 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = null;
 
-    String randomColumn;
-
-    switch (dataType) {
-      case DATA:      randomColumn = DATA_RANDOM;      break;
-      case THUMBNAIL: randomColumn = THUMBNAIL_RANDOM; break;
-      default:throw   new AssertionError("Unknown data type: " + dataType);
-    }
-
     try {
-      cursor = database.query(TABLE_NAME, new String[]{dataType, SIZE, randomColumn}, PART_ID_WHERE, attachmentId.toStrings(),
+      cursor = database.query(TABLE_NAME, new String[]{dataType, SIZE, getRandomColumn(dataType), getHashColumn(dataType)}, PART_ID_WHERE, attachmentId.toStrings(),
                               null, null, null);
 
       if (cursor != null && cursor.moveToFirst()) {
@@ -531,7 +591,8 @@ public class AttachmentDatabase extends Database {
 
         return new DataInfo(new File(cursor.getString(0)),
                             cursor.getLong(1),
-                            cursor.getBlob(2));
+                            cursor.getBlob(2),
+                            cursor.getString(3));
       } else {
         return null;
       }
@@ -545,6 +606,17 @@ public class AttachmentDatabase extends Database {
   private @NonNull DataInfo setAttachmentData(@NonNull Uri uri)
       throws MmsException
   {
+    AttachmentId sourceId = PartAuthority.getAttachmentId(uri);
+
+    if (sourceId != null) {
+      DataInfo source = getAttachmentDataFileInfo(sourceId, DATA);
+
+      if (source != null && source.hash != null) {
+        Log.i(TAG, "Sharing data with existing attachment " + sourceId);
+        return source;
+      }
+    }
+
     try {
       InputStream inputStream = PartAuthority.getAttachmentStream(context, uri);
       return setAttachmentData(inputStream);
@@ -569,12 +641,115 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
+      MessageDigest              digest = MessageDigest.getInstance("SHA-256");
       Pair<byte[], OutputStream> out    = ModernEncryptingPartOutputStream.createFor(attachmentSecret, destination, false);
-      long                       length = Util.copy(in, out.second);
+      long                       length = Util.copy(new DigestInputStream(in, digest), out.second);
 
-      return new DataInfo(destination, length, out.first);
+      return new DataInfo(destination, length, out.first, Base64.encodeBytes(digest.digest()));
     } catch (IOException e) {
       throw new MmsException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Content is stored once per hash. If another attachment already holds the same content, its file
+   * is returned and the copy that was just written is removed. Must be called in the transaction
+   * that stores the result, so the shared file can't be deleted before it's referenced.
+   */
+  private @NonNull DataInfo deduplicate(@NonNull SQLiteDatabase database, @NonNull DataInfo dataInfo, @NonNull String dataType)
+      throws MmsException
+  {
+    if (dataInfo.hash == null) {
+      return dataInfo;
+    }
+
+    String fileColumn   = dataType;
+    String randomColumn = getRandomColumn(dataType);
+    String hashColumn   = getHashColumn(dataType);
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {fileColumn, randomColumn}, hashColumn + " = ?", new String[] {dataInfo.hash}, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        File existing = new File(cursor.getString(0));
+
+        if (existing.equals(dataInfo.file)) {
+          return dataInfo;
+        }
+
+        if (existing.exists()) {
+          deleteFileIfUnreferenced(database, dataInfo.file, dataInfo.hash, dataType);
+          return new DataInfo(existing, dataInfo.length, cursor.getBlob(1), dataInfo.hash);
+        }
+      }
+    }
+
+    if (!dataInfo.file.exists()) {
+      throw new MmsException("Attachment data no longer exists: " + dataInfo.file);
+    }
+
+    return dataInfo;
+  }
+
+  /**
+   * Attachments with the same content get the same thumbnail, so one that's already been generated
+   * is reused rather than generating and storing another.
+   */
+  private boolean copySharedThumbnail(@NonNull SQLiteDatabase database, @Nullable String dataHash, @NonNull ContentValues values) {
+    if (dataHash == null) {
+      return false;
+    }
+
+    String[] projection = new String[] {THUMBNAIL, THUMBNAIL_RANDOM, THUMBNAIL_HASH, THUMBNAIL_ASPECT_RATIO};
+    String   where      = DATA_HASH + " = ? AND " + THUMBNAIL_HASH + " IS NOT NULL";
+
+    try (Cursor cursor = database.query(TABLE_NAME, projection, where, new String[] {dataHash}, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        if (new File(cursor.getString(0)).exists()) {
+          values.put(THUMBNAIL, cursor.getString(0));
+          values.put(THUMBNAIL_RANDOM, cursor.getBlob(1));
+          values.put(THUMBNAIL_HASH, cursor.getString(2));
+          values.put(THUMBNAIL_ASPECT_RATIO, cursor.getFloat(3));
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Files without a hash predate deduplication and are never shared.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private void deleteFileIfUnreferenced(@NonNull SQLiteDatabase database, @NonNull File file, @Nullable String hash, @NonNull String dataType) {
+    if (hash != null) {
+      String   where = getHashColumn(dataType) + " = ? AND " + dataType + " = ?";
+      String[] args  = new String[] {hash, file.getAbsolutePath()};
+
+      try (Cursor cursor = database.query(TABLE_NAME, new String[] {ROW_ID}, where, args, null, null, null, "1")) {
+        if (cursor != null && cursor.moveToFirst()) {
+          return;
+        }
+      }
+    }
+
+    file.delete();
+  }
+
+  private static @NonNull String getRandomColumn(@NonNull String dataType) {
+    switch (dataType) {
+      case DATA:      return DATA_RANDOM;
+      case THUMBNAIL: return THUMBNAIL_RANDOM;
+      default:throw   new AssertionError("Unknown data type: " + dataType);
+    }
+  }
+
+  private static @NonNull String getHashColumn(@NonNull String dataType) {
+    switch (dataType) {
+      case DATA:      return DATA_HASH;
+      case THUMBNAIL: return THUMBNAIL_HASH;
+      default:throw   new AssertionError("Unknown data type: " + dataType);
     }
   }
 
@@ -673,18 +848,33 @@ public class AttachmentDatabase extends Database {
     contentValues.put(QUOTE, quote);
     contentValues.put(CAPTION, attachment.getCaption());
 
-    if (dataInfo != null) {
-      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
-      contentValues.put(SIZE, dataInfo.length);
-      contentValues.put(DATA_RANDOM, dataInfo.random);
+    boolean hasThumbnail = false;
+    long    rowId;
+
+    database.beginTransaction();
+
+    try {
+      if (dataInfo != null) {
+        dataInfo = deduplicate(database, dataInfo, DATA);
+
+        contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+        contentValues.put(SIZE, dataInfo.length);
+        contentValues.put(DATA_RANDOM, dataInfo.random);
+        contentValues.put(DATA_HASH, dataInfo.hash);
+
+        hasThumbnail = copySharedThumbnail(database, dataInfo.hash, contentValues);
+      }
+
+      rowId = database.insert(TABLE_NAME, null, contentValues);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    long         rowId        = database.insert(TABLE_NAME, null, contentValues);
     AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
     Uri          thumbnailUri = attachment.getThumbnailUri();
-    boolean      hasThumbnail = false;
 
-    if (thumbnailUri != null) {
+    if (!hasThumbnail && thumbnailUri != null) {
       try (InputStream attachmentStream = PartAuthority.getAttachmentStream(context, thumbnailUri)) {
         Pair<Integer, Integer> dimens = BitmapUtil.getDimensions(attachmentStream);
         updateAttachmentThumbnail(attachmentId,
@@ -726,13 +916,26 @@ public class AttachmentDatabase extends Database {
     DataInfo thumbnailFile = setAttachmentData(in);
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    ContentValues  values   = new ContentValues(2);
+    ContentValues  values   = new ContentValues(4);
 
-    values.put(THUMBNAIL, thumbnailFile.file.getAbsolutePath());
-    values.put(THUMBNAIL_ASPECT_RATIO, aspectRatio);
-    values.put(THUMBNAIL_RANDOM, thumbnailFile.random);
+    database.beginTransaction();
 
-    database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+    try {
+      thumbnailFile = deduplicate(database, thumbnailFile, THUMBNAIL);
+
+      values.put(THUMBNAIL, thumbnailFile.file.getAbsolutePath());
+      values.put(THUMBNAIL_ASPECT_RATIO, aspectRatio);
+      values.put(THUMBNAIL_RANDOM, thumbnailFile.random);
+      values.put(THUMBNAIL_HASH, thumbnailFile.hash);
+
+      if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
+        deleteFileIfUnreferenced(database, thumbnailFile.file, thumbnailFile.hash, THUMBNAIL);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
 
     Cursor cursor = database.query(TABLE_NAME, new String[] {MMS_ID}, PART_ID_WHERE, attachmentId.toStrings(), null, null, null);
 
@@ -814,11 +1017,13 @@ public class AttachmentDatabase extends Database {
     private final File   file;
     private final long   length;
     private final byte[] random;
+    private final String hash;
 
-    private DataInfo(File file, long length, byte[] random) {
+    private DataInfo(File file, long length, byte[] random, @Nullable String hash) {
       this.file = file;
       this.length = length;
       this.random = random;
+      this.hash = hash;
     }
   }
 }
@@ -4,6 +4,7 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DataSetObserver;
 import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.support.annotation.NonNull;
 
 import java.io.Closeable;
@@ -39,6 +40,16 @@ public class CursorList<T> implements List<T>, Closeable {
     return (CursorList<T>) new CursorList(emptyCursor(), null);
   }
 
+  /**
+   * @return A list of the items of both lists, which takes ownership of their cursors. Closing it
+   *         closes both.
+   */
+  public static <T> CursorList<T> concat(@NonNull CursorList<T> first, @NonNull CursorList<T> second) {
+    ModelBuilder<T> modelBuilder = first.modelBuilder != null ? first.modelBuilder : second.modelBuilder;
+    //noinspection ConstantConditions
+    return new CursorList<>(new MergeCursor(new Cursor[] { first.cursor, second.cursor }), modelBuilder);
+  }
+
   private static Cursor emptyCursor() {
     return new MatrixCursor(new String[] { "a" }, 0);
   }
@@ -44,11 +44,17 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    DatabaseBatch batch = DatabaseBatch.current();
+
+    if (batch != null) batch.getChanges().addConversation(threadId);
+    else               DatabaseChangeNotifier.getInstance(context).notifyConversation(threadId);
   }
 
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    DatabaseBatch batch = DatabaseBatch.current();
+
+    if (batch != null) batch.getChanges().addConversationList();
+    else               DatabaseChangeNotifier.getInstance(context).notifyConversationList();
   }
 
   protected void setNotifyConverationListeners(Cursor cursor, long threadId) {
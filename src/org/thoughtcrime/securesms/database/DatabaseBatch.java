@@ -0,0 +1,157 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteTransactionListener;
+
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups the writes made on one thread into a single transaction.
+ *
+ * While a batch is open, the thread summary updates, conversation change notifications and
+ * message notifications those writes would normally trigger one at a time are collected instead.
+ * Each thread is updated once inside the transaction when the batch is committed, and the
+ * notifications are handed to the {@link DatabaseChangeNotifier} once the batch has ended, only
+ * if it was committed.
+ */
+public class DatabaseBatch {
+
+  private static final String TAG = DatabaseBatch.class.getSimpleName();
+
+  private static final ThreadLocal<DatabaseBatch> CURRENT = new ThreadLocal<>();
+
+  private final Context                        context;
+  private final SQLiteDatabase                 database;
+  private final Map<Long, Boolean>             threadUpdates;
+  private final DatabaseChangeNotifier.Changes changes;
+  private final Set<Long>                      notificationThreads;
+
+  private boolean notificationUpdate;
+  private boolean ending;
+  private boolean committed;
+
+  static @NonNull DatabaseBatch begin(@NonNull Context context, @NonNull SQLiteDatabase database) {
+    if (CURRENT.get() != null) {
+      throw new IllegalStateException("A batch is already open on this thread");
+    }
+
+    DatabaseBatch batch = new DatabaseBatch(context, database);
+
+    database.beginTransactionWithListener(new SQLiteTransactionListener() {
+      @Override
+      public void onBegin() {}
+
+      @Override
+      public void onCommit() {
+        batch.committed = true;
+      }
+
+      @Override
+      public void onRollback() {}
+    });
+
+    CURRENT.set(batch);
+
+    return batch;
+  }
+
+  /**
+   * @return The batch open on the calling thread, if there is one.
+   */
+  public static @Nullable DatabaseBatch current() {
+    return CURRENT.get();
+  }
+
+  private DatabaseBatch(@NonNull Context context, @NonNull SQLiteDatabase database) {
+    this.context             = context;
+    this.database            = database;
+    this.threadUpdates       = new LinkedHashMap<>();
+    this.changes             = new DatabaseChangeNotifier.Changes();
+    this.notificationThreads = new LinkedHashSet<>();
+  }
+
+  /**
+   * Applies the collected thread updates and marks the transaction successful, so the updates are
+   * committed or rolled back along with everything else in the batch.
+   */
+  public void commit() {
+    ending = true;
+
+    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
+
+    for (Map.Entry<Long, Boolean> update : threadUpdates.entrySet()) {
+      threadDatabase.update(update.getKey(), update.getValue());
+    }
+
+    database.setTransactionSuccessful();
+  }
+
+  /**
+   * Ends the transaction. If it was committed, the collected notifications are sent. If it was
+   * rolled back, because {@link #commit()} wasn't reached or any nested transaction in the batch
+   * failed, they're dropped.
+   *
+   * @return True if the batch was committed.
+   */
+  public boolean end() {
+    try {
+      database.endTransaction();
+    } finally {
+      CURRENT.remove();
+    }
+
+    if (!committed) {
+      Log.w(TAG, "Batch was rolled back.");
+      return false;
+    }
+
+    DatabaseChangeNotifier.getInstance(context).publish(changes);
+
+    MessageNotifier.updateNotification(context, notificationThreads, notificationUpdate);
+
+    return true;
+  }
+
+  /**
+   * @return True once the batch's transaction has been committed, even if sending the collected
+   *         notifications afterwards failed.
+   */
+  public boolean isCommitted() {
+    return committed;
+  }
+
+  /**
+   * @return False if the update has to be applied right away, because the batch is already
+   *         applying its collected updates.
+   */
+  boolean deferThreadUpdate(long threadId, boolean unarchive) {
+    if (ending) return false;
+
+    Boolean existing = threadUpdates.get(threadId);
+    threadUpdates.put(threadId, unarchive || (existing != null && existing));
+
+    return true;
+  }
+
+  @NonNull DatabaseChangeNotifier.Changes getChanges() {
+    return changes;
+  }
+
+  public void deferNotification(long threadId) {
+    notificationThreads.add(threadId);
+  }
+
+  public void deferNotification() {
+    notificationUpdate = true;
+  }
+}
@@ -0,0 +1,270 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the change notifications databases send to their observers.
+ *
+ * Changes that arrive within {@link #WINDOW_MS} of the first pending one are merged, and each
+ * changed URI is notified once when the window closes, so a burst of writes makes every open
+ * cursor requery once instead of once per write. {@link Listener}s get the merged changes
+ * themselves, including which messages changed, so they can refresh just those.
+ */
+public class DatabaseChangeNotifier {
+
+  private static final long WINDOW_MS = 100;
+
+  private static volatile DatabaseChangeNotifier instance;
+
+  private final Context        context;
+  private final Handler        handler;
+  private final List<Listener> listeners;
+  private final AtomicLong     requested;
+  private final AtomicLong     emitted;
+
+  private Changes pending;
+
+  public static DatabaseChangeNotifier getInstance(@NonNull Context context) {
+    if (instance == null) {
+      synchronized (DatabaseChangeNotifier.class) {
+        if (instance == null) {
+          instance = new DatabaseChangeNotifier(context.getApplicationContext());
+        }
+      }
+    }
+
+    return instance;
+  }
+
+  private DatabaseChangeNotifier(@NonNull Context context) {
+    HandlerThread thread = new HandlerThread("DatabaseChangeNotifier");
+    thread.start();
+
+    this.context   = context;
+    this.handler   = new Handler(thread.getLooper());
+    this.listeners = new CopyOnWriteArrayList<>();
+    this.requested = new AtomicLong();
+    this.emitted   = new AtomicLong();
+  }
+
+  /**
+   * Listeners are called on the notifier's own thread.
+   */
+  public void addListener(@NonNull Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(@NonNull Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public synchronized void notifyConversation(long threadId) {
+    getPending().addConversation(threadId);
+  }
+
+  public synchronized void notifyMessage(long threadId, long messageId, boolean mms) {
+    getPending().addMessage(threadId, messageId, mms);
+  }
+
+  public synchronized void notifyConversationList() {
+    getPending().addConversationList();
+  }
+
+  public synchronized void publish(@NonNull Changes changes) {
+    if (changes.isEmpty()) return;
+    getPending().addAll(changes);
+  }
+
+  /**
+   * @return How many notifications were requested, and how many of them were actually sent.
+   */
+  public @NonNull String getStats() {
+    long requested = this.requested.get();
+    long emitted   = this.emitted.get();
+
+    return "emitted " + emitted + ", suppressed " + (requested - emitted);
+  }
+
+  private @NonNull Changes getPending() {
+    if (pending == null) {
+      pending = new Changes();
+      handler.postDelayed(this::flush, WINDOW_MS);
+    }
+
+    return pending;
+  }
+
+  private void flush() {
+    Changes changes;
+
+    synchronized (this) {
+      changes = pending;
+      pending = null;
+    }
+
+    if (changes == null || changes.isEmpty()) return;
+
+    for (long threadId : changes.getConversations().keySet()) {
+      context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    }
+
+    if (changes.isConversationListChanged()) {
+      context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    }
+
+    requested.addAndGet(changes.getRequestCount());
+    emitted.addAndGet(changes.getConversations().size() + (changes.isConversationListChanged() ? 1 : 0));
+
+    for (Listener listener : listeners) {
+      listener.onChanged(changes);
+    }
+  }
+
+  public interface Listener {
+    void onChanged(@NonNull Changes changes);
+  }
+
+  /**
+   * A set of merged changes, keyed by thread.
+   */
+  public static class Changes {
+
+    private final Map<Long, ConversationChange> conversations = new HashMap<>();
+
+    private boolean conversationListChanged;
+    private int     requestCount;
+
+    void addConversation(long threadId) {
+      getOrCreate(threadId).markUnknown();
+      requestCount++;
+    }
+
+    void addMessage(long threadId, long messageId, boolean mms) {
+      getOrCreate(threadId).addMessage(messageId, mms);
+      requestCount++;
+    }
+
+    void addConversationList() {
+      conversationListChanged = true;
+      requestCount++;
+    }
+
+    void addAll(@NonNull Changes other) {
+      for (ConversationChange change : other.conversations.values()) {
+        getOrCreate(change.threadId).addAll(change);
+      }
+
+      conversationListChanged |= other.conversationListChanged;
+      requestCount            += other.requestCount;
+    }
+
+    public @NonNull Map<Long, ConversationChange> getConversations() {
+      return Collections.unmodifiableMap(conversations);
+    }
+
+    public @Nullable ConversationChange getConversation(long threadId) {
+      return conversations.get(threadId);
+    }
+
+    public boolean isConversationListChanged() {
+      return conversationListChanged;
+    }
+
+    int getRequestCount() {
+      return requestCount;
+    }
+
+    boolean isEmpty() {
+      return conversations.isEmpty() && !conversationListChanged;
+    }
+
+    private @NonNull ConversationChange getOrCreate(long threadId) {
+      ConversationChange change = conversations.get(threadId);
+
+      if (change == null) {
+        change = new ConversationChange(threadId);
+        conversations.put(threadId, change);
+      }
+
+      return change;
+    }
+  }
+
+  /**
+   * The messages that changed in one thread. If anything in the thread changed without naming a
+   * message, or too many messages changed to keep track of, {@link #isUnknown()} is true and the
+   * whole thread should be reloaded.
+   */
+  public static class ConversationChange {
+
+    private static final int MAX_MESSAGE_IDS = 500;
+
+    private final long      threadId;
+    private final Set<Long> smsIds;
+    private final Set<Long> mmsIds;
+
+    private boolean unknown;
+
+    private ConversationChange(long threadId) {
+      this.threadId = threadId;
+      this.smsIds   = new HashSet<>();
+      this.mmsIds   = new HashSet<>();
+    }
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+    public @NonNull Set<Long> getSmsIds() {
+      return Collections.unmodifiableSet(smsIds);
+    }
+
+    public @NonNull Set<Long> getMmsIds() {
+      return Collections.unmodifiableSet(mmsIds);
+    }
+
+    public boolean isUnknown() {
+      return unknown;
+    }
+
+    private void addMessage(long messageId, boolean mms) {
+      if (unknown) return;
+
+      if (mms) mmsIds.add(messageId);
+      else     smsIds.add(messageId);
+
+      if (smsIds.size() + mmsIds.size() > MAX_MESSAGE_IDS) {
+        markUnknown();
+      }
+    }
+
+    private void addAll(@NonNull ConversationChange other) {
+      if (other.unknown) {
+        markUnknown();
+        return;
+      }
+
+      for (long id : other.smsIds) addMessage(id, false);
+      for (long id : other.mmsIds) addMessage(id, true);
+    }
+
+    private void markUnknown() {
+      unknown = true;
+      smsIds.clear();
+      mmsIds.clear();
+    }
+  }
+}
@@ -130,6 +130,13 @@ public class DatabaseFactory {
     return getInstance(context).searchDatabase;
   }
 
+  /**
+   * Opens a {@link DatabaseBatch} on the calling thread, which must be ended in a finally block.
+   */
+  public static DatabaseBatch beginBatch(Context context) {
+    return DatabaseBatch.begin(context.getApplicationContext(), getInstance(context).databaseHelper.getWritableDatabase());
+  }
+
   public static SQLiteDatabase getBackupDatabase(Context context) {
     return getInstance(context).databaseHelper.getReadableDatabase();
   }
@@ -103,6 +103,22 @@ public class GroupDatabase extends Database {
     return !getGroup(groupId).isPresent();
   }
 
+  /**
+   * Begins a transaction for changes that are based on a group's current record, so that two of
+   * them can't interleave. Must be ended in a finally block with {@link #endTransaction()}.
+   */
+  public void beginTransaction() {
+    databaseHelper.getWritableDatabase().beginTransaction();
+  }
+
+  public void setTransactionSuccessful() {
+    databaseHelper.getWritableDatabase().setTransactionSuccessful();
+  }
+
+  public void endTransaction() {
+    databaseHelper.getWritableDatabase().endTransaction();
+  }
+
   public Reader getGroupsFilteredByTitle(String constraint) {
     @SuppressLint("Recycle")
     Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, TITLE + " LIKE ?",
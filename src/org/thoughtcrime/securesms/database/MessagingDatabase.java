@@ -28,6 +28,14 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     super(context, databaseHelper);
   }
 
+  public static final String EXPIRES_AT = "expires_at";
+
+  /**
+   * When a message with a running timer expires. The tables index this expression for messages
+   * whose timer has started, so it has to be written exactly like this for the index to be used.
+   */
+  static final String EXPIRES_AT_EXPRESSION = EXPIRE_STARTED + " + " + EXPIRES_IN;
+
   protected abstract String getTableName();
 
   public abstract void markExpireStarted(long messageId);
@@ -36,6 +44,31 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
   public abstract void markAsSent(long messageId, boolean secure);
   public abstract void markUnidentified(long messageId, boolean unidentified);
 
+  /**
+   * @return Up to limit messages with a running expiration timer that expire after the given
+   *         position, ordered by when they expire. Only the {@link #ID} and {@link #EXPIRES_AT}
+   *         columns are included.
+   */
+  public Cursor getExpirationStartedMessages(long afterExpiresAt, long afterId, int limit) {
+    String         expiresAt = EXPIRES_AT_EXPRESSION;
+    String         where     = EXPIRE_STARTED + " > 0 AND " + expiresAt + " >= ? AND (" + expiresAt + " > ? OR " + ID + " > ?)";
+    String[]       args      = new String[] {String.valueOf(afterExpiresAt), String.valueOf(afterExpiresAt), String.valueOf(afterId)};
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+
+    return db.query(getTableName(), new String[] {ID, expiresAt + " AS " + EXPIRES_AT}, where, args, null, null, expiresAt + ", " + ID, String.valueOf(limit));
+  }
+
+  /**
+   * Like {@link #notifyConversationListeners(long)}, but tells observers which message changed.
+   */
+  protected void notifyConversationListeners(long threadId, long messageId) {
+    boolean       mms   = MmsDatabase.TABLE_NAME.equals(getTableName());
+    DatabaseBatch batch = DatabaseBatch.current();
+
+    if (batch != null) batch.getChanges().addMessage(threadId, messageId, mms);
+    else               DatabaseChangeNotifier.getInstance(context).notifyMessage(threadId, messageId, mms);
+  }
+
   public void setMismatchedIdentity(long messageId, final Address address, final IdentityKey identityKey) {
     List<IdentityKeyMismatch> items = new ArrayList<IdentityKeyMismatch>() {{
       add(new IdentityKeyMismatch(address, identityKey));
@@ -62,6 +62,7 @@ import org.thoughtcrime.securesms.mms.OutgoingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingSecureMediaMessage;
 import org.thoughtcrime.securesms.mms.QuoteModel;
 import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.util.JsonUtils;
@@ -136,7 +137,8 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + "," + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
     "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS mms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRES_AT_EXPRESSION + ", " + ID + ") WHERE " + EXPIRE_STARTED + " > 0;"
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -249,7 +251,7 @@ public class MmsDatabase extends MessagingDatabase {
 
             DatabaseFactory.getGroupReceiptDatabase(context).update(ourAddress, id, status, timestamp);
             DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
+            notifyConversationListeners(threadId, id);
           }
         }
       }
@@ -315,11 +317,6 @@ public class MmsDatabase extends MessagingDatabase {
     return cursor;
   }
 
-  public Reader getExpireStartedMessages() {
-    String where = EXPIRE_STARTED + " > 0";
-    return readerFor(rawQuery(where, null));
-  }
-
   private void updateMailboxBitmask(long id, long maskOff, long maskOn, Optional<Long> threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.execSQL("UPDATE " + TABLE_NAME +
@@ -328,6 +325,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     if (threadId.isPresent()) {
       DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      MessageNotifier.invalidateThread(threadId.get());
     }
   }
 
@@ -339,32 +337,32 @@ public class MmsDatabase extends MessagingDatabase {
   public void markAsForcedSms(long messageId) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.PUSH_MESSAGE_BIT, Types.MESSAGE_FORCE_SMS_BIT, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   public void markAsPendingInsecureSmsFallback(long messageId) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_PENDING_INSECURE_SMS_FALLBACK, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   public void markAsSending(long messageId) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENDING_TYPE, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   public void markAsSentFailed(long messageId) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   @Override
   public void markAsSent(long messageId, boolean secure) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENT_TYPE | (secure ? Types.PUSH_MESSAGE_BIT | Types.SECURE_MESSAGE_BIT : 0), Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   public void markDownloadState(long messageId, long state) {
@@ -373,12 +371,16 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(STATUS, state);
 
     database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {messageId + ""});
-    notifyConversationListeners(getThreadIdForMessage(messageId));
+
+    long threadId = getThreadIdForMessage(messageId);
+
+    MessageNotifier.invalidateThread(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   public void markAsNoSession(long messageId, long threadId) {
     updateMailboxBitmask(messageId, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_NO_SESSION_BIT, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
 //  public void markAsSecure(long messageId) {
@@ -395,17 +397,17 @@ public class MmsDatabase extends MessagingDatabase {
 
   public void markAsDecryptFailed(long messageId, long threadId) {
     updateMailboxBitmask(messageId, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_FAILED_BIT, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   public void markAsDecryptDuplicate(long messageId, long threadId) {
     updateMailboxBitmask(messageId, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_DUPLICATE_BIT, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   public void markAsLegacyVersion(long messageId, long threadId) {
     updateMailboxBitmask(messageId, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_LEGACY_BIT, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   @Override
@@ -431,7 +433,7 @@ public class MmsDatabase extends MessagingDatabase {
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(messageId)});
 
     long threadId = getThreadIdForMessage(messageId);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
   }
 
   public void markAsNotified(long id) {
@@ -516,7 +518,7 @@ public class MmsDatabase extends MessagingDatabase {
 
           DatabaseFactory.getThreadDatabase(context).updateReadState(threadId);
           DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
-          notifyConversationListeners(threadId);
+          notifyConversationListeners(threadId, id);
         }
       }
     } finally {
@@ -543,7 +545,7 @@ public class MmsDatabase extends MessagingDatabase {
     long threadId = getThreadIdForMessage(messageId);
 
     DatabaseFactory.getThreadDatabase(context).update(threadId, true);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
     notifyConversationListListeners();
 
     return new Pair<>(messageId, threadId);
@@ -837,7 +839,7 @@ public class MmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     }
 
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return Optional.of(new InsertResult(messageId, threadId));
@@ -1069,7 +1071,7 @@ public class MmsDatabase extends MessagingDatabase {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
     boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
     return threadDeleted;
   }
 
@@ -21,15 +21,23 @@ import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.annimon.stream.Stream;
+
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
 
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.util.Util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -96,19 +104,99 @@ public class MmsSmsDatabase extends Database {
     return null;
   }
 
-  public Cursor getConversation(long threadId, long offset, long limit) {
+  public Cursor getConversation(long threadId) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-    String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(PROJECTION, selection, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
-  public Cursor getConversation(long threadId) {
-    return getConversation(threadId, 0, 0);
+  /**
+   * @return Every message in the thread received within the given bounds, inclusive, newest first.
+   *         The bounds are matched against the thread and date indexes, so the cost depends on
+   *         how many messages fall within them rather than on the size of the thread.
+   */
+  public Cursor getConversationRange(long threadId, long fromReceived, long toReceived) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC";
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                       MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " >= " + fromReceived + " AND " +
+                       MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " <= " + toReceived;
+
+    return queryTables(PROJECTION, selection, order, null);
+  }
+
+  /**
+   * Finds where a page of the thread should end, reading only the thread and date indexes.
+   *
+   * @param bound Exclusive. Dates strictly before it are returned if older is true, strictly after
+   *              it otherwise.
+   * @return The received dates of up to limit messages nearest to the bound, nearest first.
+   */
+  public @NonNull List<Long> getReceivedDates(long threadId, long bound, boolean older, int limit) {
+    List<Long> smsDates = getReceivedDates(SmsDatabase.TABLE_NAME, SmsDatabase.THREAD_ID, SmsDatabase.DATE_RECEIVED, threadId, bound, older, limit);
+    List<Long> mmsDates = getReceivedDates(MmsDatabase.TABLE_NAME, MmsDatabase.THREAD_ID, MmsDatabase.DATE_RECEIVED, threadId, bound, older, limit);
+    List<Long> merged   = new ArrayList<>(Math.min(limit, smsDates.size() + mmsDates.size()));
+
+    int sms = 0;
+    int mms = 0;
+
+    while (merged.size() < limit && (sms < smsDates.size() || mms < mmsDates.size())) {
+      boolean takeSms = mms >= mmsDates.size() ||
+                        (sms < smsDates.size() && (older ? smsDates.get(sms) >= mmsDates.get(mms)
+                                                         : smsDates.get(sms) <= mmsDates.get(mms)));
+
+      merged.add(takeSms ? smsDates.get(sms++) : mmsDates.get(mms++));
+    }
+
+    return merged;
+  }
+
+  /**
+   * @return The received dates of the given messages, for working out which part of their thread
+   *         they belong in.
+   */
+  public @NonNull List<Long> getReceivedDates(@NonNull Collection<Long> smsIds, @NonNull Collection<Long> mmsIds) {
+    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
+    List<Long>     dates = new ArrayList<>(smsIds.size() + mmsIds.size());
+
+    if (!smsIds.isEmpty()) {
+      try (Cursor cursor = db.query(SmsDatabase.TABLE_NAME, new String[] {SmsDatabase.DATE_RECEIVED},
+                                    SmsDatabase.ID + " IN (" + Util.join(Stream.of(smsIds).map(String::valueOf).toList(), ",") + ")", null, null, null, null))
+      {
+        while (cursor != null && cursor.moveToNext()) dates.add(cursor.getLong(0));
+      }
+    }
+
+    if (!mmsIds.isEmpty()) {
+      try (Cursor cursor = db.query(MmsDatabase.TABLE_NAME, new String[] {MmsDatabase.DATE_RECEIVED},
+                                    MmsDatabase.ID + " IN (" + Util.join(Stream.of(mmsIds).map(String::valueOf).toList(), ",") + ")", null, null, null, null))
+      {
+        while (cursor != null && cursor.moveToNext()) dates.add(cursor.getLong(0));
+      }
+    }
+
+    return dates;
+  }
+
+  private @NonNull List<Long> getReceivedDates(@NonNull String table, @NonNull String threadColumn, @NonNull String dateColumn,
+                                               long threadId, long bound, boolean older, int limit)
+  {
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    String         selection = threadColumn + " = ? AND " + dateColumn + (older ? " < ?" : " > ?");
+    String[]       args      = new String[] {String.valueOf(threadId), String.valueOf(bound)};
+    String         order     = dateColumn + (older ? " DESC" : " ASC");
+    List<Long>     dates     = new ArrayList<>(limit);
+
+    try (Cursor cursor = db.query(table, new String[] {dateColumn}, selection, args, null, null, order, String.valueOf(limit))) {
+      while (cursor != null && cursor.moveToNext()) {
+        dates.add(cursor.getLong(0));
+      }
+    }
+
+    return dates;
   }
 
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
@@ -121,11 +209,52 @@ public class MmsSmsDatabase extends Database {
     return cursor;
   }
 
-  public Cursor getConversationSnippet(long threadId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  /**
+   * @return The thread's most recently received message. Unlike a query across both tables, this
+   *         looks up the latest message in each one through its thread and date index, and only
+   *         reads that one in full, so the cost doesn't grow with the size of the thread.
+   */
+  public @Nullable MessageRecord getLatestMessage(long threadId) {
+    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+    String[]       args    = new String[] {String.valueOf(threadId)};
+    long           smsId   = -1;
+    long           smsDate = Long.MIN_VALUE;
+    long           mmsId   = -1;
+    long           mmsDate = Long.MIN_VALUE;
+
+    try (Cursor cursor = db.query(SmsDatabase.TABLE_NAME, new String[] {SmsDatabase.ID, SmsDatabase.DATE_RECEIVED},
+                                  SmsDatabase.THREAD_ID + " = ?", args, null, null, SmsDatabase.DATE_RECEIVED + " DESC", "1"))
+    {
+      if (cursor != null && cursor.moveToFirst()) {
+        smsId   = cursor.getLong(0);
+        smsDate = cursor.getLong(1);
+      }
+    }
+
+    try (Cursor cursor = db.query(MmsDatabase.TABLE_NAME, new String[] {MmsDatabase.ID, MmsDatabase.DATE_RECEIVED},
+                                  MmsDatabase.THREAD_ID + " = ?", args, null, null, MmsDatabase.DATE_RECEIVED + " DESC", "1"))
+    {
+      if (cursor != null && cursor.moveToFirst()) {
+        mmsId   = cursor.getLong(0);
+        mmsDate = cursor.getLong(1);
+      }
+    }
+
+    if (mmsId != -1 && mmsDate >= smsDate) {
+      MmsDatabase mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+
+      try (MmsDatabase.Reader reader = mmsDatabase.readerFor(mmsDatabase.getMessage(mmsId))) {
+        return reader.getNext();
+      }
+    } else if (smsId != -1) {
+      try {
+        return DatabaseFactory.getSmsDatabase(context).getMessage(smsId);
+      } catch (NoSuchMessageException e) {
+        Log.w(TAG, e);
+      }
+    }
 
-    return  queryTables(PROJECTION, selection, order, "1");
+    return null;
   }
 
   public Cursor getUnread() {
@@ -135,92 +264,81 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
-  public int getUnreadCount(long threadId) {
-    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
-    Cursor cursor    = queryTables(PROJECTION, selection, null, null);
+  /**
+   * @return The thread's unread messages received strictly after the given date, oldest first.
+   */
+  public Cursor getUnread(long threadId, long receivedAfter) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " +
+                       MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                       MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " > " + receivedAfter;
 
-    try {
-      return cursor != null ? cursor.getCount() : 0;
-    } finally {
-      if (cursor != null) cursor.close();;
-    }
+    return queryTables(PROJECTION, selection, order, null);
   }
 
-  public int getConversationCount(long threadId) {
-    int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
-    count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
+  /**
+   * @return A summary of the unread messages in every thread that has any, worked out from the
+   *         read, notified and thread indexes without reading the messages themselves.
+   */
+  public @NonNull Map<Long, UnreadSummary> getUnreadSummaries() {
+    Map<Long, UnreadSummary> summaries = new HashMap<>();
 
-    return count;
-  }
+    addUnreadSummaries(summaries, SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, null);
+    addUnreadSummaries(summaries, MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, null);
 
-  public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, true, false);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, true, false);
+    return summaries;
   }
 
-  public void incrementReadReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, false, true);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, false, true);
+  public @NonNull UnreadSummary getUnreadSummary(long threadId) {
+    Map<Long, UnreadSummary> summaries = new HashMap<>();
+
+    addUnreadSummaries(summaries, SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, threadId);
+    addUnreadSummaries(summaries, MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, threadId);
+
+    UnreadSummary summary = summaries.get(threadId);
+    return summary != null ? summary : new UnreadSummary(0, 0, 0);
   }
 
-  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  private void addUnreadSummaries(@NonNull Map<Long, UnreadSummary> summaries, @NonNull String table, @NonNull String dateColumn, @Nullable Long threadId) {
+    SQLiteDatabase db         = databaseHelper.getReadableDatabase();
+    String[]       projection = new String[] {MmsSmsColumns.THREAD_ID, "COUNT(*)", "MIN(" + dateColumn + ")", "MAX(" + dateColumn + ")"};
+    String         selection  = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
+    String[]       args       = null;
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address);
+    if (threadId != null) {
+      selection += " AND " + MmsSmsColumns.THREAD_ID + " = ?";
+      args       = new String[] {String.valueOf(threadId)};
+    }
 
+    try (Cursor cursor = db.query(table, projection, selection, args, MmsSmsColumns.THREAD_ID, null, null)) {
       while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches = cursor.getLong(0) == quoteId;
-        boolean addressMatches = serializedAddress.equals(cursor.getString(1));
+        UnreadSummary summary  = new UnreadSummary(cursor.getInt(1), cursor.getLong(2), cursor.getLong(3));
+        UnreadSummary existing = summaries.get(cursor.getLong(0));
 
-        if (quoteIdMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
+        summaries.put(cursor.getLong(0), existing != null ? existing.merge(summary) : summary);
       }
     }
-    return -1;
   }
 
-  public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_RECEIVED, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address);
-
-      while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches = cursor.getLong(0) == receivedTimestamp;
-        boolean addressMatches   = serializedAddress.equals(cursor.getString(1));
+  public int getUnreadCount(long threadId) {
+    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
+    Cursor cursor    = queryTables(PROJECTION, selection, null, null);
 
-        if (timestampMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
-      }
+    try {
+      return cursor != null ? cursor.getCount() : 0;
+    } finally {
+      if (cursor != null) cursor.close();;
     }
-    return -1;
   }
 
-  /**
-   * Retrieves the position of the message with the provided timestamp in the query results you'd
-   * get from calling {@link #getConversation(long)}.
-   *
-   * Note: This could give back incorrect results in the situation where multiple messages have the
-   * same received timestamp. However, because this was designed to determine where to scroll to,
-   * you'll still wind up in about the right spot.
-   */
-  public int getMessagePositionInConversation(long threadId, long receivedTimestamp) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " > " + receivedTimestamp;
+  public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId, long timestamp) {
+    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, true, false);
+    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, true, false);
+  }
 
-    try (Cursor cursor = queryTables(new String[]{ "COUNT(*)" }, selection, order, null)) {
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0);
-      }
-    }
-    return -1;
+  public void incrementReadReceiptCount(SyncMessageId syncMessageId, long timestamp) {
+    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, false, true);
+    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, false, true);
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
@@ -405,6 +523,62 @@ public class MmsSmsDatabase extends Database {
     return new Reader(cursor);
   }
 
+  /**
+   * How many unread messages a thread has, and when the oldest and newest of them were received.
+   * Reading a message or receiving a new one changes at least one of them.
+   */
+  public static class UnreadSummary {
+
+    private final int  count;
+    private final long oldestReceived;
+    private final long newestReceived;
+
+    public UnreadSummary(int count, long oldestReceived, long newestReceived) {
+      this.count          = count;
+      this.oldestReceived = oldestReceived;
+      this.newestReceived = newestReceived;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public long getOldestReceived() {
+      return oldestReceived;
+    }
+
+    public long getNewestReceived() {
+      return newestReceived;
+    }
+
+    private @NonNull UnreadSummary merge(@NonNull UnreadSummary other) {
+      return new UnreadSummary(count + other.count,
+                               Math.min(oldestReceived, other.oldestReceived),
+                               Math.max(newestReceived, other.newestReceived));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof UnreadSummary)) return false;
+
+      UnreadSummary that = (UnreadSummary) other;
+
+      return count          == that.count          &&
+             oldestReceived == that.oldestReceived &&
+             newestReceived == that.newestReceived;
+    }
+
+    @Override
+    public int hashCode() {
+      return count ^ (int) (oldestReceived ^ newestReceived);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "[count: " + count + ", oldest: " + oldestReceived + ", newest: " + newestReceived + "]";
+    }
+  }
+
   public class Reader {
 
     private final Cursor                 cursor;
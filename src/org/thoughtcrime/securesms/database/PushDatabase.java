@@ -30,10 +30,11 @@ public class PushDatabase extends Database {
   public  static final String TIMESTAMP        = "timestamp";
   public  static final String SERVER_TIMESTAMP = "server_timestamp";
   public  static final String SERVER_GUID      = "server_guid";
+  private static final String QUEUED           = "queued";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
       TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " TEXT, " + CONTENT + " TEXT, " + TIMESTAMP + " INTEGER, " +
-      SERVER_TIMESTAMP + " INTEGER DEFAULT 0, " + SERVER_GUID + " TEXT DEFAULT NULL);";
+      SERVER_TIMESTAMP + " INTEGER DEFAULT 0, " + SERVER_GUID + " TEXT DEFAULT NULL, " + QUEUED + " INTEGER DEFAULT 0);";
 
   public PushDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -45,20 +46,30 @@ public class PushDatabase extends Database {
     if (messageId.isPresent()) {
       return messageId.get();
     } else {
-      ContentValues values = new ContentValues();
-      values.put(TYPE, envelope.getType());
-      values.put(SOURCE, envelope.getSource());
-      values.put(DEVICE_ID, envelope.getSourceDevice());
-      values.put(LEGACY_MSG, envelope.hasLegacyMessage() ? Base64.encodeBytes(envelope.getLegacyMessage()) : "");
-      values.put(CONTENT, envelope.hasContent() ? Base64.encodeBytes(envelope.getContent()) : "");
-      values.put(TIMESTAMP, envelope.getTimestamp());
-      values.put(SERVER_TIMESTAMP, envelope.getServerTimestamp());
-      values.put(SERVER_GUID, envelope.getUuid());
-
-      return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+      return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, toContentValues(envelope));
     }
   }
 
+  /**
+   * Stores an envelope that is about to be processed, so that it isn't lost if the process dies
+   * first. Unlike {@link #insert(SignalServiceEnvelope)} this doesn't look for an existing copy,
+   * which would mean scanning the table for every envelope while draining a backlog.
+   */
+  public long insertQueued(@NonNull SignalServiceEnvelope envelope) {
+    ContentValues values = toContentValues(envelope);
+    values.put(QUEUED, 1);
+
+    return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  /**
+   * @return The envelopes stored with {@link #insertQueued(SignalServiceEnvelope)} that haven't
+   *         been deleted yet, oldest first.
+   */
+  public Reader readQueued() {
+    return new Reader(databaseHelper.getReadableDatabase().query(TABLE_NAME, null, QUEUED + " = 1", null, null, null, ID + " ASC"));
+  }
+
   public SignalServiceEnvelope get(long id) throws NoSuchMessageException {
     Cursor cursor = null;
 
@@ -103,6 +114,20 @@ public class PushDatabase extends Database {
     return new Reader(cursor);
   }
 
+  private ContentValues toContentValues(@NonNull SignalServiceEnvelope envelope) {
+    ContentValues values = new ContentValues();
+    values.put(TYPE, envelope.getType());
+    values.put(SOURCE, envelope.getSource());
+    values.put(DEVICE_ID, envelope.getSourceDevice());
+    values.put(LEGACY_MSG, envelope.hasLegacyMessage() ? Base64.encodeBytes(envelope.getLegacyMessage()) : "");
+    values.put(CONTENT, envelope.hasContent() ? Base64.encodeBytes(envelope.getContent()) : "");
+    values.put(TIMESTAMP, envelope.getTimestamp());
+    values.put(SERVER_TIMESTAMP, envelope.getServerTimestamp());
+    values.put(SERVER_GUID, envelope.getUuid());
+
+    return values;
+  }
+
   private Optional<Long> find(SignalServiceEnvelope envelope) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = null;
@@ -159,6 +184,13 @@ public class PushDatabase extends Database {
       }
     }
 
+    /**
+     * @return The id of the envelope last returned by {@link #getNext()}.
+     */
+    public long getCurrentId() {
+      return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+    }
+
     public void close() {
       this.cursor.close();
     }
@@ -14,6 +14,7 @@ import net.sqlcipher.database.SQLiteDatabase;
 import org.thoughtcrime.securesms.color.MaterialColor;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.Util;
@@ -21,6 +22,9 @@ import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -149,6 +153,8 @@ public class RecipientDatabase extends Database {
           NOTIFICATION_CHANNEL + " TEXT DEFAULT NULL, " +
           UNIDENTIFIED_ACCESS_MODE + " INTEGER DEFAULT 0);";
 
+  private static final int MAX_QUERY_ARGS = 500;
+
   public RecipientDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -189,6 +195,29 @@ public class RecipientDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the settings for many addresses with one query per {@link #MAX_QUERY_ARGS} addresses.
+   * Addresses without a row are absent from the result.
+   */
+  public @NonNull Map<Address, RecipientSettings> getRecipientSettings(@NonNull Collection<Address> addresses) {
+    SQLiteDatabase                  database = databaseHelper.getReadableDatabase();
+    Map<Address, RecipientSettings> results  = new HashMap<>(addresses.size());
+
+    for (List<Address> partition : Util.partition(new ArrayList<>(addresses), MAX_QUERY_ARGS)) {
+      String   query = ADDRESS + " IN (" + Util.join(Collections.nCopies(partition.size(), "?"), ", ") + ")";
+      String[] args  = Stream.of(partition).map(Address::serialize).toArray(String[]::new);
+
+      try (Cursor cursor = database.query(TABLE_NAME, null, query, args, null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          Address address = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+          results.put(address, getRecipientSettings(cursor).get());
+        }
+      }
+    }
+
+    return results;
+  }
+
   Optional<RecipientSettings> getRecipientSettings(@NonNull Cursor cursor) {
     boolean blocked                = cursor.getInt(cursor.getColumnIndexOrThrow(BLOCK))                == 1;
     String  messageRingtone        = cursor.getString(cursor.getColumnIndexOrThrow(NOTIFICATION));
@@ -248,6 +277,8 @@ public class RecipientDatabase extends Database {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.beginTransaction();
 
+    List<Address> previousSystemContacts = getSystemContacts();
+
     ContentValues contentValues = new ContentValues(1);
     contentValues.put(SYSTEM_DISPLAY_NAME, (String)null);
     contentValues.put(SYSTEM_PHOTO_URI, (String)null);
@@ -256,7 +287,7 @@ public class RecipientDatabase extends Database {
 
     database.update(TABLE_NAME, contentValues, null, null);
 
-    return new BulkOperationsHandle(database);
+    return new BulkOperationsHandle(database, previousSystemContacts);
   }
 
   public void setColor(@NonNull Recipient recipient, @NonNull MaterialColor color) {
@@ -313,6 +344,12 @@ public class RecipientDatabase extends Database {
     values.put(MUTE_UNTIL, until);
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setMuted(until);
+
+    long threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdIfExistsFor(recipient);
+
+    if (threadId != -1) {
+      MessageNotifier.invalidateThread(threadId);
+    }
   }
 
   public void setSeenInviteReminder(@NonNull Recipient recipient, @SuppressWarnings("SameParameterValue") boolean seen) {
@@ -499,10 +536,12 @@ public class RecipientDatabase extends Database {
 
     private final SQLiteDatabase database;
 
+    private final List<Address>                    previousSystemContacts;
     private final Map<Address, PendingContactInfo> pendingContactInfoMap = new HashMap<>();
 
-    BulkOperationsHandle(SQLiteDatabase database) {
-      this.database = database;
+    BulkOperationsHandle(SQLiteDatabase database, List<Address> previousSystemContacts) {
+      this.database               = database;
+      this.previousSystemContacts = previousSystemContacts;
     }
 
     public void setSystemContactInfo(@NonNull Address address, @Nullable String displayName, @Nullable String photoUri, @Nullable String systemPhoneLabel, @Nullable String systemContactUri) {
@@ -527,6 +566,15 @@ public class RecipientDatabase extends Database {
               recipient.setCustomLabel(entry.getValue().phoneLabel);
               recipient.setContactUri(Util.uri(entry.getValue().contactUri));
             }));
+
+      Stream.of(previousSystemContacts)
+            .filter(address -> !pendingContactInfoMap.containsKey(address))
+            .forEach(address -> Recipient.applyCached(address, recipient -> {
+              recipient.setName(null);
+              recipient.setSystemContactPhoto(null);
+              recipient.setCustomLabel(null);
+              recipient.setContactUri(null);
+            }));
     }
   }
 
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
@@ -11,6 +12,9 @@ import net.sqlcipher.database.SQLiteDatabase;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.util.Util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -21,12 +25,20 @@ public class SearchDatabase extends Database {
   public static final String SMS_FTS_TABLE_NAME = "sms_fts";
   public static final String MMS_FTS_TABLE_NAME = "mms_fts";
 
+  public static final String[] FTS_TABLE_NAMES = { SMS_FTS_TABLE_NAME, MMS_FTS_TABLE_NAME };
+
+  private static final long STRUCTURE_ROWID = 10;
+  private static final int  LATENCY_SAMPLES = 32;
+
   public static final String ID                   = "rowid";
   public static final String BODY                 = MmsSmsColumns.BODY;
   public static final String THREAD_ID            = MmsSmsColumns.THREAD_ID;
   public static final String SNIPPET              = "snippet";
   public static final String CONVERSATION_ADDRESS = "conversation_address";
   public static final String MESSAGE_ADDRESS      = "message_address";
+  public static final String MESSAGE_ID           = "message_id";
+  public static final String IS_MMS               = "is_mms";
+  public static final String RANK                 = "search_rank";
 
   public static final String[] CREATE_TABLE = {
       "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
@@ -57,31 +69,6 @@ public class SearchDatabase extends Database {
           "END;"
   };
 
-  private static final String MESSAGES_QUERY =
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-        "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        SMS_FTS_TABLE_NAME + "."  + THREAD_ID + " " +
-      "FROM " + SmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? " +
-      "UNION ALL " +
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-        "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-      "FROM " + MmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? " +
-      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-      "LIMIT 500";
-
   private static final String MESSAGES_FOR_THREAD_QUERY =
       "SELECT " +
           ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
@@ -107,27 +94,182 @@ public class SearchDatabase extends Database {
         "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
         "LIMIT 500";
 
+  private static final String RANKED_HITS_QUERY =
+      "SELECT " + ID + " AS " + MESSAGE_ID + ", 0 AS " + IS_MMS + ", bm25(" + SMS_FTS_TABLE_NAME + ") AS " + RANK + " " +
+      "FROM " + SMS_FTS_TABLE_NAME + " " +
+      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? %s " +
+      "UNION ALL " +
+      "SELECT " + ID + " AS " + MESSAGE_ID + ", 1 AS " + IS_MMS + ", bm25(" + MMS_FTS_TABLE_NAME + ") AS " + RANK + " " +
+      "FROM " + MMS_FTS_TABLE_NAME + " " +
+      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? %s " +
+      "ORDER BY " + RANK + ", " + IS_MMS + ", " + MESSAGE_ID + " " +
+      "LIMIT ?";
+
+  private static final String MESSAGES_FOR_HITS_QUERY =
+      "SELECT " +
+        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
+        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
+        "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
+        SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+        SMS_FTS_TABLE_NAME + "."  + THREAD_ID + ", " +
+        SMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
+        "0 AS " + IS_MMS + ", " +
+        "bm25(" + SMS_FTS_TABLE_NAME + ") AS " + RANK + " " +
+      "FROM " + SmsDatabase.TABLE_NAME + " " +
+      "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
+      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
+      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? AND " + SMS_FTS_TABLE_NAME + "." + ID + " IN (%s) " +
+      "UNION ALL " +
+      "SELECT " +
+        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
+        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
+        "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
+        MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+        MMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
+        MMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
+        "1 AS " + IS_MMS + ", " +
+        "bm25(" + MMS_FTS_TABLE_NAME + ") AS " + RANK + " " +
+      "FROM " + MmsDatabase.TABLE_NAME + " " +
+      "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
+      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
+      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? AND " + MMS_FTS_TABLE_NAME + "." + ID + " IN (%s) " +
+      "ORDER BY " + RANK + ", " + IS_MMS + ", " + MESSAGE_ID;
+
+  private final long[] latencySamples = new long[LATENCY_SAMPLES];
+  private       int    latencySampleCount;
+
   public SearchDatabase(@NonNull Context context, @NonNull SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
-  public Cursor queryMessages(@NonNull String query) {
+  public Cursor queryMessages(@NonNull String query, long threadId) {
     SQLiteDatabase db          = databaseHelper.getReadableDatabase();
     String         prefixQuery = adjustQuery(query);
 
-    Cursor cursor = db.rawQuery(MESSAGES_QUERY, new String[] { prefixQuery, prefixQuery });
+    Cursor cursor = db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { prefixQuery, String.valueOf(threadId), prefixQuery, String.valueOf(threadId) });
     setNotifyConverationListListeners(cursor);
     return cursor;
+
   }
 
-  public Cursor queryMessages(@NonNull String query, long threadId) {
+  /**
+   * Ranks every message matching the query by relevance, best first. Only the keys are read, so
+   * this stays cheap even for queries that match a large part of the database.
+   *
+   * @param within If non-null, only these messages are considered, which is much faster when the
+   *               caller already knows the matches are a subset of an earlier result.
+   */
+  public @NonNull List<Hit> getRankedHits(@NonNull String query, @Nullable Collection<Hit> within, int limit) {
     SQLiteDatabase db          = databaseHelper.getReadableDatabase();
     String         prefixQuery = adjustQuery(query);
+    String         smsFilter   = within != null ? "AND " + ID + " IN (" + joinIds(within, false) + ")" : "";
+    String         mmsFilter   = within != null ? "AND " + ID + " IN (" + joinIds(within, true) + ")"  : "";
+    String         sql         = String.format(RANKED_HITS_QUERY, smsFilter, mmsFilter);
+    List<Hit>      hits        = new ArrayList<>();
+    long           startTime   = System.currentTimeMillis();
 
-    Cursor cursor = db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { prefixQuery, String.valueOf(threadId), prefixQuery, String.valueOf(threadId) });
+    try (Cursor cursor = db.rawQuery(sql, new String[] { prefixQuery, prefixQuery, String.valueOf(limit) })) {
+      while (cursor != null && cursor.moveToNext()) {
+        hits.add(new Hit(cursor.getLong(0), cursor.getInt(1) == 1, cursor.getDouble(2)));
+      }
+    }
+
+    recordLatency(System.currentTimeMillis() - startTime);
+
+    return hits;
+  }
+
+  /**
+   * Loads the displayable rows for a page of hits from {@link #getRankedHits(String, Collection, int)},
+   * in rank order. Hits whose messages have since been deleted are left out.
+   */
+  public Cursor queryMessages(@NonNull String query, @NonNull Collection<Hit> hits) {
+    SQLiteDatabase db          = databaseHelper.getReadableDatabase();
+    String         prefixQuery = adjustQuery(query);
+    String         sql         = String.format(MESSAGES_FOR_HITS_QUERY, joinIds(hits, false), joinIds(hits, true));
+
+    Cursor cursor = db.rawQuery(sql, new String[] { prefixQuery, prefixQuery });
     setNotifyConverationListListeners(cursor);
     return cursor;
+  }
+
+  /**
+   * Does a bounded amount of incremental merge work on one of the {@link #FTS_TABLE_NAMES}. Each
+   * call is its own short transaction, so writers are only held up for as long as one step takes.
+   *
+   * @param pages    Roughly how many index pages to write in this step.
+   * @param optimize If true, start merging every segment into one, as FTS5's 'optimize' would.
+   *                 Subsequent steps with this false carry on with that.
+   * @return True if the step did any work, false if there was nothing left to merge.
+   */
+  public boolean mergeIndex(@NonNull String table, int pages, boolean optimize) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      long before = getTotalChanges(db);
+      db.execSQL("INSERT INTO " + table + "(" + table + ", rank) VALUES('merge', ?)", new Object[] { optimize ? -pages : pages });
+      long after  = getTotalChanges(db);
+
+      db.setTransactionSuccessful();
+
+      // FTS5 reports a merge that found nothing to do as fewer than two changes
+      return after - before >= 2;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  public @NonNull IndexHealth getIndexHealth(@NonNull String table) {
+    SQLiteDatabase db       = databaseHelper.getReadableDatabase();
+    long           pages    = 0;
+    long           bytes    = 0;
+    int[]          segments = new int[] { 0, 0 };
+
+    try (Cursor cursor = db.rawQuery("SELECT COUNT(*), SUM(LENGTH(block)) FROM " + table + "_data", null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        pages = cursor.getLong(0);
+        bytes = cursor.getLong(1);
+      }
+    }
+
+    try (Cursor cursor = db.rawQuery("SELECT block FROM " + table + "_data WHERE id = ?", new String[] { String.valueOf(STRUCTURE_ROWID) })) {
+      if (cursor != null && cursor.moveToFirst()) {
+        segments = IndexHealth.readStructure(cursor.getBlob(0));
+      }
+    }
+
+    return new IndexHealth(table, pages, bytes, segments[0], segments[1]);
+  }
+
+  /**
+   * @return The median and worst time taken to rank recent searches.
+   */
+  public synchronized @NonNull String getQueryLatency() {
+    int count = Math.min(latencySampleCount, LATENCY_SAMPLES);
 
+    if (count == 0) {
+      return "no samples";
+    }
+
+    long[] sorted = Arrays.copyOf(latencySamples, count);
+    Arrays.sort(sorted);
+
+    return "median " + sorted[count / 2] + " ms, max " + sorted[count - 1] + " ms (" + count + " samples)";
+  }
+
+  private synchronized void recordLatency(long millis) {
+    latencySamples[latencySampleCount++ % LATENCY_SAMPLES] = millis;
+  }
+
+  private static long getTotalChanges(@NonNull SQLiteDatabase db) {
+    try (Cursor cursor = db.rawQuery("SELECT total_changes()", null)) {
+      return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : 0;
+    }
+  }
+
+  private static @NonNull String joinIds(@NonNull Collection<Hit> hits, boolean mms) {
+    return Util.join(Stream.of(hits).filter(hit -> hit.isMms() == mms).map(hit -> String.valueOf(hit.getMessageId())).toList(), ",");
   }
 
   private String adjustQuery(@NonNull String query) {
@@ -138,5 +280,132 @@ public class SearchDatabase extends Database {
 
     return prefixQuery;
   }
-}
 
+  /**
+   * A message matching a search, and how well it matched. Hits are ordered best first, with ties
+   * broken by message type and id so that the order is total.
+   */
+  public static class Hit implements Comparable<Hit> {
+
+    private final long    messageId;
+    private final boolean mms;
+    private final double  rank;
+
+    public Hit(long messageId, boolean mms, double rank) {
+      this.messageId = messageId;
+      this.mms       = mms;
+      this.rank      = rank;
+    }
+
+    public long getMessageId() {
+      return messageId;
+    }
+
+    public boolean isMms() {
+      return mms;
+    }
+
+    /**
+     * @return The bm25 score. Lower is better.
+     */
+    public double getRank() {
+      return rank;
+    }
+
+    @Override
+    public int compareTo(@NonNull Hit other) {
+      int result = Double.compare(rank, other.rank);
+
+      if (result == 0) result = Boolean.compare(mms, other.mms);
+      if (result == 0) result = Long.compare(messageId, other.messageId);
+
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Hit)) return false;
+
+      Hit that = (Hit) other;
+      return messageId == that.messageId && mms == that.mms;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (messageId ^ (messageId >>> 32)) * 31 + (mms ? 1 : 0);
+    }
+  }
+
+  /**
+   * The size and shape of an FTS5 index. Each write adds a segment, and a search has to consult
+   * every segment, so the segment count is what merging keeps down.
+   */
+  public static class IndexHealth {
+
+    private final String table;
+    private final long   pages;
+    private final long   bytes;
+    private final int    levels;
+    private final int    segments;
+
+    IndexHealth(@NonNull String table, long pages, long bytes, int levels, int segments) {
+      this.table    = table;
+      this.pages    = pages;
+      this.bytes    = bytes;
+      this.levels   = levels;
+      this.segments = segments;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public int getSegments() {
+      return segments;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return table + ": " + segments + " segments on " + levels + " levels, " + pages + " pages, " + (bytes / 1024) + " KB";
+    }
+
+    /**
+     * The structure record starts with a 4-byte cookie, optionally followed by a 4-byte version
+     * marker in newer FTS5 versions, then the level and segment counts as varints.
+     *
+     * @return The number of levels and segments.
+     */
+    static @NonNull int[] readStructure(@NonNull byte[] block) {
+      int[] position = new int[] { 4 };
+
+      if (block.length >= 8 && (block[4] & 0xff) == 0xff && block[5] == 0 && block[6] == 0 && block[7] == 1) {
+        position[0] = 8;
+      }
+
+      int levels   = (int) readVarint(block, position);
+      int segments = (int) readVarint(block, position);
+
+      return new int[] { levels, segments };
+    }
+
+    private static long readVarint(@NonNull byte[] block, @NonNull int[] position) {
+      long value = 0;
+
+      for (int i = 0; i < 9 && position[0] < block.length; i++) {
+        int b = block[position[0]++] & 0xff;
+
+        if (i == 8) {
+          return (value << 8) | b;
+        }
+
+        value = (value << 7) | (b & 0x7f);
+
+        if ((b & 0x80) == 0) {
+          break;
+        }
+      }
+
+      return value;
+    }
+  }
+}
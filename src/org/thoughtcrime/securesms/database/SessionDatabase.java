@@ -144,6 +144,24 @@ public class SessionDatabase extends Database {
     database.delete(TABLE_NAME, ADDRESS + " = ?", new String[] {address.serialize()});
   }
 
+  /**
+   * Runs the writes in one transaction, nested in the caller's if there is one. Lets the session
+   * store take its own lock after the database's, in the same order as writes made while handling
+   * incoming messages.
+   */
+  public void runInTransaction(@NonNull Runnable writes) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    database.beginTransaction();
+
+    try {
+      writes.run();
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
   public static final class SessionRow {
     private final Address       address;
     private final int           deviceId;
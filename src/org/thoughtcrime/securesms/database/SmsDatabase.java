@@ -38,17 +38,21 @@ import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
 import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.sms.IncomingGroupMessage;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -89,7 +93,8 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + ","  + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
     "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS sms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRES_AT_EXPRESSION + ", " + ID + ") WHERE " + EXPIRE_STARTED + " > 0;"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -127,7 +132,8 @@ public class SmsDatabase extends MessagingDatabase {
     long threadId = getThreadIdForMessage(id);
 
     DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    MessageNotifier.invalidateThread(threadId);
+    notifyConversationListeners(threadId, id);
   }
 
   public long getThreadIdForMessage(long id) {
@@ -272,7 +278,7 @@ public class SmsDatabase extends MessagingDatabase {
     long threadId = getThreadIdForMessage(id);
 
     DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, id);
   }
 
   public void markStatus(long id, int status) {
@@ -285,7 +291,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
     DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, id);
   }
 
   public void markAsSentFailed(long id) {
@@ -318,15 +324,16 @@ public class SmsDatabase extends MessagingDatabase {
           String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
 
           if (ourAddress.equals(theirAddress)) {
+            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
             long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
 
             database.execSQL("UPDATE " + TABLE_NAME +
                              " SET " + columnName + " = " + columnName + " + 1 WHERE " +
                              ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+                             new String[] {String.valueOf(id)});
 
             DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
+            notifyConversationListeners(threadId, id);
             foundMessage = true;
           }
         }
@@ -377,7 +384,7 @@ public class SmsDatabase extends MessagingDatabase {
 
           DatabaseFactory.getThreadDatabase(context).updateReadState(threadId);
           DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
-          notifyConversationListeners(threadId);
+          notifyConversationListeners(threadId, id);
         }
       }
     } finally {
@@ -446,7 +453,7 @@ public class SmsDatabase extends MessagingDatabase {
     long threadId = getThreadIdForMessage(messageId);
 
     DatabaseFactory.getThreadDatabase(context).update(threadId, true);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
     notifyConversationListListeners();
 
     return new Pair<>(messageId, threadId);
@@ -472,7 +479,7 @@ public class SmsDatabase extends MessagingDatabase {
       long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
       DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
-      notifyConversationListeners(record.getThreadId());
+      notifyConversationListeners(record.getThreadId(), newMessageId);
 
       jobManager.add(new TrimThreadJob(context, record.getThreadId()));
 
@@ -602,7 +609,7 @@ public class SmsDatabase extends MessagingDatabase {
         DatabaseFactory.getRecipientDatabase(context).setDefaultSubscriptionId(recipient, message.getSubscriptionId());
       }
 
-      notifyConversationListeners(threadId);
+      notifyConversationListeners(threadId, messageId);
 
       if (!message.isIdentityUpdate() && !message.isIdentityVerified() && !message.isIdentityDefault()) {
         jobManager.add(new TrimThreadJob(context, threadId));
@@ -660,7 +667,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     DatabaseFactory.getThreadDatabase(context).setHasSent(threadId, true);
 
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
 
     if (!message.isIdentityVerified() && !message.isIdentityDefault()) {
       jobManager.add(new TrimThreadJob(context, threadId));
@@ -680,12 +687,6 @@ public class SmsDatabase extends MessagingDatabase {
     return db.query(TABLE_NAME, MESSAGE_PROJECTION, outgoingSelection, null, null, null, null);
   }
 
-  public Cursor getExpirationStartedMessages() {
-    String         where = EXPIRE_STARTED + " > 0";
-    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, where, null, null, null, null);
-  }
-
   public SmsMessageRecord getMessage(long messageId) throws NoSuchMessageException {
     SQLiteDatabase db     = databaseHelper.getReadableDatabase();
     Cursor         cursor = db.query(TABLE_NAME, MESSAGE_PROJECTION, ID_WHERE, new String[]{messageId + ""}, null, null, null);
@@ -711,10 +712,34 @@ public class SmsDatabase extends MessagingDatabase {
     long threadId     = getThreadIdForMessage(messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
     boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, messageId);
     return threadDeleted;
   }
 
+  /**
+   * Deletes a number of messages with one statement, and updates each thread they were in once.
+   */
+  public void deleteMessages(@NonNull Collection<Long> messageIds) {
+    Log.i("MessageDatabase", "Deleting " + messageIds.size() + " messages");
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    String         where     = ID + " IN (" + Util.join(Stream.of(messageIds).map(String::valueOf).toList(), ",") + ")";
+    Set<Long>      threadIds = new HashSet<>();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {THREAD_ID}, where, null, THREAD_ID, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        threadIds.add(cursor.getLong(0));
+      }
+    }
+
+    db.delete(TABLE_NAME, where, null);
+
+    for (long threadId : threadIds) {
+      DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    }
+
+    notifyConversationListeners(threadIds);
+  }
+
   public void ensureMigration() {
     databaseHelper.getWritableDatabase();
   }
@@ -95,6 +95,18 @@ public class ThreadDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS archived_count_index ON " + TABLE_NAME + " (" + ARCHIVED + ", " + MESSAGE_COUNT + ");",
   };
 
+  /**
+   * Keep each thread's {@link #MESSAGE_COUNT} in step with the messages added to, removed from or
+   * moved between threads, so that updating a thread never has to count its messages.
+   */
+  public static final String[] CREATE_TRIGGERS = Stream.concat(Stream.of(createCountTriggers(SmsDatabase.TABLE_NAME)),
+                                                               Stream.of(createCountTriggers(MmsDatabase.TABLE_NAME)))
+                                                       .toArray(String[]::new);
+
+  private static final String RECOUNT_MESSAGES = "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " +
+                                                 "(SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = " + TABLE_NAME + "." + ID + ") + " +
+                                                 "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = " + TABLE_NAME + "." + ID + ")";
+
   private static final String[] THREAD_PROJECTION = {
       ID, DATE, MESSAGE_COUNT, ADDRESS, SNIPPET, SNIPPET_CHARSET, READ, UNREAD_COUNT, TYPE, ERROR, SNIPPET_TYPE,
       SNIPPET_URI, ARCHIVED, STATUS, DELIVERY_RECEIPT_COUNT, EXPIRES_IN, LAST_SEEN, READ_RECEIPT_COUNT
@@ -113,6 +125,34 @@ public class ThreadDatabase extends Database {
     super(context, databaseHelper);
   }
 
+  /**
+   * Recounts the messages in every thread, for when rows have been written without the triggers
+   * in place, or imported alongside thread rows that already carry their counts.
+   */
+  public static void recountMessages(@NonNull SQLiteDatabase db) {
+    db.execSQL(RECOUNT_MESSAGES);
+  }
+
+  private static String[] createCountTriggers(@NonNull String table) {
+    String threadId = MmsSmsColumns.THREAD_ID;
+
+    return new String[] {
+      "CREATE TRIGGER IF NOT EXISTS " + table + "_thread_count_insert AFTER INSERT ON " + table + " BEGIN " +
+        "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID + " = new." + threadId + "; " +
+      "END;",
+
+      "CREATE TRIGGER IF NOT EXISTS " + table + "_thread_count_delete AFTER DELETE ON " + table + " BEGIN " +
+        "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = old." + threadId + "; " +
+      "END;",
+
+      "CREATE TRIGGER IF NOT EXISTS " + table + "_thread_count_move AFTER UPDATE OF " + threadId + " ON " + table + " " +
+      "WHEN old." + threadId + " != new." + threadId + " BEGIN " +
+        "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = old." + threadId + "; " +
+        "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID + " = new." + threadId + "; " +
+      "END;"
+    };
+  }
+
   private long createThreadForRecipient(Address address, boolean group, int distributionType) {
     ContentValues contentValues = new ContentValues(4);
     long date                   = System.currentTimeMillis();
@@ -129,13 +169,16 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
+  /**
+   * Doesn't touch {@link #MESSAGE_COUNT}, which only the message triggers write, so that a count
+   * read before another message was inserted can't overwrite the trigger's increment.
+   */
+  private void updateThread(long threadId, String body, @Nullable Uri attachment,
                             long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
                             long expiresIn, int readReceiptCount)
   {
     ContentValues contentValues = new ContentValues(7);
     contentValues.put(DATE, date - date % 1000);
-    contentValues.put(MESSAGE_COUNT, count);
     contentValues.put(SNIPPET, body);
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
     contentValues.put(SNIPPET_TYPE, type);
@@ -491,24 +534,33 @@ public class ThreadDatabase extends Database {
     return getThreadIdFor(recipient, DistributionTypes.DEFAULT);
   }
 
+  /**
+   * Looks up the recipient's thread and creates it if there isn't one, in one transaction so that
+   * two callers can't both create it.
+   */
   public long getThreadIdFor(Recipient recipient, int distributionType) {
-    SQLiteDatabase db            = databaseHelper.getReadableDatabase();
+    SQLiteDatabase db            = databaseHelper.getWritableDatabase();
     String         where         = ADDRESS + " = ?";
     String[]       recipientsArg = new String[]{recipient.getAddress().serialize()};
-    Cursor         cursor        = null;
+    long           threadId;
 
-    try {
-      cursor = db.query(TABLE_NAME, new String[]{ID}, where, recipientsArg, null, null, null);
+    db.beginTransaction();
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-      } else {
-        return createThreadForRecipient(recipient.getAddress(), recipient.isGroupRecipient(), distributionType);
+    try {
+      try (Cursor cursor = db.query(TABLE_NAME, new String[]{ID}, where, recipientsArg, null, null, null)) {
+        if (cursor != null && cursor.moveToFirst()) {
+          threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+        } else {
+          threadId = createThreadForRecipient(recipient.getAddress(), recipient.isGroupRecipient(), distributionType);
+        }
       }
+
+      db.setTransactionSuccessful();
     } finally {
-      if (cursor != null)
-        cursor.close();
+      db.endTransaction();
     }
+
+    return threadId;
   }
 
   public @Nullable Recipient getRecipientForThreadId(long threadId) {
@@ -553,37 +605,61 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Refreshes a thread's snippet from its latest message, deleting the thread if it has no
+   * messages left. Inside a {@link DatabaseBatch} this happens once per thread when the batch
+   * is committed, and returns false.
+   *
+   * @return True if the thread was deleted.
+   */
   public boolean update(long threadId, boolean unarchive) {
-    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCount(threadId);
+    DatabaseBatch batch = DatabaseBatch.current();
+
+    if (batch != null && batch.deferThreadUpdate(threadId, unarchive)) {
+      return false;
+    }
 
-    if (count == 0) {
+    long count = getMessageCount(threadId);
+
+    if (count <= 0) {
+      Log.i(TAG, "Thread " + threadId + " looks empty, recounting.");
+      count = recountMessages(threadId);
+    }
+
+    MessageRecord record = count > 0 ? DatabaseFactory.getMmsSmsDatabase(context).getLatestMessage(threadId) : null;
+
+    if (record != null) {
+      updateThread(threadId, getFormattedBodyFor(record), getAttachmentUriFor(record),
+                   record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
+                   record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
+      notifyConversationListListeners();
+      return false;
+    } else {
       deleteThread(threadId);
       notifyConversationListListeners();
       return true;
     }
+  }
 
-    MmsSmsDatabase.Reader reader = null;
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
 
-    try {
-      reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
-      MessageRecord record;
-
-      if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, getFormattedBodyFor(record), getAttachmentUriFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
-        notifyConversationListListeners();
-        return false;
-      } else {
-        deleteThread(threadId);
-        notifyConversationListListeners();
-        return true;
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE, new String[] {String.valueOf(threadId)}, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
       }
-    } finally {
-      if (reader != null)
-        reader.close();
     }
+
+    return 0;
+  }
+
+  /**
+   * Counting is only a safeguard here, so that a count that has drifted can never delete a thread
+   * that still has messages in it.
+   */
+  private long recountMessages(long threadId) {
+    databaseHelper.getWritableDatabase().execSQL(RECOUNT_MESSAGES + " WHERE " + ID_WHERE, new String[] {String.valueOf(threadId)});
+    return getMessageCount(threadId);
   }
 
   private @NonNull String getFormattedBodyFor(@NonNull MessageRecord messageRecord) {
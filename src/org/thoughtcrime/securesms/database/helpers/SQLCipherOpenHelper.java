@@ -62,8 +62,12 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int PREVIEWS                         = 16;
   private static final int CONVERSATION_SEARCH              = 17;
   private static final int SELF_ATTACHMENT_CLEANUP          = 18;
+  private static final int ATTACHMENT_HASHES                = 19;
+  private static final int QUEUED_ENVELOPES                 = 20;
+  private static final int THREAD_MESSAGE_COUNT_TRIGGERS    = 21;
+  private static final int EXPIRES_AT_INDEXES               = 22;
 
-  private static final int    DATABASE_VERSION = 18;
+  private static final int    DATABASE_VERSION = 22;
   private static final String DATABASE_NAME    = "sigh.db";
 
   private final Context        context;
@@ -112,6 +116,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     executeStatements(db, DraftDatabase.CREATE_INDEXS);
     executeStatements(db, GroupDatabase.CREATE_INDEXS);
     executeStatements(db, GroupReceiptDatabase.CREATE_INDEXES);
+
+    executeStatements(db, ThreadDatabase.CREATE_TRIGGERS);
   }
 
   @Override
@@ -121,6 +127,26 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.beginTransaction();
 
     try {
+      if (oldVersion < ATTACHMENT_HASHES) {
+        db.execSQL("ALTER TABLE part ADD COLUMN data_hash TEXT DEFAULT NULL");
+        db.execSQL("ALTER TABLE part ADD COLUMN thumbnail_hash TEXT DEFAULT NULL");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_data_hash_index ON part (data_hash)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_thumbnail_hash_index ON part (thumbnail_hash)");
+      }
+
+      if (oldVersion < QUEUED_ENVELOPES) {
+        db.execSQL("ALTER TABLE push ADD COLUMN queued INTEGER DEFAULT 0");
+      }
+
+      if (oldVersion < THREAD_MESSAGE_COUNT_TRIGGERS) {
+        executeStatements(db, ThreadDatabase.CREATE_TRIGGERS);
+        ThreadDatabase.recountMessages(db);
+      }
+
+      if (oldVersion < EXPIRES_AT_INDEXES) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_expires_at_index ON sms (expire_started + expires_in, _id) WHERE expire_started > 0");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_expires_at_index ON mms (expire_started + expires_in, _id) WHERE expire_started > 0");
+      }
 
       db.setTransactionSuccessful();
     } finally {
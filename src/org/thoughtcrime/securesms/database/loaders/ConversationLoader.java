@@ -1,38 +1,66 @@
 package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import org.thoughtcrime.securesms.database.DatabaseChangeNotifier;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.Pair;
 
-public class ConversationLoader extends AbstractCursorLoader {
-  private final long    threadId;
-  private       int     offset;
-  private       int     limit;
-  private       long    lastSeen;
-  private       boolean hasSent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
-  public ConversationLoader(Context context, long threadId, int offset, int limit, long lastSeen) {
-    super(context);
-    this.threadId = threadId;
-    this.offset   = offset;
-    this.limit    = limit;
-    this.lastSeen = lastSeen;
-    this.hasSent  = true;
-  }
+/**
+ * Loads a window of a conversation as a handful of pages, each covering a range of received dates,
+ * rather than the whole thread. The window grows towards older or newer messages as the user
+ * scrolls, and drops pages from the far end so that no more than {@link #MAX_PAGES} are held.
+ *
+ * Pages are keyed on received dates rather than positions, so messages arriving or being deleted
+ * don't shift them, and a change to the thread only re-queries the pages it actually touches.
+ */
+public class ConversationLoader extends AbstractCursorLoader implements DatabaseChangeNotifier.Listener {
 
-  public boolean hasLimit() {
-    return limit > 0;
-  }
+  private static final int PAGE_SIZE = 100;
+  private static final int MAX_PAGES = 5;
 
-  public boolean hasOffset() {
-    return offset > 0;
-  }
+  private final long             threadId;
+  private final LinkedList<Page> pages;
+  private final Set<Long>        changedSmsIds;
+  private final Set<Long>        changedMmsIds;
+
+  private long    lastSeen;
+  private boolean hasSent;
+  private long    anchor;
+  private Request request;
+  private boolean changedUnknown;
+  private boolean resultDropped;
+  private boolean listening;
 
-  public int getOffset() {
-    return offset;
+  /**
+   * @param anchor The received date of a message to open the conversation on, or -1 to start at
+   *               the newest message, or at the last seen one if it's further back.
+   */
+  public ConversationLoader(Context context, long threadId, long lastSeen, long anchor) {
+    super(context);
+    this.threadId      = threadId;
+    this.lastSeen      = lastSeen;
+    this.anchor        = anchor;
+    this.hasSent       = true;
+    this.pages         = new LinkedList<>();
+    this.changedSmsIds = new HashSet<>();
+    this.changedMmsIds = new HashSet<>();
   }
 
   public long getLastSeen() {
@@ -43,6 +71,70 @@ public class ConversationLoader extends AbstractCursorLoader {
     return hasSent;
   }
 
+  /**
+   * @return True if the loaded window stops short of the newest message in the thread.
+   */
+  public boolean hasNewer() {
+    PagedCursor current = getPagedCursor();
+    return current != null && current.hasNewer();
+  }
+
+  /**
+   * Extends the window with the page of messages before the oldest one loaded.
+   */
+  public void loadOlder() {
+    PagedCursor current = getPagedCursor();
+
+    if (current != null && current.hasOlder()) {
+      request(Request.OLDER, 0);
+    }
+  }
+
+  /**
+   * Extends the window with the page of messages after the newest one loaded.
+   */
+  public void loadNewer() {
+    PagedCursor current = getPagedCursor();
+
+    if (current != null && current.hasNewer()) {
+      request(Request.NEWER, 0);
+    }
+  }
+
+  /**
+   * Replaces the window with the messages around the given received date.
+   */
+  public void jumpTo(long receivedDate) {
+    request(Request.JUMP, receivedDate);
+  }
+
+  /**
+   * Replaces the window with the newest messages in the thread.
+   */
+  public void jumpToNewest() {
+    request(Request.JUMP, -1);
+  }
+
+  @Override
+  public void onChanged(@NonNull DatabaseChangeNotifier.Changes changes) {
+    DatabaseChangeNotifier.ConversationChange change = changes.getConversation(threadId);
+
+    if (change == null) {
+      return;
+    }
+
+    synchronized (this) {
+      if (change.isUnknown()) {
+        changedUnknown = true;
+      } else {
+        changedSmsIds.addAll(change.getSmsIds());
+        changedMmsIds.addAll(change.getMmsIds());
+      }
+    }
+
+    Util.runOnMain(this::onContentChanged);
+  }
+
   @Override
   public Cursor getCursor() {
     Pair<Long, Boolean> lastSeenAndHasSent = DatabaseFactory.getThreadDatabase(context).getLastSeenAndHasSent(threadId);
@@ -53,6 +145,435 @@ public class ConversationLoader extends AbstractCursorLoader {
       this.lastSeen = lastSeenAndHasSent.first();
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, offset, limit);
+    Request   request;
+    long      requestDate;
+    boolean   unknown;
+    boolean   dropped;
+    Set<Long> smsIds;
+    Set<Long> mmsIds;
+
+    synchronized (this) {
+      request     = this.request;
+      requestDate = this.anchor;
+      unknown     = this.changedUnknown;
+      dropped     = this.resultDropped;
+      smsIds      = new HashSet<>(changedSmsIds);
+      mmsIds      = new HashSet<>(changedMmsIds);
+
+      this.request        = null;
+      this.changedUnknown = false;
+      this.resultDropped  = false;
+      changedSmsIds.clear();
+      changedMmsIds.clear();
+    }
+
+    synchronized (pages) {
+      boolean reloaded = unknown || dropped || pages.isEmpty();
+
+      if (pages.isEmpty()) {
+        loadInitial(requestDate);
+      } else if (request == Request.JUMP) {
+        clearPages();
+        loadAround(requestDate);
+      } else {
+        refreshChanged(unknown, smsIds, mmsIds);
+
+        if      (request == Request.OLDER) loadOlderPage();
+        else if (request == Request.NEWER) loadNewerPage();
+      }
+
+      return new PagedCursor(pages, reloaded, smsIds, mmsIds);
+    }
+  }
+
+  /**
+   * The changes that went into a cancelled result never reach whoever tracks them, so the next
+   * result has to be treated as a reload.
+   */
+  @Override
+  public void onCanceled(Cursor cursor) {
+    synchronized (this) {
+      resultDropped = true;
+    }
+
+    super.onCanceled(cursor);
+  }
+
+  @Override
+  protected void onStartLoading() {
+    if (!listening) {
+      DatabaseChangeNotifier.getInstance(context).addListener(this);
+      listening = true;
+    }
+
+    super.onStartLoading();
+  }
+
+  @Override
+  protected void onReset() {
+    super.onReset();
+
+    DatabaseChangeNotifier.getInstance(context).removeListener(this);
+    listening = false;
+
+    synchronized (pages) {
+      clearPages();
+    }
+  }
+
+  private synchronized void request(@NonNull Request request, long date) {
+    if (this.request != null && request != Request.JUMP) {
+      return;
+    }
+
+    this.request = request;
+
+    if (request == Request.JUMP) {
+      this.anchor = date;
+    }
+
+    Util.runOnMain(this::onContentChanged);
+  }
+
+  private @Nullable PagedCursor getPagedCursor() {
+    return cursor instanceof PagedCursor ? (PagedCursor) cursor : null;
+  }
+
+  private void loadInitial(long anchor) {
+    if (anchor > 0) {
+      loadAround(anchor);
+      return;
+    }
+
+    pages.add(queryOlderPage(Long.MAX_VALUE));
+
+    Page newest = pages.getFirst();
+
+    if (lastSeen > 0 && lastSeen < newest.from) {
+      clearPages();
+      loadAround(lastSeen);
+    }
+  }
+
+  private void loadAround(long date) {
+    if (date <= 0) {
+      pages.add(queryOlderPage(Long.MAX_VALUE));
+    } else {
+      pages.add(queryNewerPage(date));
+      pages.add(queryOlderPage(date + 1));
+    }
+  }
+
+  private void loadOlderPage() {
+    Page oldest = pages.getLast();
+
+    if (oldest.from == Long.MIN_VALUE) {
+      return;
+    }
+
+    pages.addLast(queryOlderPage(oldest.from));
+
+    while (pages.size() > MAX_PAGES) {
+      pages.removeFirst().release();
+    }
+  }
+
+  private void loadNewerPage() {
+    Page newest = pages.getFirst();
+
+    if (newest.to == Long.MAX_VALUE) {
+      return;
+    }
+
+    pages.addFirst(queryNewerPage(newest.to));
+
+    while (pages.size() > MAX_PAGES) {
+      pages.removeLast().release();
+    }
+  }
+
+  /**
+   * A page ends on a date rather than a count, so it takes in every message that shares the date
+   * of its last one, and the next page can start strictly past it without skipping any.
+   */
+  private @NonNull Page queryOlderPage(long before) {
+    List<Long> dates = DatabaseFactory.getMmsSmsDatabase(context).getReceivedDates(threadId, before, true, PAGE_SIZE);
+    long       from  = dates.size() < PAGE_SIZE ? Long.MIN_VALUE : dates.get(dates.size() - 1);
+    long       to    = before == Long.MAX_VALUE ? Long.MAX_VALUE : before - 1;
+
+    return queryPage(from, to);
+  }
+
+  private @NonNull Page queryNewerPage(long after) {
+    List<Long> dates = DatabaseFactory.getMmsSmsDatabase(context).getReceivedDates(threadId, after, false, PAGE_SIZE);
+    long       to    = dates.size() < PAGE_SIZE ? Long.MAX_VALUE : dates.get(dates.size() - 1);
+
+    return queryPage(after + 1, to);
+  }
+
+  private @NonNull Page queryPage(long from, long to) {
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    Cursor         cursor   = database.getConversationRange(threadId, from, to);
+    Set<Long>      smsIds   = new HashSet<>();
+    Set<Long>      mmsIds   = new HashSet<>();
+
+    int idColumn   = cursor.getColumnIndexOrThrow(MmsSmsColumns.ID);
+    int typeColumn = cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT);
+
+    while (cursor.moveToNext()) {
+      if (MmsSmsDatabase.MMS_TRANSPORT.equals(cursor.getString(typeColumn))) mmsIds.add(cursor.getLong(idColumn));
+      else                                                                   smsIds.add(cursor.getLong(idColumn));
+    }
+
+    cursor.moveToPosition(-1);
+
+    return new Page(from, to, cursor, smsIds, mmsIds);
+  }
+
+  /**
+   * Re-queries only the pages holding a changed message, or covering the date of one that isn't
+   * loaded yet, such as a message that just arrived.
+   */
+  private void refreshChanged(boolean unknown, @NonNull Set<Long> smsIds, @NonNull Set<Long> mmsIds) {
+    if (!unknown && smsIds.isEmpty() && mmsIds.isEmpty()) {
+      return;
+    }
+
+    Set<Page> stale      = new HashSet<>();
+    Set<Long> missingSms = new HashSet<>(smsIds);
+    Set<Long> missingMms = new HashSet<>(mmsIds);
+
+    for (Page page : pages) {
+      if (unknown || !Collections.disjoint(page.smsIds, smsIds) || !Collections.disjoint(page.mmsIds, mmsIds)) {
+        stale.add(page);
+      }
+
+      missingSms.removeAll(page.smsIds);
+      missingMms.removeAll(page.mmsIds);
+    }
+
+    if (!unknown && (!missingSms.isEmpty() || !missingMms.isEmpty())) {
+      for (long date : DatabaseFactory.getMmsSmsDatabase(context).getReceivedDates(missingSms, missingMms)) {
+        for (Page page : pages) {
+          if (page.contains(date)) stale.add(page);
+        }
+      }
+    }
+
+    for (int i = 0; i < pages.size(); i++) {
+      Page page = pages.get(i);
+
+      if (stale.contains(page)) {
+        pages.set(i, queryPage(page.from, page.to));
+        page.release();
+      }
+    }
+  }
+
+  private void clearPages() {
+    for (Page page : pages) {
+      page.release();
+    }
+
+    pages.clear();
+  }
+
+  private enum Request {
+    OLDER, NEWER, JUMP
+  }
+
+  /**
+   * The messages received within an inclusive range of dates. The cursor is shared by every
+   * {@link PagedCursor} it's handed out in, and closed once the last of them lets go of it.
+   */
+  private static class Page {
+
+    private final long      from;
+    private final long      to;
+    private final Cursor    cursor;
+    private final Set<Long> smsIds;
+    private final Set<Long> mmsIds;
+
+    private int references = 1;
+
+    private Page(long from, long to, @NonNull Cursor cursor, @NonNull Set<Long> smsIds, @NonNull Set<Long> mmsIds) {
+      this.from   = from;
+      this.to     = to;
+      this.cursor = cursor;
+      this.smsIds = smsIds;
+      this.mmsIds = mmsIds;
+    }
+
+    private boolean contains(long date) {
+      return date >= from && date <= to;
+    }
+
+    private synchronized void retain() {
+      references++;
+    }
+
+    private synchronized void release() {
+      if (--references == 0) {
+        cursor.close();
+      }
+    }
+  }
+
+  /**
+   * The loaded pages read as one cursor, newest message first.
+   */
+  public static class PagedCursor extends AbstractCursor {
+
+    private final List<Page> pages;
+    private final int        count;
+    private final boolean    hasOlder;
+    private final boolean    hasNewer;
+    private final boolean    reloaded;
+    private final Set<Long>  changedSmsIds;
+    private final Set<Long>  changedMmsIds;
+
+    private Cursor  current;
+    private boolean released;
+
+    private PagedCursor(@NonNull List<Page> pages, boolean reloaded, @NonNull Set<Long> changedSmsIds, @NonNull Set<Long> changedMmsIds) {
+      this.pages         = new ArrayList<>(pages);
+      this.hasOlder      = !pages.isEmpty() && pages.get(pages.size() - 1).from != Long.MIN_VALUE;
+      this.hasNewer      = !pages.isEmpty() && pages.get(0).to != Long.MAX_VALUE;
+      this.reloaded      = reloaded;
+      this.changedSmsIds = changedSmsIds;
+      this.changedMmsIds = changedMmsIds;
+
+      int count = 0;
+
+      for (Page page : this.pages) {
+        page.retain();
+        count += page.cursor.getCount();
+      }
+
+      this.count = count;
+    }
+
+    /**
+     * @return True if there are messages older than the oldest one in this cursor.
+     */
+    public boolean hasOlder() {
+      return hasOlder;
+    }
+
+    /**
+     * @return True if there are messages newer than the newest one in this cursor.
+     */
+    public boolean hasNewer() {
+      return hasNewer;
+    }
+
+    /**
+     * @return True if anything in the thread may have changed since the previous cursor, rather
+     *         than only the messages in {@link #getChangedSmsIds()} and {@link #getChangedMmsIds()}.
+     */
+    public boolean isReloaded() {
+      return reloaded;
+    }
+
+    public @NonNull Set<Long> getChangedSmsIds() {
+      return changedSmsIds;
+    }
+
+    public @NonNull Set<Long> getChangedMmsIds() {
+      return changedMmsIds;
+    }
+
+    @Override
+    public int getCount() {
+      return count;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+      int start = 0;
+
+      for (Page page : pages) {
+        int size = page.cursor.getCount();
+
+        if (newPosition < start + size) {
+          current = page.cursor;
+          return current.moveToPosition(newPosition - start);
+        }
+
+        start += size;
+      }
+
+      current = null;
+      return false;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+      return pages.isEmpty() ? new String[0] : pages.get(0).cursor.getColumnNames();
+    }
+
+    @Override
+    public String getString(int column) {
+      return current.getString(column);
+    }
+
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+      current.copyStringToBuffer(column, buffer);
+    }
+
+    @Override
+    public short getShort(int column) {
+      return current.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+      return current.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+      return current.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+      return current.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+      return current.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+      return current.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+      return current.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+      return current.isNull(column);
+    }
+
+    @Override
+    public void close() {
+      super.close();
+
+      synchronized (this) {
+        if (released) return;
+        released = true;
+      }
+
+      for (Page page : pages) {
+        page.release();
+      }
+    }
   }
 }
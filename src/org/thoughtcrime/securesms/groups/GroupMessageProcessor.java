@@ -56,22 +56,33 @@ public class GroupMessageProcessor {
       return null;
     }
 
-    GroupDatabase         database = DatabaseFactory.getGroupDatabase(context);
-    SignalServiceGroup    group    = message.getGroupInfo().get();
-    String                id       = GroupUtil.getEncodedId(group.getGroupId(), false);
-    Optional<GroupRecord> record   = database.getGroup(id);
-
-    if (record.isPresent() && group.getType() == Type.UPDATE) {
-      return handleGroupUpdate(context, content, group, record.get(), outgoing);
-    } else if (!record.isPresent() && group.getType() == Type.UPDATE) {
-      return handleGroupCreate(context, content, group, outgoing);
-    } else if (record.isPresent() && group.getType() == Type.QUIT) {
-      return handleGroupLeave(context, content, group, record.get(), outgoing);
-    } else if (record.isPresent() && group.getType() == Type.REQUEST_INFO) {
-      return handleGroupInfoRequest(context, content, group, record.get());
-    } else {
-      Log.w(TAG, "Received unknown type, ignoring...");
-      return null;
+    GroupDatabase      database = DatabaseFactory.getGroupDatabase(context);
+    SignalServiceGroup group    = message.getGroupInfo().get();
+    String             id       = GroupUtil.getEncodedId(group.getGroupId(), false);
+
+    database.beginTransaction();
+
+    try {
+      Optional<GroupRecord> record = database.getGroup(id);
+      Long                  result;
+
+      if (record.isPresent() && group.getType() == Type.UPDATE) {
+        result = handleGroupUpdate(context, content, group, record.get(), outgoing);
+      } else if (!record.isPresent() && group.getType() == Type.UPDATE) {
+        result = handleGroupCreate(context, content, group, outgoing);
+      } else if (record.isPresent() && group.getType() == Type.QUIT) {
+        result = handleGroupLeave(context, content, group, record.get(), outgoing);
+      } else if (record.isPresent() && group.getType() == Type.REQUEST_INFO) {
+        result = handleGroupInfoRequest(context, content, group, record.get());
+      } else {
+        Log.w(TAG, "Received unknown type, ignoring...");
+        result = null;
+      }
+
+      database.setTransactionSuccessful();
+      return result;
+    } finally {
+      database.endTransaction();
     }
   }
 
@@ -36,6 +36,7 @@ public abstract class Job extends Worker implements Serializable {
   static final String KEY_FAILED             = "Job_failed";
   static final String KEY_REQUIRES_NETWORK   = "Job_requires_network";
   static final String KEY_REQUIRES_SQLCIPHER = "Job_requires_sqlcipher";
+  static final String KEY_COALESCING_KEY     = "Job_coalescing_key";
 
   private JobParameters parameters;
 
@@ -78,6 +79,12 @@ public abstract class Job extends Worker implements Serializable {
 
     ApplicationContext.getInstance(getApplicationContext()).injectDependencies(this);
 
+    String coalescingKey = data.getString(KEY_COALESCING_KEY);
+
+    if (coalescingKey != null) {
+      ApplicationContext.getInstance(getApplicationContext()).getJobManager().onJobStarted(coalescingKey, getId());
+    }
+
     if (this instanceof ContextDependent) {
       ((ContextDependent)this).setContext(getApplicationContext());
     }
@@ -0,0 +1,67 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.util.Util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Keeps track of which coalescing keys have a job that was added but hasn't started running yet,
+ * so that equivalent jobs added in the meantime can be dropped.
+ *
+ * This state is in-memory only. After a process restart nothing is considered pending, which at
+ * worst lets a single redundant job through.
+ */
+class JobCoalescer {
+
+  private final Map<String, UUID>    pending   = new HashMap<>();
+  private final Map<String, Integer> collapsed = new TreeMap<>();
+
+  /**
+   * @return True if the caller should go on to enqueue its job, otherwise false if an equivalent
+   *         job is already pending.
+   */
+  synchronized boolean reserve(@NonNull String key) {
+    if (pending.containsKey(key)) {
+      Integer count = collapsed.get(key);
+      collapsed.put(key, count != null ? count + 1 : 1);
+      return false;
+    }
+
+    pending.put(key, null);
+    return true;
+  }
+
+  synchronized void onSubmitted(@NonNull String key, @NonNull UUID id) {
+    if (pending.containsKey(key) && pending.get(key) == null) {
+      pending.put(key, id);
+    }
+  }
+
+  synchronized void onStarted(@NonNull String key, @NonNull UUID id) {
+    if (id.equals(pending.get(key))) {
+      pending.remove(key);
+    }
+  }
+
+  /**
+   * Frees a key whose job will never start, either because it couldn't be enqueued or because its
+   * work finished without running, such as when it was cancelled or a job it depended on failed.
+   *
+   * @param id The job's work id, or null if it failed before it was given one.
+   */
+  synchronized void release(@NonNull String key, @Nullable UUID id) {
+    if (pending.containsKey(key) && Util.equals(pending.get(key), id)) {
+      pending.remove(key);
+    }
+  }
+
+  synchronized @NonNull Map<String, Integer> getCollapsedCounts() {
+    return new TreeMap<>(collapsed);
+  }
+}
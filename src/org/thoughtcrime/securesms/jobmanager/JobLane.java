@@ -0,0 +1,43 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+/**
+ * The lane a job is submitted through before being handed off to WorkManager. Each lane has its
+ * own pool of submission threads, so a burst of background work can't sit in front of a message
+ * the user is waiting on.
+ *
+ * Lanes are declared in priority order. When a chain mixes lanes, it is submitted through the
+ * highest priority lane of any of its jobs.
+ */
+public enum JobLane {
+
+  /**
+   * Work the user is actively waiting on, like sending a message.
+   */
+  INTERACTIVE(2, Thread.NORM_PRIORITY),
+
+  /**
+   * Retrieval and decryption of inbound messages.
+   */
+  INBOUND(2, Thread.NORM_PRIORITY),
+
+  /**
+   * Receipts, multi-device syncs, maintenance and everything else.
+   */
+  BACKGROUND(1, Thread.MIN_PRIORITY);
+
+  private final int concurrency;
+  private final int threadPriority;
+
+  JobLane(int concurrency, int threadPriority) {
+    this.concurrency    = concurrency;
+    this.threadPriority = threadPriority;
+  }
+
+  int getConcurrency() {
+    return concurrency;
+  }
+
+  int getThreadPriority() {
+    return threadPriority;
+  }
+}
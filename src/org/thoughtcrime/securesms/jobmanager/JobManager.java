@@ -1,19 +1,25 @@
 package org.thoughtcrime.securesms.jobmanager;
 
+import android.arch.lifecycle.LiveData;
+import android.arch.lifecycle.Observer;
 import android.content.Context;
+import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
 import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import androidx.work.BackoffPolicy;
@@ -22,7 +28,9 @@ import androidx.work.Data;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
+import androidx.work.Operation;
 import androidx.work.WorkContinuation;
+import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 
 public class JobManager {
@@ -33,7 +41,9 @@ public class JobManager {
                                                                        .setRequiredNetworkType(NetworkType.CONNECTED)
                                                                        .build();
 
-  private final Executor executor = Executors.newSingleThreadExecutor();
+  private final LaneScheduler          scheduler      = new LaneScheduler();
+  private final Map<JobLane, List<Job>> pendingBatches = new EnumMap<>(JobLane.class);
+  private final JobCoalescer           coalescer      = new JobCoalescer();
 
   private final Context     context;
   private final WorkManager workManager;
@@ -58,49 +68,210 @@ public class JobManager {
       throw new IllegalStateException("Jobs must have JobParameters at this stage. (" + job.getClass().getSimpleName() + ")");
     }
 
+    String coalescingKey = jobParameters.getCoalescingKey();
+
+    if (coalescingKey != null && !coalescer.reserve(coalescingKey)) {
+      Log.i(TAG, "Coalesced " + job.getClass().getSimpleName() + " into an equivalent pending job. (" + coalescingKey + ")");
+      return;
+    }
+
     startChain(job).enqueue(jobParameters.getSoloChainParameters());
   }
 
+  /**
+   * @return A snapshot of the submission queue for each {@link JobLane}.
+   */
+  public @NonNull List<LaneMetrics> getLaneMetrics() {
+    return scheduler.getMetrics();
+  }
+
+  /**
+   * @return The number of jobs that were dropped in favor of an equivalent pending job since the
+   *         process started, keyed by coalescing key.
+   */
+  public @NonNull Map<String, Integer> getCoalescedCounts() {
+    return coalescer.getCollapsedCounts();
+  }
+
+  void onJobStarted(@NonNull String coalescingKey, @NonNull UUID id) {
+    coalescer.onStarted(coalescingKey, id);
+  }
+
   private void enqueueChain(@NonNull Chain chain, @NonNull ChainParameters chainParameters) {
-    executor.execute(() -> {
+    if (!chainParameters.getGroupId().isPresent() && chain.isIndependent()) {
+      enqueueBatched(chain.getLane(), chain.getJobListChain().get(0));
+      return;
+    }
+
+    scheduler.schedule(chain.getLane(), chainParameters.getGroupId().orNull(), () -> {
+      pruneWork();
+
+      List<List<Job>> jobListChain = chain.getJobListChain();
+      List<Job>       jobs         = Stream.of(jobListChain).flatMap(jobList -> Stream.of(jobList)).toList();
+      List<UUID>      submitted    = new ArrayList<>(jobs.size());
+
       try {
-        workManager.pruneWork().getResult().get();
-      } catch (ExecutionException | InterruptedException e) {
-        Log.w(TAG, "Failed to prune work.", e);
-      }
+        List<List<OneTimeWorkRequest>> requestListChain = Stream.of(jobListChain)
+                                                                .filter(jobList -> !jobList.isEmpty())
+                                                                .map(jobList -> Stream.of(jobList).map(this::toWorkRequest).toList())
+                                                                .toList();
 
-      List<List<Job>>                jobListChain     = chain.getJobListChain();
-      List<List<OneTimeWorkRequest>> requestListChain = Stream.of(jobListChain)
-                                                              .filter(jobList -> !jobList.isEmpty())
-                                                              .map(jobList -> Stream.of(jobList).map(this::toWorkRequest).toList())
-                                                              .toList();
+        if (jobListChain.isEmpty()) {
+          throw new IllegalStateException("Enqueued an empty chain.");
+        }
 
-      if (jobListChain.isEmpty()) {
-        throw new IllegalStateException("Enqueued an empty chain.");
-      }
+        for (List<OneTimeWorkRequest> requestList : requestListChain) {
+          for (OneTimeWorkRequest request : requestList) {
+            submit(jobs.get(submitted.size()), request.getId());
+            submitted.add(request.getId());
+          }
+        }
 
-      for (int i = 0; i < jobListChain.size(); i++) {
-        for (int j = 0; j < jobListChain.get(i).size(); j++) {
-          jobListChain.get(i).get(j).onSubmit(context, requestListChain.get(i).get(j).getId());
+        WorkContinuation continuation;
+
+        if (chainParameters.getGroupId().isPresent()) {
+          ExistingWorkPolicy policy = chainParameters.shouldIgnoreDuplicates() ? ExistingWorkPolicy.KEEP : ExistingWorkPolicy.APPEND;
+          continuation = workManager.beginUniqueWork(chainParameters.getGroupId().get(), policy, requestListChain.get(0));
+        } else {
+          continuation = workManager.beginWith(requestListChain.get(0));
         }
+
+        for (int i = 1; i < requestListChain.size(); i++) {
+          continuation = continuation.then(requestListChain.get(i));
+        }
+
+        awaitEnqueue(continuation.enqueue());
+      } catch (RuntimeException e) {
+        releaseCoalescingKeys(jobs, submitted);
+        throw e;
       }
 
-      WorkContinuation continuation;
+      watchCoalescingKeys(jobs, submitted);
+    });
+
+  }
+
+  /**
+   * Jobs that have no group and no dependencies don't need to be ordered relative to each other,
+   * so everything that accumulates while a lane is busy is handed to WorkManager in a single
+   * enqueue, which it persists in one transaction.
+   */
+  private void enqueueBatched(@NonNull JobLane lane, @NonNull List<Job> jobs) {
+    synchronized (pendingBatches) {
+      List<Job> batch = pendingBatches.get(lane);
+
+      if (batch != null) {
+        batch.addAll(jobs);
+        return;
+      }
+
+      pendingBatches.put(lane, new ArrayList<>(jobs));
+    }
+
+    scheduler.schedule(lane, null, () -> {
+      List<Job> batch;
 
-      if (chainParameters.getGroupId().isPresent()) {
-        ExistingWorkPolicy policy = chainParameters.shouldIgnoreDuplicates() ? ExistingWorkPolicy.KEEP : ExistingWorkPolicy.APPEND;
-        continuation = workManager.beginUniqueWork(chainParameters.getGroupId().get(), policy, requestListChain.get(0));
-      } else {
-        continuation = workManager.beginWith(requestListChain.get(0));
+      synchronized (pendingBatches) {
+        batch = pendingBatches.remove(lane);
       }
 
-      for (int i = 1; i < requestListChain.size(); i++) {
-        continuation = continuation.then(requestListChain.get(i));
+      pruneWork();
+
+      List<UUID> submitted = new ArrayList<>(batch.size());
+
+      try {
+        List<OneTimeWorkRequest> requests = Stream.of(batch).map(this::toWorkRequest).toList();
+
+        for (int i = 0; i < batch.size(); i++) {
+          submit(batch.get(i), requests.get(i).getId());
+          submitted.add(requests.get(i).getId());
+        }
+
+        if (requests.size() > 1) {
+          Log.i(TAG, "Enqueueing a batch of " + requests.size() + " jobs. (" + lane + ")");
+        }
+
+        awaitEnqueue(workManager.enqueue(requests));
+      } catch (RuntimeException e) {
+        releaseCoalescingKeys(batch, submitted);
+        throw e;
       }
 
-      continuation.enqueue();
+      watchCoalescingKeys(batch, submitted);
     });
+  }
+
+  private void submit(@NonNull Job job, @NonNull UUID id) {
+    String coalescingKey = getCoalescingKey(job);
+
+    if (coalescingKey != null) {
+      coalescer.onSubmitted(coalescingKey, id);
+    }
+
+    job.onSubmit(context, id);
+  }
+
+  /**
+   * Frees the coalescing keys of jobs that failed to be enqueued. The first jobs may already have
+   * been given the ids in {@code submitted}, the rest never got one.
+   */
+  private void releaseCoalescingKeys(@NonNull List<Job> jobs, @NonNull List<UUID> submitted) {
+    for (int i = 0; i < jobs.size(); i++) {
+      String coalescingKey = getCoalescingKey(jobs.get(i));
 
+      if (coalescingKey != null) {
+        coalescer.release(coalescingKey, i < submitted.size() ? submitted.get(i) : null);
+      }
+    }
+  }
+
+  /**
+   * A job that is cancelled, or whose predecessor in a chain fails, finishes without ever starting,
+   * so its coalescing key is also freed once WorkManager reports its work as finished. Work that is
+   * missing entirely was dropped as a duplicate of its unique group.
+   */
+  private void watchCoalescingKeys(@NonNull List<Job> jobs, @NonNull List<UUID> submitted) {
+    for (int i = 0; i < jobs.size(); i++) {
+      String coalescingKey = getCoalescingKey(jobs.get(i));
+      UUID   id            = submitted.get(i);
+
+      if (coalescingKey == null) continue;
+
+      Util.runOnMain(() -> {
+        LiveData<WorkInfo> workInfo = workManager.getWorkInfoByIdLiveData(id);
+
+        workInfo.observeForever(new Observer<WorkInfo>() {
+          @Override
+          public void onChanged(@Nullable WorkInfo info) {
+            if (info == null || info.getState().isFinished()) {
+              coalescer.release(coalescingKey, id);
+              workInfo.removeObserver(this);
+            }
+          }
+        });
+      });
+    }
+  }
+
+  private static @Nullable String getCoalescingKey(@NonNull Job job) {
+    JobParameters jobParameters = job.getJobParameters();
+    return jobParameters != null ? jobParameters.getCoalescingKey() : null;
+  }
+
+  private static void awaitEnqueue(@NonNull Operation operation) {
+    try {
+      operation.getResult().get();
+    } catch (ExecutionException | InterruptedException e) {
+      throw new IllegalStateException("Failed to enqueue work.", e);
+    }
+  }
+
+  private void pruneWork() {
+    try {
+      workManager.pruneWork().getResult().get();
+    } catch (ExecutionException | InterruptedException e) {
+      Log.w(TAG, "Failed to prune work.", e);
+    }
   }
 
   private OneTimeWorkRequest toWorkRequest(@NonNull Job job) {
@@ -114,20 +285,37 @@ public class JobManager {
                                                  .putLong(Job.KEY_RETRY_UNTIL, jobParameters.getRetryUntil())
                                                  .putLong(Job.KEY_SUBMIT_TIME, System.currentTimeMillis())
                                                  .putBoolean(Job.KEY_REQUIRES_NETWORK, jobParameters.requiresNetwork())
-                                                 .putBoolean(Job.KEY_REQUIRES_SQLCIPHER, jobParameters.requiresSqlCipher());
+                                                 .putBoolean(Job.KEY_REQUIRES_SQLCIPHER, jobParameters.requiresSqlCipher())
+                                                 .putString(Job.KEY_COALESCING_KEY, jobParameters.getCoalescingKey());
     Data data = job.serialize(dataBuilder);
 
     OneTimeWorkRequest.Builder requestBuilder = new OneTimeWorkRequest.Builder(job.getClass())
                                                                       .setInputData(data)
                                                                       .setBackoffCriteria(BackoffPolicy.LINEAR, OneTimeWorkRequest.MIN_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
 
-    if (jobParameters.requiresNetwork()) {
+    if (jobParameters.requiresIdleCharging()) {
+      requestBuilder.setConstraints(getIdleChargingConstraints(jobParameters.requiresNetwork()));
+    } else if (jobParameters.requiresNetwork()) {
       requestBuilder.setConstraints(NETWORK_CONSTRAINT);
     }
 
     return requestBuilder.build();
   }
 
+  private static @NonNull Constraints getIdleChargingConstraints(boolean requiresNetwork) {
+    Constraints.Builder builder = new Constraints.Builder().setRequiresCharging(true);
+
+    if (requiresNetwork) {
+      builder.setRequiredNetworkType(NetworkType.CONNECTED);
+    }
+
+    if (Build.VERSION.SDK_INT >= 23) {
+      builder.setRequiresDeviceIdle(true);
+    }
+
+    return builder.build();
+  }
+
   public class Chain {
 
     private final List<List<Job>> jobs = new LinkedList<>();
@@ -152,5 +340,25 @@ public class JobManager {
     private List<List<Job>> getJobListChain() {
       return jobs;
     }
+
+    private boolean isIndependent() {
+      return jobs.size() == 1 && !jobs.get(0).isEmpty();
+    }
+
+    private JobLane getLane() {
+      JobLane lane = JobLane.BACKGROUND;
+
+      for (List<Job> jobList : jobs) {
+        for (Job job : jobList) {
+          JobParameters jobParameters = job.getJobParameters();
+
+          if (jobParameters != null && jobParameters.getLane().ordinal() < lane.ordinal()) {
+            lane = jobParameters.getLane();
+          }
+        }
+      }
+
+      return lane;
+    }
   }
 }
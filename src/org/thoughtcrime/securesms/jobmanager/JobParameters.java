@@ -36,25 +36,34 @@ public class JobParameters implements Serializable {
   private final List<Requirement> requirements;
   private final boolean           requiresNetwork;
   private final boolean           requiresSqlCipher;
+  private final boolean           requiresIdleCharging;
   private final int               retryCount;
   private final long              retryUntil;
   private final String            groupId;
   private final boolean           ignoreDuplicates;
+  private final JobLane           lane;
+  private final String            coalescingKey;
 
   private JobParameters(String groupId,
                         boolean ignoreDuplicates,
+                        JobLane lane,
+                        String coalescingKey,
                         boolean requiresNetwork,
                         boolean requiresSqlCipher,
+                        boolean requiresIdleCharging,
                         int retryCount,
                         long retryUntil)
   {
-    this.groupId           = groupId;
-    this.ignoreDuplicates  = ignoreDuplicates;
-    this.requirements      = Collections.emptyList();
-    this.requiresNetwork   = requiresNetwork;
-    this.requiresSqlCipher = requiresSqlCipher;
-    this.retryCount        = retryCount;
-    this.retryUntil        = retryUntil;
+    this.groupId              = groupId;
+    this.ignoreDuplicates     = ignoreDuplicates;
+    this.lane                 = lane;
+    this.coalescingKey        = coalescingKey;
+    this.requirements         = Collections.emptyList();
+    this.requiresNetwork      = requiresNetwork;
+    this.requiresSqlCipher    = requiresSqlCipher;
+    this.retryCount           = retryCount;
+    this.retryUntil           = retryUntil;
+    this.requiresIdleCharging = requiresIdleCharging;
   }
 
   public boolean shouldIgnoreDuplicates() {
@@ -69,6 +78,10 @@ public class JobParameters implements Serializable {
     return requiresSqlCipher || hasSqlCipherRequirement(requirements);
   }
 
+  public boolean requiresIdleCharging() {
+    return requiresIdleCharging;
+  }
+
   private boolean hasNetworkRequirement(List<Requirement> requirements) {
     if (requirements == null || requirements.size() == 0) return false;
 
@@ -122,19 +135,41 @@ public class JobParameters implements Serializable {
     return groupId;
   }
 
+  public JobLane getLane() {
+    return lane != null ? lane : JobLane.BACKGROUND;
+  }
+
+  public String getCoalescingKey() {
+    return coalescingKey;
+  }
+
   public static class Builder {
     private int               retryCount           = 100;
     private long              retryDuration        = 0;
     private String            groupId              = null;
     private boolean           ignoreDuplicates     = false;
+    private JobLane           lane                 = JobLane.BACKGROUND;
+    private String            coalescingKey        = null;
     private boolean           requiresNetwork      = false;
     private boolean           requiresSqlCipher    = false;
+    private boolean           requiresIdleCharging = false;
 
     public Builder withNetworkRequirement() {
       requiresNetwork = true;
       return this;
     }
 
+    /**
+     * Only run the job while the device is charging and, where the platform can tell, idle. For
+     * maintenance that's worth doing eventually but shouldn't cost the user battery or jank.
+     *
+     * @return the builder.
+     */
+    public Builder withIdleChargingRequirement() {
+      requiresIdleCharging = true;
+      return this;
+    }
+
     @Deprecated
     public Builder withSqlCipherRequirement() {
       requiresSqlCipher = true;
@@ -192,11 +227,40 @@ public class JobParameters implements Serializable {
       return this;
     }
 
+    /**
+     * Specify the {@link JobLane} the job should be submitted through. Jobs the user is waiting on
+     * should use {@link JobLane#INTERACTIVE} so they aren't queued behind background work.
+     * <p />
+     * Defaults to {@link JobLane#BACKGROUND}.
+     *
+     * @param lane The job's lane.
+     * @return the builder.
+     */
+    public Builder withLane(JobLane lane) {
+      this.lane = lane;
+      return this;
+    }
+
+    /**
+     * Specify a key that identifies jobs which would do equivalent work. If a job with the same
+     * key has been added but hasn't started running yet, this job is dropped instead of being
+     * added, since the pending job will already pick up the latest state when it runs.
+     * <p />
+     * Only applies to jobs added on their own via {@link JobManager#add(Job)}.
+     *
+     * @param coalescingKey The job's coalescing key.
+     * @return the builder.
+     */
+    public Builder withCoalescingKey(String coalescingKey) {
+      this.coalescingKey = coalescingKey;
+      return this;
+    }
+
     /**
      * @return the JobParameters instance that describes a Job.
      */
     public JobParameters create() {
-      return new JobParameters(groupId, ignoreDuplicates, requiresNetwork, requiresSqlCipher, retryCount, System.currentTimeMillis() + retryDuration);
+      return new JobParameters(groupId, ignoreDuplicates, lane, coalescingKey, requiresNetwork, requiresSqlCipher, requiresIdleCharging, retryCount, System.currentTimeMillis() + retryDuration);
     }
   }
 }
@@ -0,0 +1,54 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A point-in-time snapshot of the submission queue for a single {@link JobLane}.
+ */
+public class LaneMetrics {
+
+  private final JobLane lane;
+  private final int     queueDepth;
+  private final int     active;
+  private final long    completed;
+  private final long    averageWaitMs;
+  private final long    maxWaitMs;
+
+  LaneMetrics(@NonNull JobLane lane, int queueDepth, int active, long completed, long averageWaitMs, long maxWaitMs) {
+    this.lane          = lane;
+    this.queueDepth    = queueDepth;
+    this.active        = active;
+    this.completed     = completed;
+    this.averageWaitMs = averageWaitMs;
+    this.maxWaitMs     = maxWaitMs;
+  }
+
+  public @NonNull JobLane getLane() {
+    return lane;
+  }
+
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  public int getActive() {
+    return active;
+  }
+
+  public long getCompleted() {
+    return completed;
+  }
+
+  public long getAverageWaitMs() {
+    return averageWaitMs;
+  }
+
+  public long getMaxWaitMs() {
+    return maxWaitMs;
+  }
+
+  @Override
+  public @NonNull String toString() {
+    return lane + " queued: " + queueDepth + ", active: " + active + ", completed: " + completed + ", avg wait: " + averageWaitMs + " ms, max wait: " + maxWaitMs + " ms";
+  }
+}
@@ -0,0 +1,177 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs job submission work on a separate, bounded pool per {@link JobLane}.
+ *
+ * Work that shares a groupId is always run serially and in submission order, even if it was
+ * submitted through different lanes, so that WorkManager sees unique work appended in the same
+ * order it would have with a single submission thread.
+ */
+class LaneScheduler {
+
+  private static final String TAG = LaneScheduler.class.getSimpleName();
+
+  private static final long SLOW_WAIT_THRESHOLD_MS = 1000;
+
+  private final Map<JobLane, Lane>       lanes  = new EnumMap<>(JobLane.class);
+  private final Map<String, Queue<Task>> groups = new HashMap<>();
+
+  LaneScheduler() {
+    for (JobLane lane : JobLane.values()) {
+      lanes.put(lane, new Lane(lane));
+    }
+  }
+
+  void schedule(@NonNull JobLane jobLane, @Nullable String groupId, @NonNull Runnable runnable) {
+    Lane lane = lanes.get(jobLane);
+    Task task = new Task(lane, groupId, runnable);
+
+    lane.onQueued();
+
+    if (groupId != null) {
+      synchronized (groups) {
+        Queue<Task> pending = groups.get(groupId);
+
+        if (pending != null) {
+          pending.add(task);
+          return;
+        }
+
+        groups.put(groupId, new LinkedList<>());
+      }
+    }
+
+    lane.execute(task);
+  }
+
+  @NonNull List<LaneMetrics> getMetrics() {
+    List<LaneMetrics> metrics = new LinkedList<>();
+
+    for (Lane lane : lanes.values()) {
+      metrics.add(lane.getMetrics());
+    }
+
+    return metrics;
+  }
+
+  private void onGroupTaskFinished(@NonNull String groupId) {
+    Task next;
+
+    synchronized (groups) {
+      Queue<Task> pending = groups.get(groupId);
+
+      next = pending != null ? pending.poll() : null;
+
+      if (next == null) {
+        groups.remove(groupId);
+      }
+    }
+
+    if (next != null) {
+      next.lane.execute(next);
+    }
+  }
+
+  private class Task implements Runnable {
+
+    private final Lane     lane;
+    private final String   groupId;
+    private final Runnable runnable;
+    private final long     queuedTime;
+
+    private Task(@NonNull Lane lane, @Nullable String groupId, @NonNull Runnable runnable) {
+      this.lane       = lane;
+      this.groupId    = groupId;
+      this.runnable   = runnable;
+      this.queuedTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+      lane.onStarted(System.currentTimeMillis() - queuedTime);
+
+      try {
+        runnable.run();
+      } finally {
+        lane.onFinished();
+
+        if (groupId != null) {
+          onGroupTaskFinished(groupId);
+        }
+      }
+    }
+  }
+
+  private static class Lane {
+
+    private final JobLane            jobLane;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger      queued = new AtomicInteger();
+
+    private long completed;
+    private long totalWait;
+    private long maxWait;
+
+    private Lane(@NonNull JobLane jobLane) {
+      AtomicInteger threadCount = new AtomicInteger();
+
+      this.jobLane  = jobLane;
+      this.executor = new ThreadPoolExecutor(jobLane.getConcurrency(),
+                                             jobLane.getConcurrency(),
+                                             15, TimeUnit.SECONDS,
+                                             new LinkedBlockingQueue<>(),
+                                             r -> {
+                                               Thread thread = new Thread(r, "signal-job-" + jobLane.name().toLowerCase() + "-" + threadCount.getAndIncrement());
+                                               thread.setPriority(jobLane.getThreadPriority());
+                                               return thread;
+                                             });
+      this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private void execute(@NonNull Runnable runnable) {
+      executor.execute(runnable);
+    }
+
+    private void onQueued() {
+      queued.incrementAndGet();
+    }
+
+    private void onStarted(long waitTime) {
+      int depth = queued.decrementAndGet();
+
+      synchronized (this) {
+        totalWait += waitTime;
+        maxWait    = Math.max(maxWait, waitTime);
+      }
+
+      if (waitTime > SLOW_WAIT_THRESHOLD_MS) {
+        Log.w(TAG, "[" + jobLane + "] Waited " + waitTime + " ms to submit. Remaining queue depth: " + depth);
+      }
+    }
+
+    private synchronized void onFinished() {
+      completed++;
+    }
+
+    private synchronized @NonNull LaneMetrics getMetrics() {
+      long averageWait = completed > 0 ? totalWait / completed : 0;
+      return new LaneMetrics(jobLane, queued.get(), executor.getActiveCount(), completed, averageWait, maxWait);
+    }
+  }
+}
@@ -26,12 +26,15 @@ import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.logging.Log;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 public class PersistentStorage {
 
-  private static final int DATABASE_VERSION = 1;
+  private static final int    DATABASE_VERSION = 1;
+  private static final String DATABASE_PREFIX  = "_jobqueue-";
 
   private static final String TABLE_NAME = "queue";
   private static final String ID         = "_id";
@@ -41,20 +44,32 @@ public class PersistentStorage {
   private static final String DATABASE_CREATE = String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s TEXT NOT NULL, %s INTEGER DEFAULT 0);",
                                                               TABLE_NAME, ID, ITEM, ENCRYPTED);
 
+  private final Context        context;
+  private final String         databaseName;
   private final DatabaseHelper databaseHelper;
   private final JobSerializer  jobSerializer;
 
   public PersistentStorage(Context context, String name, JobSerializer serializer) {
-    this.databaseHelper     = new DatabaseHelper(context, "_jobqueue-" + name);
+    this.context            = context;
+    this.databaseName       = DATABASE_PREFIX + name;
+    this.databaseHelper     = new DatabaseHelper(context, databaseName);
     this.jobSerializer      = serializer;
   }
 
+  /**
+   * @return True if a queue with this name is still on disk, without creating it.
+   */
+  public static boolean exists(Context context, String name) {
+    return context.getDatabasePath(DATABASE_PREFIX + name).exists();
+  }
+
   public List<Job> getAllUnencrypted() {
     return getJobs(null, ENCRYPTED + " = 0");
   }
 
   private List<Job> getJobs(EncryptionKeys keys, String where) {
     List<Job>      results  = new LinkedList<>();
+    List<Long>     failed   = new LinkedList<>();
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = null;
 
@@ -71,7 +86,7 @@ public class PersistentStorage {
           results.add(job);
         } catch (IOException e) {
           Log.w("PersistentStore", e);
-          remove(id);
+          failed.add(id);
         }
       }
     } finally {
@@ -79,12 +94,40 @@ public class PersistentStorage {
         cursor.close();
     }
 
+    remove(failed);
+
     return results;
   }
 
   public void remove(long id) {
-    databaseHelper.getWritableDatabase()
-                  .delete(TABLE_NAME, ID + " = ?", new String[] {String.valueOf(id)});
+    remove(Collections.singletonList(id));
+  }
+
+  /**
+   * Removes all of the provided jobs in a single transaction.
+   */
+  public void remove(Collection<Long> ids) {
+    if (ids.isEmpty()) return;
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    database.beginTransaction();
+    try {
+      for (long id : ids) {
+        database.delete(TABLE_NAME, ID + " = ?", new String[] {String.valueOf(id)});
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  /**
+   * Deletes the whole queue, which is a single file operation rather than a delete per row.
+   */
+  public void delete() {
+    databaseHelper.close();
+    context.deleteDatabase(databaseName);
   }
 
   private static class DatabaseHelper extends SQLiteOpenHelper {
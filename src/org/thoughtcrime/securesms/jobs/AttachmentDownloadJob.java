@@ -17,6 +17,7 @@ import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.events.PartProgressEvent;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
@@ -65,6 +66,7 @@ public class AttachmentDownloadJob extends ContextJob implements InjectableType
     super(context, JobParameters.newBuilder()
                                 .withGroupId(AttachmentDownloadJob.class.getSimpleName() + attachmentId.getRowId() + "-" + attachmentId.getUniqueId())
                                 .withNetworkRequirement()
+                                .withLane(JobLane.INBOUND)
                                 .create());
 
     this.messageId    = messageId;
@@ -133,7 +135,7 @@ public class AttachmentDownloadJob extends ContextJob implements InjectableType
     database.setTransferState(messageId, attachmentId, AttachmentDatabase.TRANSFER_PROGRESS_STARTED);
 
     retrieveAttachment(messageId, attachmentId, attachment);
-    MessageNotifier.updateNotification(context);
+    MessageNotifier.updateNotificationContent(context, DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
   }
 
   @Override
@@ -12,6 +12,7 @@ import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.events.PartProgressEvent;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.jobmanager.SafeData;
 import org.thoughtcrime.securesms.logging.Log;
@@ -56,6 +57,7 @@ public class AttachmentUploadJob extends ContextJob implements InjectableType {
     super(context, new JobParameters.Builder()
                                     .withNetworkRequirement()
                                     .withRetryDuration(TimeUnit.DAYS.toMillis(1))
+                                    .withLane(JobLane.INTERACTIVE)
                                     .create());
 
     this.attachmentId = attachmentId;
@@ -42,6 +42,7 @@ public class DirectoryRefreshJob extends ContextJob {
   {
     super(context, JobParameters.newBuilder()
                                 .withGroupId(DirectoryRefreshJob.class.getSimpleName())
+                                .withCoalescingKey(DirectoryRefreshJob.class.getSimpleName() + ":" + (recipient != null ? recipient.getAddress().serialize() : "all") + ":" + notifyOfNewUsers)
                                 .withNetworkRequirement()
                                 .create());
 
@@ -83,18 +83,15 @@ public class LocalBackupJob extends ContextJob {
         throw new IOException("Backup password is null");
       }
 
-      File tempFile = File.createTempFile("backup", "tmp", StorageUtil.getBackupCacheDirectory(context));
-
-      FullBackupExporter.export(context,
-                                AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                DatabaseFactory.getBackupDatabase(context),
-                                tempFile,
-                                backupPassword);
-
-      if (!tempFile.renameTo(backupFile)) {
-        tempFile.delete();
-        throw new IOException("Renaming temporary backup file failed!");
-      }
+      File written = FullBackupExporter.exportIncremental(context,
+                                                         AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                                         DatabaseFactory.getBackupDatabase(context),
+                                                         backupDirectory,
+                                                         StorageUtil.getBackupCacheDirectory(context),
+                                                         fileName,
+                                                         backupPassword);
+
+      Log.i(TAG, "Wrote " + written.getName());
 
       BackupUtil.deleteOldBackups();
     } finally {
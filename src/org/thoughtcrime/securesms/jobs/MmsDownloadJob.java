@@ -22,6 +22,7 @@ import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MessagingDatabase.InsertResult;
 import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.mms.ApnUnavailableException;
 import org.thoughtcrime.securesms.mms.CompatMmsConnection;
@@ -71,6 +72,7 @@ public class MmsDownloadJob extends ContextJob {
   public MmsDownloadJob(Context context, long messageId, long threadId, boolean automatic) {
     super(context, JobParameters.newBuilder()
                                 .withGroupId("mms-operation")
+                                .withLane(JobLane.INBOUND)
                                 .create());
 
     this.messageId = messageId;
@@ -121,6 +123,7 @@ public class MmsDownloadJob extends ContextJob {
       }
 
       database.markDownloadState(messageId, MmsDatabase.Status.DOWNLOAD_CONNECTING);
+      MessageNotifier.updateNotificationContent(context, threadId);
 
       String contentLocation = notification.get().getContentLocation();
       byte[] transactionId   = new byte[0];
@@ -161,15 +164,19 @@ public class MmsDownloadJob extends ContextJob {
     } catch (DuplicateMessageException e) {
       Log.w(TAG, e);
       database.markAsDecryptDuplicate(messageId, threadId);
+      MessageNotifier.updateNotificationContent(context, threadId);
     } catch (LegacyMessageException e) {
       Log.w(TAG, e);
       database.markAsLegacyVersion(messageId, threadId);
+      MessageNotifier.updateNotificationContent(context, threadId);
     } catch (NoSessionException e) {
       Log.w(TAG, e);
       database.markAsNoSession(messageId, threadId);
+      MessageNotifier.updateNotificationContent(context, threadId);
     } catch (InvalidMessageException e) {
       Log.w(TAG, e);
       database.markAsDecryptFailed(messageId, threadId);
+      MessageNotifier.updateNotificationContent(context, threadId);
     }
   }
 
@@ -181,6 +188,8 @@ public class MmsDownloadJob extends ContextJob {
     if (automatic) {
       database.markIncomingNotificationReceived(threadId);
       MessageNotifier.updateNotification(context, threadId);
+    } else {
+      MessageNotifier.updateNotificationContent(context, threadId);
     }
   }
 
@@ -269,6 +278,8 @@ public class MmsDownloadJob extends ContextJob {
     if (automatic) {
       db.markIncomingNotificationReceived(threadId);
       MessageNotifier.updateNotification(context, threadId);
+    } else {
+      MessageNotifier.updateNotificationContent(context, threadId);
     }
   }
 }
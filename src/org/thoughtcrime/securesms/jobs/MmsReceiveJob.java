@@ -17,6 +17,7 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Base64;
@@ -44,7 +45,7 @@ public class MmsReceiveJob extends ContextJob {
   }
 
   public MmsReceiveJob(Context context, byte[] data, int subscriptionId) {
-    super(context, JobParameters.newBuilder().create());
+    super(context, JobParameters.newBuilder().withLane(JobLane.INBOUND).create());
 
     this.data           = data;
     this.subscriptionId = subscriptionId;
@@ -47,6 +47,7 @@ public class MultiDeviceBlockedUpdateJob extends ContextJob implements Injectabl
     super(context, JobParameters.newBuilder()
                                 .withNetworkRequirement()
                                 .withGroupId(MultiDeviceBlockedUpdateJob.class.getSimpleName())
+                                .withCoalescingKey(MultiDeviceBlockedUpdateJob.class.getSimpleName())
                                 .create());
   }
 
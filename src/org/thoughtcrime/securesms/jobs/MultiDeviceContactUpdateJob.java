@@ -89,6 +89,7 @@ public class MultiDeviceContactUpdateJob extends ContextJob implements Injectabl
     super(context, JobParameters.newBuilder()
                                 .withNetworkRequirement()
                                 .withGroupId(MultiDeviceContactUpdateJob.class.getSimpleName())
+                                .withCoalescingKey(MultiDeviceContactUpdateJob.class.getSimpleName() + ":" + (address != null ? address.serialize() : "all") + ":" + forceSync)
                                 .create());
 
     this.forceSync = forceSync;
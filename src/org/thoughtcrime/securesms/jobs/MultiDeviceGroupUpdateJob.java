@@ -54,6 +54,7 @@ public class MultiDeviceGroupUpdateJob extends ContextJob implements InjectableT
     super(context, JobParameters.newBuilder()
                                 .withNetworkRequirement()
                                 .withGroupId(MultiDeviceGroupUpdateJob.class.getSimpleName())
+                                .withCoalescingKey(MultiDeviceGroupUpdateJob.class.getSimpleName())
                                 .create());
   }
 
@@ -6,6 +6,7 @@ import android.support.annotation.NonNull;
 import org.thoughtcrime.securesms.jobmanager.SafeData;
 import org.thoughtcrime.securesms.logging.Log;
 
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.libsignal.InvalidVersionException;
@@ -25,7 +26,7 @@ public class PushContentReceiveJob extends PushReceivedJob {
   }
 
   public PushContentReceiveJob(Context context) {
-    super(context, JobParameters.newBuilder().create());
+    super(context, JobParameters.newBuilder().withLane(JobLane.INBOUND).create());
   }
 
   @Override
@@ -55,6 +55,7 @@ import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.groups.GroupMessageProcessor;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.jobmanager.SafeData;
 import org.thoughtcrime.securesms.linkpreview.Link;
@@ -142,6 +143,7 @@ public class PushDecryptJob extends ContextJob {
   public PushDecryptJob(Context context, long pushMessageId, long smsMessageId) {
     super(context, JobParameters.newBuilder()
                                 .withGroupId("__PUSH_DECRYPT_JOB__")
+                                .withLane(JobLane.INBOUND)
                                 .create());
     this.messageId    = pushMessageId;
     this.smsMessageId = smsMessageId;
@@ -162,20 +164,17 @@ public class PushDecryptJob extends ContextJob {
 
   @Override
   public void onRun() throws NoSuchMessageException {
-    synchronized (PushReceivedJob.RECEIVE_LOCK) {
-      if (needsMigration()) {
-        Log.w(TAG, "Skipping, waiting for migration...");
-        postMigrationNotification();
-        return;
-      }
+    if (needsMigration()) {
+      Log.w(TAG, "Skipping, waiting for migration...");
+      postMigrationNotification();
+      return;
+    }
 
-      PushDatabase          database             = DatabaseFactory.getPushDatabase(context);
-      SignalServiceEnvelope envelope             = database.get(messageId);
-      Optional<Long>        optionalSmsMessageId = smsMessageId > 0 ? Optional.of(smsMessageId) : Optional.absent();
+    PushDatabase          database             = DatabaseFactory.getPushDatabase(context);
+    SignalServiceEnvelope envelope             = database.get(messageId);
+    Optional<Long>        optionalSmsMessageId = smsMessageId > 0 ? Optional.of(smsMessageId) : Optional.absent();
 
-      handleMessage(envelope, optionalSmsMessageId);
-      database.delete(messageId);
-    }
+    ReceivePipeline.getInstance(context).processAndWait(messageId, envelope, optionalSmsMessageId);
   }
 
   @Override
@@ -188,24 +187,11 @@ public class PushDecryptJob extends ContextJob {
 
   }
 
-  public void processMessage(@NonNull SignalServiceEnvelope envelope) {
-    synchronized (PushReceivedJob.RECEIVE_LOCK) {
-      if (needsMigration()) {
-        Log.w(TAG, "Skipping and storing envelope, waiting for migration...");
-        DatabaseFactory.getPushDatabase(context).insert(envelope);
-        postMigrationNotification();
-        return;
-      }
-
-      handleMessage(envelope, Optional.absent());
-    }
-  }
-
-  private boolean needsMigration() {
+  boolean needsMigration() {
     return !IdentityKeyUtil.hasIdentityKey(context) || TextSecurePreferences.getNeedsSqlCipherMigration(context);
   }
 
-  private void postMigrationNotification() {
+  void postMigrationNotification() {
     NotificationManagerCompat.from(context).notify(494949,
                                                    new NotificationCompat.Builder(context, NotificationChannels.getMessagesChannel(context))
                                                                          .setSmallIcon(R.drawable.icon_notification)
@@ -219,14 +205,51 @@ public class PushDecryptJob extends ContextJob {
 
   }
 
-  private void handleMessage(@NonNull SignalServiceEnvelope envelope, @NonNull Optional<Long> smsMessageId) {
+  /**
+   * Decrypts an envelope, deferring everything else that has to happen with it to the returned
+   * {@link DecryptedEnvelope}. Envelopes have to be decrypted in the order they arrived, but only
+   * need to be processed in order relative to others from the same sender.
+   */
+  @NonNull DecryptedEnvelope decrypt(@NonNull SignalServiceEnvelope envelope, @NonNull Optional<Long> smsMessageId) {
     try {
-      GroupDatabase        groupDatabase = DatabaseFactory.getGroupDatabase(context);
-      SignalProtocolStore  axolotlStore  = new SignalProtocolStoreImpl(context);
-      SignalServiceAddress localAddress  = new SignalServiceAddress(TextSecurePreferences.getLocalNumber(context));
-      SignalServiceCipher  cipher        = new SignalServiceCipher(localAddress, axolotlStore, UnidentifiedAccessUtil.getCertificateValidator());
+      SignalProtocolStore  axolotlStore = new SignalProtocolStoreImpl(context);
+      SignalServiceAddress localAddress = new SignalServiceAddress(TextSecurePreferences.getLocalNumber(context));
+      SignalServiceCipher  cipher       = new SignalServiceCipher(localAddress, axolotlStore, UnidentifiedAccessUtil.getCertificateValidator());
 
       SignalServiceContent content = cipher.decrypt(envelope);
+      String               sender  = content != null ? content.getSender() : envelope.getSource();
+
+      return new DecryptedEnvelope(sender, () -> handleContent(envelope, content, smsMessageId));
+    } catch (ProtocolInvalidVersionException e) {
+      Log.w(TAG, e);
+      return new DecryptedEnvelope(e.getSender(), () -> handleInvalidVersionMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId));
+    } catch (ProtocolInvalidMessageException  e) {
+      Log.w(TAG, e);
+      return new DecryptedEnvelope(e.getSender(), () -> handleCorruptMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId));
+    } catch (ProtocolInvalidKeyIdException | ProtocolInvalidKeyException | ProtocolUntrustedIdentityException e) {
+      Log.w(TAG, e);
+      return new DecryptedEnvelope(e.getSender(), () -> handleCorruptMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId));
+    } catch (ProtocolNoSessionException e) {
+      Log.w(TAG, e);
+      return new DecryptedEnvelope(e.getSender(), () -> handleNoSessionMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId));
+    } catch (ProtocolLegacyMessageException e) {
+      Log.w(TAG, e);
+      return new DecryptedEnvelope(e.getSender(), () -> handleLegacyMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId));
+    } catch (ProtocolDuplicateMessageException e) {
+      Log.w(TAG, e);
+      return new DecryptedEnvelope(e.getSender(), () -> handleDuplicateMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId));
+    } catch (InvalidMetadataVersionException | InvalidMetadataMessageException e) {
+      Log.w(TAG, e);
+      return new DecryptedEnvelope(envelope.getSource(), () -> {});
+    } catch (SelfSendException e) {
+      Log.i(TAG, "Dropping UD message from self.");
+      return new DecryptedEnvelope(envelope.getSource(), () -> {});
+    }
+  }
+
+  private void handleContent(@NonNull SignalServiceEnvelope envelope, @Nullable SignalServiceContent content, @NonNull Optional<Long> smsMessageId) {
+    try {
+      GroupDatabase groupDatabase = DatabaseFactory.getGroupDatabase(context);
 
       if (shouldIgnore(content)) {
         Log.i(TAG, "Ignoring message.");
@@ -287,32 +310,9 @@ public class PushDecryptJob extends ContextJob {
       if (envelope.isPreKeySignalMessage()) {
         ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
       }
-    } catch (ProtocolInvalidVersionException e) {
-      Log.w(TAG, e);
-      handleInvalidVersionMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId);
-    } catch (ProtocolInvalidMessageException  e) {
-      Log.w(TAG, e);
-      handleCorruptMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId);
-    }
-    catch (ProtocolInvalidKeyIdException | ProtocolInvalidKeyException | ProtocolUntrustedIdentityException e) {
-      Log.w(TAG, e);
-      handleCorruptMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId);
     } catch (StorageFailedException e) {
       Log.w(TAG, e);
       handleCorruptMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId);
-    } catch (ProtocolNoSessionException e) {
-      Log.w(TAG, e);
-      handleNoSessionMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId);
-    } catch (ProtocolLegacyMessageException e) {
-      Log.w(TAG, e);
-      handleLegacyMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId);
-    } catch (ProtocolDuplicateMessageException e) {
-      Log.w(TAG, e);
-      handleDuplicateMessage(e.getSender(), e.getSenderDevice(), envelope.getTimestamp(), smsMessageId);
-    } catch (InvalidMetadataVersionException | InvalidMetadataMessageException e) {
-      Log.w(TAG, e);
-    } catch (SelfSendException e) {
-      Log.i(TAG, "Dropping UD message from self.");
     }
   }
 
@@ -1163,6 +1163,28 @@ public class PushDecryptJob extends ContextJob {
     return false;
   }
 
+  static class DecryptedEnvelope {
+
+    private final String   sender;
+    private final Runnable process;
+
+    private DecryptedEnvelope(@Nullable String sender, @NonNull Runnable process) {
+      this.sender  = sender;
+      this.process = process;
+    }
+
+    /**
+     * @return The sender, if it could be determined.
+     */
+    @Nullable String getSender() {
+      return sender;
+    }
+
+    void process() {
+      process.run();
+    }
+  }
+
   @SuppressWarnings("WeakerAccess")
   private static class StorageFailedException extends Exception {
     private final String sender;
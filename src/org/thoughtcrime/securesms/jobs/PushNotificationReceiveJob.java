@@ -5,6 +5,7 @@ import android.support.annotation.NonNull;
 
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.jobmanager.SafeData;
 import org.thoughtcrime.securesms.logging.Log;
@@ -13,6 +14,7 @@ import org.whispersystems.signalservice.api.SignalServiceMessageReceiver;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
@@ -33,6 +35,7 @@ public class PushNotificationReceiveJob extends PushReceivedJob implements Injec
     super(context, JobParameters.newBuilder()
                                 .withNetworkRequirement()
                                 .withGroupId("__notification_received")
+                                .withLane(JobLane.INBOUND)
                                 .create());
   }
 
@@ -56,15 +59,20 @@ public class PushNotificationReceiveJob extends PushReceivedJob implements Injec
   }
 
   public void pullAndProcessMessages(SignalServiceMessageReceiver receiver, String tag, long startTime) throws IOException {
-    synchronized (PushReceivedJob.RECEIVE_LOCK) {
-      receiver.retrieveMessages(envelope -> {
-        Log.i(tag, "Retrieved an envelope." + timeSuffix(startTime));
-        processEnvelope(envelope);
-        Log.i(tag, "Successfully processed an envelope." + timeSuffix(startTime));
-      });
-      TextSecurePreferences.setNeedsMessagePull(context, false);
+    receiver.retrieveMessages(envelope -> {
+      Log.i(tag, "Retrieved an envelope." + timeSuffix(startTime));
+      processEnvelope(envelope);
+      Log.i(tag, "Successfully queued an envelope." + timeSuffix(startTime));
+    });
+    TextSecurePreferences.setNeedsMessagePull(context, false);
+
+    if (!ReceivePipeline.getInstance(context).awaitIdle(TimeUnit.SECONDS.toMillis(30))) {
+      Log.w(tag, "Envelopes still being processed." + timeSuffix(startTime));
+    } else {
+      Log.i(tag, "Finished processing envelopes." + timeSuffix(startTime));
     }
   }
+
   @Override
   public boolean onShouldRetry(Exception e) {
     Log.w(TAG, e);
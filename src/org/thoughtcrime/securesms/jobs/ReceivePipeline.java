@@ -0,0 +1,486 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.crypto.storage.PendingStoreWrites;
+import org.thoughtcrime.securesms.database.Address;
+import org.thoughtcrime.securesms.database.DatabaseBatch;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.PushDatabase;
+import org.thoughtcrime.securesms.database.RecipientDatabase;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes incoming envelopes in two stages.
+ *
+ * Decryption runs on a single thread in the order envelopes arrived, which is what the session
+ * state needs. Everything after that, which is mostly database work, runs on a few lanes picked
+ * by sender, so that envelopes from one sender are handled in order while different senders are
+ * handled in parallel. Two senders can still write to the same conversation at once, so creating
+ * a thread and applying a group update each happen in a transaction of their own.
+ *
+ * Envelopes are written to the {@link PushDatabase} before they're acknowledged and deleted once
+ * they've been handled, so any that were still in the pipeline when the process died are picked
+ * up again the next time it starts. The session updates made by decrypting an envelope are held
+ * in {@link PendingStoreWrites} and stored in the same transaction as its handling and deletion,
+ * so an envelope that's picked up again can still be decrypted. Protocol errors are turned into
+ * error messages and handled like any other envelope, while one that fails to decrypt for any
+ * other reason has its session updates dropped and stays stored until the next start.
+ */
+public class ReceivePipeline {
+
+  private static final String TAG = ReceivePipeline.class.getSimpleName();
+
+  private static final int LANE_COUNT     = 4;
+  private static final int MAX_BATCH_SIZE = 50;
+
+  private static volatile ReceivePipeline instance;
+
+  private final Context           context;
+  private final ExecutorService   decryptExecutor;
+  private final Lane[]            lanes;
+  private final Stage             decryptStage;
+  private final Stage             processStage;
+  private final Set<Long>         inFlight;
+
+  private long burstStartTime;
+  private int  burstCount;
+
+  public static ReceivePipeline getInstance(@NonNull Context context) {
+    if (instance == null) {
+      synchronized (ReceivePipeline.class) {
+        if (instance == null) {
+          instance = new ReceivePipeline(context.getApplicationContext());
+        }
+      }
+    }
+
+    return instance;
+  }
+
+  private ReceivePipeline(@NonNull Context context) {
+    this.context         = context;
+    this.decryptExecutor = SignalExecutors.newCachedSingleThreadExecutor("signal-decrypt");
+    this.lanes           = new Lane[LANE_COUNT];
+    this.decryptStage    = new Stage();
+    this.processStage    = new Stage();
+    this.inFlight        = new HashSet<>();
+
+    for (int i = 0; i < LANE_COUNT; i++) {
+      lanes[i] = new Lane(SignalExecutors.newCachedSingleThreadExecutor("signal-receive-" + i));
+    }
+
+    decryptExecutor.execute(this::requeueStored);
+  }
+
+  /**
+   * Stores an envelope and queues it for processing. Once this returns the envelope can be
+   * acknowledged to the server.
+   */
+  public void enqueue(@NonNull SignalServiceEnvelope envelope) {
+    long pushId = DatabaseFactory.getPushDatabase(context).insertQueued(envelope);
+    submit(pushId, envelope, Optional.absent(), null);
+  }
+
+  /**
+   * Runs an envelope that's already in the {@link PushDatabase} through the pipeline, and waits
+   * for it to be handled.
+   */
+  void processAndWait(long pushId, @NonNull SignalServiceEnvelope envelope, @NonNull Optional<Long> smsMessageId) {
+    CountDownLatch latch = new CountDownLatch(1);
+
+    if (submit(pushId, envelope, smsMessageId, latch)) {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * Waits until nothing is left in the pipeline, or the timeout passes.
+   *
+   * @return True if the pipeline is empty.
+   */
+  public synchronized boolean awaitIdle(long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    try {
+      while (!inFlight.isEmpty() && System.currentTimeMillis() < deadline) {
+        wait(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+
+    return inFlight.isEmpty();
+  }
+
+  /**
+   * @return True if the stored envelope has been queued and not handled yet.
+   */
+  public synchronized boolean isInFlight(long pushId) {
+    return inFlight.contains(pushId);
+  }
+
+  /**
+   * @return The number of envelopes waiting to be decrypted, or being decrypted.
+   */
+  public int getDecryptQueueDepth() {
+    return decryptStage.getDepth();
+  }
+
+  /**
+   * @return The number of decrypted envelopes waiting to be handled, or being handled.
+   */
+  public int getProcessQueueDepth() {
+    return processStage.getDepth();
+  }
+
+  private void requeueStored() {
+    PushDatabase.Reader   reader = DatabaseFactory.getPushDatabase(context).readQueued();
+    SignalServiceEnvelope envelope;
+    int                   count  = 0;
+
+    try {
+      while ((envelope = reader.getNext()) != null) {
+        if (submit(reader.getCurrentId(), envelope, Optional.absent(), null)) {
+          count++;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    if (count > 0) {
+      Log.i(TAG, "Requeued " + count + " stored envelopes.");
+    }
+  }
+
+  private boolean submit(long pushId, @NonNull SignalServiceEnvelope envelope, @NonNull Optional<Long> smsMessageId, @Nullable CountDownLatch latch) {
+    synchronized (this) {
+      if (!inFlight.add(pushId)) {
+        Log.w(TAG, "Envelope " + pushId + " is already in the pipeline.");
+        return false;
+      }
+
+      if (inFlight.size() == 1) {
+        burstStartTime = System.currentTimeMillis();
+        burstCount     = 0;
+      }
+
+      burstCount++;
+    }
+
+    decryptStage.onQueued();
+    decryptExecutor.execute(() -> decrypt(pushId, envelope, smsMessageId, latch));
+
+    return true;
+  }
+
+  private void decrypt(long pushId, @NonNull SignalServiceEnvelope envelope, @NonNull Optional<Long> smsMessageId, @Nullable CountDownLatch latch) {
+    long               startTime   = System.currentTimeMillis();
+    PendingStoreWrites storeWrites = PendingStoreWrites.begin();
+    String             sender;
+    Runnable           process;
+
+    try {
+      PushDecryptJob decryptJob = new PushDecryptJob(context);
+
+      if (decryptJob.needsMigration()) {
+        Log.w(TAG, "Keeping envelope stored, waiting for migration...");
+        decryptJob.postMigrationNotification();
+        decryptStage.onFinished(System.currentTimeMillis() - startTime);
+        onFinished(pushId, false, latch);
+        return;
+      }
+
+      if (envelope.isReceipt()) {
+        sender  = envelope.getSource();
+        process = () -> handleReceipt(envelope);
+      } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
+        PushDecryptJob.DecryptedEnvelope decrypted = decryptJob.decrypt(envelope, smsMessageId);
+
+        sender  = decrypted.getSender();
+        process = decrypted::process;
+      } else {
+        Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+        sender  = envelope.getSource();
+        process = () -> {};
+      }
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to decrypt envelope " + pushId + ", keeping it stored to retry on the next start.", e);
+      sender  = null;
+      process = null;
+    } finally {
+      storeWrites.finish();
+    }
+
+    decryptStage.onFinished(System.currentTimeMillis() - startTime);
+
+    if (process != null) {
+      getLane(sender).add(new Decrypted(pushId, envelope, process, storeWrites, latch));
+    } else {
+      storeWrites.discard();
+      onFinished(pushId, false, latch);
+    }
+  }
+
+  private void process(@NonNull Decrypted decrypted) {
+    try {
+      if (decrypted.envelope.hasSource()) {
+        updateRegisteredState(decrypted.envelope.getSource());
+      }
+
+      decrypted.process.run();
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to process envelope " + decrypted.pushId, e);
+    }
+  }
+
+  private void onFinished(long pushId, boolean delete, @Nullable CountDownLatch latch) {
+    if (delete) {
+      DatabaseFactory.getPushDatabase(context).delete(pushId);
+    }
+
+    synchronized (this) {
+      inFlight.remove(pushId);
+
+      if (inFlight.isEmpty()) {
+        Log.i(TAG, "Drained " + burstCount + " envelopes in " + (System.currentTimeMillis() - burstStartTime) + " ms" +
+                   " (decrypt: " + decryptStage.reset() + ", process: " + processStage.reset() + ")");
+        notifyAll();
+      }
+    }
+
+    if (latch != null) {
+      latch.countDown();
+    }
+  }
+
+  private @NonNull Lane getLane(@Nullable String sender) {
+    if (sender == null) return lanes[0];
+    else                return lanes[(sender.hashCode() & Integer.MAX_VALUE) % LANE_COUNT];
+  }
+
+  private void updateRegisteredState(@NonNull String source) {
+    Recipient recipient = Recipient.from(context, Address.fromExternal(context, source), false);
+
+    if (recipient.resolve().getRegistered() != RecipientDatabase.RegisteredState.REGISTERED) {
+      DatabaseFactory.getRecipientDatabase(context).setRegistered(recipient, RecipientDatabase.RegisteredState.REGISTERED);
+      ApplicationContext.getInstance(context).getJobManager().add(new DirectoryRefreshJob(context, recipient, false));
+    }
+  }
+
+  @SuppressLint("DefaultLocale")
+  private void handleReceipt(@NonNull SignalServiceEnvelope envelope) {
+    Log.i(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
+    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCount(new SyncMessageId(Address.fromExternal(context, envelope.getSource()),
+                                                                                               envelope.getTimestamp()), System.currentTimeMillis());
+  }
+
+  private static class Decrypted {
+
+    private final long                  pushId;
+    private final SignalServiceEnvelope envelope;
+    private final Runnable              process;
+    private final PendingStoreWrites    storeWrites;
+    private final CountDownLatch        latch;
+
+    private Decrypted(long pushId,
+                      @NonNull SignalServiceEnvelope envelope,
+                      @NonNull Runnable process,
+                      @NonNull PendingStoreWrites storeWrites,
+                      @Nullable CountDownLatch latch)
+    {
+      this.pushId      = pushId;
+      this.envelope    = envelope;
+      this.process     = process;
+      this.storeWrites = storeWrites;
+      this.latch       = latch;
+    }
+  }
+
+  /**
+   * Handles decrypted envelopes in order on a single thread, each in a {@link DatabaseBatch} along
+   * with its session updates. When envelopes queue up faster than they're handled, which is what
+   * happens while catching up on a backlog, everything that's waiting shares one batch.
+   */
+  private class Lane {
+
+    private final ExecutorService  executor;
+    private final Queue<Decrypted> pending;
+
+    private Lane(@NonNull ExecutorService executor) {
+      this.executor = executor;
+      this.pending  = new ConcurrentLinkedQueue<>();
+    }
+
+    void add(@NonNull Decrypted decrypted) {
+      processStage.onQueued();
+      pending.add(decrypted);
+      executor.execute(this::drain);
+    }
+
+    private void drain() {
+      List<Decrypted> batch = new ArrayList<>(1);
+      Decrypted       decrypted;
+
+      while (batch.size() < MAX_BATCH_SIZE && (decrypted = pending.poll()) != null) {
+        batch.add(decrypted);
+      }
+
+      if (batch.size() > 1 && processBatch(batch)) {
+        return;
+      }
+
+      for (Decrypted item : batch) {
+        processSingle(item);
+      }
+    }
+
+    /**
+     * Handles the envelope, stores its session updates and deletes it from the
+     * {@link PushDatabase} in one transaction. If that's rolled back, the envelope is dropped as it
+     * would have been if handling it had failed, with its session updates still stored.
+     */
+    private void processSingle(@NonNull Decrypted decrypted) {
+      long          startTime     = System.currentTimeMillis();
+      PushDatabase  pushDatabase  = DatabaseFactory.getPushDatabase(context);
+      DatabaseBatch databaseBatch = DatabaseFactory.beginBatch(context);
+
+      try {
+        try {
+          process(decrypted);
+          decrypted.storeWrites.commit(context);
+          pushDatabase.delete(decrypted.pushId);
+
+          databaseBatch.commit();
+        } finally {
+          databaseBatch.end();
+        }
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+      }
+
+      try {
+        if (!databaseBatch.isCommitted()) {
+          Log.w(TAG, "Failed to handle envelope " + decrypted.pushId + ", dropping it.");
+          decrypted.storeWrites.commit(context);
+          pushDatabase.delete(decrypted.pushId);
+        }
+      } finally {
+        decrypted.storeWrites.onCommitted();
+        processStage.onFinished(System.currentTimeMillis() - startTime);
+        onFinished(decrypted.pushId, false, decrypted.latch);
+      }
+    }
+
+    /**
+     * Handles the envelopes, stores their session updates and deletes them from the
+     * {@link PushDatabase} in one transaction.
+     *
+     * @return False if the transaction was rolled back, in which case the envelopes are still
+     *         stored and have to be handled one by one.
+     */
+    private boolean processBatch(@NonNull List<Decrypted> batch) {
+      long          startTime     = System.currentTimeMillis();
+      PushDatabase  pushDatabase  = DatabaseFactory.getPushDatabase(context);
+      DatabaseBatch databaseBatch = DatabaseFactory.beginBatch(context);
+
+      try {
+        try {
+          for (Decrypted decrypted : batch) {
+            process(decrypted);
+            decrypted.storeWrites.commit(context);
+            pushDatabase.delete(decrypted.pushId);
+          }
+
+          databaseBatch.commit();
+        } finally {
+          databaseBatch.end();
+        }
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+      }
+
+      if (!databaseBatch.isCommitted()) {
+        Log.w(TAG, "Batch of " + batch.size() + " envelopes was rolled back, handling them individually.");
+        return false;
+      }
+
+      long elapsed = System.currentTimeMillis() - startTime;
+
+      Log.i(TAG, "Handled a batch of " + batch.size() + " envelopes in " + elapsed + " ms");
+
+      for (Decrypted decrypted : batch) {
+        decrypted.storeWrites.onCommitted();
+        processStage.onFinished(elapsed / batch.size());
+        onFinished(decrypted.pushId, false, decrypted.latch);
+      }
+
+      return true;
+    }
+  }
+
+  /**
+   * Queue depth and timing for one stage, with the peak depth and totals covering the time since
+   * the pipeline was last empty.
+   */
+  private static class Stage {
+
+    private final AtomicInteger depth     = new AtomicInteger();
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicLong    busyTime  = new AtomicLong();
+
+    void onQueued() {
+      int current = depth.incrementAndGet();
+      int peak;
+
+      while (current > (peak = peakDepth.get()) && !peakDepth.compareAndSet(peak, current));
+    }
+
+    void onFinished(long elapsed) {
+      depth.decrementAndGet();
+      completed.incrementAndGet();
+      busyTime.addAndGet(elapsed);
+    }
+
+    int getDepth() {
+      return depth.get();
+    }
+
+    /**
+     * @return A summary of the stats since the last reset.
+     */
+    @NonNull String reset() {
+      int  count = completed.getAndSet(0);
+      long time  = busyTime.getAndSet(0);
+      int  peak  = peakDepth.getAndSet(depth.get());
+
+      return "peak depth " + peak + ", " + (count > 0 ? time / count : 0) + " ms avg";
+    }
+  }
+}
@@ -38,6 +38,7 @@ public class RefreshAttributesJob extends ContextJob implements InjectableType {
     super(context, JobParameters.newBuilder()
                                 .withNetworkRequirement()
                                 .withGroupId(RefreshAttributesJob.class.getName())
+                                .withCoalescingKey(RefreshAttributesJob.class.getName())
                                 .create());
   }
 
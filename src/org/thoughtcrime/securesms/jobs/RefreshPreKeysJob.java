@@ -42,6 +42,7 @@ public class RefreshPreKeysJob extends MasterSecretJob implements InjectableType
   public RefreshPreKeysJob(Context context) {
     super(context, JobParameters.newBuilder()
                                 .withGroupId(RefreshPreKeysJob.class.getSimpleName())
+                                .withCoalescingKey(RefreshPreKeysJob.class.getSimpleName())
                                 .withNetworkRequirement()
                                 .withRetryCount(5)
                                 .create());
@@ -0,0 +1,93 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.jobmanager.SafeData;
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import androidx.work.Data;
+import androidx.work.WorkerParameters;
+
+/**
+ * Merges the segments of the full-text search indexes, which otherwise only ever grow in number as
+ * messages are inserted and deleted, making every search slower. The work is done in small steps
+ * under a time budget while the device is idle and charging, and picks up again on the next run if
+ * the budget runs out.
+ */
+public class SearchIndexMaintenanceJob extends ContextJob {
+
+  private static final String TAG = SearchIndexMaintenanceJob.class.getSimpleName();
+
+  private static final long TIME_BUDGET  = TimeUnit.SECONDS.toMillis(20);
+  private static final int  MERGE_PAGES  = 200;
+
+  /**
+   * Merging rewrites the whole index, so it's only worth it once enough segments have piled up.
+   */
+  private static final int  MIN_SEGMENTS = 8;
+
+  public SearchIndexMaintenanceJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
+    super(context, workerParameters);
+  }
+
+  public SearchIndexMaintenanceJob(@NonNull Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId("__SEARCH_INDEX_MAINTENANCE__")
+                                .withDuplicatesIgnored(true)
+                                .withIdleChargingRequirement()
+                                .create());
+  }
+
+  @Override
+  protected void initialize(@NonNull SafeData data) {
+  }
+
+  @Override
+  protected @NonNull Data serialize(@NonNull Data.Builder dataBuilder) {
+    return dataBuilder.build();
+  }
+
+  @Override
+  public void onRun() {
+    SearchDatabase searchDatabase = DatabaseFactory.getSearchDatabase(context);
+    long           deadline       = System.currentTimeMillis() + TIME_BUDGET;
+
+    for (String table : SearchDatabase.FTS_TABLE_NAMES) {
+      SearchDatabase.IndexHealth before = searchDatabase.getIndexHealth(table);
+
+      if (before.getSegments() < MIN_SEGMENTS) {
+        Log.i(TAG, "Not worth merging. " + before);
+        continue;
+      }
+
+      long    startTime = System.currentTimeMillis();
+      int     steps     = 0;
+      boolean more      = true;
+
+      while (more && System.currentTimeMillis() < deadline && !isStopped()) {
+        more = searchDatabase.mergeIndex(table, MERGE_PAGES, steps == 0);
+        steps++;
+      }
+
+      SearchDatabase.IndexHealth after = searchDatabase.getIndexHealth(table);
+
+      Log.i(TAG, "Merged in " + steps + " steps, " + (System.currentTimeMillis() - startTime) + " ms" + (more ? ", out of time" : "") + ". " +
+                 "Before: " + before + ". After: " + after + ". Search latency: " + searchDatabase.getQueryLatency());
+    }
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception e) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+  }
+}
@@ -11,6 +11,7 @@ import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MessagingDatabase.InsertResult;
 import org.thoughtcrime.securesms.database.SmsDatabase;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.recipients.Recipient;
@@ -46,6 +47,7 @@ public class SmsReceiveJob extends ContextJob {
   public SmsReceiveJob(@NonNull Context context, @Nullable Object[] pdus, int subscriptionId) {
     super(context, JobParameters.newBuilder()
                                 .withSqlCipherRequirement()
+                                .withLane(JobLane.INBOUND)
                                 .create());
 
     this.pdus           = pdus;
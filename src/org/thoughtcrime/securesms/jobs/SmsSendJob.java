@@ -26,6 +26,7 @@ import org.thoughtcrime.securesms.transport.RetryLaterException;
 import org.thoughtcrime.securesms.transport.UndeliverableMessageException;
 import org.thoughtcrime.securesms.util.NumberUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 
 import java.util.ArrayList;
@@ -251,7 +252,8 @@ public class SmsSendJob extends SendJob {
   private static JobParameters constructParameters(String name) {
     JobParameters.Builder builder = JobParameters.newBuilder()
                                                  .withRetryCount(MAX_ATTEMPTS)
-                                                 .withGroupId(name);
+                                                 .withGroupId(name)
+                                                 .withLane(JobLane.INTERACTIVE);
     return builder.create();
   }
 
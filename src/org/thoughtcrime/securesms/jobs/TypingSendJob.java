@@ -8,6 +8,7 @@ import com.annimon.stream.Stream;
 import org.thoughtcrime.securesms.crypto.UnidentifiedAccessUtil;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
+import org.thoughtcrime.securesms.jobmanager.JobLane;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.jobmanager.SafeData;
 import org.thoughtcrime.securesms.logging.Log;
@@ -48,6 +49,7 @@ public class TypingSendJob extends ContextJob implements InjectableType {
   public TypingSendJob(Context context, long threadId, boolean typing) {
     super(context, JobParameters.newBuilder()
                                 .withGroupId("TYPING_" + threadId)
+                                .withLane(JobLane.INTERACTIVE)
                                 .withRetryCount(1)
                                 .create());
 
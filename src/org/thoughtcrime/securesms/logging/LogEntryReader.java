@@ -0,0 +1,123 @@
+package org.thoughtcrime.securesms.logging;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Lazily decrypts persisted log files, oldest entry first, one block at a time. Only a single
+ * block is held in memory, so the full log never has to be materialized at once.
+ */
+public class LogEntryReader implements Closeable {
+
+  private static final String TAG = LogEntryReader.class.getSimpleName();
+
+  private final byte[]           secret;
+  private final LinkedList<File> files;
+  private final LogFilter        filter;
+
+  private LogFile.Reader reader;
+  private String[]       block;
+  private int            blockIndex;
+  private boolean        lastMatched = true;
+
+  LogEntryReader(@NonNull byte[] secret, @NonNull List<File> files, @NonNull LogFilter filter) {
+    this.secret = secret;
+    this.files  = new LinkedList<>(files);
+    this.filter = filter;
+  }
+
+  /**
+   * @return The next entry that matches the filter, or null once all entries have been read.
+   */
+  @WorkerThread
+  public @Nullable String readEntry() throws IOException {
+    while (true) {
+      if (block != null && blockIndex < block.length) {
+        String  entry   = block[blockIndex++];
+        Boolean matches = filter.matches(entry);
+
+        if (matches != null) {
+          lastMatched = matches;
+        }
+
+        if (lastMatched) {
+          return entry;
+        }
+      } else {
+        String nextBlock = readBlock();
+
+        if (nextBlock == null) {
+          return null;
+        }
+
+        block      = nextBlock.split("\n");
+        blockIndex = 0;
+      }
+    }
+  }
+
+  /**
+   * Writes all remaining matching entries to the stream, one per line.
+   */
+  @WorkerThread
+  public void writeTo(@NonNull OutputStream outputStream) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+
+    String entry;
+    while ((entry = readEntry()) != null) {
+      writer.write(entry);
+      writer.write('\n');
+    }
+
+    writer.flush();
+  }
+
+  @Override
+  public void close() {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+
+    files.clear();
+  }
+
+  private @Nullable String readBlock() throws IOException {
+    while (true) {
+      if (reader == null) {
+        if (files.isEmpty()) {
+          return null;
+        }
+
+        File file = files.removeFirst();
+
+        try {
+          reader = new LogFile.Reader(secret, file);
+        } catch (IOException e) {
+          android.util.Log.w(TAG, "Failed to open log " + file.getName() + ". Skipping.", e);
+          continue;
+        }
+      }
+
+      String nextBlock = reader.readBlock();
+
+      if (nextBlock != null) {
+        return nextBlock;
+      }
+
+      reader.close();
+      reader = null;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.logging;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.Util;
@@ -18,6 +19,7 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -29,20 +31,28 @@ import javax.crypto.spec.SecretKeySpec;
 
 class LogFile {
 
+  /**
+   * Each block in a log file is an IV, a length, and the AES/CBC ciphertext of one or more log
+   * entries separated by newlines. Writing several queued entries as one block means they share a
+   * single cipher init and a single write.
+   */
   public static class Writer {
 
     private final byte[]        ivBuffer         = new byte[16];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
 
-    private final byte[]               secret;
-    private final File                 file;
+    private final SecretKeySpec        secretKey;
+    private final SecureRandom         secureRandom;
     private final Cipher               cipher;
     private final BufferedOutputStream outputStream;
 
+    private long logSize;
+
     Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
-      this.secret       = secret;
-      this.file         = file;
+      this.secretKey    = new SecretKeySpec(secret, "AES");
+      this.secureRandom = new SecureRandom();
       this.outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
+      this.logSize      = file.length();
 
       try {
         this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
@@ -51,12 +61,18 @@ class LogFile {
       }
     }
 
-    void writeEntry(@NonNull String entry) throws IOException {
-      new SecureRandom().nextBytes(ivBuffer);
+    /**
+     * Encrypts all of the entries as a single block. The block is buffered, and only guaranteed
+     * to be on disk after {@link #flush()}.
+     */
+    void writeEntries(@NonNull List<String> entries) throws IOException {
+      if (entries.isEmpty()) return;
+
+      secureRandom.nextBytes(ivBuffer);
 
-      byte[] plaintext = entry.getBytes();
+      byte[] plaintext = Util.join(entries, "\n").getBytes();
       try {
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(ivBuffer));
 
         int    cipherLength = cipher.getOutputSize(plaintext.length);
         byte[] ciphertext   = ciphertextBuffer.get(cipherLength);
@@ -66,14 +82,18 @@ class LogFile {
         outputStream.write(Conversions.intToByteArray(cipherLength));
         outputStream.write(ciphertext, 0, cipherLength);
 
-        outputStream.flush();
+        logSize += ivBuffer.length + 4 + cipherLength;
       } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
         throw new AssertionError(e);
       }
     }
 
+    void flush() throws IOException {
+      outputStream.flush();
+    }
+
     long getLogSize() {
-      return file.length();
+      return logSize;
     }
 
     void close() {
@@ -87,12 +107,12 @@ class LogFile {
     private final byte[]        intBuffer        = new byte[4];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
 
-    private final byte[]              secret;
+    private final SecretKeySpec       secretKey;
     private final Cipher              cipher;
     private final BufferedInputStream inputStream;
 
     Reader(@NonNull byte[] secret, @NonNull File file) throws IOException {
-      this.secret      = secret;
+      this.secretKey   = new SecretKeySpec(secret, "AES");
       this.inputStream = new BufferedInputStream(new FileInputStream(file));
 
       try {
@@ -102,18 +122,11 @@ class LogFile {
       }
     }
 
-    String readAll() throws IOException {
-      StringBuilder builder = new StringBuilder();
-
-      String entry;
-      while ((entry = readEntry()) != null) {
-        builder.append(entry).append('\n');
-      }
-
-      return builder.toString();
-    }
-
-    private String readEntry() throws IOException {
+    /**
+     * @return The next decrypted block, which holds one or more newline-separated entries, or null
+     *         if the end of the file (or an incompletely written block) has been reached.
+     */
+    @Nullable String readBlock() throws IOException {
       try {
         Util.readFully(inputStream, ivBuffer);
         Util.readFully(inputStream, intBuffer);
@@ -124,7 +137,7 @@ class LogFile {
         Util.readFully(inputStream, ciphertext, length);
 
         try {
-          cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+          cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(ivBuffer));
           byte[] plaintext = cipher.doFinal(ciphertext, 0, length);
 
           return new String(plaintext);
@@ -135,5 +148,9 @@ class LogFile {
         return null;
       }
     }
+
+    void close() {
+      Util.close(inputStream);
+    }
   }
 }
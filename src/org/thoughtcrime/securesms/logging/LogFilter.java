@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.logging;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Selects which persisted log entries a {@link LogEntryReader} returns.
+ */
+public class LogFilter {
+
+  public static final LogFilter ALL = new LogFilter(null, null, 0, Long.MAX_VALUE);
+
+  private static final String LEVELS = "VDIWEA";
+
+  private final String minLevel;
+  private final String tag;
+  private final long   startTime;
+  private final long   endTime;
+
+  private SimpleDateFormat dateFormat;
+
+  private LogFilter(@Nullable String minLevel, @Nullable String tag, long startTime, long endTime) {
+    this.minLevel  = minLevel;
+    this.tag       = tag;
+    this.startTime = startTime;
+    this.endTime   = endTime;
+  }
+
+  /**
+   * @param minLevel One of the single-letter levels written by {@link PersistentLogger}, e.g. "W".
+   */
+  public @NonNull LogFilter withMinLevel(@NonNull String minLevel) {
+    return new LogFilter(minLevel, tag, startTime, endTime);
+  }
+
+  public @NonNull LogFilter withTag(@NonNull String tag) {
+    return new LogFilter(minLevel, tag, startTime, endTime);
+  }
+
+  public @NonNull LogFilter withTimeRange(long startTime, long endTime) {
+    return new LogFilter(minLevel, tag, startTime, endTime);
+  }
+
+  /**
+   * @return Whether the entry matches, or null if it isn't a complete entry (e.g. a continuation
+   *         line of a multi-line message) and should follow the entry before it.
+   */
+  @Nullable Boolean matches(@NonNull String entry) {
+    int levelStart = indexAfterSpaces(entry, 3);
+
+    if (levelStart < 0 || levelStart + 2 > entry.length() || entry.charAt(levelStart + 1) != ' ') {
+      return null;
+    }
+
+    int tagEnd = entry.indexOf(": ", levelStart + 2);
+
+    if (tagEnd < 0) {
+      return null;
+    }
+
+    if (minLevel != null && LEVELS.indexOf(entry.charAt(levelStart)) < LEVELS.indexOf(minLevel)) {
+      return false;
+    }
+
+    if (tag != null && (tagEnd != levelStart + 2 + tag.length() || !entry.startsWith(tag, levelStart + 2))) {
+      return false;
+    }
+
+    if (startTime > 0 || endTime < Long.MAX_VALUE) {
+      long time = parseTime(entry.substring(0, levelStart - 1));
+      return time >= startTime && time <= endTime;
+    }
+
+    return true;
+  }
+
+  private long parseTime(@NonNull String date) {
+    if (dateFormat == null) {
+      dateFormat = PersistentLogger.newDateFormat();
+    }
+
+    try {
+      Date parsed = dateFormat.parse(date);
+      return parsed != null ? parsed.getTime() : 0;
+    } catch (ParseException e) {
+      return 0;
+    }
+  }
+
+  private static int indexAfterSpaces(@NonNull String entry, int count) {
+    int index = 0;
+
+    for (int i = 0; i < count; i++) {
+      index = entry.indexOf(' ', index);
+      if (index < 0) return -1;
+      index++;
+    }
+
+    return index;
+  }
+}
@@ -2,23 +2,28 @@ package org.thoughtcrime.securesms.logging;
 
 import android.content.Context;
 import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
 import android.support.annotation.WorkerThread;
 
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
-import org.thoughtcrime.securesms.util.concurrent.ListenableFuture;
-import org.thoughtcrime.securesms.util.concurrent.SettableFuture;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class PersistentLogger extends Log.Logger {
 
@@ -35,18 +40,26 @@ public class PersistentLogger extends Log.Logger {
   private static final String           FILENAME_PREFIX = "log-";
   private static final int              MAX_LOG_FILES   = 5;
   private static final int              MAX_LOG_SIZE    = 300 * 1024;
-  private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
+  private static final SimpleDateFormat DATE_FORMAT     = newDateFormat();
 
-  private final Context  context;
-  private final Executor executor;
-  private final byte[]   secret;
+  private static final long FLUSH_INTERVAL_MS = 1000;
+  private static final int  FLUSH_SIZE        = 16 * 1024;
+  private static final long CRASH_FLUSH_WAIT  = 2000;
+
+  private final Context                  context;
+  private final ScheduledExecutorService executor;
+  private final byte[]                   secret;
+  private final List<PendingEntry>       pending = new LinkedList<>();
 
   private LogFile.Writer writer;
+  private boolean        drainScheduled;
+  private boolean        flushScheduled;
+  private long           unflushedSize;
 
   public PersistentLogger(Context context) {
     this.context  = context.getApplicationContext();
     this.secret   = LogSecretProvider.getOrCreateAttachmentSecret(context);
-    this.executor = Executors.newSingleThreadExecutor(r -> {
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
       Thread thread = new Thread(r, "logger");
       thread.setPriority(Thread.MIN_PRIORITY);
       return thread;
@@ -85,32 +98,47 @@ public class PersistentLogger extends Log.Logger {
     write(LOG_WTF, tag, message, t);
   }
 
+  /**
+   * Returns a reader over everything logged so far, oldest entry first. Entries are decrypted
+   * lazily as they are read, so callers should stream them rather than collect them.
+   */
   @WorkerThread
-  public ListenableFuture<String> getLogs() {
-    final SettableFuture<String> future = new SettableFuture<>();
-
-    executor.execute(() -> {
-      StringBuilder builder = new StringBuilder();
-
-      try {
-        File[] logs = getSortedLogFiles();
-        for (int i = logs.length - 1; i >= 0; i--) {
-          try {
-            LogFile.Reader reader = new LogFile.Reader(secret, logs[i]);
-            builder.append(reader.readAll());
-          } catch (IOException e) {
-            android.util.Log.w(TAG, "Failed to read log at index " + i + ". Removing reference.");
-            logs[i].delete();
-          }
-        }
-
-        future.set(builder.toString());
-      } catch (NoExternalStorageException e) {
-        future.setException(e);
-      }
-    });
+  public LogEntryReader getLogReader(@NonNull LogFilter filter) throws NoExternalStorageException {
+    flush();
+
+    List<File> logs = new ArrayList<>(Arrays.asList(getSortedLogFiles()));
+    Collections.reverse(logs);
 
-    return future;
+    return new LogEntryReader(secret, logs, filter);
+  }
+
+  @WorkerThread
+  public void writeLogs(@NonNull OutputStream outputStream, @NonNull LogFilter filter)
+      throws NoExternalStorageException, IOException
+  {
+    LogEntryReader reader = getLogReader(filter);
+
+    try {
+      reader.writeTo(outputStream);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Writes everything that has been logged so far to disk, blocking for a short while at most.
+   * Intended for when the process is about to die, e.g. on an uncaught exception.
+   */
+  @AnyThread
+  public void flush() {
+    try {
+      executor.submit(() -> {
+        drainPending();
+        flushWriter();
+      }).get(CRASH_FLUSH_WAIT, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      android.util.Log.w(TAG, "Failed to flush logs.", e);
+    }
   }
 
   @WorkerThread
@@ -122,32 +150,90 @@ public class PersistentLogger extends Log.Logger {
     }
   }
 
+  /**
+   * Entries are queued and written by a single drain task, so everything logged while a previous
+   * batch was being written goes out as one encrypted block. Blocks are flushed to disk once
+   * enough data has built up, or at most {@link #FLUSH_INTERVAL_MS} after being written.
+   */
   @AnyThread
   private void write(String level, String tag, String message, Throwable t) {
-    executor.execute(() -> {
-      try {
-        if (writer == null) {
-          return;
-        }
-
-        if (writer.getLogSize() >= MAX_LOG_SIZE) {
-          writer.close();
-          writer = new LogFile.Writer(secret, createNewLogFile());
-          trimLogFilesOverMax();
-        }
-
-        for (String entry : buildLogEntries(level, tag, message, t)) {
-          writer.writeEntry(entry);
-        }
-
-      } catch (NoExternalStorageException e) {
-        android.util.Log.w(TAG, "Cannot persist logs.", e);
-      } catch (IOException e) {
-        android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
-        deleteAllLogs();
-        initializeWriter();
+    PendingEntry entry = new PendingEntry(level, tag, message, t, new Date());
+
+    synchronized (pending) {
+      pending.add(entry);
+
+      if (drainScheduled) return;
+      drainScheduled = true;
+    }
+
+    executor.execute(this::drainPending);
+  }
+
+  @WorkerThread
+  private void drainPending() {
+    List<PendingEntry> batch;
+
+    synchronized (pending) {
+      batch          = new ArrayList<>(pending);
+      drainScheduled = false;
+      pending.clear();
+    }
+
+    if (batch.isEmpty()) return;
+
+    try {
+      if (writer == null) {
+        return;
       }
-    });
+
+      if (writer.getLogSize() >= MAX_LOG_SIZE) {
+        writer.close();
+        writer        = new LogFile.Writer(secret, createNewLogFile());
+        unflushedSize = 0;
+        trimLogFilesOverMax();
+      }
+
+      List<String> entries = new LinkedList<>();
+
+      for (PendingEntry entry : batch) {
+        entries.addAll(buildLogEntries(entry.level, entry.tag, entry.message, entry.throwable, entry.date));
+      }
+
+      long previousSize = writer.getLogSize();
+      writer.writeEntries(entries);
+      unflushedSize += writer.getLogSize() - previousSize;
+
+      if (unflushedSize >= FLUSH_SIZE) {
+        flushWriter();
+      } else if (!flushScheduled) {
+        flushScheduled = true;
+        executor.schedule(this::flushWriter, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }
+    } catch (NoExternalStorageException e) {
+      android.util.Log.w(TAG, "Cannot persist logs.", e);
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
+      deleteAllLogs();
+      initializeWriter();
+    }
+  }
+
+  @WorkerThread
+  private void flushWriter() {
+    flushScheduled = false;
+
+    if (writer == null || unflushedSize == 0) {
+      return;
+    }
+
+    try {
+      writer.flush();
+      unflushedSize = 0;
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to flush. Deleting all logs and starting over.");
+      deleteAllLogs();
+      initializeWriter();
+    }
   }
 
   private void trimLogFilesOverMax() throws NoExternalStorageException {
@@ -201,9 +287,8 @@ public class PersistentLogger extends Log.Logger {
     return logDir;
   }
 
-  private List<String> buildLogEntries(String level, String tag, String message, Throwable t) {
+  private List<String> buildLogEntries(String level, String tag, String message, Throwable t, Date date) {
     List<String> entries = new LinkedList<>();
-    Date         date    = new Date();
 
     entries.add(buildEntry(level, tag, message, date));
 
@@ -225,4 +310,24 @@ public class PersistentLogger extends Log.Logger {
   private String buildEntry(String level, String tag, String message, Date date) {
     return DATE_FORMAT.format(date) + ' ' + level + ' ' + tag + ": " + message;
   }
+
+  static SimpleDateFormat newDateFormat() {
+    return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
+  }
+
+  private static class PendingEntry {
+    private final String    level;
+    private final String    tag;
+    private final String    message;
+    private final Throwable throwable;
+    private final Date      date;
+
+    private PendingEntry(String level, String tag, String message, Throwable throwable, Date date) {
+      this.level     = level;
+      this.tag       = tag;
+      this.message   = message;
+      this.throwable = throwable;
+      this.date      = date;
+    }
+  }
 }
@@ -0,0 +1,248 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import org.thoughtcrime.securesms.logging.LogEntryReader;
+import org.thoughtcrime.securesms.logsubmit.util.Scrubber;
+import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import okio.BufferedSink;
+
+/**
+ * A log being prepared for submission, spooled to a temporary file a page of lines at a time, so
+ * that it can be previewed and uploaded without ever holding all of it in memory. Lines edited in
+ * the preview are kept in memory and replace the spooled ones when the log is written out.
+ *
+ * Each page is an IV, a length, and the AES/CBC ciphertext of its lines separated by newlines. The
+ * key only lives as long as this object, so a file left behind by a crash can't be read.
+ */
+class SpooledLog implements Closeable {
+
+  private static final int     PAGE_SIZE    = 500;
+  private static final int     CACHED_PAGES = 4;
+  private static final Charset UTF_8        = Charset.forName("UTF-8");
+
+  private final File                     file;
+  private final RandomAccessFile         input;
+  private final SecretKeySpec            secretKey;
+  private final List<Long>               pageOffsets;
+  private final int                      lineCount;
+  private final Map<Integer, String[]>   pages = new LRUCache<>(CACHED_PAGES);
+  private final TreeMap<Integer, String> edits = new TreeMap<>();
+
+  private long length;
+
+  private SpooledLog(@NonNull File file, @NonNull SecretKeySpec secretKey, @NonNull List<Long> pageOffsets, int lineCount, long length)
+      throws IOException
+  {
+    this.file        = file;
+    this.input       = new RandomAccessFile(file, "r");
+    this.secretKey   = secretKey;
+    this.pageOffsets = pageOffsets;
+    this.lineCount   = lineCount;
+    this.length      = length;
+  }
+
+  int getLineCount() {
+    return lineCount;
+  }
+
+  /**
+   * @return The length in bytes of the log as {@link #writeTo(BufferedSink)} writes it, including
+   *         any edits.
+   */
+  synchronized long getLength() {
+    return length;
+  }
+
+  synchronized @NonNull String getLine(int index) throws IOException {
+    String edit = edits.get(index);
+    if (edit != null) return edit;
+
+    String[] page = pages.get(index / PAGE_SIZE);
+
+    if (page == null) {
+      page = new String(readPage(index / PAGE_SIZE), UTF_8).split("\n", -1);
+      pages.put(index / PAGE_SIZE, page);
+    }
+
+    return page[index % PAGE_SIZE];
+  }
+
+  synchronized void setLine(int index, @NonNull String line) throws IOException {
+    length += line.getBytes(UTF_8).length - getLine(index).getBytes(UTF_8).length;
+    edits.put(index, line);
+  }
+
+  /**
+   * Writes every line, each followed by a newline. Pages without edits are copied through as they
+   * were spooled.
+   */
+  @WorkerThread
+  void writeTo(@NonNull BufferedSink sink) throws IOException {
+    for (int page = 0; page < pageOffsets.size(); page++) {
+      int                  firstLine = page * PAGE_SIZE;
+      byte[]               plaintext;
+      Map<Integer, String> pageEdits;
+
+      synchronized (this) {
+        plaintext = readPage(page);
+        pageEdits = new TreeMap<>(edits.subMap(firstLine, firstLine + PAGE_SIZE));
+      }
+
+      if (pageEdits.isEmpty()) {
+        sink.write(plaintext).writeByte('\n');
+        continue;
+      }
+
+      String[] lines = new String(plaintext, UTF_8).split("\n", -1);
+
+      for (int i = 0; i < lines.length; i++) {
+        String edit = pageEdits.get(firstLine + i);
+        sink.writeUtf8(edit != null ? edit : lines[i]).writeByte('\n');
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    Util.close(input);
+    file.delete();
+  }
+
+  private @NonNull byte[] readPage(int page) throws IOException {
+    byte[] iv = new byte[16];
+
+    input.seek(pageOffsets.get(page));
+    input.readFully(iv);
+
+    byte[] ciphertext = new byte[input.readInt()];
+    input.readFully(ciphertext);
+
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
+      return cipher.doFinal(ciphertext);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static class Writer {
+
+    private final File             file;
+    private final DataOutputStream output;
+    private final SecretKeySpec    secretKey;
+    private final SecureRandom     secureRandom = new SecureRandom();
+    private final Cipher           cipher;
+    private final List<Long>       pageOffsets  = new ArrayList<>();
+    private final StringBuilder    page         = new StringBuilder();
+
+    private int  pageLines;
+    private int  lineCount;
+    private long length;
+    private long offset;
+
+    Writer(@NonNull File directory) throws IOException {
+      byte[] key = new byte[32];
+      secureRandom.nextBytes(key);
+
+      this.file      = File.createTempFile("submit-log", null, directory);
+      this.output    = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      this.secretKey = new SecretKeySpec(key, "AES");
+
+      try {
+        this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    void add(@NonNull String line) throws IOException {
+      if (pageLines > 0) page.append('\n');
+      page.append(line);
+
+      lineCount++;
+
+      if (++pageLines == PAGE_SIZE) {
+        writePage();
+      }
+    }
+
+    /**
+     * Adds every entry left in the reader, scrubbed, without collecting them in memory first.
+     */
+    void addAll(@NonNull LogEntryReader reader, @NonNull Scrubber scrubber) throws IOException {
+      String entry;
+
+      while ((entry = reader.readEntry()) != null) {
+        add(scrubber.scrub(entry));
+      }
+    }
+
+    @NonNull SpooledLog finish() throws IOException {
+      try {
+        if (pageLines > 0) writePage();
+        output.close();
+
+        return new SpooledLog(file, secretKey, pageOffsets, lineCount, length);
+      } catch (IOException e) {
+        abort();
+        throw e;
+      }
+    }
+
+    void abort() {
+      Util.close(output);
+      file.delete();
+    }
+
+    private void writePage() throws IOException {
+      byte[] iv        = new byte[16];
+      byte[] plaintext = page.toString().getBytes(UTF_8);
+      byte[] ciphertext;
+
+      secureRandom.nextBytes(iv);
+
+      try {
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+        ciphertext = cipher.doFinal(plaintext);
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+
+      output.write(iv);
+      output.writeInt(ciphertext.length);
+      output.write(ciphertext);
+
+      pageOffsets.add(offset);
+
+      offset += iv.length + 4 + ciphertext.length;
+      length += plaintext.length + 1;
+
+      page.setLength(0);
+      pageLines = 0;
+    }
+  }
+}
@@ -32,11 +32,11 @@ import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.ClipboardManager;
-import android.text.TextUtils;
 import android.text.method.LinkMovementMethod;
 import android.text.util.Linkify;
 import android.util.TypedValue;
@@ -53,8 +53,18 @@ import org.json.JSONObject;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.contactshare.SimpleTextWatcher;
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+import org.thoughtcrime.securesms.jobmanager.JobManager;
+import org.thoughtcrime.securesms.jobmanager.LaneMetrics;
+import org.thoughtcrime.securesms.database.DatabaseChangeNotifier;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.NoExternalStorageException;
+import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.logging.LogEntryReader;
+import org.thoughtcrime.securesms.logging.LogFilter;
 import org.thoughtcrime.securesms.logsubmit.util.Scrubber;
+import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.task.ProgressDialogAsyncTask;
 
@@ -64,7 +74,6 @@ import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.Locale;
-import java.util.concurrent.ExecutionException;
 
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
@@ -73,6 +82,7 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.BufferedSink;
 
 /**
  * A helper {@link Fragment} to preview and submit logcat information to a public pastebin.
@@ -105,6 +115,7 @@ public class SubmitLogFragment extends Fragment {
   private RecyclerView           logPreview;
   private LogPreviewAdapter      logPreviewAdapter;
   private OnLogSubmittedListener mListener;
+  private SpooledLog             log;
 
   /**
    * Use this factory method to create a new instance of
@@ -172,6 +183,12 @@ public class SubmitLogFragment extends Fragment {
     mListener = null;
   }
 
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    if (log != null) log.close();
+  }
+
   private void initializeResources() {
     okButton     = getView().findViewById(R.id.ok);
     cancelButton = getView().findViewById(R.id.cancel);
@@ -181,7 +198,7 @@ public class SubmitLogFragment extends Fragment {
     okButton.setOnClickListener(new View.OnClickListener() {
       @Override
       public void onClick(View view) {
-        new SubmitToPastebinAsyncTask(logPreviewAdapter.getText()).execute();
+        new SubmitToPastebinAsyncTask(log).execute();
       }
     });
 
@@ -213,25 +230,53 @@ public class SubmitLogFragment extends Fragment {
     new PopulateLogcatAsyncTask(getActivity()).execute();
   }
 
-  private static String grabLogcat() {
+  private static void grabLogcat(@NonNull Scrubber scrubber, @NonNull SpooledLog.Writer lines) throws IOException {
+    BufferedReader bufferedReader;
+
     try {
-      final Process         process        = Runtime.getRuntime().exec("logcat -d");
-      final BufferedReader  bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-      final StringBuilder   log            = new StringBuilder();
-      final String          separator      = System.getProperty("line.separator");
+      final Process process = Runtime.getRuntime().exec("logcat -d");
+      bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    } catch (IOException ioe) {
+      Log.w(TAG, "IOException when trying to read logcat.", ioe);
+      return;
+    }
 
+    try {
       String line;
-      while ((line = bufferedReader.readLine()) != null) {
-        log.append(line);
-        log.append(separator);
+      while ((line = readLine(bufferedReader)) != null) {
+        lines.add(scrubber.scrub(line));
       }
-      return log.toString();
+    } finally {
+      Util.close(bufferedReader);
+    }
+  }
+
+  private static @Nullable String readLine(@NonNull BufferedReader reader) {
+    try {
+      return reader.readLine();
     } catch (IOException ioe) {
       Log.w(TAG, "IOException when trying to read logcat.", ioe);
       return null;
     }
   }
 
+  private static void grabPersistentLogs(@NonNull Context context, @NonNull Scrubber scrubber, @NonNull SpooledLog.Writer lines) throws IOException {
+    LogEntryReader reader = null;
+    boolean        failed = false;
+
+    try {
+      reader = ApplicationContext.getInstance(context).getPersistentLogger().getLogReader(LogFilter.ALL);
+      lines.addAll(reader, scrubber);
+    } catch (NoExternalStorageException | IOException e) {
+      Log.w(TAG, "Failed to retrieve new logs.", e);
+      failed = true;
+    } finally {
+      if (reader != null) reader.close();
+    }
+
+    if (failed) lines.add("Failed to retrieve logs.");
+  }
+
   private Intent getIntentForSupportEmail(String logUrl) {
     Intent emailSendIntent = new Intent(Intent.ACTION_SEND);
 
@@ -332,7 +377,7 @@ public class SubmitLogFragment extends Fragment {
     hackSavedLogUrl = logUrl;
   }
 
-  private class PopulateLogcatAsyncTask extends AsyncTask<Void,Void,String> {
+  private class PopulateLogcatAsyncTask extends AsyncTask<Void,Void,SpooledLog> {
     private WeakReference<Context> weakContext;
 
     public PopulateLogcatAsyncTask(Context context) {
@@ -340,67 +385,82 @@ public class SubmitLogFragment extends Fragment {
     }
 
     @Override
-    protected String doInBackground(Void... voids) {
+    protected SpooledLog doInBackground(Void... voids) {
       Context context = weakContext.get();
       if (context == null) return null;
 
-      Scrubber scrubber = new Scrubber();
+      Scrubber          scrubber = new Scrubber();
+      SpooledLog.Writer lines    = null;
 
-      String newLogs;
       try {
-        long t1 = System.currentTimeMillis();
-        String logs = ApplicationContext.getInstance(context).getPersistentLogger().getLogs().get();
-        Log.i(TAG, "Fetch our logs : " + (System.currentTimeMillis() - t1) + " ms");
+        lines = new SpooledLog.Writer(context.getCacheDir());
 
-        long t2 = System.currentTimeMillis();
-        newLogs = scrubber.scrub(logs);
-        Log.i(TAG, "Scrub our logs: " + (System.currentTimeMillis() - t2) + " ms");
-      } catch (InterruptedException | ExecutionException e) {
-        Log.w(TAG, "Failed to retrieve new logs.", e);
-        newLogs = "Failed to retrieve logs.";
-      }
+        lines.add(HEADER_SYSINFO);
+        lines.add("");
 
-      long t3 = System.currentTimeMillis();
-      String logcat = grabLogcat();
-      Log.i(TAG, "Fetch logcat: " + (System.currentTimeMillis() - t3) + " ms");
+        for (String line : buildDescription(context).split("\n")) {
+          lines.add(line);
+        }
+
+        lines.add("");
+        lines.add("");
+        lines.add(HEADER_LOGCAT);
+        lines.add("");
+
+        long t1 = System.currentTimeMillis();
+        grabLogcat(scrubber, lines);
+        Log.i(TAG, "Fetch and scrub logcat: " + (System.currentTimeMillis() - t1) + " ms");
 
-      long t4 = System.currentTimeMillis();
-      String scrubbedLogcat = scrubber.scrub(logcat);
-      Log.i(TAG, "Scrub logcat: " + (System.currentTimeMillis() - t4) + " ms");
+        lines.add("");
+        lines.add("");
+        lines.add(HEADER_LOGGER);
+        lines.add("");
 
-      return HEADER_SYSINFO + "\n\n" +
-             buildDescription(context) + "\n\n\n" +
-             HEADER_LOGCAT + "\n\n" +
-             scrubbedLogcat + "\n\n\n" +
-             HEADER_LOGGER + "\n\n" +
-             newLogs;
+        long t2 = System.currentTimeMillis();
+        grabPersistentLogs(context, scrubber, lines);
+        Log.i(TAG, "Fetch and scrub our logs: " + (System.currentTimeMillis() - t2) + " ms");
+
+        return lines.finish();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to spool logs.", e);
+        if (lines != null) lines.abort();
+        return null;
+      }
     }
 
     @Override
     protected void onPreExecute() {
       super.onPreExecute();
-      logPreviewAdapter.setText(getString(R.string.log_submit_activity__loading_logs));
+      logPreviewAdapter.setPlaceholder(getString(R.string.log_submit_activity__loading_logs));
       okButton.setEnabled(false);
     }
 
     @Override
-    protected void onPostExecute(String logcat) {
-      super.onPostExecute(logcat);
-      if (TextUtils.isEmpty(logcat)) {
+    protected void onPostExecute(SpooledLog spooledLog) {
+      super.onPostExecute(spooledLog);
+
+      if (!isAdded()) {
+        if (spooledLog != null) spooledLog.close();
+        return;
+      }
+
+      if (spooledLog == null || spooledLog.getLineCount() == 0) {
         if (mListener != null) mListener.onFailure();
         return;
       }
-      logPreviewAdapter.setText(logcat);
+
+      log = spooledLog;
+      logPreviewAdapter.setLog(spooledLog);
       okButton.setEnabled(true);
     }
   }
 
   private class SubmitToPastebinAsyncTask extends ProgressDialogAsyncTask<Void,Void,String> {
-    private final String         paste;
+    private final SpooledLog log;
 
-    public SubmitToPastebinAsyncTask(String paste) {
+    public SubmitToPastebinAsyncTask(SpooledLog log) {
       super(getActivity(), R.string.log_submit_activity__submitting, R.string.log_submit_activity__uploading_logs);
-      this.paste = paste;
+      this.log = log;
     }
 
     @Override
@@ -428,7 +488,7 @@ public class SubmitLogFragment extends Fragment {
           post.addFormDataPart(key, fields.getString(key));
         }
 
-        post.addFormDataPart("file", "file", RequestBody.create(MediaType.parse("text/plain"), paste));
+        post.addFormDataPart("file", "file", new SpooledLogRequestBody(log));
 
         Response postResponse = client.newCall(new Request.Builder().url(url).post(post.build()).build()).execute();
 
@@ -456,6 +516,36 @@ public class SubmitLogFragment extends Fragment {
     }
   }
 
+  /**
+   * Streams the spooled log into the upload. The length is known up front so the upload isn't
+   * chunked, which the storage endpoint rejects.
+   */
+  private static final class SpooledLogRequestBody extends RequestBody {
+
+    private static final MediaType TEXT_PLAIN = MediaType.parse("text/plain");
+
+    private final SpooledLog log;
+
+    private SpooledLogRequestBody(@NonNull SpooledLog log) {
+      this.log = log;
+    }
+
+    @Override
+    public MediaType contentType() {
+      return TEXT_PLAIN;
+    }
+
+    @Override
+    public long contentLength() {
+      return log.getLength();
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+      log.writeTo(sink);
+    }
+  }
+
   private static long asMegs(long bytes) {
     return bytes / 1048576L;
   }
@@ -505,6 +595,24 @@ public class SubmitLogFragment extends Fragment {
       builder.append("Unknown\n");
     }
 
+    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+
+    for (LaneMetrics metrics : jobManager.getLaneMetrics()) {
+      builder.append("Jobs    : ").append(metrics).append("\n");
+    }
+
+    builder.append("Coalesce: ").append(jobManager.getCoalescedCounts()).append("\n");
+    builder.append("Recips  : ").append(Recipient.getCacheStats()).append("\n");
+    builder.append("Sessions: ").append(TextSecureSessionStore.getCacheStats()).append("\n");
+    builder.append("Changes : ").append(DatabaseChangeNotifier.getInstance(context).getStats()).append("\n");
+
+    SearchDatabase searchDatabase = DatabaseFactory.getSearchDatabase(context);
+    builder.append("Search  : ").append(searchDatabase.getQueryLatency()).append("\n");
+
+    for (String table : SearchDatabase.FTS_TABLE_NAMES) {
+      builder.append("          ").append(searchDatabase.getIndexHealth(table)).append("\n");
+    }
+
     return builder.toString();
   }
 
@@ -524,9 +632,13 @@ public class SubmitLogFragment extends Fragment {
     public void onCancel();
   }
 
+  /**
+   * Shows the spooled log, reading it a page at a time as lines are bound.
+   */
   private static final class LogPreviewAdapter extends RecyclerView.Adapter<LogPreviewViewHolder> {
 
-    private String[] lines = new String[0];
+    private SpooledLog log;
+    private String     placeholder;
 
     @Override
     public LogPreviewViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
@@ -535,7 +647,8 @@ public class SubmitLogFragment extends Fragment {
 
     @Override
     public void onBindViewHolder(LogPreviewViewHolder holder, int position) {
-      holder.bind(lines, position);
+      if (log != null) holder.bind(log, position);
+      else             holder.bind(placeholder);
     }
 
     @Override
@@ -545,35 +658,51 @@ public class SubmitLogFragment extends Fragment {
 
     @Override
     public int getItemCount() {
-      return lines.length;
+      if (log != null) return log.getLineCount();
+      else             return placeholder != null ? 1 : 0;
     }
 
-    void setText(@NonNull String text) {
-      lines = text.split("\n");
+    void setPlaceholder(@NonNull String placeholder) {
+      this.log         = null;
+      this.placeholder = placeholder;
       notifyDataSetChanged();
     }
 
-    String getText() {
-      return Util.join(lines, "\n");
+    void setLog(@NonNull SpooledLog log) {
+      this.log = log;
+      notifyDataSetChanged();
     }
   }
 
   private static final class LogPreviewViewHolder extends RecyclerView.ViewHolder {
 
-    private EditText text;
-    private String[] lines;
-    private int      index;
+    private EditText   text;
+    private SpooledLog log;
+    private int        index;
 
     LogPreviewViewHolder(View itemView) {
       super(itemView);
       text = (EditText) itemView;
     }
 
-    void bind(String[] lines, int index) {
-      this.lines = lines;
+    void bind(@NonNull SpooledLog log, int index) {
+      this.log   = log;
       this.index = index;
 
-      text.setText(lines[index]);
+      try {
+        text.setText(log.getLine(index));
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read line " + index, e);
+        text.setText(null);
+        this.log = null;
+      }
+
+      text.addTextChangedListener(textWatcher);
+    }
+
+    void bind(@Nullable String placeholder) {
+      this.log = null;
+      text.setText(placeholder);
       text.addTextChangedListener(textWatcher);
     }
 
@@ -584,8 +713,12 @@ public class SubmitLogFragment extends Fragment {
     private final SimpleTextWatcher textWatcher = new SimpleTextWatcher() {
       @Override
       public void onTextChanged(String text) {
-        if (lines != null) {
-          lines[index] = text;
+        if (log == null) return;
+
+        try {
+          log.setLine(index, text);
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to edit line " + index, e);
         }
       }
     };
@@ -57,6 +57,33 @@ public class PartAuthority {
     }
   }
 
+  /**
+   * Attachment parts are decrypted starting at the offset, other sources are skipped through.
+   */
+  public static InputStream getAttachmentStream(@NonNull Context context, @NonNull Uri uri, long offset)
+      throws IOException
+  {
+    if (uriMatcher.match(uri) == PART_ROW) {
+      return DatabaseFactory.getAttachmentDatabase(context).getAttachmentStream(new PartUriParser(uri).getPartId(), offset);
+    }
+
+    InputStream inputStream = getAttachmentStream(context, uri);
+    long        remaining   = offset;
+
+    while (remaining > 0) {
+      long skipped = inputStream.skip(remaining);
+
+      if (skipped <= 0) {
+        inputStream.close();
+        throw new IOException("Skip failed with " + remaining + " bytes remaining");
+      }
+
+      remaining -= skipped;
+    }
+
+    return inputStream;
+  }
+
   public static @Nullable String getAttachmentFileName(@NonNull Context context, @NonNull Uri uri) {
     int match = uriMatcher.match(uri);
 
@@ -126,6 +153,14 @@ public class PartAuthority {
     return ContentUris.withAppendedId(uri, attachmentId.getRowId());
   }
 
+  /**
+   * @return The attachment a uri refers to the full data of, or null if it's any other kind of uri.
+   */
+  public static @Nullable AttachmentId getAttachmentId(@NonNull Uri uri) {
+    if (uriMatcher.match(uri) == PART_ROW) return new PartUriParser(uri).getPartId();
+    else                                   return null;
+  }
+
   public static boolean isLocalUri(final @NonNull Uri uri) {
     int match = uriMatcher.match(uri);
     switch (match) {
@@ -34,32 +34,28 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.service.notification.StatusBarNotification;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
-import android.text.TextUtils;
 import org.thoughtcrime.securesms.logging.Log;
 
 import org.thoughtcrime.securesms.conversation.ConversationActivity;
-import org.thoughtcrime.securesms.R;
-import org.thoughtcrime.securesms.contactshare.ContactUtil;
-import org.thoughtcrime.securesms.contactshare.Contact;
+import org.thoughtcrime.securesms.database.DatabaseBatch;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MessagingDatabase.MarkedMessageInfo;
-import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
-import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
-import org.thoughtcrime.securesms.database.model.MessageRecord;
-import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
-import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.jobs.ReceivePipeline;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.service.IncomingMessageObserver;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.util.ServiceUtil;
-import org.thoughtcrime.securesms.util.SpanUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.webrtc.CallNotificationBuilder;
 import org.whispersystems.signalservice.internal.util.Util;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
@@ -95,6 +91,7 @@ public class MessageNotifier {
   private volatile static       long               lastDesktopActivityTimestamp = -1;
   private volatile static       long               lastAudibleNotification      = -1;
   private          static final CancelableExecutor executor                     = new CancelableExecutor();
+  private          static final NotificationModel  model                        = new NotificationModel();
 
   public static void setVisibleThread(long threadId) {
     visibleThread = threadId;
@@ -168,12 +165,7 @@ public class MessageNotifier {
               notification.getId() != IncomingMessageObserver.FOREGROUND_ID         &&
               notification.getId() != PENDING_MESSAGES_ID)
           {
-            for (NotificationItem item : notificationState.getNotifications()) {
-              if (notification.getId() == (SUMMARY_NOTIFICATION_ID + item.getThreadId())) {
-                validNotification = true;
-                break;
-              }
-            }
+            validNotification = notificationState.getThreads().contains((long) notification.getId() - SUMMARY_NOTIFICATION_ID);
 
             if (!validNotification) {
               notifications.cancel(notification.getId());
@@ -188,23 +180,97 @@ public class MessageNotifier {
   }
 
   public static void updateNotification(@NonNull Context context) {
+    DatabaseBatch batch = DatabaseBatch.current();
+
+    if (batch != null) {
+      batch.deferNotification();
+      return;
+    }
+
     if (!TextSecurePreferences.isNotificationsEnabled(context)) {
       return;
     }
 
-    updateNotification(context, false, 0);
+    updateNotification(context, null, false, 0);
+  }
+
+  /**
+   * Reposts the thread's notification without alerting, after one of its unread messages changed
+   * in place, such as an attachment finishing downloading.
+   */
+  public static void updateNotificationContent(@NonNull Context context, long threadId) {
+    invalidateThread(threadId);
+    updateNotification(context);
+  }
+
+  /**
+   * Makes the next update read the thread's unread messages again, for the database to call when
+   * it changes one of them in place. Doesn't wait for an update in progress, so it's safe to call
+   * in a transaction.
+   */
+  public static void invalidateThread(long threadId) {
+    model.invalidateThread(threadId);
   }
 
   public static void updateNotification(@NonNull Context context, long threadId)
   {
+    DatabaseBatch batch = DatabaseBatch.current();
+
+    if (batch != null) {
+      batch.deferNotification(threadId);
+      return;
+    }
+
     if (System.currentTimeMillis() - lastDesktopActivityTimestamp < DESKTOP_ACTIVITY_PERIOD) {
       Log.i(TAG, "Scheduling delayed notification...");
-      executor.execute(new DelayedNotification(context, threadId));
+      executor.execute(new DelayedNotification(context, Collections.singleton(threadId)));
     } else {
       updateNotification(context, threadId, true);
     }
   }
 
+  /**
+   * Like {@link #updateNotification(Context, long)} for several threads that received messages
+   * at once, but rebuilds the notifications only once for all of them.
+   *
+   * @param allThreads True if messages in other threads may have changed as well, such as by
+   *                   being read or deleted, so that every thread has to be read again.
+   */
+  public static void updateNotification(@NonNull Context context, @NonNull Set<Long> threadIds, boolean allThreads) {
+    if (threadIds.isEmpty()) {
+      if (allThreads) updateNotification(context);
+      return;
+    }
+
+    if (System.currentTimeMillis() - lastDesktopActivityTimestamp < DESKTOP_ACTIVITY_PERIOD) {
+      Log.i(TAG, "Scheduling delayed notification...");
+      executor.execute(new DelayedNotification(context, threadIds));
+
+      if (allThreads) updateNotification(context);
+      return;
+    }
+
+    updateThreadNotifications(context, threadIds, allThreads);
+  }
+
+  private static void updateThreadNotifications(@NonNull Context context, @NonNull Set<Long> threadIds, boolean allThreads) {
+    ThreadDatabase threads = DatabaseFactory.getThreadDatabase(context);
+    boolean        rebuild = false;
+
+    for (long threadId : threadIds) {
+      if (visibleThread == threadId) {
+        updateNotification(context, threadId, true);
+      } else {
+        Recipient recipient = threads.getRecipientForThreadId(threadId);
+        rebuild |= recipient == null || !recipient.isMuted();
+      }
+    }
+
+    if ((rebuild || allThreads) && TextSecurePreferences.isNotificationsEnabled(context)) {
+      updateNotification(context, allThreads ? null : threadIds, rebuild, 0);
+    }
+  }
+
   public static void updateNotification(@NonNull  Context context,
                                         long      threadId,
                                         boolean   signal)
@@ -229,7 +295,7 @@ public class MessageNotifier {
     if (isVisible) {
       sendInThreadNotification(context, threads.getRecipientForThreadId(threadId));
     } else {
-      updateNotification(context, signal, 0);
+      updateNotification(context, Collections.singleton(threadId), signal, 0);
     }
   }
 
@@ -238,30 +304,47 @@ public class MessageNotifier {
   {
     if (clearDelayed) cancelDelayedNotifications();
 
+    synchronized (model) {
+      model.invalidate();
+      cancelAllNotifications(context);
+    }
+  }
+
+  private static void cancelAllNotifications(@NonNull Context context) {
     cancelActiveNotifications(context);
     updateBadge(context, 0);
     clearReminder(context);
   }
 
-  private static void updateNotification(@NonNull Context context,
-                                         boolean signal,
-                                         int     reminderCount)
+  /**
+   * @param threadIds The only threads whose messages may have changed, or null if any may have.
+   */
+  private static void updateNotification(@NonNull  Context          context,
+                                         @Nullable Collection<Long> threadIds,
+                                         boolean                    signal,
+                                         int                        reminderCount)
   {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+    synchronized (model) {
+      model.update(new NotificationModel.DatabaseSource(context), threadIds);
 
-    try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+      NotificationState notificationState = model.getState();
+
+      if (notificationState.getNotifications().isEmpty()) {
+        if (model.hasChanges() || signal) {
+          if (hasPendingMessages(context)) cancelActiveNotifications(context);
+          else                             cancelAllNotifications(context);
+        }
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
-        clearNotifications(context, false);
+        model.onPosted();
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, telcoCursor);
+      model.setPostedMultipleThreads(notificationState.hasMultipleThreads());
+
+      if (!model.hasChanges() && !signal) {
+        Log.i(TAG, "Nothing changed, not reposting.");
+        return;
+      }
 
       if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
         signal = false;
@@ -271,8 +354,14 @@ public class MessageNotifier {
 
       if (notificationState.hasMultipleThreads()) {
         if (Build.VERSION.SDK_INT >= 23) {
-          for (long threadId : notificationState.getThreads()) {
-            sendSingleThreadNotification(context, new NotificationState(notificationState.getNotificationsForThread(threadId)), false, true);
+          for (long threadId : model.getChangedThreads()) {
+            NotificationState threadState = model.getState(threadId);
+
+            if (threadState.getNotifications().isEmpty()) {
+              ServiceUtil.getNotificationManager(context).cancel((int) (SUMMARY_NOTIFICATION_ID + threadId));
+            } else {
+              sendSingleThreadNotification(context, threadState, false, true);
+            }
           }
         }
 
@@ -281,18 +370,38 @@ public class MessageNotifier {
         sendSingleThreadNotification(context, notificationState, signal, false);
       }
 
-      cancelOrphanedNotifications(context, notificationState);
+      if (model.hasRemovedThreads()) {
+        cancelOrphanedNotifications(context, notificationState);
+      }
+
       updateBadge(context, notificationState.getMessageCount());
 
       if (signal) {
         scheduleReminder(context, reminderCount);
       }
-    } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+
+      model.onPosted();
     }
   }
 
+  /**
+   * @return True if any stored envelope is still waiting to be handled. Ones already in the
+   *         {@link ReceivePipeline} don't count, since they're about to be handled.
+   */
+  private static boolean hasPendingMessages(@NonNull Context context) {
+    ReceivePipeline pipeline = ReceivePipeline.getInstance(context);
+
+    try (Cursor pushCursor = DatabaseFactory.getPushDatabase(context).getPending()) {
+      while (pushCursor != null && pushCursor.moveToNext()) {
+        if (!pipeline.isInFlight(pushCursor.getLong(pushCursor.getColumnIndexOrThrow(PushDatabase.ID)))) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
   private static void sendSingleThreadNotification(@NonNull  Context context,
                                                    @NonNull  NotificationState notificationState,
                                                    boolean signal, boolean bundled)
@@ -431,54 +540,6 @@ public class MessageNotifier {
     ringtone.play();
   }
 
-  private static NotificationState constructNotificationState(@NonNull  Context context,
-                                                              @NonNull  Cursor cursor)
-  {
-    NotificationState     notificationState = new NotificationState();
-    MmsSmsDatabase.Reader reader            = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
-
-    MessageRecord record;
-
-    while ((record = reader.getNext()) != null) {
-      long         id                    = record.getId();
-      boolean      mms                   = record.isMms() || record.isMmsNotification();
-      Recipient    recipient             = record.getIndividualRecipient();
-      Recipient    conversationRecipient = record.getRecipient();
-      long         threadId              = record.getThreadId();
-      CharSequence body                  = record.getDisplayBody();
-      Recipient    threadRecipients      = null;
-      SlideDeck    slideDeck             = null;
-      long         timestamp             = record.getTimestamp();
-
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId);
-      }
-
-      if (KeyCachingService.isLocked()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
-      } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
-        Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
-        body = ContactUtil.getStringSummary(context, contact);
-      } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      }
-
-      if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck));
-      }
-    }
-
-    reader.close();
-    return notificationState;
-  }
-
   private static void updateBadge(Context context, int count) {
     try {
       if (count == 0) ShortcutBadger.removeCount(context);
@@ -523,7 +584,7 @@ public class MessageNotifier {
         @Override
         protected Void doInBackground(Void... params) {
           int reminderCount = intent.getIntExtra("reminder_count", 0);
-          MessageNotifier.updateNotification(context, true, reminderCount + 1);
+          MessageNotifier.updateNotification(context, null, true, reminderCount + 1);
 
           return null;
         }
@@ -537,13 +598,13 @@ public class MessageNotifier {
 
     private final AtomicBoolean canceled = new AtomicBoolean(false);
 
-    private final Context context;
-    private final long    threadId;
-    private final long    delayUntil;
+    private final Context   context;
+    private final Set<Long> threadIds;
+    private final long      delayUntil;
 
-    private DelayedNotification(Context context, long threadId) {
+    private DelayedNotification(Context context, Set<Long> threadIds) {
       this.context    = context;
-      this.threadId   = threadId;
+      this.threadIds  = threadIds;
       this.delayUntil = System.currentTimeMillis() + DELAY;
     }
 
@@ -558,8 +619,7 @@ public class MessageNotifier {
 
       if (!canceled.get()) {
         Log.i(TAG, "Not canceled, notifying...");
-        MessageNotifier.updateNotification(context, threadId, true);
-        MessageNotifier.cancelDelayedNotifications();
+        MessageNotifier.updateThreadNotifications(context, executor.cancelForThreads(), false);
       } else {
         Log.w(TAG, "Canceled, not notifying...");
       }
@@ -601,5 +661,23 @@ public class MessageNotifier {
         }
       }
     }
+
+    /**
+     * Cancels every task, so that the one running can notify for all of them at once.
+     *
+     * @return The threads that the tasks were waiting to notify for.
+     */
+    public @NonNull Set<Long> cancelForThreads() {
+      Set<Long> threadIds = new HashSet<>();
+
+      synchronized (tasks) {
+        for (DelayedNotification task : tasks) {
+          task.cancel();
+          threadIds.addAll(task.threadIds);
+        }
+      }
+
+      return threadIds;
+    }
   }
 }
@@ -0,0 +1,510 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.contactshare.Contact;
+import org.thoughtcrime.securesms.contactshare.ContactUtil;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.UnreadSummary;
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.preferences.widgets.NotificationPrivacyPreference;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.service.KeyCachingService;
+import org.thoughtcrime.securesms.util.SpanUtil;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The unread messages {@link MessageNotifier} shows, kept in memory between updates.
+ *
+ * Each update compares the threads that may have changed against a summary of their unread
+ * messages read from the indexes, and only reads the messages of threads that no longer match.
+ * A thread that just received messages reads only those, and one that was unmuted is read again.
+ * The threads whose notifications need reposting are tracked until {@link #onPosted()}.
+ * Everything is read again only the first time, after {@link #invalidate()}, or when the lock
+ * state or notification privacy, which the items were built for, has changed. Whether a thread is
+ * muted is kept from when it was read, so a change of mute is expected to invalidate the thread,
+ * and mutes that run out are only checked for once the earliest of them is due.
+ *
+ * Not thread safe, apart from {@link #invalidateThread(long)}. {@link MessageNotifier} serializes
+ * everything else.
+ */
+class NotificationModel {
+
+  private static final String TAG = NotificationModel.class.getSimpleName();
+
+  private final Map<Long, ThreadNotifications> threads        = new HashMap<>();
+  private final Set<Long>                      changedThreads = new HashSet<>();
+  private final Set<Long>                      invalidThreads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+  private boolean                       built;
+  private boolean                       builtLocked;
+  private NotificationPrivacyPreference builtPrivacy;
+  private boolean                       threadsRemoved;
+  private boolean                       postedMultipleThreads;
+  private long                          nextMuteExpiry;
+
+  /**
+   * Drops everything, so the next update reads every unread message and reposts every thread.
+   */
+  void invalidate() {
+    built = false;
+  }
+
+  /**
+   * Makes the next update read the thread's messages and whether it's muted again, for changes that
+   * don't affect which of its messages are unread, such as an attachment finishing downloading or
+   * its recipient being muted. May be called from any thread, including while the database is
+   * being written.
+   */
+  void invalidateThread(long threadId) {
+    invalidThreads.add(threadId);
+  }
+
+  /**
+   * @param threadIds The only threads that may have changed since the last update, or null if any
+   *                  of them may have.
+   */
+  @WorkerThread
+  void update(@NonNull Source source, @Nullable Collection<Long> threadIds) {
+    boolean                       locked  = source.isLocked();
+    NotificationPrivacyPreference privacy = source.getPrivacy();
+
+    if (!built || locked != builtLocked || !privacy.equals(builtPrivacy)) {
+      rebuild(source, locked, privacy);
+      return;
+    }
+
+    Set<Long> invalid = takeInvalidThreads();
+    long      now     = source.currentTimeMillis();
+
+    if (now > nextMuteExpiry) {
+      invalid.addAll(takeExpiredMutes(now));
+    }
+
+    Map<Long, UnreadSummary> summaries;
+    Set<Long>                candidates = new HashSet<>(invalid);
+
+    if (threadIds == null) {
+      summaries = source.getUnreadSummaries();
+      candidates.addAll(summaries.keySet());
+      candidates.addAll(threads.keySet());
+    } else {
+      summaries = new HashMap<>();
+      candidates.addAll(threadIds);
+
+      for (long threadId : candidates) {
+        summaries.put(threadId, source.getUnreadSummary(threadId));
+      }
+    }
+
+    for (long threadId : candidates) {
+      updateThread(source, threadId, summaries.get(threadId), invalid.contains(threadId));
+    }
+  }
+
+  /**
+   * @return Every unread message in threads that aren't muted.
+   */
+  @NonNull NotificationState getState() {
+    List<Message> messages = new ArrayList<>();
+
+    for (ThreadNotifications thread : threads.values()) {
+      if (!thread.muted) messages.addAll(thread.messages);
+    }
+
+    Collections.sort(messages, (a, b) -> Long.compare(a.dateReceived, b.dateReceived));
+
+    NotificationState state = new NotificationState();
+
+    for (Message message : messages) {
+      state.addNotification(message.item);
+    }
+
+    return state;
+  }
+
+  @NonNull NotificationState getState(long threadId) {
+    ThreadNotifications    thread = threads.get(threadId);
+    List<NotificationItem> items  = new LinkedList<>();
+
+    if (thread != null && !thread.muted) {
+      for (Message message : thread.messages) {
+        items.add(message.item);
+      }
+    }
+
+    return new NotificationState(items);
+  }
+
+  /**
+   * @return The threads whose notifications changed since they were last posted.
+   */
+  @NonNull Set<Long> getChangedThreads() {
+    return Collections.unmodifiableSet(changedThreads);
+  }
+
+  boolean hasChanges() {
+    return !changedThreads.isEmpty() || threadsRemoved;
+  }
+
+  /**
+   * @return True if a thread that was posted may no longer have anything to show.
+   */
+  boolean hasRemovedThreads() {
+    return threadsRemoved;
+  }
+
+  /**
+   * Everything in the model gets posted again the next time, for when the notifications are laid
+   * out differently, such as when going from one thread to several.
+   */
+  void setPostedMultipleThreads(boolean multipleThreads) {
+    if (multipleThreads != postedMultipleThreads) {
+      changedThreads.addAll(threads.keySet());
+      threadsRemoved        = true;
+      postedMultipleThreads = multipleThreads;
+    }
+  }
+
+  void onPosted() {
+    for (ThreadNotifications thread : threads.values()) {
+      thread.postedMuted = thread.muted;
+    }
+
+    changedThreads.clear();
+    threadsRemoved = false;
+  }
+
+  private void rebuild(@NonNull Source source, boolean locked, @NonNull NotificationPrivacyPreference privacy) {
+    long start = System.currentTimeMillis();
+
+    threads.clear();
+    changedThreads.clear();
+    takeInvalidThreads();
+
+    long now = source.currentTimeMillis();
+
+    nextMuteExpiry = Long.MAX_VALUE;
+
+    for (Message message : source.getUnread()) {
+      ThreadNotifications thread = threads.get(message.threadId);
+
+      if (thread == null) {
+        thread = new ThreadNotifications(message.threadId, source.getMuteUntil(message.threadId), now);
+        threads.put(thread.threadId, thread);
+        scheduleMuteExpiry(thread);
+      }
+
+      thread.messages.add(message);
+    }
+
+    changedThreads.addAll(threads.keySet());
+
+    built                 = true;
+    builtLocked           = locked;
+    builtPrivacy          = privacy;
+    threadsRemoved        = true;
+    postedMultipleThreads = threads.size() > 1;
+
+    Log.i(TAG, "Rebuilt " + threads.size() + " threads in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * Removes the invalidated threads one at a time, so that a thread invalidated while this runs is
+   * either returned or left for the next update.
+   */
+  private @NonNull Set<Long> takeInvalidThreads() {
+    Set<Long>      taken    = new HashSet<>();
+    Iterator<Long> iterator = invalidThreads.iterator();
+
+    while (iterator.hasNext()) {
+      taken.add(iterator.next());
+      iterator.remove();
+    }
+
+    return taken;
+  }
+
+  /**
+   * @return The threads whose mute ran out, which are unmuted and need their messages read again.
+   */
+  private @NonNull Set<Long> takeExpiredMutes(long now) {
+    Set<Long> expired = new HashSet<>();
+
+    nextMuteExpiry = Long.MAX_VALUE;
+
+    for (ThreadNotifications thread : threads.values()) {
+      if (thread.muted && now > thread.muteUntil) {
+        thread.muted = false;
+        expired.add(thread.threadId);
+      } else {
+        scheduleMuteExpiry(thread);
+      }
+    }
+
+    return expired;
+  }
+
+  private void scheduleMuteExpiry(@NonNull ThreadNotifications thread) {
+    if (thread.muted) {
+      nextMuteExpiry = Math.min(nextMuteExpiry, thread.muteUntil);
+    }
+  }
+
+  private void updateThread(@NonNull Source source, long threadId, @Nullable UnreadSummary summary, boolean invalid) {
+    ThreadNotifications thread = threads.get(threadId);
+
+    if (summary == null || summary.getCount() == 0) {
+      if (thread != null) {
+        threads.remove(threadId);
+        changedThreads.remove(threadId);
+        threadsRemoved = true;
+      }
+      return;
+    }
+
+    if (thread != null && !invalid) {
+      if (thread.matches(summary)) return;
+
+      if (thread.canAppend(summary)) {
+        thread.messages.addAll(source.getUnread(threadId, thread.getNewestReceived()));
+
+        if (thread.matches(summary)) {
+          changedThreads.add(threadId);
+          return;
+        }
+      }
+    }
+
+    Log.i(TAG, "Reading all unread messages of thread " + threadId + " " + summary);
+
+    long                muteUntil   = thread != null && !invalid ? thread.muteUntil : source.getMuteUntil(threadId);
+    ThreadNotifications replacement = new ThreadNotifications(threadId, muteUntil, source.currentTimeMillis());
+
+    if (thread != null) replacement.postedMuted = thread.postedMuted;
+
+    replacement.messages.addAll(source.getUnread(threadId, Long.MIN_VALUE));
+
+    threads.put(threadId, replacement);
+    changedThreads.add(threadId);
+    scheduleMuteExpiry(replacement);
+  }
+
+  /**
+   * Where the unread messages are read from.
+   */
+  interface Source {
+    boolean isLocked();
+    @NonNull NotificationPrivacyPreference getPrivacy();
+    @NonNull Map<Long, UnreadSummary> getUnreadSummaries();
+    @NonNull UnreadSummary getUnreadSummary(long threadId);
+
+    /**
+     * @return Every unread message, oldest first.
+     */
+    @NonNull List<Message> getUnread();
+
+    /**
+     * @return The thread's unread messages received after the given time, oldest first.
+     */
+    @NonNull List<Message> getUnread(long threadId, long receivedAfter);
+
+    /**
+     * @return The time until which the thread is muted, which has passed if it isn't.
+     */
+    long getMuteUntil(long threadId);
+
+    long currentTimeMillis();
+  }
+
+  /**
+   * Reads the unread messages from the database, and resolves the thread's recipient each time
+   * it's asked how long the thread is muted, as a recipient that was held on to may since have
+   * been dropped from the cache and no longer be the one that changes.
+   */
+  static class DatabaseSource implements Source {
+
+    private final Context        context;
+    private final MmsSmsDatabase database;
+
+    DatabaseSource(@NonNull Context context) {
+      this.context  = context;
+      this.database = DatabaseFactory.getMmsSmsDatabase(context);
+    }
+
+    @Override
+    public boolean isLocked() {
+      return KeyCachingService.isLocked();
+    }
+
+    @Override
+    public @NonNull NotificationPrivacyPreference getPrivacy() {
+      return TextSecurePreferences.getNotificationPrivacy(context);
+    }
+
+    @Override
+    public @NonNull Map<Long, UnreadSummary> getUnreadSummaries() {
+      return database.getUnreadSummaries();
+    }
+
+    @Override
+    public @NonNull UnreadSummary getUnreadSummary(long threadId) {
+      return database.getUnreadSummary(threadId);
+    }
+
+    @Override
+    public @NonNull List<Message> getUnread() {
+      try (Cursor cursor = database.getUnread()) {
+        return read(cursor);
+      }
+    }
+
+    @Override
+    public @NonNull List<Message> getUnread(long threadId, long receivedAfter) {
+      try (Cursor cursor = database.getUnread(threadId, receivedAfter)) {
+        return read(cursor);
+      }
+    }
+
+    @Override
+    public long getMuteUntil(long threadId) {
+      Recipient threadRecipient = getThreadRecipient(threadId);
+      return threadRecipient != null ? threadRecipient.getMutedUntil() : 0;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+
+    private @NonNull List<Message> read(@Nullable Cursor cursor) {
+      List<Message>         messages         = new LinkedList<>();
+      Map<Long, Recipient>  threadRecipients = new HashMap<>();
+      MmsSmsDatabase.Reader reader           = database.readerFor(cursor);
+      MessageRecord         record;
+
+      while ((record = reader.getNext()) != null) {
+        long threadId = record.getThreadId();
+
+        if (!threadRecipients.containsKey(threadId)) {
+          threadRecipients.put(threadId, getThreadRecipient(threadId));
+        }
+
+        messages.add(new Message(threadId, record.getDateReceived(), createNotificationItem(record, threadRecipients.get(threadId))));
+      }
+
+      return messages;
+    }
+
+    private @Nullable Recipient getThreadRecipient(long threadId) {
+      return threadId != -1 ? DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId) : null;
+    }
+
+    private @NonNull NotificationItem createNotificationItem(@NonNull MessageRecord record, @Nullable Recipient threadRecipient) {
+      long         id                    = record.getId();
+      boolean      mms                   = record.isMms() || record.isMmsNotification();
+      Recipient    recipient             = record.getIndividualRecipient();
+      Recipient    conversationRecipient = record.getRecipient();
+      long         threadId              = record.getThreadId();
+      CharSequence body                  = record.getDisplayBody();
+      SlideDeck    slideDeck             = null;
+      long         timestamp             = record.getTimestamp();
+
+      if (KeyCachingService.isLocked()) {
+        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
+      } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
+        Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
+        body = ContactUtil.getStringSummary(context, contact);
+      } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+      } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+        int    italicLength = message.length() - body.length();
+        body = SpanUtil.italic(message, italicLength);
+        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+      }
+
+      return new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipient, threadId, body, timestamp, slideDeck);
+    }
+  }
+
+  static class Message {
+
+    final long             threadId;
+    final long             dateReceived;
+    final NotificationItem item;
+
+    Message(long threadId, long dateReceived, @NonNull NotificationItem item) {
+      this.threadId     = threadId;
+      this.dateReceived = dateReceived;
+      this.item         = item;
+    }
+  }
+
+  /**
+   * A thread's unread messages, oldest first.
+   */
+  private static class ThreadNotifications {
+
+    private final long          threadId;
+    private final List<Message> messages = new ArrayList<>();
+
+    private final long          muteUntil;
+
+    private boolean muted;
+    private boolean postedMuted;
+
+    private ThreadNotifications(long threadId, long muteUntil, long now) {
+      this.threadId  = threadId;
+      this.muteUntil = muteUntil;
+      this.muted     = now <= muteUntil;
+    }
+
+    private long getNewestReceived() {
+      return messages.isEmpty() ? Long.MIN_VALUE : messages.get(messages.size() - 1).dateReceived;
+    }
+
+    private long getOldestReceived() {
+      return messages.isEmpty() ? Long.MIN_VALUE : messages.get(0).dateReceived;
+    }
+
+    private boolean matches(@NonNull UnreadSummary summary) {
+      return messages.size() == summary.getCount()             &&
+             getOldestReceived() == summary.getOldestReceived() &&
+             getNewestReceived() == summary.getNewestReceived();
+    }
+
+    /**
+     * @return True if the only change may be newer messages arriving.
+     */
+    private boolean canAppend(@NonNull UnreadSummary summary) {
+      return messages.size() < summary.getCount()              &&
+             getOldestReceived() == summary.getOldestReceived() &&
+             getNewestReceived() < summary.getNewestReceived();
+    }
+  }
+}
@@ -16,4 +16,17 @@ public class NotificationPrivacyPreference {
     return "all".equals(preference);
   }
 
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof NotificationPrivacyPreference)) return false;
+
+    String otherPreference = ((NotificationPrivacyPreference) other).preference;
+    return preference == null ? otherPreference == null : preference.equals(otherPreference);
+  }
+
+  @Override
+  public int hashCode() {
+    return preference == null ? 0 : preference.hashCode();
+  }
+
 }
@@ -38,6 +38,7 @@ import org.thoughtcrime.securesms.contacts.avatars.ResourceContactPhoto;
 import org.thoughtcrime.securesms.contacts.avatars.SystemContactPhoto;
 import org.thoughtcrime.securesms.contacts.avatars.TransparentContactPhoto;
 import org.thoughtcrime.securesms.database.Address;
+import org.thoughtcrime.securesms.database.DatabaseBatch;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase.RecipientSettings;
 import org.thoughtcrime.securesms.database.RecipientDatabase.RegisteredState;
@@ -115,6 +116,10 @@ public class Recipient implements RecipientModifiedListener {
     if (recipient.isPresent()) consumer.accept(recipient.get());
   }
 
+  public static @NonNull String getCacheStats() {
+    return provider.getCacheStats();
+  }
+
   Recipient(@NonNull  Address address,
             @Nullable Recipient stale,
             @NonNull  Optional<RecipientDetails> details,
@@ -520,6 +525,10 @@ public class Recipient implements RecipientModifiedListener {
     return System.currentTimeMillis() <= mutedUntil;
   }
 
+  public synchronized long getMutedUntil() {
+    return mutedUntil;
+  }
+
   public void setMuted(long mutedUntil) {
     synchronized (this) {
       this.mutedUntil = mutedUntil;
@@ -653,7 +662,14 @@ public class Recipient implements RecipientModifiedListener {
     return contactUri != null;
   }
 
+  /**
+   * Waits for the recipient's details to be loaded. Inside a {@link DatabaseBatch} this returns
+   * right away, since loading them needs the database the batch is holding; the details are
+   * loaded once the batch ends, and include anything written during it.
+   */
   public synchronized Recipient resolve() {
+    if (DatabaseBatch.current() != null) return this;
+
     while (resolving) Util.wait(this, 0);
     return this;
   }
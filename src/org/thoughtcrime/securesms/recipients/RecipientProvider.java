@@ -22,6 +22,9 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import com.annimon.stream.Collectors;
+import com.annimon.stream.Stream;
+
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.color.MaterialColor;
 import org.thoughtcrime.securesms.database.Address;
@@ -31,26 +34,32 @@ import org.thoughtcrime.securesms.database.RecipientDatabase.RecipientSettings;
 import org.thoughtcrime.securesms.database.RecipientDatabase.RegisteredState;
 import org.thoughtcrime.securesms.database.RecipientDatabase.UnidentifiedAccessMode;
 import org.thoughtcrime.securesms.database.RecipientDatabase.VibrateState;
+import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
-import org.thoughtcrime.securesms.util.SoftHashMap;
+import org.thoughtcrime.securesms.util.StripedLruCache;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 class RecipientProvider {
 
-  @SuppressWarnings("unused")
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
-  private static final RecipientCache  recipientCache         = new RecipientCache();
-  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final RecipientCache recipientCache = new RecipientCache();
+
+  private final AsyncRecipientResolver asyncRecipientResolver = new AsyncRecipientResolver();
 
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
     put("262966", new RecipientDetails("Amazon", null, false, false, null, null));
@@ -79,6 +88,10 @@ class RecipientProvider {
     return Optional.fromNullable(recipientCache.get(address));
   }
 
+  @NonNull String getCacheStats() {
+    return recipientCache.toString();
+  }
+
   private @NonNull Optional<RecipientDetails> createPrefetchedRecipientDetails(@NonNull Context context, @NonNull Address address,
                                                                                @NonNull Optional<RecipientSettings> settings,
                                                                                @NonNull Optional<GroupRecord> groupRecord)
@@ -95,11 +108,7 @@ class RecipientProvider {
 
   private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context, final @NonNull Address address, final @NonNull Optional<RecipientSettings> settings, final @NonNull Optional<GroupRecord> groupRecord)
   {
-    Callable<RecipientDetails> task = () -> getRecipientDetailsSync(context, address, settings, groupRecord, true);
-
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(task);
-    asyncRecipientResolver.submit(future);
-    return future;
+    return asyncRecipientResolver.resolve(context, address, settings, groupRecord);
   }
 
   private @NonNull RecipientDetails getRecipientDetailsSync(Context context, @NonNull Address address, Optional<RecipientSettings> settings, Optional<GroupRecord> groupRecord, boolean nestedAsynchronous) {
@@ -112,6 +121,10 @@ class RecipientProvider {
       settings = DatabaseFactory.getRecipientDatabase(context).getRecipientSettings(address);
     }
 
+    return createIndividualRecipientDetails(context, address, settings);
+  }
+
+  private @NonNull RecipientDetails createIndividualRecipientDetails(Context context, @NonNull Address address, Optional<RecipientSettings> settings) {
     if (!settings.isPresent() && STATIC_DETAILS.containsKey(address.serialize())) {
       return STATIC_DETAILS.get(address.serialize());
     } else {
@@ -216,18 +229,149 @@ class RecipientProvider {
     }
   }
 
+  /**
+   * Resolves recipients on a small pool, loading the settings for everything that was requested
+   * in the meantime with a single query. Opening a large group, which requests every member at
+   * once, costs a handful of queries instead of one per member.
+   *
+   * Most recently requested recipients are resolved first, since they're the ones on screen.
+   */
+  private class AsyncRecipientResolver {
+
+    private static final int POOL_SIZE      = 2;
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final LinkedList<PendingRecipient> pending  = new LinkedList<>();
+    private final ExecutorService              executor = SignalExecutors.newCachedLowPriorityExecutor("signal-recipient-resolver", POOL_SIZE);
+
+    @NonNull ListenableFutureTask<RecipientDetails> resolve(@NonNull Context context,
+                                                           @NonNull Address address,
+                                                           @NonNull Optional<RecipientSettings> settings,
+                                                           @NonNull Optional<GroupRecord> groupRecord)
+    {
+      PendingRecipient recipient = new PendingRecipient(context, address, settings, groupRecord);
+
+      synchronized (pending) {
+        pending.addFirst(recipient);
+      }
+
+      executor.execute(this::resolvePending);
+      return recipient.future;
+    }
+
+    private void resolvePending() {
+      List<PendingRecipient> batch = new LinkedList<>();
+
+      synchronized (pending) {
+        while (!pending.isEmpty() && batch.size() < MAX_BATCH_SIZE) {
+          batch.add(pending.removeFirst());
+        }
+      }
+
+      if (batch.isEmpty()) return;
+
+      Set<Address> unresolved = Stream.of(batch)
+                                      .filter(recipient -> !recipient.settings.isPresent())
+                                      .map(recipient -> recipient.address)
+                                      .collect(Collectors.toSet());
+
+      Map<Address, RecipientSettings> settings = null;
+
+      try {
+        settings = DatabaseFactory.getRecipientDatabase(batch.get(0).context).getRecipientSettings(unresolved);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to load recipient settings in bulk. Falling back to individual lookups.", e);
+      }
+
+      for (PendingRecipient recipient : batch) {
+        if (settings != null && !recipient.settings.isPresent()) {
+          recipient.settings       = Optional.fromNullable(settings.get(recipient.address));
+          recipient.settingsLoaded = true;
+        }
+
+        recipient.future.run();
+      }
+    }
+  }
+
+  private class PendingRecipient {
+
+    private final Context                                context;
+    private final Address                                address;
+    private final Optional<GroupRecord>                  groupRecord;
+    private final ListenableFutureTask<RecipientDetails> future;
+
+    private Optional<RecipientSettings> settings;
+    private boolean                     settingsLoaded;
+
+    private PendingRecipient(@NonNull Context context, @NonNull Address address, @NonNull Optional<RecipientSettings> settings, @NonNull Optional<GroupRecord> groupRecord) {
+      this.context     = context;
+      this.address     = address;
+      this.settings    = settings;
+      this.groupRecord = groupRecord;
+      this.future      = new ListenableFutureTask<>(this::getDetails);
+    }
+
+    private @NonNull RecipientDetails getDetails() {
+      if (!address.isGroup() && settingsLoaded) return createIndividualRecipientDetails(context, address, settings);
+      else                                      return getRecipientDetailsSync(context, address, settings, groupRecord, true);
+    }
+  }
+
   private static class RecipientCache {
 
-    private final Map<Address,Recipient> cache = new SoftHashMap<>(1000);
+    private static final int MAX_SIZE          = 1000;
+    private static final int CONCURRENCY_LEVEL = 8;
+
+    private final StripedLruCache<Address, Recipient>    cache   = new StripedLruCache<>(MAX_SIZE, CONCURRENCY_LEVEL, this::onEvicted);
+    private final Map<Address, WeakReference<Recipient>> evicted = new ConcurrentHashMap<>();
+    private final AtomicLong                             revived = new AtomicLong();
+
+    /**
+     * Recipients are mutable and shared, so one that was evicted while something still holds
+     * on to it is handed back out rather than replaced by a second, diverging instance.
+     */
+    public Recipient get(Address address) {
+      Recipient recipient = cache.get(address);
 
-    public synchronized Recipient get(Address address) {
-      return cache.get(address);
+      if (recipient != null) {
+        return recipient;
+      }
+
+      WeakReference<Recipient> reference = evicted.remove(address);
+      recipient = reference != null ? reference.get() : null;
+
+      if (recipient != null) {
+        revived.incrementAndGet();
+        cache.put(address, recipient);
+      }
+
+      return recipient;
     }
 
-    public synchronized void set(Address address, Recipient recipient) {
+    public void set(Address address, Recipient recipient) {
+      evicted.remove(address);
       cache.put(address, recipient);
     }
 
+    @Override
+    public @NonNull String toString() {
+      return cache + ", revived: " + revived.get();
+    }
+
+    private void onEvicted(@NonNull Address address, @NonNull Recipient recipient) {
+      evicted.put(address, new WeakReference<>(recipient));
+
+      if (evicted.size() > MAX_SIZE) {
+        Iterator<WeakReference<Recipient>> iterator = evicted.values().iterator();
+
+        while (iterator.hasNext()) {
+          if (iterator.next().get() == null) {
+            iterator.remove();
+          }
+        }
+      }
+    }
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,141 @@
+package org.thoughtcrime.securesms.search;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.thoughtcrime.securesms.database.DatabaseChangeNotifier;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.database.SearchDatabase.Hit;
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the ranked matches of recent message searches, so that paging through a result or
+ * going back to an earlier query doesn't run the full-text search again.
+ *
+ * When the user types ahead, a new query only ever narrows the previous one, so if the previous
+ * query's matches are known in full, the new one is ranked within those instead of the whole index.
+ * Any change to the messages drops everything that's cached.
+ */
+public class MessageSearchCache {
+
+  static final         int MAX_HITS    = 5000;
+  private static final int MAX_QUERIES = 20;
+
+  private static volatile MessageSearchCache instance;
+
+  private final HitSource              source;
+  private final Map<String, List<Hit>> cache;
+
+  private long generation;
+
+  public static MessageSearchCache getInstance(@NonNull Context context) {
+    if (instance == null) {
+      synchronized (MessageSearchCache.class) {
+        if (instance == null) {
+          SearchDatabase searchDatabase = DatabaseFactory.getSearchDatabase(context);
+
+          instance = new MessageSearchCache(searchDatabase::getRankedHits);
+          DatabaseChangeNotifier.getInstance(context).addListener(changes -> instance.clear());
+        }
+      }
+    }
+
+    return instance;
+  }
+
+  @VisibleForTesting
+  MessageSearchCache(@NonNull HitSource source) {
+    this.source = source;
+    this.cache  = new LRUCache<>(MAX_QUERIES);
+  }
+
+  /**
+   * @param query An already sanitized query.
+   * @param after The last hit of the previous page, or null for the first page.
+   * @return Up to limit hits that rank after the given one.
+   */
+  public @NonNull List<Hit> getPage(@NonNull String query, @Nullable Hit after, int limit) {
+    if (query.trim().isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<Hit> hits  = getHits(query.trim());
+    int       start = 0;
+
+    if (after != null) {
+      int index = Collections.binarySearch(hits, after);
+      start = index >= 0 ? index + 1 : -index - 1;
+    }
+
+    return hits.subList(Math.min(start, hits.size()), Math.min(start + limit, hits.size()));
+  }
+
+  public synchronized void clear() {
+    cache.clear();
+    generation++;
+  }
+
+  private @NonNull List<Hit> getHits(@NonNull String query) {
+    List<Hit> narrowed;
+    long      fetchedAt;
+
+    synchronized (this) {
+      List<Hit> hits = cache.remove(query);
+
+      if (hits != null) {
+        cache.put(query, hits);
+        return hits;
+      }
+
+      narrowed  = getNarrowestComplete(query);
+      fetchedAt = generation;
+    }
+
+    List<Hit> hits = Collections.unmodifiableList(source.getRankedHits(query, narrowed, MAX_HITS));
+
+    synchronized (this) {
+      if (fetchedAt == generation) {
+        cache.put(query, hits);
+      }
+    }
+
+    return hits;
+  }
+
+  /**
+   * Every match of "ab c" is also a match of "ab" and "a", so the cached query that's the longest
+   * prefix of this one bounds its matches, provided that query wasn't cut off at {@link #MAX_HITS}.
+   */
+  private @Nullable List<Hit> getNarrowestComplete(@NonNull String query) {
+    String    best     = null;
+    List<Hit> bestHits = null;
+
+    for (Map.Entry<String, List<Hit>> entry : cache.entrySet()) {
+      String cached = entry.getKey();
+
+      if (!cached.isEmpty()                  &&
+          query.startsWith(cached)           &&
+          entry.getValue().size() < MAX_HITS &&
+          (best == null || cached.length() > best.length()))
+      {
+        best     = cached;
+        bestHits = entry.getValue();
+      }
+    }
+
+    return bestHits;
+  }
+
+  @VisibleForTesting
+  interface HitSource {
+    @NonNull List<Hit> getRankedHits(@NonNull String query, @Nullable Collection<Hit> within, int limit);
+  }
+}
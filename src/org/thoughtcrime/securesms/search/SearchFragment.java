@@ -1,10 +1,8 @@
 package org.thoughtcrime.securesms.search;
 
-import android.annotation.SuppressLint;
 import android.arch.lifecycle.ViewModelProviders;
 import android.content.Intent;
 import android.content.res.Configuration;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -41,6 +39,8 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
   public static final String TAG          = "SearchFragment";
   public static final String EXTRA_LOCALE = "locale";
 
+  private static final int LOAD_MORE_THRESHOLD = 10;
+
   private TextView               noResultsView;
   private RecyclerView           listView;
   private StickyHeaderDecoration listDecoration;
@@ -68,6 +68,7 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
 
     SearchRepository searchRepository = new SearchRepository(getContext(),
                                                              DatabaseFactory.getSearchDatabase(getContext()),
+                                                             MessageSearchCache.getInstance(getContext()),
                                                              DatabaseFactory.getContactsDatabase(getContext()),
                                                              DatabaseFactory.getThreadDatabase(getContext()),
                                                              ContactAccessor.getInstance(),
@@ -97,6 +98,16 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
     listView.setAdapter(listAdapter);
     listView.addItemDecoration(listDecoration);
     listView.setLayoutManager(new LinearLayoutManager(getContext()));
+    listView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+      @Override
+      public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+
+        if (dy > 0 && layoutManager.findLastVisibleItemPosition() >= listAdapter.getItemCount() - LOAD_MORE_THRESHOLD) {
+          viewModel.loadMoreMessages();
+        }
+      }
+    });
   }
 
   @Override
@@ -145,30 +156,17 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
     startActivity(intent);
   }
 
-  @SuppressLint("StaticFieldLeak")
   @Override
   public void onMessageClicked(@NonNull MessageResult message) {
-    new AsyncTask<Void, Void, Integer>() {
-      @Override
-      protected Integer doInBackground(Void... voids) {
-        int  startingPosition = DatabaseFactory.getMmsSmsDatabase(getContext()).getMessagePositionInConversation(message.threadId, message.receivedTimestampMs);
-        startingPosition = Math.max(0, startingPosition);
-
-        return startingPosition;
-      }
+    ConversationListActivity conversationList = (ConversationListActivity) getActivity();
 
-      @Override
-      protected void onPostExecute(Integer startingPosition) {
-        ConversationListActivity conversationList = (ConversationListActivity) getActivity();
-        if (conversationList != null) {
-          conversationList.openConversation(message.threadId,
-                                            message.conversationRecipient,
-                                            ThreadDatabase.DistributionTypes.DEFAULT,
-                                            -1,
-                                            startingPosition);
-        }
-      }
-    }.execute();
+    if (conversationList != null) {
+      conversationList.openConversation(message.threadId,
+                                        message.conversationRecipient,
+                                        ThreadDatabase.DistributionTypes.DEFAULT,
+                                        -1,
+                                        message.receivedTimestampMs);
+    }
   }
 
   public void updateSearchQuery(@NonNull String query) {
@@ -6,6 +6,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MergeCursor;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import com.annimon.stream.Stream;
@@ -39,6 +40,8 @@ public class SearchRepository {
 
   private static final String TAG = SearchRepository.class.getSimpleName();
 
+  private static final int MESSAGE_PAGE_SIZE = 100;
+
   private static final Set<Character> BANNED_CHARACTERS = new HashSet<>();
   static {
     // Several ranges of invalid ASCII characters
@@ -57,14 +60,16 @@ public class SearchRepository {
   }
 
   private final Context          context;
-  private final SearchDatabase   searchDatabase;
-  private final ContactsDatabase contactsDatabase;
-  private final ThreadDatabase   threadDatabase;
-  private final ContactAccessor  contactAccessor;
-  private final Executor         executor;
+  private final SearchDatabase     searchDatabase;
+  private final MessageSearchCache searchCache;
+  private final ContactsDatabase   contactsDatabase;
+  private final ThreadDatabase     threadDatabase;
+  private final ContactAccessor    contactAccessor;
+  private final Executor           executor;
 
   public SearchRepository(@NonNull Context context,
                           @NonNull SearchDatabase searchDatabase,
+                          @NonNull MessageSearchCache searchCache,
                           @NonNull ContactsDatabase contactsDatabase,
                           @NonNull ThreadDatabase threadDatabase,
                           @NonNull ContactAccessor contactAccessor,
@@ -72,6 +77,7 @@ public class SearchRepository {
   {
     this.context          = context.getApplicationContext();
     this.searchDatabase   = searchDatabase;
+    this.searchCache      = searchCache;
     this.contactsDatabase = contactsDatabase;
     this.threadDatabase   = threadDatabase;
     this.contactAccessor  = contactAccessor;
@@ -96,12 +102,31 @@ public class SearchRepository {
       CursorList<ThreadRecord> conversations = queryConversations(cleanQuery);
       timer.split("conversations");
 
-      CursorList<MessageResult> messages = queryMessages(cleanQuery);
+      List<SearchDatabase.Hit> hits = searchCache.getPage(cleanQuery, null, MESSAGE_PAGE_SIZE);
+      timer.split("rank");
+
+      CursorList<MessageResult> messages = queryMessages(cleanQuery, hits);
       timer.split("messages");
 
       timer.stop(TAG);
 
-      callback.onResult(new SearchResult(cleanQuery, contacts, conversations, messages));
+      callback.onResult(new SearchResult(cleanQuery, contacts, conversations, messages, getLastIfFull(hits)));
+    });
+  }
+
+  /**
+   * Loads the page of message results that follows the given hit.
+   *
+   * @param query A query from a previous {@link SearchResult}.
+   */
+  public void queryMoreMessages(@NonNull String query, @NonNull SearchDatabase.Hit after, @NonNull Callback<MessagePage> callback) {
+    executor.execute(() -> {
+      long                      startTime = System.currentTimeMillis();
+      List<SearchDatabase.Hit>  hits      = searchCache.getPage(query, after, MESSAGE_PAGE_SIZE);
+      CursorList<MessageResult> messages  = queryMessages(query, hits);
+      Log.d(TAG, "[MessagePage] " + (System.currentTimeMillis() - startTime) + " ms");
+
+      callback.onResult(new MessagePage(messages, getLastIfFull(hits)));
     });
   }
 
@@ -141,12 +166,20 @@ public class SearchRepository {
                                  : CursorList.emptyList();
   }
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query) {
-    Cursor messages = searchDatabase.queryMessages(query);
+  private CursorList<MessageResult> queryMessages(@NonNull String query, @NonNull List<SearchDatabase.Hit> hits) {
+    if (hits.isEmpty()) {
+      return CursorList.emptyList();
+    }
+
+    Cursor messages = searchDatabase.queryMessages(query, hits);
     return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
                             : CursorList.emptyList();
   }
 
+  private static @Nullable SearchDatabase.Hit getLastIfFull(@NonNull List<SearchDatabase.Hit> hits) {
+    return hits.size() == MESSAGE_PAGE_SIZE ? hits.get(hits.size() - 1) : null;
+  }
+
   private CursorList<MessageResult> queryMessages(@NonNull String query, long threadId) {
     Cursor messages = searchDatabase.queryMessages(query, threadId);
     return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
@@ -226,6 +259,25 @@ public class SearchRepository {
     }
   }
 
+  public static class MessagePage {
+
+    private final CursorList<MessageResult> messages;
+    private final SearchDatabase.Hit        lastHit;
+
+    MessagePage(@NonNull CursorList<MessageResult> messages, @Nullable SearchDatabase.Hit lastHit) {
+      this.messages = messages;
+      this.lastHit  = lastHit;
+    }
+
+    public @NonNull CursorList<MessageResult> getMessages() {
+      return messages;
+    }
+
+    public @Nullable SearchDatabase.Hit getLastHit() {
+      return lastHit;
+    }
+  }
+
   public interface Callback<E> {
     void onResult(@NonNull E result);
   }
@@ -27,7 +27,8 @@ class SearchViewModel extends ViewModel {
   private final SearchRepository  searchRepository;
   private final Debouncer         debouncer;
 
-  private String lastQuery;
+  private String  lastQuery;
+  private boolean loadingMoreMessages;
 
   private SearchViewModel(@NonNull SearchRepository searchRepository) {
     this.searchResult     = new ObservingLiveData();
@@ -61,6 +62,31 @@ class SearchViewModel extends ViewModel {
     }));
   }
 
+  /**
+   * Appends the next page of message results to the current result, if there is one.
+   */
+  void loadMoreMessages() {
+    SearchResult current = searchResult.getValue();
+
+    if (loadingMoreMessages || current == null || !current.hasMoreMessages()) {
+      return;
+    }
+
+    loadingMoreMessages = true;
+
+    searchRepository.queryMoreMessages(current.getQuery(), current.getLastMessageHit(), page -> {
+      Util.runOnMain(() -> {
+        loadingMoreMessages = false;
+
+        if (searchResult.getValue() == current) {
+          searchResult.extend(current.withMoreMessages(page.getMessages(), page.getLastHit()));
+        } else {
+          page.getMessages().close();
+        }
+      });
+    });
+  }
+
   @NonNull
   String getLastQuery() {
     return lastQuery == null ? "" : lastQuery;
@@ -93,6 +119,21 @@ class SearchViewModel extends ViewModel {
       super.setValue(value);
     }
 
+    /**
+     * Replaces the current result with one that builds on it, and so must not be closed.
+     */
+    void extend(@NonNull SearchResult value) {
+      SearchResult previous = getValue();
+
+      if (previous != null) {
+        previous.unregisterContentObserver(observer);
+      }
+
+      value.registerContentObserver(observer);
+
+      super.setValue(value);
+    }
+
     void close() {
       SearchResult value = getValue();
 
@@ -3,8 +3,10 @@ package org.thoughtcrime.securesms.search.model;
 import android.database.ContentObserver;
 import android.database.DataSetObserver;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.CursorList;
+import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.recipients.Recipient;
 
@@ -22,16 +24,38 @@ public class SearchResult {
   private final CursorList<Recipient>     contacts;
   private final CursorList<ThreadRecord>  conversations;
   private final CursorList<MessageResult> messages;
+  private final SearchDatabase.Hit        lastMessageHit;
 
   public SearchResult(@NonNull String                    query,
                       @NonNull CursorList<Recipient>     contacts,
                       @NonNull CursorList<ThreadRecord>  conversations,
                       @NonNull CursorList<MessageResult> messages)
   {
-    this.query         = query;
-    this.contacts      = contacts;
-    this.conversations = conversations;
-    this.messages      = messages;
+    this(query, contacts, conversations, messages, null);
+  }
+
+  /**
+   * @param lastMessageHit The last message loaded, if there may be more to page in after it.
+   */
+  public SearchResult(@NonNull String                    query,
+                      @NonNull CursorList<Recipient>     contacts,
+                      @NonNull CursorList<ThreadRecord>  conversations,
+                      @NonNull CursorList<MessageResult> messages,
+                      @Nullable SearchDatabase.Hit       lastMessageHit)
+  {
+    this.query          = query;
+    this.contacts       = contacts;
+    this.conversations  = conversations;
+    this.messages       = messages;
+    this.lastMessageHit = lastMessageHit;
+  }
+
+  /**
+   * @return This result with another page of messages appended. The new result owns the cursors
+   *         of both, so only it should be closed.
+   */
+  public @NonNull SearchResult withMoreMessages(@NonNull CursorList<MessageResult> page, @Nullable SearchDatabase.Hit lastMessageHit) {
+    return new SearchResult(query, contacts, conversations, CursorList.concat(messages, page), lastMessageHit);
   }
 
   public List<Recipient> getContacts() {
@@ -50,6 +74,14 @@ public class SearchResult {
     return query;
   }
 
+  public boolean hasMoreMessages() {
+    return lastMessageHit != null;
+  }
+
+  public @Nullable SearchDatabase.Hit getLastMessageHit() {
+    return lastMessageHit;
+  }
+
   public int size() {
     return contacts.size() + conversations.size() + messages.size();
   }
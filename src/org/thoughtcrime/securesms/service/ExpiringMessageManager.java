@@ -1,14 +1,20 @@
 package org.thoughtcrime.securesms.service;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
 import org.thoughtcrime.securesms.logging.Log;
 
+import org.thoughtcrime.securesms.database.DatabaseBatch;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessagingDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
-import org.thoughtcrime.securesms.database.model.MessageRecord;
 
 import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -17,19 +23,26 @@ public class ExpiringMessageManager {
 
   private static final String TAG = ExpiringMessageManager.class.getSimpleName();
 
+  private static final int  PAGE_SIZE      = 500;
+  private static final int  MAX_BATCH_SIZE = 500;
+  private static final long REAP_WINDOW    = 500;
+
   private final TreeSet<ExpiringMessageReference> expiringMessageReferences = new TreeSet<>(new ExpiringMessageComparator());
   private final Executor                          executor                  = Executors.newSingleThreadExecutor();
 
   private final SmsDatabase smsDatabase;
   private final MmsDatabase mmsDatabase;
   private final Context     context;
+  private final Loader      smsLoader;
+  private final Loader      mmsLoader;
 
   public ExpiringMessageManager(Context context) {
     this.context     = context.getApplicationContext();
     this.smsDatabase = DatabaseFactory.getSmsDatabase(context);
     this.mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    this.smsLoader   = new Loader(smsDatabase, false);
+    this.mmsLoader   = new Loader(mmsDatabase, true);
 
-    executor.execute(new LoadTask());
     executor.execute(new ProcessTask());
   }
 
@@ -52,27 +65,49 @@ public class ExpiringMessageManager {
     }
   }
 
-  private class LoadTask implements Runnable {
-    public void run() {
-      SmsDatabase.Reader smsReader = smsDatabase.readerFor(smsDatabase.getExpirationStartedMessages());
-      MmsDatabase.Reader mmsReader = mmsDatabase.getExpireStartedMessages();
+  /**
+   * Loads the messages with running timers from one table, a page at a time in the order they
+   * expire, so only those that are due soonest are held in memory.
+   */
+  private class Loader {
 
-      MessageRecord messageRecord;
+    private final MessagingDatabase database;
+    private final boolean           mms;
 
-      while ((messageRecord = smsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
-      }
+    private long    lastExpiresAt = Long.MIN_VALUE;
+    private long    lastId        = Long.MIN_VALUE;
+    private boolean exhausted;
 
-      while ((messageRecord = mmsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
+    private Loader(@NonNull MessagingDatabase database, boolean mms) {
+      this.database = database;
+      this.mms      = mms;
+    }
+
+    /**
+     * @return True if all of this table's messages that expire at or before the given time have
+     *         been loaded.
+     */
+    boolean hasLoadedUntil(long expiresAtMillis) {
+      return exhausted || lastExpiresAt > expiresAtMillis;
+    }
+
+    void loadNextPage() {
+      List<ExpiringMessageReference> page = new LinkedList<>();
+
+      try (Cursor cursor = database.getExpirationStartedMessages(lastExpiresAt, lastId, PAGE_SIZE)) {
+        while (cursor != null && cursor.moveToNext()) {
+          lastId        = cursor.getLong(cursor.getColumnIndexOrThrow(MessagingDatabase.ID));
+          lastExpiresAt = cursor.getLong(cursor.getColumnIndexOrThrow(MessagingDatabase.EXPIRES_AT));
+
+          page.add(new ExpiringMessageReference(lastId, mms, lastExpiresAt));
+        }
       }
 
-      smsReader.close();
-      mmsReader.close();
+      exhausted = page.size() < PAGE_SIZE;
+
+      synchronized (expiringMessageReferences) {
+        expiringMessageReferences.addAll(page);
+      }
     }
   }
 
@@ -80,34 +115,81 @@ public class ExpiringMessageManager {
   private class ProcessTask implements Runnable {
     public void run() {
       while (true) {
-        ExpiringMessageReference expiredMessage = null;
+        List<ExpiringMessageReference> expiredMessages = new LinkedList<>();
+        Loader                         loader          = null;
 
         synchronized (expiringMessageReferences) {
           try {
-            while (expiringMessageReferences.isEmpty()) expiringMessageReferences.wait();
-
-            ExpiringMessageReference nextReference = expiringMessageReferences.first();
-            long                     waitTime      = nextReference.expiresAtMillis - System.currentTimeMillis();
-
-            if (waitTime > 0) {
-              ExpirationListener.setAlarm(context, waitTime);
-              expiringMessageReferences.wait(waitTime);
-            } else {
-              expiredMessage = nextReference;
-              expiringMessageReferences.remove(nextReference);
+            long nextExpiresAt = expiringMessageReferences.isEmpty() ? Long.MAX_VALUE
+                                                                     : expiringMessageReferences.first().expiresAtMillis;
+
+            if      (!smsLoader.hasLoadedUntil(nextExpiresAt)) loader = smsLoader;
+            else if (!mmsLoader.hasLoadedUntil(nextExpiresAt)) loader = mmsLoader;
+            else if (expiringMessageReferences.isEmpty())      expiringMessageReferences.wait();
+            else {
+              long waitTime = nextExpiresAt - System.currentTimeMillis();
+
+              if (waitTime > 0) {
+                ExpirationListener.setAlarm(context, waitTime);
+                expiringMessageReferences.wait(waitTime);
+              } else {
+                long dueBefore = System.currentTimeMillis() + REAP_WINDOW;
+
+                while (!expiringMessageReferences.isEmpty()                         &&
+                       expiringMessageReferences.first().expiresAtMillis <= dueBefore &&
+                       expiredMessages.size() < MAX_BATCH_SIZE)
+                {
+                  expiredMessages.add(expiringMessageReferences.pollFirst());
+                }
+              }
             }
-
           } catch (InterruptedException e) {
             Log.w(TAG, e);
           }
         }
 
-        if (expiredMessage != null) {
-          if (expiredMessage.mms) mmsDatabase.delete(expiredMessage.id);
-          else                    smsDatabase.deleteMessage(expiredMessage.id);
+        if (loader != null) {
+          loader.loadNextPage();
+        } else if (!expiredMessages.isEmpty()) {
+          delete(expiredMessages);
         }
       }
     }
+
+    /**
+     * Deletes the messages in one transaction, so each affected thread is updated and notified
+     * once rather than once per message.
+     */
+    private void delete(@NonNull List<ExpiringMessageReference> expiredMessages) {
+      List<Long> smsIds = new LinkedList<>();
+      List<Long> mmsIds = new LinkedList<>();
+
+      for (ExpiringMessageReference expiredMessage : expiredMessages) {
+        if (expiredMessage.mms) mmsIds.add(expiredMessage.id);
+        else                    smsIds.add(expiredMessage.id);
+      }
+
+      DatabaseBatch batch = DatabaseFactory.beginBatch(context);
+      boolean       committed;
+
+      try {
+        if (!smsIds.isEmpty()) smsDatabase.deleteMessages(smsIds);
+        for (long mmsId : mmsIds) mmsDatabase.delete(mmsId);
+
+        batch.commit();
+      } finally {
+        committed = batch.end();
+      }
+
+      if (committed) {
+        Log.i(TAG, "Deleted " + expiredMessages.size() + " expired messages.");
+      } else {
+        Log.w(TAG, "Batch failed, deleting " + expiredMessages.size() + " expired messages individually.");
+
+        for (long smsId : smsIds) smsDatabase.deleteMessage(smsId);
+        for (long mmsId : mmsIds) mmsDatabase.delete(mmsId);
+      }
+    }
   }
 
   private static class ExpiringMessageReference {
@@ -21,6 +21,7 @@ import org.thoughtcrime.securesms.jobmanager.requirements.NetworkRequirement;
 import org.thoughtcrime.securesms.jobmanager.requirements.NetworkRequirementProvider;
 import org.thoughtcrime.securesms.jobmanager.requirements.RequirementListener;
 import org.thoughtcrime.securesms.jobs.PushContentReceiveJob;
+import org.thoughtcrime.securesms.jobs.ReceivePipeline;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -60,6 +61,9 @@ public class IncomingMessageObserver implements InjectableType, RequirementListe
     new NetworkRequirementProvider(context).setListener(this);
     new MessageRetrievalThread().start();
 
+    // Picks up any envelopes that were stored but not yet handled when the process last died.
+    ReceivePipeline.getInstance(context);
+
     if (TextSecurePreferences.isFcmDisabled(context)) {
       ContextCompat.startForegroundService(context, new Intent(context, ForegroundService.class));
     }
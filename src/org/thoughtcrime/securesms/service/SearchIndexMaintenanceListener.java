@@ -0,0 +1,37 @@
+package org.thoughtcrime.securesms.service;
+
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.jobs.SearchIndexMaintenanceJob;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+
+import java.util.concurrent.TimeUnit;
+
+public class SearchIndexMaintenanceListener extends PersistentAlarmManagerListener {
+
+  private static final long INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+  @Override
+  protected long getNextScheduledExecutionTime(Context context) {
+    return TextSecurePreferences.getNextSearchIndexMaintenanceTime(context);
+  }
+
+  @Override
+  protected long onAlarm(Context context, long scheduledTime) {
+    ApplicationContext.getInstance(context)
+                      .getJobManager()
+                      .add(new SearchIndexMaintenanceJob(context));
+
+    long nextTime = System.currentTimeMillis() + INTERVAL;
+    TextSecurePreferences.setNextSearchIndexMaintenanceTime(context, nextTime);
+
+    return nextTime;
+  }
+
+  public static void schedule(Context context) {
+    new SearchIndexMaintenanceListener().onReceive(context, new Intent());
+  }
+}
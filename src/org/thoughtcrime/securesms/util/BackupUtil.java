@@ -7,6 +7,7 @@ import android.support.annotation.Nullable;
 import org.thoughtcrime.securesms.logging.Log;
 
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.FullBackupBase;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.whispersystems.libsignal.util.ByteUtil;
 
@@ -14,6 +15,7 @@ import java.io.File;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Locale;
 
 public class BackupUtil {
@@ -38,6 +40,8 @@ public class BackupUtil {
     BackupInfo latestBackup    = null;
 
     for (File backup : backups) {
+      if (isDelta(backup)) continue;
+
       long backupTimestamp = getBackupTimestamp(backup);
 
       if (latestBackup == null || (backupTimestamp != -1 && backupTimestamp > latestBackup.getTimestamp())) {
@@ -45,6 +49,20 @@ public class BackupUtil {
       }
     }
 
+    if (latestBackup != null) {
+      List<File> deltas = FullBackupBase.getDeltaFiles(latestBackup.getFile());
+
+      if (!deltas.isEmpty()) {
+        long size = latestBackup.getSize();
+
+        for (File delta : deltas) {
+          size += delta.length();
+        }
+
+        latestBackup = new BackupInfo(Math.max(latestBackup.getTimestamp(), deltas.get(deltas.size() - 1).lastModified()), size, latestBackup.getFile());
+      }
+    }
+
     return latestBackup;
   }
 
@@ -65,7 +83,7 @@ public class BackupUtil {
   public static void deleteOldBackups() {
     try {
       File   backupDirectory = StorageUtil.getBackupDirectory();
-      File[] backups         = backupDirectory.listFiles();
+      File[] backups         = backupDirectory.listFiles(file -> !isDelta(file));
 
       if (backups != null && backups.length > 2) {
         Arrays.sort(backups, (left, right) -> {
@@ -80,11 +98,11 @@ public class BackupUtil {
         });
 
         for (int i=2;i<backups.length;i++) {
-          Log.i(TAG, "Deleting: " + backups[i].getAbsolutePath());
-
-          if (!backups[i].delete()) {
-            Log.w(TAG, "Delete failed: " + backups[i].getAbsolutePath());
+          for (File delta : FullBackupBase.getDeltaFiles(backups[i])) {
+            delete(delta);
           }
+
+          delete(backups[i]);
         }
       }
     } catch (NoExternalStorageException e) {
@@ -105,6 +123,18 @@ public class BackupUtil {
     return result;
   }
 
+  private static void delete(@NonNull File file) {
+    Log.i(TAG, "Deleting: " + file.getAbsolutePath());
+
+    if (!file.delete()) {
+      Log.w(TAG, "Delete failed: " + file.getAbsolutePath());
+    }
+  }
+
+  private static boolean isDelta(@NonNull File file) {
+    return file.getName().contains(FullBackupBase.DELTA_SUFFIX);
+  }
+
   private static long getBackupTimestamp(File backup) {
     String   name  = backup.getName();
     String[] prefixSuffix = name.split("[.]");
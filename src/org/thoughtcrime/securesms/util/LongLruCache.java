@@ -0,0 +1,233 @@
+package org.thoughtcrime.securesms.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A bounded LRU cache keyed on primitive longs.
+ *
+ * Keys live in an open addressing table and recency in a linked list threaded through parallel
+ * arrays, all allocated up front, so lookups, insertions and evictions don't allocate anything.
+ * Not thread safe: it's meant to be owned by a single thread, such as the main thread.
+ */
+public class LongLruCache<V> {
+
+  private static final int NONE = -1;
+
+  private final int      capacity;
+  private final int      mask;
+  private final int[]    table;
+  private final long[]   keys;
+  private final Object[] values;
+  private final int[]    previous;
+  private final int[]    next;
+
+  private int size;
+  private int head = NONE;
+  private int tail = NONE;
+
+  public LongLruCache(int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+    int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+
+    this.capacity = capacity;
+    this.mask     = tableSize - 1;
+    this.table    = new int[tableSize];
+    this.keys     = new long[capacity];
+    this.values   = new Object[capacity];
+    this.previous = new int[capacity];
+    this.next     = new int[capacity];
+
+    Arrays.fill(table, NONE);
+  }
+
+  /**
+   * @return The value for the key, which then becomes the most recently used, or null.
+   */
+  @SuppressWarnings("unchecked")
+  public @Nullable V get(long key) {
+    int slot = findSlot(key);
+
+    if (slot == NONE) {
+      return null;
+    }
+
+    int entry = table[slot];
+    moveToHead(entry);
+
+    return (V) values[entry];
+  }
+
+  /**
+   * @return True if the key is cached. Unlike {@link #get(long)}, this doesn't count as a use.
+   */
+  public boolean containsKey(long key) {
+    return findSlot(key) != NONE;
+  }
+
+  /**
+   * Caches the value as the most recently used, evicting the least recently used entry if full.
+   */
+  public void put(long key, @NonNull V value) {
+    int slot = findSlot(key);
+
+    if (slot != NONE) {
+      int entry = table[slot];
+      values[entry] = value;
+      moveToHead(entry);
+      return;
+    }
+
+    int entry;
+
+    if (size < capacity) {
+      entry = size++;
+    } else {
+      entry = tail;
+      unlink(entry);
+      removeSlot(findSlot(keys[entry]));
+    }
+
+    keys[entry]   = key;
+    values[entry] = value;
+
+    insertSlot(key, entry);
+    linkAtHead(entry);
+  }
+
+  public void remove(long key) {
+    int slot = findSlot(key);
+
+    if (slot == NONE) {
+      return;
+    }
+
+    int entry = table[slot];
+    int last  = size - 1;
+
+    unlink(entry);
+    removeSlot(slot);
+
+    if (entry != last) {
+      relocate(last, entry);
+    }
+
+    values[last] = null;
+    size--;
+  }
+
+  public void clear() {
+    Arrays.fill(table, NONE);
+    Arrays.fill(values, 0, size, null);
+
+    size = 0;
+    head = NONE;
+    tail = NONE;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private int findSlot(long key) {
+    int slot = hash(key) & mask;
+
+    while (table[slot] != NONE) {
+      if (keys[table[slot]] == key) return slot;
+      slot = (slot + 1) & mask;
+    }
+
+    return NONE;
+  }
+
+  private void insertSlot(long key, int entry) {
+    int slot = hash(key) & mask;
+
+    while (table[slot] != NONE) {
+      slot = (slot + 1) & mask;
+    }
+
+    table[slot] = entry;
+  }
+
+  /**
+   * Empties the slot and shifts back any later entries of the probe run that would otherwise no
+   * longer be reachable from their home slot, so lookups never need tombstones.
+   */
+  private void removeSlot(int slot) {
+    int empty = slot;
+    int probe = slot;
+
+    table[empty] = NONE;
+
+    while (true) {
+      probe = (probe + 1) & mask;
+
+      if (table[probe] == NONE) {
+        return;
+      }
+
+      int home = hash(keys[table[probe]]) & mask;
+
+      boolean reachable = empty <= probe ? (empty < home && home <= probe)
+                                         : (empty < home || home <= probe);
+
+      if (!reachable) {
+        table[empty] = table[probe];
+        table[probe] = NONE;
+        empty        = probe;
+      }
+    }
+  }
+
+  /**
+   * Moves the entry stored at from into the free index to, keeping the entries packed.
+   */
+  private void relocate(int from, int to) {
+    keys[to]     = keys[from];
+    values[to]   = values[from];
+    previous[to] = previous[from];
+    next[to]     = next[from];
+
+    table[findSlot(keys[from])] = to;
+
+    if (previous[to] != NONE) next[previous[to]] = to;
+    else                      head               = to;
+
+    if (next[to] != NONE) previous[next[to]] = to;
+    else                  tail               = to;
+  }
+
+  private void moveToHead(int entry) {
+    if (entry != head) {
+      unlink(entry);
+      linkAtHead(entry);
+    }
+  }
+
+  private void linkAtHead(int entry) {
+    previous[entry] = NONE;
+    next[entry]     = head;
+
+    if (head != NONE) previous[head] = entry;
+    else              tail           = entry;
+
+    head = entry;
+  }
+
+  private void unlink(int entry) {
+    if (previous[entry] != NONE) next[previous[entry]] = next[entry];
+    else                         head                  = next[entry];
+
+    if (next[entry] != NONE) previous[next[entry]] = previous[entry];
+    else                     tail                  = previous[entry];
+  }
+
+  private static int hash(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+}
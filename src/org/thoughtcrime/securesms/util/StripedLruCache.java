@@ -0,0 +1,171 @@
+package org.thoughtcrime.securesms.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe LRU cache.
+ *
+ * Entries are spread over a number of independently locked segments, each of which evicts its own
+ * least recently used entry once it is full, so concurrent readers only contend when they hit the
+ * same segment. Recency is therefore tracked per segment rather than globally.
+ */
+public class StripedLruCache<K, V> {
+
+  private final Segment<K, V>[]        segments;
+  private final EvictionListener<K, V> evictionListener;
+
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public StripedLruCache(int maxSize, int concurrencyLevel) {
+    this(maxSize, concurrencyLevel, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  public StripedLruCache(int maxSize, int concurrencyLevel, @Nullable EvictionListener<K, V> evictionListener) {
+    int segmentCount = 1;
+
+    while (segmentCount < concurrencyLevel) {
+      segmentCount <<= 1;
+    }
+
+    this.segments         = new Segment[segmentCount];
+    this.evictionListener = evictionListener;
+
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new Segment<>(Math.max(1, (maxSize + segmentCount - 1) / segmentCount));
+    }
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    V value = segmentFor(key).get(key);
+
+    if (value != null) hits.incrementAndGet();
+    else               misses.incrementAndGet();
+
+    return value;
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    Map.Entry<K, V> evicted = segmentFor(key).put(key, value);
+
+    if (evicted != null) {
+      evictions.incrementAndGet();
+
+      if (evictionListener != null) {
+        evictionListener.onEvicted(evicted.getKey(), evicted.getValue());
+      }
+    }
+  }
+
+  public @Nullable V remove(@NonNull K key) {
+    return segmentFor(key).remove(key);
+  }
+
+  public void clear() {
+    for (Segment<K, V> segment : segments) {
+      segment.clear();
+    }
+  }
+
+  public int size() {
+    int size = 0;
+
+    for (Segment<K, V> segment : segments) {
+      size += segment.size();
+    }
+
+    return size;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public @NonNull String toString() {
+    long hitCount  = hits.get();
+    long missCount = misses.get();
+    long total     = hitCount + missCount;
+
+    return "size: " + size() + ", hits: " + hitCount + ", misses: " + missCount + ", evictions: " + evictions.get() +
+           ", hit rate: " + (total > 0 ? (hitCount * 100 / total) : 0) + "%";
+  }
+
+  private @NonNull Segment<K, V> segmentFor(@NonNull K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return segments[hash & (segments.length - 1)];
+  }
+
+  public interface EvictionListener<K, V> {
+    /**
+     * Called after an entry was evicted to make room for another. Invoked outside of any cache
+     * lock on the thread that performed the insertion.
+     */
+    void onEvicted(@NonNull K key, @NonNull V value);
+  }
+
+  private static class Segment<K, V> {
+
+    private final int                 maxSize;
+    private final LinkedHashMap<K, V> map;
+
+    private Map.Entry<K, V> lastEvicted;
+
+    private Segment(int maxSize) {
+      this.maxSize = maxSize;
+      this.map     = new LinkedHashMap<K, V>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+          if (size() > Segment.this.maxSize) {
+            lastEvicted = new AbstractMap.SimpleImmutableEntry<>(eldest);
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    private synchronized V get(K key) {
+      return map.get(key);
+    }
+
+    private synchronized @Nullable Map.Entry<K, V> put(K key, V value) {
+      map.put(key, value);
+
+      Map.Entry<K, V> evicted = lastEvicted;
+      lastEvicted = null;
+
+      return evicted;
+    }
+
+    private synchronized V remove(K key) {
+      return map.remove(key);
+    }
+
+    private synchronized void clear() {
+      map.clear();
+    }
+
+    private synchronized int size() {
+      return map.size();
+    }
+  }
+}
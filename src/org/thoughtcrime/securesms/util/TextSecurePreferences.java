@@ -142,6 +142,8 @@ public class TextSecurePreferences {
   private static final String BACKUP_TIME                 = "pref_backup_next_time";
   public  static final String BACKUP_NOW                  = "pref_backup_create";
 
+  private static final String SEARCH_INDEX_MAINTENANCE_TIME = "pref_search_index_maintenance_next_time";
+
   public static final String SCREEN_LOCK         = "pref_android_screen_lock";
   public static final String SCREEN_LOCK_TIMEOUT = "pref_android_screen_lock_timeout";
 
@@ -254,6 +256,14 @@ public class TextSecurePreferences {
     return getLongPreference(context, BACKUP_TIME, -1);
   }
 
+  public static void setNextSearchIndexMaintenanceTime(@NonNull Context context, long time) {
+    setLongPreference(context, SEARCH_INDEX_MAINTENANCE_TIME, time);
+  }
+
+  public static long getNextSearchIndexMaintenanceTime(@NonNull Context context) {
+    return getLongPreference(context, SEARCH_INDEX_MAINTENANCE_TIME, 0L);
+  }
+
   public static int getNextPreKeyId(@NonNull Context context) {
     return getIntegerPreference(context, NEXT_PRE_KEY_ID, new SecureRandom().nextInt(Medium.MAX_VALUE));
   }
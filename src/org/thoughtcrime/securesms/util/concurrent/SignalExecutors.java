@@ -21,6 +21,17 @@ public class SignalExecutors {
   });
 
 
+  public static ExecutorService newCachedLowPriorityExecutor(final String name, int threads) {
+    AtomicInteger      counter  = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, name + "-" + counter.getAndIncrement());
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   public static ExecutorService newCachedSingleThreadExecutor(final String name) {
     ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> new Thread(r, name));
     executor.allowCoreThreadTimeOut(true);
@@ -0,0 +1,88 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BackupCheckpointTest {
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("checkpoint", "tmp");
+    file.deleteOnExit();
+  }
+
+  @Test
+  public void write_roundTrip() throws Exception {
+    BackupCheckpoint checkpoint = new BackupCheckpoint(18, 1234L, "signal.backup", "/tmp/backup.tmp", 3);
+    checkpoint.getTable("sms").add(1, 100);
+    checkpoint.getTable("sms").add(5, 500);
+    checkpoint.getTable("mms").add(2, 200);
+    checkpoint.write(file);
+
+    BackupCheckpoint read = BackupCheckpoint.read(file);
+
+    assertNotNull(read);
+    assertTrue(read.isComplete());
+    assertEquals(18, read.getDatabaseVersion());
+    assertEquals(1234L, read.getSchemaHash());
+    assertEquals("signal.backup", read.getBackupName());
+    assertEquals(3, read.getDeltaCount());
+    assertEquals(2, read.getTable("sms").size());
+    assertEquals(5, read.getTable("sms").getRowId(1));
+    assertEquals(500, read.getTable("sms").getHash(1));
+    assertEquals(200, read.getTable("mms").getHash(0));
+  }
+
+  @Test
+  public void readForResume_dropsRowsAfterLastProgress() throws Exception {
+    BackupCheckpoint header = new BackupCheckpoint(18, 1234L, "signal.backup", "/tmp/backup.tmp", 0);
+
+    try (BackupCheckpoint.Journal journal = new BackupCheckpoint.Journal(header, file, false)) {
+      journal.writeTable("sms");
+      journal.writeProgress(100, 0, "sms", Long.MIN_VALUE);
+      journal.writeRow(1, 10);
+      journal.writeRow(2, 20);
+      journal.writeProgress(300, 2, "sms", 2);
+      journal.writeRow(3, 30);
+    }
+
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(new byte[] { 2, 0, 0 });
+    }
+
+    BackupCheckpoint resume = BackupCheckpoint.readForResume(file);
+
+    assertNotNull(resume);
+    assertFalse(resume.isComplete());
+    assertEquals(2, resume.getTable("sms").size());
+    assertEquals(300, resume.getProgress().getOutputLength());
+    assertEquals(2, resume.getProgress().getLastRowId());
+
+    try (BackupCheckpoint.Journal journal = new BackupCheckpoint.Journal(header, file, true)) {
+      journal.writeRow(3, 31);
+      journal.writeTable("mms");
+      journal.writeRow(1, 11);
+      journal.writeEnd();
+    }
+
+    BackupCheckpoint finished = BackupCheckpoint.read(file);
+
+    assertNotNull(finished);
+    assertTrue(finished.isComplete());
+    assertEquals(3, finished.getTable("sms").size());
+    assertEquals(31, finished.getTable("sms").getHash(2));
+    assertEquals(1, finished.getTable("mms").size());
+    assertNull(BackupCheckpoint.readForResume(file));
+  }
+}
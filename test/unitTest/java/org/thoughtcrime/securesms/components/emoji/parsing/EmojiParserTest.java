@@ -0,0 +1,214 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EmojiParserTest {
+
+  private static final String GRINNING = "\uD83D\uDE00";
+  private static final String THUMBS   = "\uD83D\uDC4D";
+  private static final String HEART    = "\u2764\uFE0F";
+  private static final String MAN      = "\uD83D\uDC68";
+  private static final String FAMILY   = MAN + "\u200D\uD83D\uDC69\u200D\uD83D\uDC67";
+  private static final String FLAG     = "\uD83C\uDDFA\uD83C\uDDF8";
+  private static final String TONE     = "\uD83C\uDFFD";
+
+  private static final String[] EMOJI = { GRINNING, THUMBS, HEART, MAN, FAMILY, FLAG };
+
+  private EmojiTree   tree;
+  private EmojiParser parser;
+
+  @Before
+  public void setUp() {
+    tree = new EmojiTree();
+
+    for (int i = 0; i < EMOJI.length; i++) {
+      tree.add(EMOJI[i], new EmojiDrawInfo(null, i));
+    }
+
+    parser = new EmojiParser(tree);
+  }
+
+  @Test
+  public void findCandidates_plainText() {
+    EmojiParser.CandidateList candidates = parser.findCandidates("Hello there");
+
+    assertEquals(0, candidates.size());
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_prefersLongestMatch() {
+    EmojiParser.CandidateList candidates = parser.findCandidates(FAMILY + MAN);
+
+    assertEquals(2, candidates.size());
+    assertCandidate(candidates.get(0), 0, FAMILY.length(), 4);
+    assertCandidate(candidates.get(1), FAMILY.length(), FAMILY.length() + MAN.length(), 3);
+    assertTrue(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_matchesWithoutVariationSelector() {
+    EmojiParser.CandidateList candidates = parser.findCandidates("I \u2764 you");
+
+    assertEquals(1, candidates.size());
+    assertCandidate(candidates.get(0), 2, 3, 2);
+  }
+
+  @Test
+  public void findCandidates_includesSkinTone() {
+    EmojiParser.CandidateList candidates = parser.findCandidates(THUMBS + TONE + "!");
+
+    assertEquals(1, candidates.size());
+    assertCandidate(candidates.get(0), 0, 4, 1);
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_cachesByText() {
+    EmojiParser.CandidateList first  = parser.findCandidates(new StringBuilder("a" + GRINNING));
+    EmojiParser.CandidateList second = parser.findCandidates("a" + GRINNING);
+
+    assertSame(first, second);
+  }
+
+  @Test
+  public void findCandidates_matchesTreeWalk() {
+    Random random = new Random(42);
+
+    for (int i = 0; i < 5000; i++) {
+      String                    text     = randomMessage(random);
+      EmojiParser.CandidateList expected = findCandidatesByTreeWalk(tree, text);
+      EmojiParser.CandidateList actual   = parser.findCandidates(text);
+
+      assertEquals(text, expected.size(), actual.size());
+      assertEquals(text, expected.allEmojis, actual.allEmojis);
+
+      for (int j = 0; j < expected.size(); j++) {
+        assertCandidate(actual.get(j), expected.get(j).getStartIndex(), expected.get(j).getEndIndex(), expected.get(j).getDrawInfo().getIndex());
+      }
+    }
+  }
+
+  @Test
+  @Ignore("Benchmark, run manually")
+  public void benchmark() {
+    Random       random = new Random(1);
+    List<String> corpus = new LinkedList<>();
+
+    for (int i = 0; i < 20000; i++) {
+      corpus.add(randomMessage(random));
+    }
+
+    List<String> recent  = corpus.subList(0, 100);
+    EmojiMatcher matcher = tree.compile();
+
+    for (int round = 0; round < 3; round++) {
+      EmojiParser cachedParser = new EmojiParser(tree);
+      long        start        = System.nanoTime();
+
+      for (String message : corpus) findCandidatesByTreeWalk(tree, message);
+      long treeWalk = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (String message : corpus) matcher.findCandidates(message);
+      long matched = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (String message : corpus) cachedParser.findCandidates(message);
+      long cacheMisses = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < corpus.size() / recent.size(); i++) for (String message : recent) cachedParser.findCandidates(message);
+      long cacheHits = System.nanoTime() - start;
+
+      System.out.println(corpus.size() + " messages. Tree walk: " + treeWalk / 1000000 + " ms, " +
+                         "matcher: " + matched / 1000000 + " ms, " +
+                         "parser, all misses: " + cacheMisses / 1000000 + " ms, " +
+                         "parser, recently seen: " + cacheHits / 1000000 + " ms");
+    }
+  }
+
+  private static void assertCandidate(EmojiParser.Candidate candidate, int start, int end, int index) {
+    assertEquals(start, candidate.getStartIndex());
+    assertEquals(end, candidate.getEndIndex());
+    assertEquals(index, candidate.getDrawInfo().getIndex());
+  }
+
+  /**
+   * A mix of the kinds of messages people actually send: mostly short plain text, some emoji
+   * reactions, and the odd long message or one in another script, with the occasional partial or
+   * unknown sequence thrown in.
+   */
+  private static String randomMessage(Random random) {
+    StringBuilder builder = new StringBuilder();
+    int           words   = random.nextInt(10) == 0 ? 40 + random.nextInt(200) : 1 + random.nextInt(12);
+    boolean       cjk     = random.nextInt(20) == 0;
+
+    for (int i = 0; i < words; i++) {
+      int kind = random.nextInt(20);
+
+      if (kind == 0) {
+        builder.append(EMOJI[random.nextInt(EMOJI.length)]);
+        if (random.nextBoolean()) builder.append(TONE);
+      } else if (kind == 1) {
+        builder.append(FAMILY, 0, 1 + random.nextInt(FAMILY.length() - 1));
+      } else if (kind == 2) {
+        builder.append('\uD83D').append((char) ('\uDE00' + random.nextInt(80)));
+      } else if (cjk) {
+        int length = 2 + random.nextInt(4);
+        for (int j = 0; j < length; j++) builder.append((char) ('\u4E00' + random.nextInt(2000)));
+      } else {
+        int length = 1 + random.nextInt(9);
+        for (int j = 0; j < length; j++) builder.append((char) ('a' + random.nextInt(26)));
+        builder.append(' ');
+      }
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * The original parser, which walks the tree again from the root for every possible end.
+   */
+  private static EmojiParser.CandidateList findCandidatesByTreeWalk(EmojiTree tree, CharSequence text) {
+    List<EmojiParser.Candidate> results   = new LinkedList<>();
+    boolean                     allEmojis = text.length() > 0;
+
+    for (int i = 0; i < text.length(); i++) {
+      int emojiEnd = -1;
+
+      for (int j = i + 1; j <= text.length(); j++) {
+        EmojiTree.Matches status = tree.isEmoji(text, i, j);
+
+        if      (status.exactMatch())      emojiEnd = j;
+        else if (status.impossibleMatch()) break;
+      }
+
+      if (emojiEnd != -1) {
+        EmojiDrawInfo drawInfo = tree.getEmoji(text, i, emojiEnd);
+
+        if (emojiEnd + 2 <= text.length() && Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
+          emojiEnd += 2;
+        }
+
+        results.add(new EmojiParser.Candidate(i, emojiEnd, drawInfo));
+        i = emojiEnd - 1;
+      } else {
+        allEmojis = false;
+      }
+    }
+
+    return new EmojiParser.CandidateList(results.toArray(new EmojiParser.Candidate[0]), results.size(), allEmojis);
+  }
+}
@@ -0,0 +1,107 @@
+package org.thoughtcrime.securesms.conversation;
+
+import android.text.Spannable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.database.model.NotificationMmsMessageRecord;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+public class MessageBodyCacheTest extends BaseUnitTest {
+
+  private MessageBodyCache cache;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    cache = new MessageBodyCache(context, Locale.US);
+  }
+
+  @Test
+  public void get_returnsCachedBodyForSameRecord() {
+    MessageRecord         record = record(MessageRecord.class, 1, false, 20, "hello", 1000);
+    MessageBodyCache.Body body   = body(record, null, true);
+
+    cache.put(body);
+
+    assertTrue(cache.contains(record, null, true));
+    assertSame(body, cache.get(record, null, true));
+    verify(record, never()).getDisplayBody();
+  }
+
+  @Test
+  public void contains_missesOtherRecordsAndDisplayOptions() {
+    MessageRecord record = record(MessageRecord.class, 1, false, 20, "hello", 1000);
+
+    cache.put(body(record, null, true));
+
+    assertFalse(cache.contains(record(MessageRecord.class, 2, false, 20, "hello", 1000), null, true));
+    assertFalse(cache.contains(record(MessageRecord.class, 1, true, 20, "hello", 1000), null, true));
+    assertFalse(cache.contains(record, "hel", true));
+    assertFalse(cache.contains(record, null, false));
+  }
+
+  @Test
+  public void contains_missesWhenWhatIsDisplayedChanged() {
+    MessageRecord record = record(MessageRecord.class, 1, false, 20, "hello", 1000);
+
+    cache.put(body(record, null, true));
+
+    assertFalse(cache.contains(record(MessageRecord.class, 1, false, 20, "hello!", 1000), null, true));
+    assertFalse(cache.contains(record(MessageRecord.class, 1, false, 21, "hello", 1000), null, true));
+    assertFalse(cache.contains(record(MessageRecord.class, 1, false, 20, "hello", 1001), null, true));
+    assertTrue(cache.contains(record, null, true));
+  }
+
+  @Test
+  public void contains_missesWhenNotificationStatusChanged() {
+    NotificationMmsMessageRecord downloading = record(NotificationMmsMessageRecord.class, 1, true, 20, "", 1000);
+    NotificationMmsMessageRecord failed      = record(NotificationMmsMessageRecord.class, 1, true, 20, "", 1000);
+
+    when(downloading.getStatus()).thenReturn(1);
+    when(failed.getStatus()).thenReturn(2);
+
+    cache.put(body(downloading, null, true));
+
+    assertTrue(cache.contains(downloading, null, true));
+    assertFalse(cache.contains(failed, null, true));
+  }
+
+  @Test
+  public void clear_dropsCachedBodies() {
+    MessageRecord record = record(MessageRecord.class, 1, false, 20, "hello", 1000);
+
+    cache.put(body(record, null, true));
+    cache.clear();
+
+    assertFalse(cache.contains(record, null, true));
+  }
+
+  private static <T extends MessageRecord> T record(Class<T> type, long id, boolean mms, long messageType, String body, long dateSent) {
+    T record = mock(type);
+
+    when(record.getId()).thenReturn(id);
+    when(record.isMms()).thenReturn(mms);
+    when(record.getType()).thenReturn(messageType);
+    when(record.getBody()).thenReturn(body);
+    when(record.getDateSent()).thenReturn(dateSent);
+
+    return record;
+  }
+
+  private static MessageBodyCache.Body body(MessageRecord record, String searchQuery, boolean linkifyAllLinks) {
+    return new MessageBodyCache.Body(record, searchQuery, linkifyAllLinks, null, mock(Spannable.class), null, null);
+  }
+}
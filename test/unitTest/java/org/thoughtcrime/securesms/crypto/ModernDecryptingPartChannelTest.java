@@ -0,0 +1,96 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ModernDecryptingPartChannelTest {
+
+  private final Random random = new Random(42);
+
+  private AttachmentSecret attachmentSecret;
+  private byte[]           keyRandom;
+  private byte[]           plaintext;
+  private File             file;
+
+  @Before
+  public void setUp() throws Exception {
+    byte[] modernKey = new byte[32];
+    random.nextBytes(modernKey);
+
+    attachmentSecret = new AttachmentSecret(null, null, modernKey);
+    keyRandom        = new byte[32];
+    plaintext        = new byte[100_000];
+
+    random.nextBytes(keyRandom);
+    random.nextBytes(plaintext);
+
+    file = File.createTempFile("part", "mms");
+    file.deleteOnExit();
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(modernKey, "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(keyRandom), "AES"), new IvParameterSpec(new byte[16]));
+
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(cipher.doFinal(plaintext));
+    }
+  }
+
+  @Test
+  public void read_randomPositions() throws Exception {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, keyRandom, file)) {
+      for (int i = 0; i < 100; i++) {
+        int    position = random.nextInt(plaintext.length);
+        int    length   = Math.min(1 + random.nextInt(5000), plaintext.length - position);
+        byte[] buffer   = new byte[length];
+
+        assertEquals(length, channel.read(position, buffer, 0, length));
+        assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + length), buffer);
+      }
+    }
+  }
+
+  @Test
+  public void read_pastEnd() throws Exception {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, keyRandom, file)) {
+      assertEquals(-1, channel.read(plaintext.length, new byte[10], 0, 10));
+      assertEquals(5, channel.read(plaintext.length - 5, new byte[10], 0, 10));
+    }
+  }
+
+  @Test
+  public void newInputStream_fromOffset() throws Exception {
+    int    offset = 12_345;
+    byte[] result = new byte[plaintext.length - offset];
+
+    try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, keyRandom, file, offset)) {
+      int read = 0;
+      int count;
+
+      while ((count = inputStream.read(result, read, result.length - read)) > 0) {
+        read += count;
+      }
+
+      assertEquals(result.length, read);
+      assertEquals(-1, inputStream.read());
+    }
+
+    assertArrayEquals(Arrays.copyOfRange(plaintext, offset, plaintext.length), result);
+  }
+}
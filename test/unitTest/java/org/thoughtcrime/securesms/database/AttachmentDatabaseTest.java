@@ -0,0 +1,381 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Pair;
+
+import com.bumptech.glide.Glide;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.Whitebox;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.mms.MediaStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+import static org.powermock.api.mockito.PowerMockito.whenNew;
+
+@PrepareForTest({ AttachmentDatabase.class, ModernEncryptingPartOutputStream.class, DatabaseFactory.class,
+                  DatabaseChangeNotifier.class, Glide.class, Uri.class,
+                  Log.class, Handler.class, Looper.class, TextUtils.class, PreferenceManager.class })
+public class AttachmentDatabaseTest extends BaseUnitTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SQLiteDatabase     database;
+  private Cursor             cursor;
+  private AttachmentDatabase attachmentDatabase;
+  private File               directory;
+
+  private final List<Map<String, Object>>               rows          = new LinkedList<>();
+  private final Map<ContentValues, Map<String, Object>> contentValues = new IdentityHashMap<>();
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+
+    SQLCipherOpenHelper databaseHelper = mock(SQLCipherOpenHelper.class);
+
+    database           = mock(SQLiteDatabase.class);
+    cursor             = mock(Cursor.class);
+    attachmentDatabase = new AttachmentDatabase(context, databaseHelper, mock(AttachmentSecret.class));
+    directory          = temporaryFolder.newFolder(AttachmentDatabase.DIRECTORY);
+
+    when(databaseHelper.getWritableDatabase()).thenReturn(database);
+    when(databaseHelper.getReadableDatabase()).thenReturn(database);
+    when(database.query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString())).thenReturn(cursor);
+  }
+
+  @Test
+  public void deleteAttachment_missingAttachmentLeavesTransactionSuccessful() {
+    when(cursor.moveToNext()).thenReturn(false);
+
+    attachmentDatabase.deleteAttachment(new AttachmentId(1, 2));
+
+    InOrder order = inOrder(database);
+    order.verify(database).beginTransaction();
+    order.verify(database).setTransactionSuccessful();
+    order.verify(database).endTransaction();
+
+    verify(database, never()).delete(anyString(), anyString(), any(String[].class));
+    verify(cursor).close();
+  }
+
+  @Test
+  public void updateAttachmentData_sameContentSharesFileUntilLastReferenceIsDeleted() throws Exception {
+    useFakeTable();
+
+    AttachmentId first  = addAttachment(1, "legacy-1");
+    AttachmentId second = addAttachment(2, "legacy-2");
+
+    attachmentDatabase.updateAttachmentData(databaseAttachment(first), mediaStream("data"));
+
+    File shared = getFile(first, AttachmentDatabase.DATA);
+
+    assertTrue(shared.exists());
+    assertFalse(new File(directory, "legacy-1").exists());
+
+    attachmentDatabase.updateAttachmentData(databaseAttachment(second), mediaStream("data"));
+
+    assertEquals(shared, getFile(second, AttachmentDatabase.DATA));
+    assertTrue(shared.exists());
+    assertFalse(new File(directory, "legacy-2").exists());
+    assertEquals(1, directory.listFiles().length);
+
+    attachmentDatabase.deleteAttachment(first);
+
+    assertTrue(shared.exists());
+
+    attachmentDatabase.deleteAttachment(second);
+
+    assertFalse(shared.exists());
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  @Test
+  public void updateAttachmentData_differentContentIsNotShared() throws Exception {
+    useFakeTable();
+
+    AttachmentId first  = addAttachment(1, "legacy-1");
+    AttachmentId second = addAttachment(2, "legacy-2");
+
+    attachmentDatabase.updateAttachmentData(databaseAttachment(first), mediaStream("data"));
+    attachmentDatabase.updateAttachmentData(databaseAttachment(second), mediaStream("other data"));
+
+    File firstFile  = getFile(first, AttachmentDatabase.DATA);
+    File secondFile = getFile(second, AttachmentDatabase.DATA);
+
+    assertNotEquals(firstFile, secondFile);
+
+    attachmentDatabase.deleteAttachment(first);
+
+    assertFalse(firstFile.exists());
+    assertTrue(secondFile.exists());
+  }
+
+  @Test
+  public void updateAttachmentThumbnail_sameContentSharesFileUntilLastReferenceIsDeleted() throws Exception {
+    useFakeTable();
+
+    AttachmentId first  = addAttachment(1, null);
+    AttachmentId second = addAttachment(2, null);
+
+    attachmentDatabase.updateAttachmentThumbnail(first, stream("thumbnail"), 1f);
+
+    File shared = getFile(first, AttachmentDatabase.THUMBNAIL);
+
+    assertTrue(shared.exists());
+
+    attachmentDatabase.updateAttachmentThumbnail(second, stream("thumbnail"), 1f);
+
+    assertEquals(shared, getFile(second, AttachmentDatabase.THUMBNAIL));
+    assertTrue(shared.exists());
+    assertEquals(1, directory.listFiles().length);
+
+    attachmentDatabase.deleteAttachment(first);
+
+    assertTrue(shared.exists());
+
+    attachmentDatabase.deleteAttachment(second);
+
+    assertFalse(shared.exists());
+  }
+
+  @Test
+  public void deleteAttachment_keepsSharedDataButDeletesOwnThumbnail() throws Exception {
+    useFakeTable();
+
+    AttachmentId first  = addAttachment(1, "legacy-1");
+    AttachmentId second = addAttachment(2, "legacy-2");
+
+    attachmentDatabase.updateAttachmentData(databaseAttachment(first), mediaStream("data"));
+    attachmentDatabase.updateAttachmentData(databaseAttachment(second), mediaStream("data"));
+    attachmentDatabase.updateAttachmentThumbnail(first, stream("thumbnail"), 1f);
+
+    File data      = getFile(first, AttachmentDatabase.DATA);
+    File thumbnail = getFile(first, AttachmentDatabase.THUMBNAIL);
+
+    attachmentDatabase.deleteAttachment(first);
+
+    assertTrue(data.exists());
+    assertFalse(thumbnail.exists());
+  }
+
+  /**
+   * Backs the database with rows kept in memory, which understands the selections the attachment
+   * database makes: columns compared to arguments or checked for null, joined with AND.
+   */
+  private void useFakeTable() throws Exception {
+    ContentResolver contentResolver = mock(ContentResolver.class);
+
+    when(context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE)).thenReturn(directory);
+    when(context.getContentResolver()).thenReturn(contentResolver);
+
+    mockStatic(Uri.class);
+    mockStatic(Glide.class);
+    mockStatic(DatabaseFactory.class);
+    mockStatic(DatabaseChangeNotifier.class);
+    mockStatic(ModernEncryptingPartOutputStream.class);
+
+    when(Glide.get(any(Context.class))).thenReturn(mock(Glide.class));
+    when(DatabaseFactory.getMmsDatabase(any(Context.class))).thenReturn(mock(MmsDatabase.class));
+    when(DatabaseChangeNotifier.getInstance(any(Context.class))).thenReturn(mock(DatabaseChangeNotifier.class));
+
+    when(ModernEncryptingPartOutputStream.createFor(any(AttachmentSecret.class), any(File.class), anyBoolean())).thenAnswer(invocation -> {
+      Pair<byte[], OutputStream> pair = mock(Pair.class);
+      Whitebox.setInternalState(pair, "first", new byte[32]);
+      Whitebox.setInternalState(pair, "second", new FileOutputStream((File) invocation.getArguments()[1]));
+      return pair;
+    });
+
+    whenNew(ContentValues.class).withAnyArguments().thenAnswer(invocation -> {
+      Map<String, Object> values = new HashMap<>();
+      ContentValues       mock   = mock(ContentValues.class, put -> {
+        if ("put".equals(put.getMethod().getName())) {
+          values.put((String) put.getArguments()[0], put.getArguments()[1]);
+        }
+        return null;
+      });
+
+      contentValues.put(mock, values);
+      return mock;
+    });
+
+    when(database.query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString()))
+        .thenAnswer(invocation -> query(invocation.getArguments()));
+    when(database.query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString(), anyString()))
+        .thenAnswer(invocation -> query(invocation.getArguments()));
+
+    when(database.update(anyString(), any(ContentValues.class), anyString(), any(String[].class))).thenAnswer(invocation -> {
+      Object[] arguments = invocation.getArguments();
+      int      updated   = 0;
+
+      for (Map<String, Object> row : rows) {
+        if (matches(row, (String) arguments[2], (String[]) arguments[3])) {
+          row.putAll(contentValues.get((ContentValues) arguments[1]));
+          updated++;
+        }
+      }
+
+      return updated;
+    });
+
+    when(database.delete(anyString(), anyString(), any(String[].class))).thenAnswer(invocation -> {
+      Object[]                      arguments = invocation.getArguments();
+      Iterator<Map<String, Object>> iterator  = rows.iterator();
+      int                           deleted   = 0;
+
+      while (iterator.hasNext()) {
+        if (matches(iterator.next(), (String) arguments[1], (String[]) arguments[2])) {
+          iterator.remove();
+          deleted++;
+        }
+      }
+
+      return deleted;
+    });
+  }
+
+  private AttachmentId addAttachment(long rowId, String legacyData) throws Exception {
+    Map<String, Object> row = new HashMap<>();
+
+    row.put(AttachmentDatabase.ROW_ID, rowId);
+    row.put(AttachmentDatabase.UNIQUE_ID, rowId);
+    row.put(AttachmentDatabase.MMS_ID, rowId);
+    row.put(AttachmentDatabase.CONTENT_TYPE, "application/octet-stream");
+    row.put(AttachmentDatabase.SIZE, 0L);
+
+    if (legacyData != null) {
+      File file = new File(directory, legacyData);
+      assertTrue(file.createNewFile());
+      row.put(AttachmentDatabase.DATA, file.getAbsolutePath());
+    }
+
+    rows.add(row);
+
+    return new AttachmentId(rowId, rowId);
+  }
+
+  private File getFile(AttachmentId attachmentId, String column) {
+    for (Map<String, Object> row : rows) {
+      if (matches(row, AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?", attachmentId.toStrings())) {
+        return new File((String) row.get(column));
+      }
+    }
+
+    throw new AssertionError("No attachment " + attachmentId);
+  }
+
+  private Cursor query(Object[] arguments) {
+    String[]       columns = (String[]) arguments[1];
+    List<Object[]> results = new LinkedList<>();
+
+    for (Map<String, Object> row : rows) {
+      if (matches(row, (String) arguments[2], (String[]) arguments[3])) {
+        Object[] result = new Object[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+          result[i] = row.get(columns[i]);
+        }
+
+        results.add(result);
+      }
+    }
+
+    return cursorOf(columns, results);
+  }
+
+  private static boolean matches(Map<String, Object> row, String selection, String[] selectionArgs) {
+    int argument = 0;
+
+    for (String clause : selection.split(" AND ")) {
+      Object value = row.get(clause.substring(0, clause.indexOf(' ')));
+
+      if (clause.endsWith(" IS NOT NULL")) {
+        if (value == null) return false;
+      } else {
+        String expected = selectionArgs[argument++];
+        if (value == null || !String.valueOf(value).equals(expected)) return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static Cursor cursorOf(String[] columns, List<Object[]> results) {
+    Cursor cursor   = mock(Cursor.class);
+    int[]  position = new int[] {-1};
+
+    when(cursor.moveToNext()).thenAnswer(invocation -> ++position[0] < results.size());
+    when(cursor.moveToFirst()).thenAnswer(invocation -> (position[0] = 0) < results.size());
+    when(cursor.isNull(anyInt())).thenAnswer(invocation -> results.get(position[0])[(Integer) invocation.getArguments()[0]] == null);
+    when(cursor.getString(anyInt())).thenAnswer(invocation -> results.get(position[0])[(Integer) invocation.getArguments()[0]]);
+    when(cursor.getBlob(anyInt())).thenAnswer(invocation -> results.get(position[0])[(Integer) invocation.getArguments()[0]]);
+    when(cursor.getLong(anyInt())).thenAnswer(invocation -> ((Number) results.get(position[0])[(Integer) invocation.getArguments()[0]]).longValue());
+    when(cursor.getFloat(anyInt())).thenAnswer(invocation -> ((Number) results.get(position[0])[(Integer) invocation.getArguments()[0]]).floatValue());
+    when(cursor.getColumnIndexOrThrow(anyString())).thenAnswer(invocation -> Arrays.asList(columns).indexOf(invocation.getArguments()[0]));
+
+    return cursor;
+  }
+
+  private static DatabaseAttachment databaseAttachment(AttachmentId attachmentId) {
+    DatabaseAttachment attachment = mock(DatabaseAttachment.class);
+    when(attachment.getAttachmentId()).thenReturn(attachmentId);
+    return attachment;
+  }
+
+  private static MediaStream mediaStream(String content) {
+    return new MediaStream(stream(content), "application/octet-stream", 0, 0);
+  }
+
+  private static InputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes());
+  }
+}
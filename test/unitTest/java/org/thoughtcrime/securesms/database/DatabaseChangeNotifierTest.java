@@ -0,0 +1,78 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DatabaseChangeNotifierTest {
+
+  @Test
+  public void testMessagesAreMergedPerThread() {
+    DatabaseChangeNotifier.Changes changes = new DatabaseChangeNotifier.Changes();
+    changes.addMessage(1, 10, false);
+    changes.addMessage(1, 10, false);
+    changes.addMessage(1, 11, true);
+    changes.addMessage(2, 12, false);
+
+    DatabaseChangeNotifier.ConversationChange first = changes.getConversation(1);
+
+    assertEquals(2, changes.getConversations().size());
+    assertEquals(Collections.singleton(10L), first.getSmsIds());
+    assertEquals(Collections.singleton(11L), first.getMmsIds());
+    assertFalse(first.isUnknown());
+    assertFalse(changes.isConversationListChanged());
+    assertEquals(4, changes.getRequestCount());
+  }
+
+  @Test
+  public void testThreadChangeWithoutMessageIsUnknown() {
+    DatabaseChangeNotifier.Changes changes = new DatabaseChangeNotifier.Changes();
+    changes.addMessage(1, 10, false);
+    changes.addConversation(1);
+    changes.addMessage(1, 11, false);
+
+    DatabaseChangeNotifier.ConversationChange change = changes.getConversation(1);
+
+    assertTrue(change.isUnknown());
+    assertTrue(change.getSmsIds().isEmpty());
+  }
+
+  @Test
+  public void testAddAll() {
+    DatabaseChangeNotifier.Changes batch = new DatabaseChangeNotifier.Changes();
+    batch.addMessage(1, 10, false);
+    batch.addConversation(2);
+    batch.addConversationList();
+
+    DatabaseChangeNotifier.Changes pending = new DatabaseChangeNotifier.Changes();
+    pending.addMessage(1, 11, false);
+    pending.addMessage(2, 12, true);
+    pending.addAll(batch);
+
+    assertEquals(2, pending.getConversation(1).getSmsIds().size());
+    assertTrue(pending.getConversation(2).isUnknown());
+    assertTrue(pending.isConversationListChanged());
+    assertEquals(5, pending.getRequestCount());
+  }
+
+  @Test
+  public void testTooManyMessagesBecomesUnknown() {
+    DatabaseChangeNotifier.Changes changes = new DatabaseChangeNotifier.Changes();
+
+    for (int i = 0; i < 1000; i++) {
+      changes.addMessage(1, i, false);
+    }
+
+    assertTrue(changes.getConversation(1).isUnknown());
+    assertTrue(changes.getConversation(1).getSmsIds().isEmpty());
+  }
+
+  @Test
+  public void testEmpty() {
+    assertTrue(new DatabaseChangeNotifier.Changes().isEmpty());
+  }
+}
@@ -0,0 +1,87 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class JobCoalescerTest {
+
+  @Test
+  public void reserve_collapsesWhilePending() {
+    JobCoalescer coalescer = new JobCoalescer();
+
+    assertTrue(coalescer.reserve("a"));
+    assertFalse(coalescer.reserve("a"));
+    assertFalse(coalescer.reserve("a"));
+    assertTrue(coalescer.reserve("b"));
+
+    assertEquals(Integer.valueOf(2), coalescer.getCollapsedCounts().get("a"));
+    assertEquals(null, coalescer.getCollapsedCounts().get("b"));
+  }
+
+  @Test
+  public void reserve_allowedAfterPendingJobStarts() {
+    JobCoalescer coalescer = new JobCoalescer();
+    UUID         id        = UUID.randomUUID();
+
+    assertTrue(coalescer.reserve("a"));
+    coalescer.onSubmitted("a", id);
+    coalescer.onStarted("a", id);
+
+    assertTrue(coalescer.reserve("a"));
+  }
+
+  @Test
+  public void onStarted_ignoresOtherJobs() {
+    JobCoalescer coalescer = new JobCoalescer();
+
+    assertTrue(coalescer.reserve("a"));
+    coalescer.onSubmitted("a", UUID.randomUUID());
+    coalescer.onStarted("a", UUID.randomUUID());
+
+    assertFalse(coalescer.reserve("a"));
+  }
+
+  @Test
+  public void release_allowsReserveAfterPredecessorFails() {
+    JobCoalescer coalescer = new JobCoalescer();
+    UUID         id        = UUID.randomUUID();
+
+    assertTrue(coalescer.reserve("a"));
+    coalescer.onSubmitted("a", id);
+    coalescer.release("a", id);
+
+    assertTrue(coalescer.reserve("a"));
+  }
+
+  @Test
+  public void release_allowsReserveAfterSubmitFails() {
+    JobCoalescer coalescer = new JobCoalescer();
+
+    assertTrue(coalescer.reserve("a"));
+    coalescer.release("a", null);
+
+    assertTrue(coalescer.reserve("a"));
+  }
+
+  @Test
+  public void release_ignoresOtherJobs() {
+    JobCoalescer coalescer = new JobCoalescer();
+    UUID         first     = UUID.randomUUID();
+    UUID         second    = UUID.randomUUID();
+
+    assertTrue(coalescer.reserve("a"));
+    coalescer.onSubmitted("a", first);
+    coalescer.onStarted("a", first);
+
+    assertTrue(coalescer.reserve("a"));
+    coalescer.onSubmitted("a", second);
+    coalescer.release("a", first);
+
+    assertFalse(coalescer.reserve("a"));
+  }
+}
@@ -0,0 +1,122 @@
+package org.thoughtcrime.securesms.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogEntryReaderTest {
+
+  private final byte[] secret = new byte[32];
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("logs", null);
+    directory.delete();
+    directory.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+
+    directory.delete();
+  }
+
+  @Test
+  public void readEntry_readsBlocksAndFilesInOrder() throws IOException {
+    File first  = writeLog("first", Arrays.asList("a", "b\nc"), Arrays.asList("d"));
+    File second = writeLog("second", Arrays.asList("e", "", "f"));
+
+    assertEquals(Arrays.asList("a", "b", "c", "d", "e", "", "f"), readAll(first, second));
+  }
+
+  @Test
+  public void readEntry_skipsEmptyFiles() throws IOException {
+    File empty = writeLog("empty");
+    File log   = writeLog("log", Arrays.asList("a", "b"));
+
+    assertEquals(Arrays.asList("a", "b"), readAll(empty, log));
+  }
+
+  @Test
+  public void readEntry_stopsAtIncompleteBlock() throws IOException {
+    File log = writeLog("log", Arrays.asList("a"), Arrays.asList("b"));
+
+    try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+      file.setLength(file.length() - 1);
+    }
+
+    assertEquals(Arrays.asList("a"), readAll(log));
+  }
+
+  @Test
+  public void readEntry_keepsContinuationLinesWithTheirEntry() throws IOException {
+    File log = writeLog("log", Arrays.asList(entry("I", "Kept") + "\nat one", entry("D", "Dropped") + "\nat two", entry("W", "Kept")));
+
+    assertEquals(Arrays.asList(entry("I", "Kept"), "at one", entry("W", "Kept")),
+                 readAll(LogFilter.ALL.withMinLevel("I"), log));
+  }
+
+  @Test
+  public void writeTo_writesMatchingEntriesAsLines() throws IOException {
+    File                  log    = writeLog("log", Arrays.asList(entry("I", "One"), entry("I", "Two"), entry("I", "One")));
+    LogEntryReader        reader = new LogEntryReader(secret, Arrays.asList(log), LogFilter.ALL.withTag("One"));
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+
+    reader.writeTo(out);
+    reader.close();
+
+    assertEquals(entry("I", "One") + "\n" + entry("I", "One") + "\n", out.toString("UTF-8"));
+  }
+
+  private static String entry(String level, String tag) {
+    return "2018-01-01 10:00:00.000 UTC " + level + " " + tag + ": message";
+  }
+
+  @SafeVarargs
+  private final File writeLog(String name, List<String>... blocks) throws IOException {
+    File           file   = new File(directory, name);
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    for (List<String> block : blocks) {
+      writer.writeEntries(block);
+    }
+
+    writer.flush();
+    writer.close();
+
+    return file;
+  }
+
+  private List<String> readAll(File... files) throws IOException {
+    return readAll(LogFilter.ALL, files);
+  }
+
+  private List<String> readAll(LogFilter filter, File... files) throws IOException {
+    LogEntryReader reader  = new LogEntryReader(secret, Arrays.asList(files), filter);
+    List<String>   entries = new LinkedList<>();
+
+    String entry;
+    while ((entry = reader.readEntry()) != null) {
+      entries.add(entry);
+    }
+
+    reader.close();
+
+    return entries;
+  }
+}
@@ -0,0 +1,52 @@
+package org.thoughtcrime.securesms.logging;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LogFilterTest {
+
+  private static final String WARNING = "2018-01-01 10:00:00.000 UTC W PushDecryptJob: Bad MAC";
+  private static final String INFO    = "2018-01-01 10:00:05.000 UTC I KeyCachingService: Locking";
+
+  @Test
+  public void matches_allMatchesEverything() {
+    assertEquals(true, LogFilter.ALL.matches(WARNING));
+    assertEquals(true, LogFilter.ALL.matches(INFO));
+  }
+
+  @Test
+  public void matches_minLevel() {
+    LogFilter filter = LogFilter.ALL.withMinLevel("W");
+
+    assertEquals(true, filter.matches(WARNING));
+    assertEquals(false, filter.matches(INFO));
+  }
+
+  @Test
+  public void matches_tagIsExact() {
+    assertEquals(true, LogFilter.ALL.withTag("PushDecryptJob").matches(WARNING));
+    assertEquals(false, LogFilter.ALL.withTag("PushDecrypt").matches(WARNING));
+    assertEquals(false, LogFilter.ALL.withTag("PushDecryptJob").matches(INFO));
+  }
+
+  @Test
+  public void matches_timeRange() throws Exception {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
+    long             start  = format.parse("2018-01-01 10:00:01.000 UTC").getTime();
+    long             end    = format.parse("2018-01-01 10:00:10.000 UTC").getTime();
+    LogFilter        filter = LogFilter.ALL.withTimeRange(start, end);
+
+    assertEquals(false, filter.matches(WARNING));
+    assertEquals(true, filter.matches(INFO));
+  }
+
+  @Test
+  public void matches_continuationLineIsUndecided() {
+    assertNull(LogFilter.ALL.withMinLevel("W").matches("\tat org.thoughtcrime.securesms.Foo.bar(Foo.java:1)"));
+    assertNull(LogFilter.ALL.matches(""));
+  }
+}
@@ -0,0 +1,129 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.thoughtcrime.securesms.logging.LogEntryReader;
+import org.thoughtcrime.securesms.logsubmit.util.Scrubber;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpooledLogTest {
+
+  private final File directory = new File(System.getProperty("java.io.tmpdir"));
+
+  private SpooledLog log;
+
+  @After
+  public void tearDown() {
+    if (log != null) log.close();
+  }
+
+  @Test
+  public void writeTo_matchesLinesAcrossPages() throws IOException {
+    StringBuilder expected = new StringBuilder();
+    log = spool(1234, expected);
+
+    assertEquals(1234, log.getLineCount());
+    assertEquals(expected.toString(), write(log));
+    assertEquals(expected.toString().getBytes("UTF-8").length, log.getLength());
+  }
+
+  @Test
+  public void getLine_readsAnyPage() throws IOException {
+    log = spool(1234, new StringBuilder());
+
+    assertEquals(line(1233), log.getLine(1233));
+    assertEquals(line(0), log.getLine(0));
+    assertEquals(line(500), log.getLine(500));
+    assertEquals("", log.getLine(10));
+  }
+
+  @Test
+  public void setLine_replacesLineAndLength() throws IOException {
+    log = spool(1000, new StringBuilder());
+
+    log.setLine(3, "édited");
+    log.setLine(999, "");
+
+    String written = write(log);
+
+    assertEquals("édited", log.getLine(3));
+    assertEquals("édited", written.split("\n", -1)[3]);
+    assertEquals("", written.split("\n", -1)[999]);
+    assertEquals(written.getBytes("UTF-8").length, log.getLength());
+  }
+
+  @Test
+  public void close_deletesFile() throws IOException {
+    int before = countSpools();
+
+    log = spool(10, new StringBuilder());
+    assertEquals(before + 1, countSpools());
+
+    log.close();
+    log = null;
+
+    assertEquals(before, countSpools());
+  }
+
+  @Test
+  public void spool_isNotPlaintext() throws IOException {
+    SpooledLog.Writer writer = new SpooledLog.Writer(directory);
+    writer.add("+14155550123");
+
+    log = writer.finish();
+
+    for (File file : directory.listFiles((dir, name) -> name.startsWith("submit-log"))) {
+      assertFalse(new String(Files.readAllBytes(file.toPath()), "ISO-8859-1").contains("+14155550123"));
+    }
+  }
+
+  @Test
+  public void addAll_scrubsEveryEntry() throws IOException {
+    LogEntryReader reader = mock(LogEntryReader.class);
+    when(reader.readEntry()).thenReturn("Sending to +14155550123", "Sent", null);
+
+    SpooledLog.Writer writer = new SpooledLog.Writer(directory);
+    writer.addAll(reader, new Scrubber());
+
+    log = writer.finish();
+
+    assertEquals(2, log.getLineCount());
+    assertEquals("Sending to +*********23", log.getLine(0));
+    assertEquals("Sent", log.getLine(1));
+  }
+
+  private SpooledLog spool(int lines, StringBuilder expected) throws IOException {
+    SpooledLog.Writer writer = new SpooledLog.Writer(directory);
+
+    for (int i = 0; i < lines; i++) {
+      writer.add(line(i));
+      expected.append(line(i)).append('\n');
+    }
+
+    return writer.finish();
+  }
+
+  private static String line(int index) {
+    return index % 10 == 0 ? "" : "line " + index + " ✓";
+  }
+
+  private static String write(SpooledLog log) throws IOException {
+    Buffer buffer = new Buffer();
+    log.writeTo(buffer);
+    return buffer.readUtf8();
+  }
+
+  private int countSpools() {
+    return directory.listFiles((dir, name) -> name.startsWith("submit-log")).length;
+  }
+}
@@ -0,0 +1,318 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.UnreadSummary;
+import org.thoughtcrime.securesms.preferences.widgets.NotificationPrivacyPreference;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationModelTest extends BaseUnitTest {
+
+  private static final long THREAD_A = 1;
+  private static final long THREAD_B = 2;
+
+  private FakeSource        source;
+  private NotificationModel model;
+
+  @Before
+  public void setUpModel() {
+    source = new FakeSource();
+    model  = new NotificationModel();
+
+    source.add(THREAD_A, 100);
+    source.add(THREAD_A, 200);
+    source.add(THREAD_B, 150);
+
+    model.update(source, null);
+    model.onPosted();
+    source.reads.clear();
+    source.muteReads = 0;
+  }
+
+  @Test
+  public void update_firstTimeReadsEverything() {
+    NotificationModel fresh = new NotificationModel();
+
+    fresh.update(source, null);
+
+    assertEquals(Collections.singletonList("all"), source.reads);
+    assertEquals(3, fresh.getState().getMessageCount());
+    assertEquals(set(THREAD_A, THREAD_B), fresh.getChangedThreads());
+    assertTrue(fresh.hasRemovedThreads());
+  }
+
+  @Test
+  public void update_matchingSummaryReadsNothing() {
+    model.update(source, null);
+    model.update(source, Collections.singleton(THREAD_A));
+
+    assertTrue(source.reads.isEmpty());
+    assertFalse(model.hasChanges());
+  }
+
+  @Test
+  public void update_newerMessagesAreAppended() {
+    source.add(THREAD_A, 300);
+    source.add(THREAD_A, 400);
+
+    model.update(source, Collections.singleton(THREAD_A));
+
+    assertEquals(Collections.singletonList(THREAD_A + " after 200"), source.reads);
+    assertEquals(4, model.getState(THREAD_A).getMessageCount());
+    assertEquals(Collections.singleton(THREAD_A), model.getChangedThreads());
+    assertFalse(model.hasRemovedThreads());
+  }
+
+  @Test
+  public void update_appendThatDoesNotMatchReadsThreadAgain() {
+    source.add(THREAD_A, 300);
+    source.hidden.add(THREAD_A + " after 200");
+
+    model.update(source, Collections.singleton(THREAD_A));
+
+    assertEquals(list(THREAD_A + " after 200", THREAD_A + " after " + Long.MIN_VALUE), source.reads);
+    assertEquals(3, model.getState(THREAD_A).getMessageCount());
+  }
+
+  @Test
+  public void update_olderMessageReadReadsThreadAgain() {
+    source.remove(THREAD_A, 100);
+
+    model.update(source, Collections.singleton(THREAD_A));
+
+    assertEquals(Collections.singletonList(THREAD_A + " after " + Long.MIN_VALUE), source.reads);
+    assertEquals(1, model.getState(THREAD_A).getMessageCount());
+    assertEquals(Collections.singleton(THREAD_A), model.getChangedThreads());
+  }
+
+  @Test
+  public void update_invalidatedThreadIsReadAgain() {
+    model.invalidateThread(THREAD_B);
+    model.update(source, Collections.singleton(THREAD_A));
+
+    assertEquals(Collections.singletonList(THREAD_B + " after " + Long.MIN_VALUE), source.reads);
+    assertEquals(Collections.singleton(THREAD_B), model.getChangedThreads());
+
+    source.reads.clear();
+    model.update(source, Collections.singleton(THREAD_B));
+
+    assertTrue(source.reads.isEmpty());
+  }
+
+  @Test
+  public void update_threadWithNothingUnreadIsRemoved() {
+    source.remove(THREAD_B, 150);
+
+    model.update(source, null);
+
+    assertTrue(source.reads.isEmpty());
+    assertEquals(0, model.getState(THREAD_B).getMessageCount());
+    assertEquals(2, model.getState().getMessageCount());
+    assertTrue(model.getChangedThreads().isEmpty());
+    assertTrue(model.hasRemovedThreads());
+  }
+
+  @Test
+  public void update_muteIsOnlyReadForInvalidatedThreads() {
+    source.muteUntil.put(THREAD_A, Long.MAX_VALUE);
+
+    model.update(source, Collections.singleton(THREAD_B));
+
+    assertEquals(0, source.muteReads);
+    assertFalse(model.hasChanges());
+
+    model.invalidateThread(THREAD_A);
+    model.update(source, Collections.singleton(THREAD_B));
+
+    assertEquals(Collections.singleton(THREAD_A), model.getChangedThreads());
+    assertEquals(0, model.getState(THREAD_A).getMessageCount());
+    assertEquals(1, model.getState().getMessageCount());
+
+    model.onPosted();
+    source.reads.clear();
+    source.muteUntil.clear();
+    model.invalidateThread(THREAD_A);
+    model.update(source, Collections.singleton(THREAD_B));
+
+    assertEquals(Collections.singletonList(THREAD_A + " after " + Long.MIN_VALUE), source.reads);
+    assertEquals(Collections.singleton(THREAD_A), model.getChangedThreads());
+    assertEquals(2, model.getState(THREAD_A).getMessageCount());
+  }
+
+  @Test
+  public void update_expiredMuteUnmutesThread() {
+    source.muteUntil.put(THREAD_A, source.now + 10);
+    model.invalidateThread(THREAD_A);
+    model.update(source, Collections.singleton(THREAD_B));
+    model.onPosted();
+    source.reads.clear();
+    source.muteReads = 0;
+
+    source.now += 10;
+    model.update(source, Collections.singleton(THREAD_B));
+
+    assertTrue(source.reads.isEmpty());
+    assertEquals(0, source.muteReads);
+    assertEquals(0, model.getState(THREAD_A).getMessageCount());
+
+    source.now += 1;
+    model.update(source, Collections.singleton(THREAD_B));
+
+    assertEquals(Collections.singletonList(THREAD_A + " after " + Long.MIN_VALUE), source.reads);
+    assertEquals(Collections.singleton(THREAD_A), model.getChangedThreads());
+    assertEquals(2, model.getState(THREAD_A).getMessageCount());
+  }
+
+  @Test
+  public void update_lockChangeReadsEverything() {
+    source.locked = true;
+
+    model.update(source, Collections.singleton(THREAD_A));
+
+    assertEquals(Collections.singletonList("all"), source.reads);
+    assertEquals(set(THREAD_A, THREAD_B), model.getChangedThreads());
+  }
+
+  @Test
+  public void update_privacyChangeReadsEverything() {
+    source.privacy = new NotificationPrivacyPreference("none");
+
+    model.update(source, Collections.singleton(THREAD_A));
+
+    assertEquals(Collections.singletonList("all"), source.reads);
+  }
+
+  private static Set<Long> set(Long... threadIds) {
+    Set<Long> set = new HashSet<>();
+    Collections.addAll(set, threadIds);
+    return set;
+  }
+
+  private static List<String> list(String... reads) {
+    List<String> list = new LinkedList<>();
+    Collections.addAll(list, reads);
+    return list;
+  }
+
+  /**
+   * Unread messages kept in received order, which records each read that's made of them.
+   */
+  private static class FakeSource implements NotificationModel.Source {
+
+    private final List<NotificationModel.Message> messages  = new LinkedList<>();
+    private final List<String>                    reads     = new LinkedList<>();
+    private final Set<String>                     hidden    = new HashSet<>();
+    private final Map<Long, Long>                 muteUntil = new HashMap<>();
+
+    private boolean                       locked    = false;
+    private NotificationPrivacyPreference privacy   = new NotificationPrivacyPreference("all");
+    private long                          now       = 1000;
+    private int                           muteReads = 0;
+
+    void add(long threadId, long dateReceived) {
+      NotificationItem item = new NotificationItem(dateReceived, false, null, null, null, threadId, "Message", dateReceived, null);
+      messages.add(new NotificationModel.Message(threadId, dateReceived, item));
+    }
+
+    void remove(long threadId, long dateReceived) {
+      Iterator<NotificationModel.Message> iterator = messages.iterator();
+
+      while (iterator.hasNext()) {
+        NotificationModel.Message message = iterator.next();
+
+        if (message.threadId == threadId && message.dateReceived == dateReceived) {
+          iterator.remove();
+        }
+      }
+    }
+
+    @Override
+    public boolean isLocked() {
+      return locked;
+    }
+
+    @Override
+    public @NonNull NotificationPrivacyPreference getPrivacy() {
+      return privacy;
+    }
+
+    @Override
+    public @NonNull Map<Long, UnreadSummary> getUnreadSummaries() {
+      Map<Long, UnreadSummary> summaries = new HashMap<>();
+
+      for (NotificationModel.Message message : messages) {
+        summaries.put(message.threadId, getUnreadSummary(message.threadId));
+      }
+
+      return summaries;
+    }
+
+    @Override
+    public @NonNull UnreadSummary getUnreadSummary(long threadId) {
+      int  count  = 0;
+      long oldest = 0;
+      long newest = 0;
+
+      for (NotificationModel.Message message : messages) {
+        if (message.threadId == threadId) {
+          if (count == 0) oldest = message.dateReceived;
+          newest = message.dateReceived;
+          count++;
+        }
+      }
+
+      return new UnreadSummary(count, oldest, newest);
+    }
+
+    @Override
+    public @NonNull List<NotificationModel.Message> getUnread() {
+      reads.add("all");
+      return new LinkedList<>(messages);
+    }
+
+    @Override
+    public @NonNull List<NotificationModel.Message> getUnread(long threadId, long receivedAfter) {
+      String read = threadId + " after " + receivedAfter;
+
+      reads.add(read);
+
+      List<NotificationModel.Message> results = new LinkedList<>();
+
+      if (hidden.contains(read)) return results;
+
+      for (NotificationModel.Message message : messages) {
+        if (message.threadId == threadId && message.dateReceived > receivedAfter) {
+          results.add(message);
+        }
+      }
+
+      return results;
+    }
+
+    @Override
+    public long getMuteUntil(long threadId) {
+      muteReads++;
+      return muteUntil.containsKey(threadId) ? muteUntil.get(threadId) : 0;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return now;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package org.thoughtcrime.securesms.search;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.database.SearchDatabase.Hit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageSearchCacheTest {
+
+  private final List<String>          queries = new ArrayList<>();
+  private final List<Collection<Hit>> withins = new ArrayList<>();
+
+  private List<Hit>          results;
+  private MessageSearchCache cache;
+
+  @Before
+  public void setUp() {
+    results = Arrays.asList(new Hit(3, false, -2.0), new Hit(1, true, -1.5), new Hit(2, false, -1.5), new Hit(7, false, -0.5));
+    cache   = new MessageSearchCache((query, within, limit) -> {
+      queries.add(query);
+      withins.add(within);
+      return results;
+    });
+  }
+
+  @Test
+  public void testPagesFollowTheLastHit() {
+    List<Hit> first  = cache.getPage("hello", null, 2);
+    List<Hit> second = cache.getPage("hello", first.get(1), 2);
+    List<Hit> third  = cache.getPage("hello", second.get(1), 2);
+
+    assertEquals(Arrays.asList(results.get(0), results.get(1)), first);
+    assertEquals(Arrays.asList(results.get(2), results.get(3)), second);
+    assertTrue(third.isEmpty());
+    assertEquals(1, queries.size());
+  }
+
+  @Test
+  public void testPageAfterMissingHitStartsAtItsPosition() {
+    List<Hit> page = cache.getPage("hello", new Hit(99, false, -1.0), 10);
+
+    assertEquals(Arrays.asList(results.get(3)), page);
+  }
+
+  @Test
+  public void testLongerQueryIsRankedWithinPrevious() {
+    cache.getPage("hel", null, 10);
+    cache.getPage("hello w", null, 10);
+
+    assertNull(withins.get(0));
+    assertEquals(results, withins.get(1));
+  }
+
+  @Test
+  public void testUnrelatedQueryIsRankedFromScratch() {
+    cache.getPage("hello", null, 10);
+    cache.getPage("world", null, 10);
+
+    assertNull(withins.get(1));
+  }
+
+  @Test
+  public void testTruncatedQueryIsNotUsedToNarrow() {
+    List<Hit> many = new ArrayList<>();
+
+    for (int i = 0; i < MessageSearchCache.MAX_HITS; i++) {
+      many.add(new Hit(i, false, i));
+    }
+
+    results = many;
+    cache.getPage("a", null, 10);
+    cache.getPage("ab", null, 10);
+
+    assertNull(withins.get(1));
+  }
+
+  @Test
+  public void testClearDropsCachedQueries() {
+    cache.getPage("hello", null, 10);
+    cache.clear();
+    cache.getPage("hello", null, 10);
+
+    assertEquals(2, queries.size());
+  }
+}
@@ -0,0 +1,115 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongLruCacheTest {
+
+  @Test
+  public void put_evictsLeastRecentlyUsed() {
+    LongLruCache<String> cache = new LongLruCache<>(2);
+
+    cache.put(1, "a");
+    cache.put(2, "b");
+    cache.get(1);
+    cache.put(3, "c");
+
+    assertEquals("a", cache.get(1));
+    assertNull(cache.get(2));
+    assertEquals("c", cache.get(3));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void put_replacesExistingValue() {
+    LongLruCache<String> cache = new LongLruCache<>(2);
+
+    cache.put(1, "a");
+    cache.put(1, "b");
+
+    assertEquals("b", cache.get(1));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void containsKey_doesNotRefreshRecency() {
+    LongLruCache<String> cache = new LongLruCache<>(2);
+
+    cache.put(1, "a");
+    cache.put(2, "b");
+
+    assertTrue(cache.containsKey(1));
+
+    cache.put(3, "c");
+
+    assertFalse(cache.containsKey(1));
+  }
+
+  @Test
+  public void remove_keepsOtherEntriesReachable() {
+    LongLruCache<String> cache = new LongLruCache<>(4);
+
+    cache.put(1, "a");
+    cache.put(2, "b");
+    cache.put(3, "c");
+    cache.remove(1);
+    cache.remove(42);
+
+    assertNull(cache.get(1));
+    assertEquals("b", cache.get(2));
+    assertEquals("c", cache.get(3));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void clear_removesEverything() {
+    LongLruCache<String> cache = new LongLruCache<>(4);
+
+    cache.put(1, "a");
+    cache.put(2, "b");
+    cache.clear();
+    cache.put(3, "c");
+
+    assertNull(cache.get(1));
+    assertEquals("c", cache.get(3));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void randomOperations_matchLinkedHashMap() {
+    final int          capacity  = 16;
+    Random             random    = new Random(42);
+    LongLruCache<Long> cache     = new LongLruCache<>(capacity);
+    Map<Long, Long>    reference = new LinkedHashMap<Long, Long>(capacity, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+        return size() > capacity;
+      }
+    };
+
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(64);
+
+      switch (random.nextInt(3)) {
+        case 0:  cache.put(key, key * 10); reference.put(key, key * 10); break;
+        case 1:  assertEquals(reference.get(key), cache.get(key));       break;
+        default: cache.remove(key);         reference.remove(key);       break;
+      }
+
+      assertEquals(reference.size(), cache.size());
+    }
+
+    for (Map.Entry<Long, Long> entry : new HashMap<>(reference).entrySet()) {
+      assertTrue(cache.containsKey(entry.getKey()));
+    }
+  }
+}
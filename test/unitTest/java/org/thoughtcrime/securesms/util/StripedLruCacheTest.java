@@ -0,0 +1,62 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StripedLruCacheTest {
+
+  @Test
+  public void get_countsHitsAndMisses() {
+    StripedLruCache<String, String> cache = new StripedLruCache<>(10, 4);
+
+    cache.put("a", "1");
+
+    assertEquals("1", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void put_evictsLeastRecentlyUsed() {
+    List<String>                     evicted = new LinkedList<>();
+    StripedLruCache<Integer, String> cache   = new StripedLruCache<>(2, 1, (key, value) -> evicted.add(value));
+
+    cache.put(1, "a");
+    cache.put(2, "b");
+    cache.get(1);
+    cache.put(3, "c");
+
+    assertEquals("a", cache.get(1));
+    assertNull(cache.get(2));
+    assertEquals("c", cache.get(3));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(1, evicted.size());
+    assertEquals("b", evicted.get(0));
+  }
+
+  @Test
+  public void size_isBounded() {
+    StripedLruCache<Integer, Integer> cache = new StripedLruCache<>(64, 8);
+
+    for (int i = 0; i < 1000; i++) {
+      cache.put(i, i);
+    }
+
+    assertEquals(64, cache.size());
+  }
+
+  @Test
+  public void remove_dropsEntry() {
+    StripedLruCache<String, String> cache = new StripedLruCache<>(10, 2);
+
+    cache.put("a", "1");
+    assertEquals("1", cache.remove("a"));
+    assertNull(cache.get("a"));
+  }
+}